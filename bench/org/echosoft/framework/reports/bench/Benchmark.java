@@ -0,0 +1,58 @@
+package org.echosoft.framework.reports.bench;
+
+/**
+ * <p>Описывает одну измеряемую операцию.</p>
+ * <p>Перед началом замеров однократно вызывается метод {@link #setUp()}, после чего метод {@link #run()} вызывается многократно
+ * (сначала на этапе "прогрева", затем в процессе замеров). По окончании замеров однократно вызывается метод {@link #tearDown()}.
+ * Результат, возвращаемый методом {@link #run()}, используется исполнителем тестов для того чтобы JIT компилятор не мог
+ * исключить вычисление этого результата как неиспользуемое.</p>
+ *
+ * @see BenchmarkRunner
+ * @author Anton Sharapov
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    /**
+     * @param name  уникальное имя теста вида <code>группа.тест</code>, по которому результаты тестов сопоставляются между собой.
+     */
+    protected Benchmark(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return  уникальное имя теста.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Подготавливает все необходимые для выполнения теста данные.
+     *
+     * @throws Exception  в случае каких-либо проблем.
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Выполняет одну измеряемую операцию.
+     *
+     * @return  результат выполнения операции.
+     * @throws Exception  в случае каких-либо проблем.
+     */
+    public abstract Object run() throws Exception;
+
+    /**
+     * Освобождает все использованные тестом ресурсы.
+     *
+     * @throws Exception  в случае каких-либо проблем.
+     */
+    public void tearDown() throws Exception {
+    }
+
+    public String toString() {
+        return "[Benchmark{name:"+name+"}]";
+    }
+}
@@ -0,0 +1,239 @@
+package org.echosoft.framework.reports.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Выполняет нагрузочные тесты библиотеки и сохраняет их результаты.</p>
+ * <p>Каждый тест сначала выполняется в течение некоторого времени без замеров (для того чтобы JIT компилятор успел скомпилировать
+ * задействованный в тесте код), после чего выполняется несколько серий замеров фиксированной длительности. Результатом теста
+ * является среднее количество операций в секунду по всем сериям и его среднеквадратичное отклонение.</p>
+ * <p>Результаты каждого запуска дописываются в файл <code>&lt;каталог результатов&gt;/&lt;метка&gt;.csv</code>, где в качестве метки
+ * обычно используется идентификатор ревизии исходных кодов. Это позволяет сравнивать между собой результаты, полученные на разных
+ * ревизиях (см. режим <code>compare</code>).</p>
+ * <p>Параметры запуска задаются системными свойствами:
+ * <ul>
+ *  <li><code>bench.warmup</code> - длительность "прогрева" каждого теста в миллисекундах (по умолчанию 2000);
+ *  <li><code>bench.time</code> - длительность одной серии замеров в миллисекундах (по умолчанию 1000);
+ *  <li><code>bench.iterations</code> - количество серий замеров (по умолчанию 5);
+ *  <li><code>bench.results</code> - каталог, в котором сохраняются результаты тестов (по умолчанию <code>bench-results</code>);
+ *  <li><code>bench.label</code> - метка, под которой сохраняются результаты данного запуска (по умолчанию <code>current</code>).
+ * </ul>
+ * </p>
+ * <p>Аргументы командной строки:
+ * <ul>
+ *  <li><code>[регулярное выражение ...]</code> - выполнить только те тесты, имена которых содержат фрагмент, соответствующий
+ *      хотя бы одному из указанных регулярных выражений. Если выражения не указаны, то выполняются все тесты;
+ *  <li><code>compare &lt;метка1&gt; &lt;метка2&gt;</code> - сравнить результаты, сохраненные под двумя указанными метками.
+ *      Для каждого теста используется последний сохраненный под данной меткой результат.
+ * </ul>
+ * </p>
+ *
+ * @author Anton Sharapov
+ */
+public final class BenchmarkRunner {
+
+    private static final String CSV_HEADER = "date,label,benchmark,ops/s,error,ms/op,iterations";
+
+    /**
+     * Используется для того чтобы результаты выполнения тестов не могли быть отброшены JIT компилятором.
+     */
+    private static volatile int sink;
+
+    private final long warmup;
+    private final long time;
+    private final int iterations;
+    private final File resultsDir;
+    private final String label;
+
+    public BenchmarkRunner() {
+        this.warmup = Long.getLong("bench.warmup", 2000);
+        this.time = Long.getLong("bench.time", 1000);
+        this.iterations = Integer.getInteger("bench.iterations", 5);
+        this.resultsDir = new File(System.getProperty("bench.results", "bench-results"));
+        this.label = System.getProperty("bench.label", "current");
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final BenchmarkRunner runner = new BenchmarkRunner();
+        if (args.length>0 && "compare".equals(args[0])) {
+            if (args.length!=3)
+                throw new IllegalArgumentException("Usage: compare <base label> <current label>");
+            runner.compare(args[1], args[2]);
+        } else {
+            final Pattern[] filters = new Pattern[args.length];
+            for (int i=0; i<args.length; i++) {
+                filters[i] = Pattern.compile(args[i]);
+            }
+            runner.run(filters);
+        }
+    }
+
+    /**
+     * @return  список всех доступных тестов.
+     * @throws Exception  в случае проблем при подготовке тестов.
+     */
+    public static List<Benchmark> getBenchmarks() throws Exception {
+        final List<Benchmark> result = new ArrayList<Benchmark>();
+        result.addAll(ParserBenchmarks.create());
+        result.addAll(ExpressionBenchmarks.create());
+        result.addAll(RenderBenchmarks.create());
+        result.addAll(GroupBenchmarks.create());
+        result.addAll(MacrosBenchmarks.create());
+        result.addAll(ProcessBenchmarks.create());
+        return result;
+    }
+
+    /**
+     * Выполняет все тесты, имена которых соответствуют хотя бы одному из указанных фильтров.
+     *
+     * @param filters  регулярные выражения, которым должны соответствовать имена выполняемых тестов.
+     *   Пустой массив означает что должны быть выполнены все тесты.
+     * @throws Exception  в случае каких-либо проблем при выполнении тестов.
+     */
+    public void run(final Pattern[] filters) throws Exception {
+        final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (Benchmark benchmark : getBenchmarks()) {
+            if (accept(benchmark.getName(), filters))
+                benchmarks.add(benchmark);
+        }
+        if (benchmarks.isEmpty()) {
+            System.out.println("No benchmarks found");
+            return;
+        }
+        System.out.println("label: "+label+",  warmup: "+warmup+" ms,  iterations: "+iterations+" x "+time+" ms");
+        final PrintWriter out = openResults();
+        try {
+            final String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+            for (Benchmark benchmark : benchmarks) {
+                final double[] score = measure(benchmark);
+                final String line = String.format(Locale.US, "%-45s %14.3f +- %10.3f ops/s %14.3f ms/op",
+                                                  benchmark.getName(), score[0], score[1], 1000/score[0]);
+                System.out.println(line);
+                out.println(String.format(Locale.US, "%s,%s,%s,%.3f,%.3f,%.6f,%d",
+                                          date, label, benchmark.getName(), score[0], score[1], 1000/score[0], iterations));
+                out.flush();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Сравнивает результаты двух ранее выполненных запусков тестов.
+     *
+     * @param base  метка запуска, результаты которого принимаются за базовые.
+     * @param current  метка запуска, результаты которого сравниваются с базовыми.
+     * @throws IOException  в случае проблем с чтением результатов.
+     */
+    public void compare(final String base, final String current) throws IOException {
+        final Map<String,Double> bscores = loadResults(base);
+        final Map<String,Double> cscores = loadResults(current);
+        System.out.println(String.format(Locale.US, "%-45s %16s %16s %8s", "benchmark", base, current, "ratio"));
+        for (Map.Entry<String,Double> e : cscores.entrySet()) {
+            final Double bscore = bscores.get(e.getKey());
+            if (bscore==null) {
+                System.out.println(String.format(Locale.US, "%-45s %16s %16.3f %8s", e.getKey(), "-", e.getValue(), "-"));
+            } else {
+                System.out.println(String.format(Locale.US, "%-45s %16.3f %16.3f %8.3f", e.getKey(), bscore, e.getValue(), e.getValue()/bscore));
+            }
+        }
+    }
+
+
+    private double[] measure(final Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            execute(benchmark, warmup * 1000000L);
+            final double[] scores = new double[iterations];
+            double sum = 0;
+            for (int i=0; i<iterations; i++) {
+                scores[i] = execute(benchmark, time * 1000000L);
+                sum += scores[i];
+            }
+            final double mean = sum / iterations;
+            double dev = 0;
+            for (double score : scores) {
+                dev += (score-mean) * (score-mean);
+            }
+            dev = iterations>1 ? Math.sqrt(dev / (iterations-1)) : 0;
+            return new double[]{mean, dev};
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * Многократно выполняет тест в течение указанного времени (но как минимум один раз).
+     *
+     * @return  среднее количество операций в секунду.
+     */
+    private static double execute(final Benchmark benchmark, final long duration) throws Exception {
+        final long started = System.nanoTime();
+        long elapsed;
+        long ops = 0;
+        int hash = 0;
+        do {
+            final Object result = benchmark.run();
+            hash += result!=null ? System.identityHashCode(result) : 0;
+            ops++;
+            elapsed = System.nanoTime() - started;
+        } while (elapsed < duration);
+        sink += hash;
+        return ops * 1e9 / elapsed;
+    }
+
+    private static boolean accept(final String name, final Pattern[] filters) {
+        if (filters.length==0)
+            return true;
+        for (Pattern filter : filters) {
+            if (filter.matcher(name).find())
+                return true;
+        }
+        return false;
+    }
+
+    private PrintWriter openResults() throws IOException {
+        if (!resultsDir.isDirectory() && !resultsDir.mkdirs())
+            throw new IOException("Unable to create directory "+resultsDir.getPath());
+        final File file = new File(resultsDir, label+".csv");
+        final boolean exists = file.isFile();
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        if (!exists)
+            out.println(CSV_HEADER);
+        return out;
+    }
+
+    private Map<String,Double> loadResults(final String label) throws IOException {
+        final File file = new File(resultsDir, label+".csv");
+        final Map<String,Double> result = new LinkedHashMap<String,Double>();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            in.readLine();
+            for (String line=in.readLine(); line!=null; line=in.readLine()) {
+                final String[] fields = line.split(",");
+                if (fields.length<4)
+                    continue;
+                result.remove(fields[2]);
+                result.put(fields[2], Double.valueOf(fields[3]));
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+}
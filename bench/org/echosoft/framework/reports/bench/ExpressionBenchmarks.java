@@ -0,0 +1,64 @@
+package org.echosoft.framework.reports.bench;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.echosoft.framework.reports.model.el.BaseExpression;
+import org.echosoft.framework.reports.model.el.ELContext;
+
+/**
+ * <p>Нагрузочные тесты вычисления выражений ({@link BaseExpression#getValue(ELContext)}) различных видов:
+ * статических строк, обращений к переменным разных областей видимости, вложенных свойств, выражений без явного указания
+ * области видимости, альтернатив, смешанного текста и выражений с форматированием результата.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class ExpressionBenchmarks {
+
+    private ExpressionBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        final List<Benchmark> result = new ArrayList<Benchmark>();
+        result.add(new ExpressionBenchmark("static", "Итого по разделу"));
+        result.add(new ExpressionBenchmark("env", "${env:title}"));
+        result.add(new ExpressionBenchmark("var", "${var:row}"));
+        result.add(new ExpressionBenchmark("row", "${row:name}"));
+        result.add(new ExpressionBenchmark("row-nested", "${row:date.time}"));
+        result.add(new ExpressionBenchmark("unscoped", "${amount}"));
+        result.add(new ExpressionBenchmark("alternatives", "${var:missing|env:title}"));
+        result.add(new ExpressionBenchmark("mixed-text", "Позиция ${row:name} на сумму ${row:amount}"));
+        result.add(new ExpressionBenchmark("format-number", "${(number,#,##0.00)row:amount}"));
+        result.add(new ExpressionBenchmark("format-date", "${(date,dd.MM.yyyy)row:date}"));
+        return result;
+    }
+
+
+    private static final class ExpressionBenchmark extends Benchmark {
+        private final String text;
+        private BaseExpression expr;
+        private ELContext ctx;
+        private List<SyntheticReport.Item> items;
+        private int pos;
+
+        private ExpressionBenchmark(final String name, final String text) {
+            super("expression." + name);
+            this.text = text;
+        }
+
+        public void setUp() throws Exception {
+            expr = new BaseExpression(text);
+            ctx = new ELContext();
+            ctx.getEnvironment().put("title", "Синтетический отчет");
+            ctx.getEnvironment().put("date", new Date());
+            ctx.getVariables().put("row", 10);
+            items = SyntheticReport.makeItems(1024, 0, 1);
+        }
+
+        public Object run() throws Exception {
+            ctx.setRowModel(items.get(pos++ & 1023));
+            return expr.getValue(ctx);
+        }
+    }
+}
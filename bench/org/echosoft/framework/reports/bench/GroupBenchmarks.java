@@ -0,0 +1,88 @@
+package org.echosoft.framework.reports.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.echosoft.framework.reports.model.GroupModel;
+import org.echosoft.framework.reports.model.GroupingSection;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.processor.ExecutionContext;
+import org.echosoft.framework.reports.processor.GroupManager;
+import org.echosoft.framework.reports.processor.SectionContext;
+import org.echosoft.framework.reports.processor.xlsx.XLSXWorkbook;
+
+/**
+ * <p>Нагрузочные тесты построения дерева группировок ({@link GroupManager}) без отрисовки содержимого строк.</p>
+ * <p>Тестируются два вида деревьев: глубокое (5 уровней группировки, в каждой группе по 4 дочерних группы) и
+ * широкое (1 уровень группировки, 1000 групп). Одна операция соответствует обработке всех записей секции.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class GroupBenchmarks {
+
+    private GroupBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        final List<Benchmark> result = new ArrayList<Benchmark>();
+        result.add(new GroupTreeBenchmark("deep", 10000, SyntheticReport.MAX_LEVELS, 4));
+        result.add(new GroupTreeBenchmark("wide", 10000, 1, 1000));
+        return result;
+    }
+
+
+    private static final class GroupTreeBenchmark extends Benchmark {
+        private final int count;
+        private final int levels;
+        private final int fanout;
+        private Report report;
+        private GroupingSection section;
+        private List<SyntheticReport.Item> items;
+
+        private GroupTreeBenchmark(final String name, final int count, final int levels, final int fanout) {
+            super("groups." + name + "-" + count);
+            this.count = count;
+            this.levels = levels;
+            this.fanout = fanout;
+        }
+
+        public void setUp() throws Exception {
+            report = SyntheticReport.create(levels);
+            section = (GroupingSection)report.findSheetById(SyntheticReport.SHEET).findSectionById("body");
+            items = SyntheticReport.makeItems(count, levels, fanout);
+        }
+
+        public Object run() throws Exception {
+            final ELContext elctx = new ELContext();
+            final XLSXWorkbook wb = new XLSXWorkbook(new HSSFWorkbook());
+            final ExecutionContext ectx = new ExecutionContext(report, elctx, wb, new HashMap<Short,CellStyle>());
+            ectx.wsheet = wb.createSheet(SyntheticReport.SHEET);
+            ectx.sectionContext = new SectionContext(null, section, 0, elctx);
+            final GroupManager gm = new SimpleGroupManager(section.getGroups());
+            ectx.sectionContext.gm = gm;
+            for (SyntheticReport.Item item : items) {
+                gm.initRecord(ectx, item);
+                ectx.wsheet.createRow(ectx.getNewRowNum());
+                gm.finalizeRecord(ectx);
+            }
+            gm.finalizeAllGroups(ectx);
+            return ectx.wsheet;
+        }
+    }
+
+    /**
+     * Менеджер группировок, не выполняющий отрисовку групповых строк.
+     */
+    private static final class SimpleGroupManager extends GroupManager {
+        private SimpleGroupManager(final List<GroupModel> groups) {
+            super(groups);
+        }
+        protected void renderCurrentGroup(final ExecutionContext ctx) {
+            // строки под группировку уже созданы, их содержимое в данном тесте не отрисовывается ...
+        }
+    }
+}
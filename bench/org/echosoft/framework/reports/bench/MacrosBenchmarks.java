@@ -0,0 +1,144 @@
+package org.echosoft.framework.reports.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.echosoft.framework.reports.macros.Macros;
+import org.echosoft.framework.reports.model.GroupModel;
+import org.echosoft.framework.reports.model.GroupingSection;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.processor.ExecutionContext;
+import org.echosoft.framework.reports.processor.Group;
+import org.echosoft.framework.reports.processor.GroupManager;
+import org.echosoft.framework.reports.processor.SectionContext;
+
+/**
+ * <p>Нагрузочные тесты макросов, формирующих формулы Excel по структуре уже отрисованных данных.</p>
+ * <p>Групповые макросы тестируются на заранее построенной группе, содержащей либо дочерние группы, либо записи, расположенные
+ * в смежных или несмежных строках. Количество элементов группы выбирается как меньше, так и больше порога (30 элементов),
+ * при превышении которого макросы формируют формулу иного вида. Одна операция соответствует одному вызову макроса,
+ * включая установку сформированной формулы в ячейку.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class MacrosBenchmarks {
+
+    private MacrosBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        final List<Benchmark> result = new ArrayList<Benchmark>();
+        result.add(new GroupMacrosBenchmark("gsum", "children", 20, 0, false));
+        result.add(new GroupMacrosBenchmark("gsum", "children", 200, 0, false));
+        result.add(new GroupMacrosBenchmark("gsum", "records-contiguous", 0, 500, true));
+        result.add(new GroupMacrosBenchmark("gsum", "records-scattered", 0, 20, false));
+        result.add(new GroupMacrosBenchmark("gsum", "records-scattered", 0, 500, false));
+        result.add(new GroupMacrosBenchmark("gmax", "children", 20, 0, false));
+        result.add(new GroupMacrosBenchmark("gavg", "records-contiguous", 0, 500, true));
+        result.add(new RowsMacrosBenchmark(1000, 1));
+        result.add(new RowsMacrosBenchmark(1000, 3));
+        return result;
+    }
+
+
+    private static ExecutionContext makeContext(final Report report, final GroupingSection section) {
+        final ELContext elctx = new ELContext();
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final ExecutionContext ectx = new ExecutionContext(report, elctx, wb, new HashMap<Short,CellStyle>());
+        ectx.wsheet = wb.createSheet(SyntheticReport.SHEET);
+        ectx.sectionContext = new SectionContext(null, section, 0, elctx);
+        ectx.cell = ectx.wsheet.createRow(0).createCell(1);
+        return ectx;
+    }
+
+    private static final class GroupMacrosBenchmark extends Benchmark {
+        private final String macro;
+        private final int children;
+        private final int records;
+        private final boolean contiguous;
+        private ExecutionContext ectx;
+        private Macros func;
+
+        private GroupMacrosBenchmark(final String macro, final String shape, final int children, final int records, final boolean contiguous) {
+            super("macros." + macro + "-" + shape + "-" + Math.max(children, records));
+            this.macro = macro;
+            this.children = children;
+            this.records = records;
+            this.contiguous = contiguous;
+        }
+
+        public void setUp() throws Exception {
+            final Report report = SyntheticReport.create(1);
+            final GroupingSection section = (GroupingSection)report.findSheetById(SyntheticReport.SHEET).findSectionById("body");
+            final GroupModel model = section.getGroups().get(0);
+            final SyntheticReport.Item bean = SyntheticReport.makeItems(1, 1, 1).get(0);
+            final Group group = new Group(model, bean, 10, 0);
+            int row = group.startRow + model.getRowsCount();
+            for (int i=0; i<children; i++) {
+                group.children.add(new Group(model, bean, row, 1));
+                row += 5;
+            }
+            for (int i=0; i<records; i++) {
+                group.records.add(row);
+                row += contiguous ? 1 : 2;
+            }
+            group.recordsHeight = records>0 ? (contiguous ? 1 : 2) : null;
+
+            ectx = makeContext(report, section);
+            ectx.sectionContext.gm = new FixedGroupManager(section.getGroups(), group);
+            func = report.getMacros(macro);
+        }
+
+        public Object run() throws Exception {
+            func.call(ectx, null);
+            return ectx.cell;
+        }
+    }
+
+    private static final class RowsMacrosBenchmark extends Benchmark {
+        private final int records;
+        private final int nth;
+        private ExecutionContext ectx;
+        private Macros func;
+        private String args;
+
+        private RowsMacrosBenchmark(final int records, final int nth) {
+            super("macros.nrowsum-" + records + "-nth" + nth);
+            this.records = records;
+            this.nth = nth;
+        }
+
+        public void setUp() throws Exception {
+            final Report report = SyntheticReport.create(1);
+            final GroupingSection section = (GroupingSection)report.findSheetById(SyntheticReport.SHEET).findSectionById("body");
+            ectx = makeContext(report, section);
+            final SectionContext stat = new SectionContext(null, section, 1, ectx.elctx);
+            stat.record = records;
+            ectx.history.put("stat", stat);
+            func = report.getMacros("nrowsum");
+            args = "stat,B," + nth;
+        }
+
+        public Object run() throws Exception {
+            func.call(ectx, args);
+            return ectx.cell;
+        }
+    }
+
+    /**
+     * Менеджер группировок, у которого текущей всегда является одна и та же заранее подготовленная группа.
+     */
+    private static final class FixedGroupManager extends GroupManager {
+        private FixedGroupManager(final List<GroupModel> models, final Group group) {
+            super(models);
+            groups.add(group);
+        }
+        protected void renderCurrentGroup(final ExecutionContext ctx) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.echosoft.framework.reports.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.echosoft.framework.reports.parser.ReportModelParser;
+
+/**
+ * <p>Нагрузочные тесты разбора моделей отчетов ({@link ReportModelParser#parse(InputStream, InputStream)}).</p>
+ * <p>Используются шаблоны отчетов из тестовых данных библиотеки (<code>report1</code> ... <code>report3</code>), а также
+ * синтетические отчеты с различным количеством уровней группировки.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class ParserBenchmarks {
+
+    private static final String DOCS_PATH = "/org/echosoft/framework/reports/data/";
+
+    private ParserBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        final List<Benchmark> result = new ArrayList<Benchmark>();
+        for (String name : new String[]{"report1", "report2", "report3"}) {
+            result.add(new ResourceReport(name));
+        }
+        result.add(new SyntheticReportParser(0));
+        result.add(new SyntheticReportParser(SyntheticReport.MAX_LEVELS));
+        return result;
+    }
+
+
+    private static final class ResourceReport extends Benchmark {
+        private final String report;
+        private byte[] template;
+        private byte[] structure;
+
+        private ResourceReport(final String report) {
+            super("parser." + report);
+            this.report = report;
+        }
+
+        public void setUp() throws Exception {
+            template = readResource(DOCS_PATH + report + ".xls");
+            structure = readResource(DOCS_PATH + report + ".xml");
+        }
+
+        public Object run() throws Exception {
+            return ReportModelParser.parse(new ByteArrayInputStream(template), new ByteArrayInputStream(structure));
+        }
+    }
+
+    private static final class SyntheticReportParser extends Benchmark {
+        private final int levels;
+        private byte[] template;
+        private byte[] structure;
+
+        private SyntheticReportParser(final int levels) {
+            super("parser.synthetic-" + levels + "levels");
+            this.levels = levels;
+        }
+
+        public void setUp() throws Exception {
+            template = readStream(SyntheticReport.openTemplate(levels));
+            structure = readStream(SyntheticReport.openStructure(levels));
+        }
+
+        public Object run() throws Exception {
+            return ReportModelParser.parse(new ByteArrayInputStream(template), new ByteArrayInputStream(structure));
+        }
+    }
+
+
+    private static byte[] readResource(final String path) throws IOException {
+        final InputStream in = ParserBenchmarks.class.getResourceAsStream(path);
+        if (in==null)
+            throw new IOException("Resource not found: "+path);
+        return readStream(in);
+    }
+
+    private static byte[] readStream(final InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+            final byte[] buf = new byte[8192];
+            for (int len=in.read(buf); len>=0; len=in.read(buf)) {
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.echosoft.framework.reports.bench;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.processor.ExcelReportProcessor;
+import org.echosoft.framework.reports.processor.ReportPlan;
+import org.echosoft.framework.reports.processor.RowWindow;
+
+/**
+ * <p>Нагрузочные тесты формирования отчета целиком ({@link ExcelReportProcessor#process(ReportPlan, ELContext)} и
+ * {@link ExcelReportProcessor#process(ReportPlan, ELContext, OutputStream, int)}) на синтетических данных,
+ * передаваемых в отчет через {@link org.echosoft.framework.reports.model.providers.ListDataProviderHolder}.</p>
+ * <p>Отчеты в формате Excel 97-2003 тестируются на объемах до 10 тысяч записей (формат ограничивает количество строк на листе),
+ * отчеты в потоковом режиме (формат Excel 2007) - на объемах до 1 миллиона записей. Одна операция соответствует формированию
+ * одного отчета, включая его запись в выходной поток (содержимое которого никуда не сохраняется).</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class ProcessBenchmarks {
+
+    private ProcessBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        final List<Benchmark> result = new ArrayList<Benchmark>();
+        for (int count : new int[]{1000, 10000}) {
+            result.add(new HSSFBenchmark("flat", count, 0, 1));
+            result.add(new HSSFBenchmark("grouped", count, 2, 10));
+        }
+        for (int count : new int[]{1000, 10000, 100000, 1000000}) {
+            result.add(new StreamingBenchmark("flat", count, 0, 1));
+            result.add(new StreamingBenchmark("grouped", count, 2, 10));
+        }
+        return result;
+    }
+
+
+    private static abstract class ProcessBenchmark extends Benchmark {
+        private final int count;
+        private final int levels;
+        private final int fanout;
+        protected ExcelReportProcessor processor;
+        protected ReportPlan plan;
+        private List<SyntheticReport.Item> items;
+
+        private ProcessBenchmark(final String name, final int count, final int levels, final int fanout) {
+            super(name + "-" + count);
+            this.count = count;
+            this.levels = levels;
+            this.fanout = fanout;
+        }
+
+        public void setUp() throws Exception {
+            processor = new ExcelReportProcessor();
+            plan = processor.compile(SyntheticReport.create(levels));
+            items = SyntheticReport.makeItems(count, levels, fanout);
+        }
+
+        public void tearDown() {
+            items = null;
+        }
+
+        protected ELContext makeContext() {
+            final ELContext ctx = new ELContext();
+            ctx.getEnvironment().put("title", "Синтетический отчет");
+            ctx.getEnvironment().put("date", new Date());
+            ctx.getEnvironment().put(SyntheticReport.VAR_ITEMS, items);
+            return ctx;
+        }
+    }
+
+    private static final class HSSFBenchmark extends ProcessBenchmark {
+        private HSSFBenchmark(final String name, final int count, final int levels, final int fanout) {
+            super("process.hssf-" + name, count, levels, fanout);
+        }
+
+        public Object run() throws Exception {
+            final HSSFWorkbook wb = processor.process(plan, makeContext());
+            wb.write(NullOutputStream.INSTANCE);
+            return wb;
+        }
+    }
+
+    private static final class StreamingBenchmark extends ProcessBenchmark {
+        private StreamingBenchmark(final String name, final int count, final int levels, final int fanout) {
+            super("process.xlsx-" + name, count, levels, fanout);
+        }
+
+        public Object run() throws Exception {
+            final ELContext ctx = makeContext();
+            processor.process(plan, ctx, NullOutputStream.INSTANCE, RowWindow.DEFAULT_SIZE);
+            return ctx;
+        }
+    }
+
+    /**
+     * Выходной поток, отбрасывающий все записываемые в него данные.
+     */
+    private static final class NullOutputStream extends OutputStream {
+        private static final NullOutputStream INSTANCE = new NullOutputStream();
+        public void write(final int b) {
+        }
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.echosoft.framework.reports.bench;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.echosoft.framework.reports.model.PlainSection;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.processor.ExcelReportProcessor;
+import org.echosoft.framework.reports.processor.ExecutionContext;
+import org.echosoft.framework.reports.processor.ReportPlan;
+import org.echosoft.framework.reports.processor.SectionContext;
+
+/**
+ * <p>Нагрузочные тесты отрисовки отдельных ячеек и областей шаблона отчета.</p>
+ * <p>Отрисовка ячеек ({@link ExcelReportProcessor#renderCell(ExecutionContext, Object)}) тестируется отдельно для значений каждого
+ * из поддерживаемых типов. Отрисовка области ({@link ExcelReportProcessor#renderArea(ExecutionContext, org.echosoft.framework.reports.model.Area, int)})
+ * тестируется на строке с данными синтетического отчета, содержащей ячейки всех основных типов.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class RenderBenchmarks {
+
+    /**
+     * Максимальное количество строк, которое может быть отрисовано на одном листе прежде чем он будет пересоздан.
+     */
+    private static final int MAX_ROWS = 60000;
+
+    private RenderBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        final List<Benchmark> result = new ArrayList<Benchmark>();
+        result.add(new CellBenchmark("number", 1234.5678));
+        result.add(new CellBenchmark("integer", 1234));
+        result.add(new CellBenchmark("string", "Наименование товара"));
+        result.add(new CellBenchmark("date", new Date()));
+        result.add(new CellBenchmark("boolean", Boolean.TRUE));
+        result.add(new CellBenchmark("formula", "$F=A1*2+B1"));
+        result.add(new CellBenchmark("blank", null));
+        result.add(new AreaBenchmark());
+        return result;
+    }
+
+
+    /**
+     * Предоставляет доступ к защищенным методам обработчика отчетов.
+     */
+    private static final class Renderer extends ExcelReportProcessor {
+        private ExecutionContext prepare(final Report report, final ELContext ctx) throws Exception {
+            final ReportPlan plan = compile(report);
+            final HSSFWorkbook wb = makeWorkbook(report, ctx);
+            final ExecutionContext ectx = new ExecutionContext(plan, ctx, wb, applyStyles(report, wb), null);
+            ctx.getVariables().put(VAR_CONTEXT, ectx);
+            final PlainSection section = (PlainSection)report.findSheetById(SyntheticReport.SHEET).findSectionById("body");
+            ectx.sectionContext = new SectionContext(null, section, 0, ctx);
+            ectx.wsheet = wb.createSheet("bench");
+            return ectx;
+        }
+        private void cell(final ExecutionContext ectx, final Object value) {
+            renderCell(ectx, value);
+        }
+        private int area(final ExecutionContext ectx, final PlainSection section) throws Exception {
+            return renderArea(ectx, section.getTemplate(), -1);
+        }
+        private void resetSheet(final ExecutionContext ectx) {
+            final int index = ectx.wb.getSheetIndex(ectx.wsheet);
+            ectx.wb.removeSheetAt(index);
+            ectx.wsheet = ectx.wb.createSheet("bench");
+        }
+    }
+
+    private static final class CellBenchmark extends Benchmark {
+        private final Object value;
+        private Renderer renderer;
+        private ExecutionContext ectx;
+        private Row[] rows;
+        private int pos;
+
+        private CellBenchmark(final String name, final Object value) {
+            super("render.cell-" + name);
+            this.value = value;
+        }
+
+        public void setUp() throws Exception {
+            renderer = new Renderer();
+            ectx = renderer.prepare(SyntheticReport.create(0), new ELContext());
+            rows = new Row[1000];
+            for (int i=0; i<rows.length; i++) {
+                rows[i] = ectx.wsheet.createRow(i);
+            }
+        }
+
+        public Object run() throws Exception {
+            final int p = pos;
+            pos = (pos + 1) % (rows.length * 256);
+            ectx.cell = rows[p % rows.length].createCell(p / rows.length);
+            renderer.cell(ectx, value);
+            return ectx.cell;
+        }
+    }
+
+    private static final class AreaBenchmark extends Benchmark {
+        private Renderer renderer;
+        private ExecutionContext ectx;
+        private PlainSection section;
+        private List<SyntheticReport.Item> items;
+        private int pos;
+
+        private AreaBenchmark() {
+            super("render.area");
+        }
+
+        public void setUp() throws Exception {
+            renderer = new Renderer();
+            ectx = renderer.prepare(SyntheticReport.create(0), new ELContext());
+            section = (PlainSection)ectx.sectionContext.section;
+            items = SyntheticReport.makeItems(1024, 0, 1);
+        }
+
+        public Object run() throws Exception {
+            if (ectx.getLastRowNum()>=MAX_ROWS)
+                renderer.resetSheet(ectx);
+            ectx.elctx.setRowModel(items.get(pos++ & 1023));
+            return renderer.area(ectx, section);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.echosoft.framework.reports.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.parser.ReportModelParser;
+
+/**
+ * <p>Формирует синтетические отчеты и данные для них, используемые в нагрузочных тестах.</p>
+ * <p>Отчет состоит из единственного листа <code>data</code>, содержащего заголовок, секцию с данными и итоговую строку.
+ * Секция с данными получает записи {@link Item} из переменной окружения <code>items</code> и содержит ячейки всех основных
+ * типов: строки, числа, даты, логические значения и формулы. В зависимости от количества уровней группировки секция
+ * с данными является либо простой секцией, либо секцией с группировками по полям <code>g0</code>, <code>g1</code>, ...
+ * Групповые строки содержат итоги по колонке <code>B</code>, рассчитываемые макросом <code>gsum</code>.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class SyntheticReport {
+
+    /**
+     * Максимальное количество уровней группировки в синтетическом отчете.
+     */
+    public static final int MAX_LEVELS = 5;
+
+    /**
+     * Идентификатор листа отчета.
+     */
+    public static final String SHEET = "data";
+
+    /**
+     * Имя переменной окружения, в которой передается список отображаемых в отчете записей.
+     */
+    public static final String VAR_ITEMS = "items";
+
+    private static final Date[] DATES = new Date[366];
+    static {
+        final long base = 1230768000000L;   // 01.01.2009
+        for (int i=0; i<DATES.length; i++) {
+            DATES[i] = new Date(base + i*86400000L);
+        }
+    }
+
+    private SyntheticReport() {
+    }
+
+    /**
+     * Формирует модель синтетического отчета.
+     *
+     * @param levels  количество уровней группировки записей (от 0 до {@link #MAX_LEVELS}).
+     * @return  модель отчета.
+     * @throws Exception  в случае проблем при разборе отчета.
+     */
+    public static Report create(final int levels) throws Exception {
+        return ReportModelParser.parse(openTemplate(levels), openStructure(levels));
+    }
+
+    /**
+     * @param levels  количество уровней группировки записей (от 0 до {@link #MAX_LEVELS}).
+     * @return  поток с содержимым шаблона синтетического отчета (Excel документ).
+     * @throws IOException  в случае проблем при формировании шаблона.
+     */
+    public static InputStream openTemplate(final int levels) throws IOException {
+        return new ByteArrayInputStream(makeTemplate(levels));
+    }
+
+    /**
+     * @param levels  количество уровней группировки записей (от 0 до {@link #MAX_LEVELS}).
+     * @return  поток с содержимым структурного описания синтетического отчета (XML документ).
+     * @throws IOException  в случае проблем при формировании описания.
+     */
+    public static InputStream openStructure(final int levels) throws IOException {
+        return new ByteArrayInputStream(makeStructure(levels).getBytes("UTF-8"));
+    }
+
+    /**
+     * Формирует список записей для синтетического отчета. Записи упорядочены по полям группировки таким образом, что каждая группа
+     * верхнего уровня содержит <code>fanout</code> групп следующего уровня, а все группы последнего уровня содержат примерно равное
+     * количество записей.
+     *
+     * @param count  общее количество записей.
+     * @param levels  количество уровней группировки записей (от 0 до {@link #MAX_LEVELS}).
+     * @param fanout  количество дочерних групп в каждой группе.
+     * @return  список записей.
+     */
+    public static List<Item> makeItems(final int count, final int levels, final int fanout) {
+        checkLevels(levels);
+        long groups = 1;
+        for (int i=0; i<levels; i++) {
+            groups *= fanout;
+        }
+        final long leafSize = Math.max(1, count / groups);
+        final List<Item> result = new ArrayList<Item>(count);
+        for (int i=0; i<count; i++) {
+            final Item item = new Item();
+            item.name = "item-" + i;
+            item.amount = (i % 1000) * 1.25;
+            item.date = DATES[i % DATES.length];
+            item.flag = (i & 1) == 0;
+            long key = i / leafSize;
+            for (int level=levels-1; level>=0; level--) {
+                item.setGroup(level, (int)(key % fanout));
+                key /= fanout;
+            }
+            result.add(item);
+        }
+        return result;
+    }
+
+
+    private static byte[] makeTemplate(final int levels) throws IOException {
+        checkLevels(levels);
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final HSSFCellStyle dateStyle = wb.createCellStyle();
+        dateStyle.setDataFormat(wb.createDataFormat().getFormat("dd.MM.yyyy"));
+        final HSSFCellStyle numberStyle = wb.createCellStyle();
+        numberStyle.setDataFormat(wb.createDataFormat().getFormat("#,##0.00"));
+        final HSSFCellStyle groupStyle = wb.createCellStyle();
+        groupStyle.setDataFormat(numberStyle.getDataFormat());
+        groupStyle.setFillForegroundColor((short)22);
+        groupStyle.setFillPattern(HSSFCellStyle.SOLID_FOREGROUND);
+
+        final HSSFSheet sheet = wb.createSheet(SHEET);
+        int r = 0;
+        HSSFRow row = sheet.createRow(r++);
+        row.createCell(0).setCellValue("${env:title}");
+        row.createCell(2).setCellValue("Сформирован: ${(date,dd.MM.yyyy HH:mm)env:date}");
+        for (int level=0; level<levels; level++) {
+            row = sheet.createRow(r++);
+            row.createCell(0).setCellValue("Группа ${row:g" + level + "}");
+            row.getCell(0).setCellStyle(groupStyle);
+            row.createCell(1).setCellValue("$M=gsum");
+            row.getCell(1).setCellStyle(groupStyle);
+        }
+        row = sheet.createRow(r++);
+        row.createCell(0).setCellValue("${row:name}");
+        row.createCell(1).setCellValue("${row:amount}");
+        row.getCell(1).setCellStyle(numberStyle);
+        row.createCell(2).setCellValue("${row:date}");
+        row.getCell(2).setCellStyle(dateStyle);
+        row.createCell(3).setCellValue("${row:flag}");
+        row.createCell(4).setCellValue("$F=B${var:row}*2");
+        row.getCell(4).setCellStyle(numberStyle);
+        row.createCell(5).setCellValue("${(number,#,##0.00)row:amount} от ${(date,dd.MM.yyyy)row:date}");
+        row = sheet.createRow(r);
+        row.createCell(0).setCellValue("Итого");
+        row.createCell(1).setCellValue(levels>0 ? "$F=SUM(B2:B${var:prevrow})" : "$M=nrowsum(body,B,1)");
+        row.getCell(1).setCellStyle(numberStyle);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        wb.write(out);
+        return out.toByteArray();
+    }
+
+    private static String makeStructure(final int levels) {
+        checkLevels(levels);
+        final StringBuilder out = new StringBuilder(1024);
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.append("<report id=\"synthetic").append(levels).append("\" title=\"Синтетический отчет\">\n");
+        out.append("  <list-data-provider id=\"ds\" data=\"${env:").append(VAR_ITEMS).append("}\" />\n");
+        out.append("  <sheet id=\"").append(SHEET).append("\" title=\"Данные\">\n");
+        out.append("    <plain-section id=\"header\" height=\"1\" />\n");
+        if (levels>0) {
+            out.append("    <grouping-section id=\"body\" rowHeight=\"1\" provider=\"ds\">\n");
+            for (int level=0; level<levels; level++) {
+                out.append("      <group discriminatorField=\"g").append(level).append("\" />\n");
+            }
+            out.append("    </grouping-section>\n");
+        } else {
+            out.append("    <plain-section id=\"body\" height=\"1\" provider=\"ds\" />\n");
+        }
+        out.append("    <plain-section id=\"footer\" height=\"1\" />\n");
+        out.append("  </sheet>\n");
+        out.append("</report>\n");
+        return out.toString();
+    }
+
+    private static void checkLevels(final int levels) {
+        if (levels<0 || levels>MAX_LEVELS)
+            throw new IllegalArgumentException("Unsupported group levels count: "+levels);
+    }
+
+
+    /**
+     * Запись, отображаемая в синтетическом отчете.
+     */
+    public static final class Item {
+        public String name;
+        public double amount;
+        public Date date;
+        public boolean flag;
+        public int g0;
+        public int g1;
+        public int g2;
+        public int g3;
+        public int g4;
+
+        public void setGroup(final int level, final int value) {
+            switch (level) {
+                case 0 : g0 = value; break;
+                case 1 : g1 = value; break;
+                case 2 : g2 = value; break;
+                case 3 : g3 = value; break;
+                case 4 : g4 = value; break;
+                default : throw new IllegalArgumentException("Unsupported group level: "+level);
+            }
+        }
+
+        public String toString() {
+            return "[Item{name:"+name+", amount:"+amount+", date:"+date+", flag:"+flag+"}]";
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.echosoft.framework.reports.macros;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.echosoft.framework.reports.model.AggregationMode;
+import org.echosoft.framework.reports.model.GroupingSection;
+import org.echosoft.framework.reports.model.PlainSection;
+import org.echosoft.framework.reports.processor.Aggregates;
+import org.echosoft.framework.reports.processor.ExecutionContext;
+import org.echosoft.framework.reports.processor.Group;
+import org.echosoft.framework.reports.processor.SectionContext;
+
+/**
+ * Вспомогательные методы, используемые макросами для оформления итоговых значений по группам строк
+ * в соответствии с выбранным режимом (см. {@link AggregationMode}).
+ *
+ * @author Anton Sharapov
+ */
+final class Aggregation {
+
+    private Aggregation() {
+    }
+
+    /**
+     * Определяет режим оформления результата макроса.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param arg  наименование режима, указанное в аргументах макроса. Может быть <code>null</code>.
+     * @return  режим, указанный в аргументе макроса, или режим по умолчанию для отчета в целом.
+     *   Если в отчете используются формулы на основе <code>SUBTOTAL</code> то вместо режима {@link AggregationMode#VALUE} используется
+     *   режим {@link AggregationMode#CACHED}: в противном случае итоги, записанные в виде чисел, повторно учитывались бы в формулах
+     *   <code>SUBTOTAL</code> родительских групп.
+     */
+    static AggregationMode getMode(final ExecutionContext ectx, final String arg) {
+        AggregationMode mode = AggregationMode.find(arg);
+        if (mode==null)
+            mode = ectx.report.getAggregationMode();
+        return mode==AggregationMode.VALUE && ectx.report.isSubtotalFormulas() ? AggregationMode.CACHED : mode;
+    }
+
+    /**
+     * Возвращает итоги, накопленные для текущей группы.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param group  текущая группа.
+     * @param mode  режим оформления результата макроса.
+     * @return  итоги по группе или <code>null</code> если в данном режиме итоги не требуются либо не накапливались.
+     */
+    static Aggregates getTotals(final ExecutionContext ectx, final Group group, final AggregationMode mode) {
+        if (mode==AggregationMode.FORMULA || !ectx.aggregates || !(ectx.sectionContext.section instanceof GroupingSection))
+            return null;
+        return group.getTotals();
+    }
+
+    /**
+     * Вычисляет сумму значений в каждой <code>nth</code> строке ранее обработанной простой секции.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param sctx  контекст ранее обработанной секции.
+     * @param mode  режим оформления результата макроса.
+     * @param column  индекс колонки (начиная с 0).
+     * @param nth  шаг (в строках), с которым выбираются суммируемые строки.
+     * @param offset  смещение первой суммируемой строки относительно начала секции.
+     * @return  вычисленная сумма или <code>null</code> если в данном режиме значение не требуется либо не может быть вычислено.
+     *   Сумма может быть вычислена только в том случае, если выбираемые строки занимают одни и те же позиции в каждой записи секции.
+     */
+    static Double getRowsSum(final ExecutionContext ectx, final SectionContext sctx, final AggregationMode mode, final int column, final int nth, final int offset) {
+        if (mode==AggregationMode.FORMULA || !ectx.aggregates || !(sctx.section instanceof PlainSection) || column<0)
+            return null;
+        final int rows = sctx.section.getTemplateRowsCount();
+        if (nth<1 || rows%nth!=0 || offset<0 || offset>=nth)
+            return null;
+        double result = 0;
+        for (int i=offset; i<rows; i+=nth) {
+            final Aggregates totals = sctx.getRecordTotals(i, false);
+            if (totals==null)
+                continue;
+            if (!totals.isDefined(column))
+                return null;
+            result += totals.getSum(column);
+        }
+        return result;
+    }
+
+    /**
+     * Записывает в текущую ячейку вычисленное итоговое значение в виде числа.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param value  итоговое значение.
+     */
+    static void setValue(final ExecutionContext ectx, final double value) {
+        ectx.cell.setCellType(Cell.CELL_TYPE_NUMERIC);
+        ectx.cell.setCellValue(value);
+    }
+
+    /**
+     * Сохраняет вычисленное итоговое значение в качестве результата формулы, ранее установленной в текущую ячейку.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param value  итоговое значение.
+     */
+    static void setCachedValue(final ExecutionContext ectx, final double value) {
+        ectx.cell.setCellValue(value);
+        ectx.formulaResult = value;
+    }
+}
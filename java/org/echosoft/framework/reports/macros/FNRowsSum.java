@@ -2,8 +2,9 @@ package org.echosoft.framework.reports.macros;
 
 import java.util.Arrays;
 
-import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.ss.usermodel.Cell;
 import org.echosoft.common.utils.StringUtil;
+import org.echosoft.framework.reports.model.AggregationMode;
 import org.echosoft.framework.reports.processor.ExecutionContext;
 import org.echosoft.framework.reports.processor.SectionContext;
 import org.echosoft.framework.reports.util.POIUtils;
@@ -27,6 +28,10 @@ import org.echosoft.framework.reports.util.POIUtils;
  *  <li> Целочисленный аргумент, определяющий используемое смещение при определении строк которые должны участвовать в суммировании.
  *      Аргумент может принимать значения в диапазоне от 0 до кол-ва строк в секции-1.<br/>
  *      Данный аргумент является опциональным, значение по умолчанию - 0.</li>
+ *  <li> Способ оформления результата (см. {@link AggregationMode}): <code>formula</code>, <code>value</code> или <code>cached</code>.
+ *      Итоговое значение может быть вычислено в процессе формирования отчета только для простых секций и только в том случае,
+ *      если суммируемые строки занимают одни и те же позиции в каждой записи секции. В противном случае результат оформляется в виде формулы.<br/>
+ *      Данный аргумент является опциональным, по умолчанию используется режим, указанный для отчета в целом.</li>
  * </ol>
  * <p>Примеры использования в ячейках:
  * <ol>
@@ -80,17 +85,48 @@ public class FNRowsSum implements Macros {
         // определим смещение с которого начинается отсчет используемых макросом строк в секции ...
         final String ofstr = args.length>3 ? args[3].trim() : "";
         final int offset = ofstr.length()>0 ? Integer.parseInt(ofstr,10) : 0;
+        // определим способ оформления результата ...
+        final AggregationMode mode = Aggregation.getMode(ectx, args.length>4 ? args[4] : null);
+        final Double value = Aggregation.getRowsSum(ectx, sctx, mode, POIUtils.getColumnNumber(colname), nth, offset);
+        if (value!=null && mode==AggregationMode.VALUE) {
+            Aggregation.setValue(ectx, value);
+            return;
+        }
+
+        final String formula = makeFormula(sctx, colname, nth, offset);
+        if (formula!=null) {
+            ectx.formulas.setCellFormula(ectx.cell, formula);
+            if (value!=null)
+                Aggregation.setCachedValue(ectx, value);
+        } else {
+            ectx.cell.setCellValue(0);
+        }
+    }
 
-        process(ectx.cell, sctx, colname, nth, offset);
+    public void process(final Cell cell, final SectionContext sctx, final String colname, final int nth, final int offset) {
+        final String formula = makeFormula(sctx, colname, nth, offset);
+        if (formula!=null) {
+            cell.setCellFormula(formula);
+        } else {
+            cell.setCellValue(0);
+        }
     }
 
-    public void process(final HSSFCell cell, final SectionContext sctx, final String colname, final int nth, final int offset) {
+    /**
+     * Формирует текст формулы для ячейки с макросом.
+     *
+     * @param sctx  контекст ранее обработанной секции.
+     * @param colname  наименование колонки, значения в которой требуется просуммировать.
+     * @param nth  шаг (в строках), с которым выбираются строки, участвующие в вычислениях.
+     * @param offset  смещение первой участвующей в вычислениях строки относительно начала секции.
+     * @return  текст формулы или <code>null</code> если секция не содержит ни одной строки.
+     */
+    public String makeFormula(final SectionContext sctx, final String colname, final int nth, final int offset) {
         final StringBuilder formula = new StringBuilder(32);
         final int top = sctx.sectionFirstRow + 1;
         final int bottom = sctx.sectionFirstRow + sctx.record*sctx.section.getTemplateRowsCount();
         if (top>bottom) {
-            cell.setCellValue(0);
-            return;
+            return null;
         } else
         if (nth==1) {
             formula.append("SUM(").append(colname).append(top+offset).append(':').append(colname).append(bottom).append(')');
@@ -99,6 +135,6 @@ public class FNRowsSum implements Macros {
                     .append(colname).append(top).append("),").append(nth).append(")=").append(offset).append("),")
                     .append(colname).append(top).append(':').append(colname).append(bottom).append(")");
         }
-        cell.setCellFormula(formula.toString());
+        return formula.toString();
     }
 }
\ No newline at end of file
@@ -3,7 +3,7 @@ package org.echosoft.framework.reports.macros;
 import java.util.ArrayList;
 import java.util.Arrays;
 
-import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.ss.usermodel.Cell;
 import org.echosoft.common.utils.StringUtil;
 import org.echosoft.framework.reports.processor.ExecutionContext;
 import org.echosoft.framework.reports.processor.SectionContext;
@@ -93,16 +93,38 @@ public class FNRowsSumProd implements Macros {
         final String ofstr = args.length>argnum ? args[argnum].trim() : "";
         final int offset = ofstr.length()>0 ? Integer.parseInt(ofstr,10) : 0;
 
-        process(ectx.cell, sctx, colnames, nth, offset);
+        final String formula = makeFormula(sctx, colnames, nth, offset);
+        if (formula!=null) {
+            ectx.formulas.setCellFormula(ectx.cell, formula);
+        } else {
+            ectx.cell.setCellValue(0);
+        }
+    }
+
+    public void process(final Cell cell, final SectionContext sctx, final ArrayList<String> colnames, final int nth, final int offset) {
+        final String formula = makeFormula(sctx, colnames, nth, offset);
+        if (formula!=null) {
+            cell.setCellFormula(formula);
+        } else {
+            cell.setCellValue(0);
+        }
     }
 
-    public void process(final HSSFCell cell, final SectionContext sctx, final ArrayList<String> colnames, final int nth, final int offset) {
+    /**
+     * Формирует текст формулы для ячейки с макросом.
+     *
+     * @param sctx  контекст ранее обработанной секции.
+     * @param colnames  наименования колонок, произведения значений в которых требуется просуммировать.
+     * @param nth  шаг (в строках), с которым выбираются строки, участвующие в вычислениях.
+     * @param offset  смещение первой участвующей в вычислениях строки относительно начала секции.
+     * @return  текст формулы или <code>null</code> если секция не содержит ни одной строки.
+     */
+    public String makeFormula(final SectionContext sctx, final ArrayList<String> colnames, final int nth, final int offset) {
         final StringBuilder formula = new StringBuilder(32);
         final int top = sctx.sectionFirstRow + 1;
         final int bottom = sctx.sectionFirstRow + sctx.record*sctx.section.getTemplateRowsCount();
         if (top>bottom) {
-            cell.setCellValue(0);
-            return;
+            return null;
         } else
         if (nth==1) {
             formula.append("SUMPRODUCT(");
@@ -123,6 +145,6 @@ public class FNRowsSumProd implements Macros {
             }
             formula.append(')');
         }
-        cell.setCellFormula(formula.toString());
+        return formula.toString();
     }
 }
\ No newline at end of file
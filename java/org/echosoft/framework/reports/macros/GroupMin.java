@@ -1,15 +1,21 @@
 package org.echosoft.framework.reports.macros;
 
-import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.ss.usermodel.Cell;
+import org.echosoft.framework.reports.model.AggregationMode;
+import org.echosoft.framework.reports.processor.Aggregates;
 import org.echosoft.framework.reports.processor.ExecutionContext;
+import org.echosoft.framework.reports.processor.Group;
 import org.echosoft.framework.reports.util.POIUtils;
 
 /**
  * <p>Возвращает минимальное значение из всех ячеек текущей колонки в строках, являющихся дочерними для текущей группировки.
  * Оформляется в виде формулы Excel.</p>
+ * <p>В качестве необязательного аргумента макросу может быть передан способ оформления результата (см. {@link AggregationMode}):
+ * <code>formula</code>, <code>value</code> или <code>cached</code>. По умолчанию используется режим, указанный для отчета в целом.</p>
  * Пример использования в ячейках:
  * <ol>
  *  <li> <span style="border:1px solid black;padding:6px"><code>$M=gmin</code></span>
+ *  <li> <span style="border:1px solid black;padding:6px"><code>$M=gmin(value)</code></span>
  * </ol>
  * @see MacrosRegistry
  * @author Anton Sharapov
@@ -23,10 +29,26 @@ public class GroupMin implements Macros {
      * {@inheritDoc}
      */
     public void call(final ExecutionContext ectx, final String arg) {
-        final String formula = POIUtils.makeGroupFormula(ectx, "MIN");
+        final Group group = ectx.sectionContext.gm.getCurrentGroup();
+        if (group==null)
+            return;
+        final int column = ectx.cell.getColumnIndex();
+        final AggregationMode mode = Aggregation.getMode(ectx, arg);
+        final Aggregates totals = Aggregation.getTotals(ectx, group, mode);
+        final boolean computed = totals!=null && totals.isDefined(column);
+        if (computed && mode==AggregationMode.VALUE) {
+            Aggregation.setValue(ectx, totals.getMin(column));
+            return;
+        }
+
+        String formula = ectx.report.isSubtotalFormulas() ? POIUtils.makeGroupSubtotalFormula(ectx, POIUtils.SUBTOTAL_MIN) : null;
+        if (formula==null)
+            formula = POIUtils.makeGroupFormula(ectx, "MIN");
         if (formula!=null) {
-            ectx.cell.setCellType(HSSFCell.CELL_TYPE_FORMULA);
-            ectx.cell.setCellFormula( formula );
+            ectx.cell.setCellType(Cell.CELL_TYPE_FORMULA);
+            ectx.formulas.setCellFormula(ectx.cell, formula);
+            if (computed)
+                Aggregation.setCachedValue(ectx, totals.getMin(column));
         }
     }
 
@@ -1,6 +1,8 @@
 package org.echosoft.framework.reports.macros;
 
-import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.ss.usermodel.Cell;
+import org.echosoft.framework.reports.model.AggregationMode;
+import org.echosoft.framework.reports.processor.Aggregates;
 import org.echosoft.framework.reports.processor.ExecutionContext;
 import org.echosoft.framework.reports.processor.Group;
 import org.echosoft.framework.reports.util.POIUtils;
@@ -8,9 +10,12 @@ import org.echosoft.framework.reports.util.POIUtils;
 /**
  * <p>Выполняет суммирование всех ячеек текущей колонки в строках, являющихся дочерними для текущей группировки.
  * Оформляется в виде формулы Excel.</p>
+ * <p>В качестве необязательного аргумента макросу может быть передан способ оформления результата (см. {@link AggregationMode}):
+ * <code>formula</code>, <code>value</code> или <code>cached</code>. По умолчанию используется режим, указанный для отчета в целом.</p>
  * Пример использования в ячейках:
  * <ol>
  *  <li> <span style="border:1px solid black;padding:6px"><code>$M=gsum</code></span>
+ *  <li> <span style="border:1px solid black;padding:6px"><code>$M=gsum(value)</code></span>
  * </ol>
  * @see MacrosRegistry
  * @author Anton Sharapov
@@ -27,12 +32,32 @@ public class GroupSum implements Macros {
         final Group group = ectx.sectionContext.gm.getCurrentGroup();
         if (group==null)
             return;
+        final int column = ectx.cell.getColumnIndex();
+        final AggregationMode mode = Aggregation.getMode(ectx, arg);
+        final Aggregates totals = Aggregation.getTotals(ectx, group, mode);
+        final boolean computed = totals!=null && totals.isDefined(column);
+        if (computed && mode==AggregationMode.VALUE) {
+            Aggregation.setValue(ectx, totals.getSum(column));
+            return;
+        }
+
+        String formula = ectx.report.isSubtotalFormulas() ? POIUtils.makeGroupSubtotalFormula(ectx, POIUtils.SUBTOTAL_SUM) : null;
+        if (formula==null)
+            formula = makeFormula(ectx, group, column);
+
+        if (formula!=null) {
+            ectx.cell.setCellType(Cell.CELL_TYPE_FORMULA);
+            ectx.formulas.setCellFormula(ectx.cell, formula);
+            if (computed)
+                Aggregation.setCachedValue(ectx, totals.getSum(column));
+        }
+    }
 
-        final String formula;
+    private static String makeFormula(final ExecutionContext ectx, final Group group, final int column) {
         final int csize = group.children.size();
         final int rsize = group.records.size();
         if (csize>30) {
-            final String colname = POIUtils.getColumnName(ectx.cell.getColumnIndex());
+            final String colname = POIUtils.getColumnName(column);
             final StringBuilder out = new StringBuilder(128);
             for (int i=0; i<csize; i++) {
                 if (i>0)
@@ -41,10 +66,10 @@ public class GroupSum implements Macros {
                 out.append(colname);
                 out.append(child.startRow+1);
             }
-            formula = out.toString();
+            return out.toString();
         } else
         if (rsize>30 && (group.recordsHeight==null || group.recordsHeight!=1)) {
-            final String colname = POIUtils.getColumnName(ectx.cell.getColumnIndex());
+            final String colname = POIUtils.getColumnName(column);
             final StringBuilder out = new StringBuilder(128);
             for (int i=0; i<rsize; i++) {
                 if (i>0)
@@ -52,14 +77,9 @@ public class GroupSum implements Macros {
                 out.append(colname);
                 out.append(group.records.get(i)+1);
             }
-            formula = out.toString();
+            return out.toString();
         } else {
-            formula = POIUtils.makeGroupFormula(ectx, "SUM");
-        }
-
-        if (formula!=null) {
-            ectx.cell.setCellType(HSSFCell.CELL_TYPE_FORMULA);
-            ectx.cell.setCellFormula( formula );
+            return POIUtils.makeGroupFormula(ectx, "SUM");
         }
     }
 
@@ -2,8 +2,9 @@ package org.echosoft.framework.reports.macros;
 
 import java.util.Arrays;
 
-import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.ss.usermodel.Cell;
 import org.echosoft.common.utils.StringUtil;
+import org.echosoft.framework.reports.model.AggregationMode;
 import org.echosoft.framework.reports.processor.ExecutionContext;
 import org.echosoft.framework.reports.processor.SectionContext;
 import org.echosoft.framework.reports.util.POIUtils;
@@ -27,6 +28,10 @@ import org.echosoft.framework.reports.util.POIUtils;
  *  <li> Целочисленный аргумент, определяющий используемое смещение при определении строк которые должны участвовать в суммировании.
  *      Аргумент может принимать значения в диапазоне от 0 до кол-ва строк в секции-1.<br/>
  *      Данный аргумент является опциональным, значение по умолчанию - 0.</li>
+ *  <li> Способ оформления результата (см. {@link AggregationMode}): <code>formula</code>, <code>value</code> или <code>cached</code>.
+ *      Итоговое значение может быть вычислено в процессе формирования отчета только для простых секций и только в том случае,
+ *      если суммируемые строки занимают одни и те же позиции в каждой записи секции. В противном случае результат оформляется в виде формулы.<br/>
+ *      Данный аргумент является опциональным, по умолчанию используется режим, указанный для отчета в целом.</li>
  * </ol>
  * <p>Примеры использования в ячейках:
  * <ol>
@@ -80,11 +85,48 @@ public class NRowsSum implements Macros {
         // определим смещение с которого начинается отсчет используемых макросом строк в секции ...
         final String ofstr = args.length>3 ? args[3].trim() : "";
         final int offset = ofstr.length()>0 ? Integer.parseInt(ofstr,10) : 0;
+        // определим способ оформления результата ...
+        final AggregationMode mode = Aggregation.getMode(ectx, args.length>4 ? args[4] : null);
+        final Double value = Aggregation.getRowsSum(ectx, sctx, mode, POIUtils.getColumnNumber(colname), nth, offset);
+        if (value!=null && mode==AggregationMode.VALUE) {
+            Aggregation.setValue(ectx, value);
+            return;
+        }
+
+        ectx.formulas.setCellFormula(ectx.cell, makeFormula(sctx, colname, nth, offset, ectx.report.isSubtotalFormulas()));
+        if (value!=null)
+            Aggregation.setCachedValue(ectx, value);
+    }
+
+    public void process(final Cell cell, final SectionContext sctx, final String colname, final int nth, final int offset) {
+        cell.setCellFormula(makeFormula(sctx, colname, nth, offset));
+    }
 
-        process(ectx.cell, sctx, colname, nth, offset);
+    /**
+     * Формирует текст формулы, суммирующей значения в каждой <code>nth</code> строке указанной секции.
+     *
+     * @param sctx  контекст ранее обработанной секции.
+     * @param colname  наименование колонки, значения в которой требуется просуммировать.
+     * @param nth  шаг (в строках), с которым выбираются суммируемые строки.
+     * @param offset  смещение первой суммируемой строки относительно начала секции.
+     * @return  текст формулы.
+     */
+    public String makeFormula(final SectionContext sctx, final String colname, final int nth, final int offset) {
+        return makeFormula(sctx, colname, nth, offset, false);
     }
 
-    public void process(final HSSFCell cell, final SectionContext sctx, final String colname, final int nth, final int offset) {
+    /**
+     * Формирует текст формулы, суммирующей значения в каждой <code>nth</code> строке указанной секции.
+     *
+     * @param sctx  контекст ранее обработанной секции.
+     * @param colname  наименование колонки, значения в которой требуется просуммировать.
+     * @param nth  шаг (в строках), с которым выбираются суммируемые строки.
+     * @param offset  смещение первой суммируемой строки относительно начала секции.
+     * @param compact  если <code>true</code> то при большом количестве суммируемых строк вместо их перечисления формируется
+     *   формула постоянного размера на основе функции <code>SUMPRODUCT</code> (см. {@link org.echosoft.framework.reports.model.Report#isSubtotalFormulas()}).
+     * @return  текст формулы.
+     */
+    public String makeFormula(final SectionContext sctx, final String colname, final int nth, final int offset, final boolean compact) {
         final StringBuilder formula = new StringBuilder(32);
         final int top = sctx.sectionFirstRow + 1 + offset;
         final int bottom = sctx.sectionFirstRow + sctx.record*sctx.section.getTemplateRowsCount();
@@ -92,6 +134,11 @@ public class NRowsSum implements Macros {
             formula.append("SUM(").append(colname).append(top).append(':').append(colname).append(bottom).append(')');
         } else {
             final int cnt = (bottom-top)/nth;
+            if (compact && cnt>=30) {
+                formula.append("SUMPRODUCT(ABS(MOD(ROW(").append(colname).append(top).append(':').append(colname).append(bottom)
+                        .append(")-ROW(").append(colname).append(top).append("),").append(nth).append(")=0),")
+                        .append(colname).append(top).append(':').append(colname).append(bottom).append(')');
+            } else
             if (cnt<30) {
                 formula.append("SUM(");
                 for (int rnum=top; rnum<=bottom; rnum+=nth) {
@@ -108,6 +155,6 @@ public class NRowsSum implements Macros {
                 }
             }
         }
-        cell.setCellFormula(formula.toString());
+        return formula.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package org.echosoft.framework.reports.model;
+
+/**
+ * Определяет каким образом макросы, вычисляющие итоговые значения по группам строк (<code>gsum</code>, <code>gavg</code>, <code>gmin</code>,
+ * <code>gmax</code>, <code>nrowsum</code>, <code>fnrowsum</code>), оформляют свой результат в ячейке отчета.
+ * Режим может быть задан как для отчета в целом (см. {@link Report#getAggregationMode()}), так и в аргументах конкретного макроса.
+ *
+ * @author Anton Sharapov
+ */
+public enum AggregationMode {
+
+    /**
+     * Используется по умолчанию.
+     * Результат оформляется в виде формулы Excel без вычисленного значения. Значение вычисляется самим процессором электронных таблиц
+     * при открытии документа.
+     */
+    FORMULA,
+
+    /**
+     * Итоговое значение вычисляется в процессе формирования отчета по уже отрисованным ячейкам и записывается в ячейку в виде числа.
+     * Если значение не может быть вычислено (например, если суммируемые ячейки сами содержат формулы) то в ячейку записывается формула.
+     */
+    VALUE,
+
+    /**
+     * Аналогичен режиму {@link #VALUE}, однако в ячейку записывается формула Excel, для которой вычисленное значение
+     * сохраняется в документе в качестве ее последнего рассчитанного результата.
+     */
+    CACHED;
+
+
+    /**
+     * Определяет режим по его наименованию (без учета регистра символов).
+     *
+     * @param name  наименование режима.
+     * @return  соответствующий режим или <code>null</code> если аргумент не является наименованием ни одного из режимов.
+     */
+    public static AggregationMode find(final String name) {
+        if (name==null)
+            return null;
+        final String text = name.trim();
+        for (AggregationMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(text))
+                return mode;
+        }
+        return null;
+    }
+}
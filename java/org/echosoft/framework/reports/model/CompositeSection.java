@@ -59,6 +59,7 @@ public class CompositeSection extends Section {
      * @param providerUsage  режим использования поставщика данных. Если указан <code>null</code> то будет использоваться режим по умолчанию.
      */
     public void setProviderUsage(ProviderUsage providerUsage) {
+        checkModifiable();
         this.providerUsage = providerUsage!=null ? providerUsage : ProviderUsage.STANDARD;
     }
 
@@ -87,6 +88,7 @@ public class CompositeSection extends Section {
      * @param indentedColumns  перечень порядковых номеров колонок (начиная с 0).
      */
     public void setIndentedColumns(int[] indentedColumns) {
+        checkModifiable();
         this.indentedColumns = indentedColumns!=null ? indentedColumns : EMPTY_INT_ARRAY;
     }
 
@@ -96,6 +98,7 @@ public class CompositeSection extends Section {
      * @param indentedColumns  перечень названий колонок в формате в том формате в котором они представлены в UI (A, B, C, .. Z, AA, AB, ..)
      */
     public void setIndentedColumns(String[] indentedColumns) {
+        checkModifiable();
         if (indentedColumns==null) {
             this.indentedColumns = EMPTY_INT_ARRAY;
         } else {
@@ -167,6 +170,17 @@ public class CompositeSection extends Section {
         return result;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void freeze() {
+        super.freeze();
+        for (Section section : sections) {
+            section.freeze();
+        }
+    }
+
 
     /**
      * Выполняет глубокое копирование данной секции.
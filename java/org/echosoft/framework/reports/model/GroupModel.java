@@ -1,6 +1,8 @@
 package org.echosoft.framework.reports.model;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.TreeMap;
 
 /**
@@ -176,6 +178,14 @@ public class GroupModel implements Serializable, Cloneable {
         styles.put(style.getLevel(), style);
     }
 
+    /**
+     * Возвращает все зарегистрированные варианты оформления данной группировки.
+     * @return  неизменяемая коллекция стилей оформления группировки.
+     */
+    public Collection<GroupStyle> getStyles() {
+        return Collections.unmodifiableCollection(styles.values());
+    }
+
     /**
      * Отбирает стиль оформления по его уровню.
      * @param level  отличительный признак искомого стиля оформления группировки. Не может быть меньше нуля.
@@ -65,6 +65,7 @@ public class GroupingSection extends Section {
      * @param indentedColumns  перечень порядковых номеров колонок (начиная с 0).
      */
     public void setIndentedColumns(int[] indentedColumns) {
+        checkModifiable();
         this.indentedColumns = indentedColumns!=null ? indentedColumns : EMPTY_INT_ARRAY;
     }
 
@@ -74,6 +75,7 @@ public class GroupingSection extends Section {
      * @param indentedColumns  перечень названий колонок в формате в том формате в котором они представлены в UI (A, B, C, .. Z, AA, AB, ..)
      */
     public void setIndentedColumns(String[] indentedColumns) {
+        checkModifiable();
         if (indentedColumns==null) {
             this.indentedColumns = EMPTY_INT_ARRAY;
         } else {
@@ -96,6 +98,7 @@ public class GroupingSection extends Section {
     }
 
     public void setRowTemplate(Area row) {
+        checkModifiable();
         this.rowTemplate = row;
     }
 
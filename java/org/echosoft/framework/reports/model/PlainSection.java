@@ -33,6 +33,7 @@ public class PlainSection extends Section {
      * @param area  фрагмент шаблона отчета с описанием данной секции.
      */
     public void setTemplate(Area area) {
+        checkModifiable();
         this.template = area;
     }
 
@@ -58,6 +58,17 @@ public class Report implements Serializable {
      */
     private byte[] template;
 
+    /**
+     * Способ оформления результатов макросов, вычисляющих итоговые значения по группам строк, используемый по умолчанию
+     * (если режим не указан в аргументах самого макроса).
+     */
+    private AggregationMode aggregationMode;
+
+    /**
+     * Признак того что групповые макросы должны формировать формулы на основе функции Excel <code>SUBTOTAL</code>.
+     */
+    private boolean subtotalFormulas;
+
     /**
      * Дополнительное описание отчета.
      */
@@ -88,11 +99,16 @@ public class Report implements Serializable {
      */
     private final Map<String, DataProviderHolder> providers;
 
+    /**
+     * Признак того что модель отчета входит в подготовленный план формирования отчета и более не может изменяться.
+     */
+    private transient boolean frozen;
     public Report(String id, HSSFWorkbook wb) {
         id = StringUtil.trim(id);
         if (id==null)
             throw new IllegalArgumentException("Report identifier must be specified");
         this.id = id;
+        this.aggregationMode = AggregationMode.FORMULA;
         this.description = new ReportDescription();
         this.sheets = new ArrayList<Sheet>();
         this.palette = new StylePalette(wb);
@@ -117,6 +133,8 @@ public class Report implements Serializable {
         user = src.user;
         password = src.password;
         template = src.template;
+        aggregationMode = src.aggregationMode;
+        subtotalFormulas = src.subtotalFormulas;
         description = (ReportDescription)src.description.clone();
         palette = (StylePalette)src.palette.clone();
         macros = new HashMap<String,Macros>();
@@ -157,6 +175,7 @@ public class Report implements Serializable {
      * @param title  новое название отчета.
      */
     public void setTitle(String title) {
+        checkModifiable();
         this.title = title;
     }
 
@@ -178,6 +197,7 @@ public class Report implements Serializable {
      * @param user  выражение, вычисленный результат которого используется для определения имени пользователя, которому разрешена правка защищенных листов отчета.
      */
     public void setUser(Expression user) {
+        checkModifiable();
         this.user = user;
     }
 
@@ -197,6 +217,7 @@ public class Report implements Serializable {
      * @param password  строка пароля или <code>null</code>.
      */
     public void setPassword(Expression password) {
+        checkModifiable();
         this.password = password;
     }
 
@@ -213,9 +234,56 @@ public class Report implements Serializable {
         return template;
     }
     public void setTemplate(byte[] template) {
+        checkModifiable();
         this.template = template;
     }
 
+    /**
+     * Возвращает способ оформления результатов макросов, вычисляющих итоговые значения по группам строк
+     * (<code>gsum</code>, <code>gavg</code>, <code>gmin</code>, <code>gmax</code>, <code>nrowsum</code>, <code>fnrowsum</code>).
+     * Используется для тех макросов, в аргументах которых режим не указан явно.
+     *
+     * @return  режим, используемый по умолчанию. Никогда не возвращает <code>null</code>.
+     */
+    public AggregationMode getAggregationMode() {
+        return aggregationMode;
+    }
+
+    /**
+     * Устанавливает способ оформления результатов макросов, вычисляющих итоговые значения по группам строк.
+     *
+     * @param aggregationMode  режим, используемый по умолчанию. Значение <code>null</code> соответствует режиму {@link AggregationMode#FORMULA}.
+     */
+    public void setAggregationMode(AggregationMode aggregationMode) {
+        checkModifiable();
+        this.aggregationMode = aggregationMode!=null ? aggregationMode : AggregationMode.FORMULA;
+    }
+
+    /**
+     * Возвращает <code>true</code> если групповые макросы (<code>gsum</code>, <code>gavg</code>, <code>gmin</code>, <code>gmax</code>)
+     * должны формировать формулы вида <code>SUBTOTAL(9,C5:C1200)</code> по непрерывному диапазону строк группы вместо перечисления
+     * ссылок на каждую дочернюю группу или запись. Функция <code>SUBTOTAL</code> игнорирует ячейки диапазона, которые сами содержат
+     * <code>SUBTOTAL</code>, поэтому итоги вложенных групп не учитываются повторно, а размер формулы не зависит от количества
+     * элементов группы. Аналогично макрос <code>nrowsum</code> при суммировании каждой n-й строки формирует формулу постоянного размера.<br/>
+     * Такие формулы используются только в секциях с группировками, где каждая запись и каждая группировочная строка занимают ровно одну строку листа.
+     * В остальных случаях формулы формируются обычным образом.
+     *
+     * @return  <code>true</code> если групповые формулы должны строиться на основе функции <code>SUBTOTAL</code>.
+     */
+    public boolean isSubtotalFormulas() {
+        return subtotalFormulas;
+    }
+
+    /**
+     * Определяет должны ли групповые макросы формировать формулы на основе функции Excel <code>SUBTOTAL</code>.
+     *
+     * @param subtotalFormulas  <code>true</code> если групповые формулы должны строиться на основе функции <code>SUBTOTAL</code>.
+     */
+    public void setSubtotalFormulas(boolean subtotalFormulas) {
+        checkModifiable();
+        this.subtotalFormulas = subtotalFormulas;
+    }
+
     /**
      * Возвращает дополнительную информацию, которая при построении отчета будет транслирована в соответствующие
      * свойства документа excel.
@@ -321,6 +389,33 @@ public class Report implements Serializable {
         return providers;
     }
 
+    /**
+     * Возвращает <code>true</code> если данная модель входит в подготовленный план формирования отчета
+     * (см. {@link org.echosoft.framework.reports.processor.ReportPlan}). Один и тот же план может одновременно использоваться
+     * для формирования нескольких отчетов, поэтому любые попытки изменить свойства такой модели, ее листов или секций
+     * приводят к {@link IllegalStateException}.
+     *
+     * @return  <code>true</code> если модель отчета не может быть изменена.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Запрещает дальнейшие изменения модели данного отчета, всех его листов и секций.
+     */
+    public void freeze() {
+        frozen = true;
+        for (Sheet sheet : sheets) {
+            sheet.freeze();
+        }
+    }
+
+    private void checkModifiable() {
+        if (frozen)
+            throw new IllegalStateException("Report "+id+" belongs to a compiled report plan and can't be modified");
+    }
+
 
 
     @Override
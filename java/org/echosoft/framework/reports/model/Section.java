@@ -68,6 +68,10 @@ public abstract class Section implements Serializable, Cloneable {
      */
     private DataProviderHolder provider;
 
+    /**
+     * Признак того что модель секции входит в подготовленный план формирования отчета и более не может изменяться.
+     */
+    private transient boolean frozen;
 
     public Section(String id) {
         id = StringUtil.trim(id);
@@ -94,7 +98,13 @@ public abstract class Section implements Serializable, Cloneable {
     public boolean isCollapsible() {
         return collapsible;
     }
+    /**
+     * <strong>Внимание!</strong> Обработчики событий не могут изменять данное свойство в процессе формирования отчета, вместо этого
+     * следует использовать свойство {@link org.echosoft.framework.reports.processor.SectionContext#collapsible} (см. {@link #isFrozen()}).
+     * @param collapsible  новое значение свойства.
+     */
     public void setCollapsible(boolean collapsible) {
+        checkModifiable();
         this.collapsible = collapsible;
     }
 
@@ -104,7 +114,13 @@ public abstract class Section implements Serializable, Cloneable {
     public boolean isCollapsed() {
         return collapsed;
     }
+    /**
+     * <strong>Внимание!</strong> Обработчики событий не могут изменять данное свойство в процессе формирования отчета, вместо этого
+     * следует использовать свойство {@link org.echosoft.framework.reports.processor.SectionContext#collapsed} (см. {@link #isFrozen()}).
+     * @param collapsed  новое значение свойства.
+     */
     public void setCollapsed(boolean collapsed) {
+        checkModifiable();
         this.collapsed = collapsed;
     }
 
@@ -114,7 +130,13 @@ public abstract class Section implements Serializable, Cloneable {
     public boolean isHidden() {
         return hidden;
     }
+    /**
+     * <strong>Внимание!</strong> Обработчики событий не могут изменять данное свойство в процессе формирования отчета, вместо этого
+     * следует использовать свойство {@link org.echosoft.framework.reports.processor.SectionContext#hidden} (см. {@link #isFrozen()}).
+     * @param hidden  новое значение свойства.
+     */
     public void setHidden(boolean hidden) {
+        checkModifiable();
         this.hidden = hidden;
     }
 
@@ -127,7 +149,13 @@ public abstract class Section implements Serializable, Cloneable {
     public boolean isRendered() {
         return rendered;
     }
+    /**
+     * <strong>Внимание!</strong> Обработчики событий не могут изменять данное свойство в процессе формирования отчета, вместо этого
+     * следует использовать свойство {@link org.echosoft.framework.reports.processor.SectionContext#rendered} (см. {@link #isFrozen()}).
+     * @param rendered  новое значение свойства.
+     */
     public void setRendered(boolean rendered) {
+        checkModifiable();
         this.rendered = rendered;
     }
 
@@ -157,9 +185,37 @@ public abstract class Section implements Serializable, Cloneable {
         return provider;
     }
     public void setDataProvider(DataProviderHolder provider) {
+        checkModifiable();
         this.provider = provider;
     }
 
+    /**
+     * Возвращает <code>true</code> если модель секции входит в подготовленный план формирования отчета
+     * (см. {@link org.echosoft.framework.reports.processor.ReportPlan}). Один и тот же план может одновременно использоваться
+     * для формирования нескольких отчетов, поэтому любые попытки изменить такую модель приводят к {@link IllegalStateException}.
+     *
+     * @return  <code>true</code> если модель секции не может быть изменена.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Запрещает дальнейшие изменения модели данной секции (и всех вложенных в нее секций).
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * Проверяет что модель секции может быть изменена.
+     * @throws IllegalStateException  если модель секции входит в подготовленный план формирования отчета.
+     */
+    protected void checkModifiable() {
+        if (frozen)
+            throw new IllegalStateException("Section "+id+" belongs to a compiled report plan and can't be modified");
+    }
+
     /**
      * @return Количество строк шаблона отведенных на описание данной секции.
      */
@@ -188,6 +244,7 @@ public abstract class Section implements Serializable, Cloneable {
         if (target==null)
             throw new IllegalArgumentException("Target report model must be specified");
         final Section result = (Section)super.clone();
+        result.frozen = false;
         result.sectionListeners = new ArrayList<SectionEventListenerHolder>();
         for (SectionEventListenerHolder listener : sectionListeners) {
             result.sectionListeners.add( (SectionEventListenerHolder)listener.clone() );
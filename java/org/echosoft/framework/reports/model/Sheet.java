@@ -19,6 +19,7 @@ public class Sheet implements Serializable {
 
     private static int[] EMPTY_INT_ARRAY = new int[0];
     private static boolean[] EMPTY_BOOLEAN_ARRAY = new boolean[0];
+    private static String[] EMPTY_STRING_ARRAY = new String[0];
 
     /**
      * Внутренний идентификатор листа отчета.
@@ -91,11 +92,20 @@ public class Sheet implements Serializable {
      */
     private int zoom;
 
+    /**
+     * Идентификаторы листов отчета, на содержимое которых ссылается данный лист.
+     */
+    private String[] depends;
+
     /**
      * Упорядоченный список разделов, присутствующих на данном листе отчета.
      */
     private final List<Section> sections;
 
+    /**
+     * Признак того что модель листа входит в подготовленный план формирования отчета и более не может изменяться.
+     */
+    private transient boolean frozen;
 
     public Sheet(String id) {
         id = StringUtil.trim(id);
@@ -113,6 +123,7 @@ public class Sheet implements Serializable {
         this.footer = new Header();
         this.printSetup = new PrintSetup();
         this.zoom = 100;
+        this.depends = EMPTY_STRING_ARRAY;
     }
 
     /**
@@ -139,6 +150,7 @@ public class Sheet implements Serializable {
      * @param title  новое название листа.
      */
     public void setTitle(final Expression title) {
+        checkModifiable();
         if (title==null)
             throw new IllegalArgumentException("Sheet title can't be an empty");
         this.title = title;
@@ -156,10 +168,13 @@ public class Sheet implements Serializable {
 
     /**
      * Устанавливает признак видимости данного листа.
+     * <p><strong>Внимание!</strong> Обработчики событий не могут изменять данное свойство в процессе формирования отчета, вместо этого
+     * следует использовать свойство {@link org.echosoft.framework.reports.processor.ExecutionContext#sheetHidden} (см. {@link #isFrozen()}).</p>
      *
      * @param hidden  <code>true</code> если лист должна быть скрыт от пользователя.
      */
     public void setHidden(boolean hidden) {
+        checkModifiable();
         this.hidden = hidden;
     }
 
@@ -176,9 +191,12 @@ public class Sheet implements Serializable {
 
     /**
      * Определяет должен ли данный лист быть отображен в итоговом отчете. Как правило, данное свойство изменяется обработчиками событий.
+     * <p><strong>Внимание!</strong> Обработчики событий не могут изменять данное свойство в процессе формирования отчета, вместо этого
+     * следует использовать свойство {@link org.echosoft.framework.reports.processor.ExecutionContext#sheetRendered} (см. {@link #isFrozen()}).</p>
      * @param rendered  <code>true</code> если лист должен быть отображен в итоговом отчете.
      */
     public void setRendered(boolean rendered) {
+        checkModifiable();
         this.rendered = rendered;
     }
 
@@ -198,6 +216,7 @@ public class Sheet implements Serializable {
      * @param locked  <code>true</code> если данный лист защищен от внесения изменений.
      */
     public void setProtected(boolean locked) {
+        checkModifiable();
         this.locked = locked;
     }
 
@@ -234,6 +253,7 @@ public class Sheet implements Serializable {
      * элемента меньше нуля то будет использоваться значение по умолчанию.
      */
     public void setColumnWidths(int[] colwidths) {
+        checkModifiable();
         this.colwidths = colwidths!=null ? colwidths : EMPTY_INT_ARRAY;
     }
 
@@ -245,6 +265,7 @@ public class Sheet implements Serializable {
      * TODO: добавить механизм пересчета группировок колонок ...
      */
     public void insertColumn(final int column,  final int width, final boolean hidden) {
+        checkModifiable();
         final int length = Math.max(column+1, colwidths.length+1);
         final int[] ncolwidths = new int[length];
         final boolean[] ncolhidden = new boolean[length];
@@ -283,6 +304,7 @@ public class Sheet implements Serializable {
      * @param colhidden  информация о видимости каждой колонки отчета.
      */
     public void setColumnHidden(boolean[] colhidden) {
+        checkModifiable();
         this.colhidden = colhidden!=null ? colhidden : EMPTY_BOOLEAN_ARRAY;
     }
 
@@ -301,6 +323,7 @@ public class Sheet implements Serializable {
      * @param group  очередная группа колонок.
      */
     public void addColumnGroup(ColumnGroup group) {
+        checkModifiable();
         addColumnGroup(colgroups, group);
     }
 
@@ -350,12 +373,45 @@ public class Sheet implements Serializable {
         return zoom;
     }
     public void setZoom(int zoomInPercents) {
+        checkModifiable();
         if (zoomInPercents<1 || zoomInPercents>400)
             throw new IllegalArgumentException("Illegal zoom value: "+zoomInPercents);
         this.zoom = zoomInPercents;
     }
 
 
+    /**
+     * Возвращает перечень листов отчета, на содержимое которых ссылается данный лист (например, посредством макросов
+     * <code>nrowsum</code>, <code>fnrowsum</code>, обращающихся к секциям других листов). При параллельном формировании листов
+     * отчета данный лист будет формироваться лишь после того как будут сформированы все перечисленные листы.
+     *
+     * @return  идентификаторы листов, от которых зависит данный лист. Никогда не может быть null.
+     */
+    public String[] getDependencies() {
+        return depends;
+    }
+
+    /**
+     * Устанавливает перечень листов отчета, на содержимое которых ссылается данный лист.
+     * Все перечисленные листы должны быть описаны в отчете ранее данного листа.
+     *
+     * @param depends  идентификаторы листов, от которых зависит данный лист.
+     */
+    public void setDependencies(String[] depends) {
+        checkModifiable();
+        this.depends = depends!=null ? depends : EMPTY_STRING_ARRAY;
+    }
+
+    /**
+     * Проверяет зависит ли данный лист от содержимого других листов отчета.
+     *
+     * @return <code>true</code> если данный лист ссылается на содержимое хотя бы одного другого листа отчета.
+     */
+    public boolean hasDependencies() {
+        return depends.length>0;
+    }
+
+
     /**
      * Осуществляет поиск секции на листе по ее идентификатору.
      *
@@ -385,6 +441,32 @@ public class Sheet implements Serializable {
         return sections;
     }
 
+    /**
+     * Возвращает <code>true</code> если модель листа входит в подготовленный план формирования отчета
+     * (см. {@link org.echosoft.framework.reports.processor.ReportPlan}). Один и тот же план может одновременно использоваться
+     * для формирования нескольких отчетов, поэтому любые попытки изменить такую модель приводят к {@link IllegalStateException}.
+     *
+     * @return  <code>true</code> если модель листа не может быть изменена.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Запрещает дальнейшие изменения модели данного листа и всех его секций.
+     */
+    public void freeze() {
+        frozen = true;
+        for (Section section : sections) {
+            section.freeze();
+        }
+    }
+
+    private void checkModifiable() {
+        if (frozen)
+            throw new IllegalStateException("Sheet "+id+" belongs to a compiled report plan and can't be modified");
+    }
+
 
 
     /**
@@ -422,6 +504,8 @@ public class Sheet implements Serializable {
         result.footer = (Header)footer.clone();
         result.printSetup = (PrintSetup) printSetup.clone();
         result.zoom = zoom;
+        result.depends = new String[depends.length];
+        System.arraycopy(depends, 0, result.depends, 0, depends.length);
 
         for (Section section : sections) {
             result.sections.add( section.cloneSection(target) );
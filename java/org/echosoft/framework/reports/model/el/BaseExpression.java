@@ -1,5 +1,7 @@
 package org.echosoft.framework.reports.model.el;
 
+import java.io.ObjectStreamException;
+import java.io.Serializable;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -115,6 +117,17 @@ public class BaseExpression implements Expression {
     }
 
 
+    /**
+     * При сериализации сохраняется лишь исходное выражение (вместе с форматированием текста, если таковое имеется),
+     * разбор выражения выполняется заново при десериализации.
+     * @return  объект, который будет сериализован вместо данного выражения.
+     * @throws ObjectStreamException  в случае проблем с сериализацией.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerializedForm(expression);
+    }
+
+
     public int hashCode() {
         return expression!=null ? expression.hashCode() : 0;
     }
@@ -193,19 +206,26 @@ public class BaseExpression implements Expression {
         public Object evaluate(final ELContext context) throws Exception {
             Object result = null;
             for (ParsedExpression expr : expressions) {
-                result = context.getAttribute(expr.attrName, expr.scope);
-                if (expr.property!=null) {
-                    result = BeanUtil.getProperty(result, expr.property);
+                if (expr.rowPath!=null) {
+                    // атрибуты строки вычисляем напрямую, минуя поиск пространства имен в контексте ...
+                    result = expr.rowPath.getValue(context.getRowModel());
+                } else {
+                    result = context.getAttribute(expr.attrName, expr.scope);
+                    if (expr.property!=null) {
+                        result = expr.property.getValue(result);
+                    }
                 }
                 if (result!=null)
                     break;
             }
 
             if (formatter!=null && result!=null) {
-                formatter.setLocale(context.getLocale());
                 if (!(result instanceof Object[]))
                     result = new Object[]{result};
-                return formatter.format(result);
+                synchronized (formatter) {  // выражения модели отчета могут одновременно вычисляться в разных потоках.
+                    formatter.setLocale(context.getLocale());
+                    return formatter.format(result);
+                }
             } else
                 return result;
         }
@@ -214,18 +234,56 @@ public class BaseExpression implements Expression {
     private static final class ParsedExpression {
         public final ELContext.Scope scope;
         public final String attrName;
-        public final String property;
+        public final PropertyPath property;
+        public final PropertyPath rowPath;
         public ParsedExpression(ELContext.Scope scope, String attrName, String property) {
             if (attrName==null || attrName.length()==0)
                 throw new IllegalArgumentException("attr name must be specified");
             this.scope = scope;
             this.attrName = attrName;
-            this.property = property;
+            this.property = property!=null ? new PropertyPath(property) : null;
+            this.rowPath = scope==ELContext.Scope.ROW ? new PropertyPath(property!=null ? attrName+BeanUtil.NESTED_DELIM+property : attrName) : null;
         }
         public String toString() {
             return "{scope:"+scope+", attr:"+attrName+", property:"+property+"}";
         }
     }
 
-}
 
+    /**
+     * Сериализуемое представление выражения.
+     */
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Object expression;
+        private final short[] formatting;
+
+        private SerializedForm(final Object expression) {
+            if (expression instanceof HSSFRichTextString) {
+                final HSSFRichTextString text = (HSSFRichTextString)expression;
+                final int runs = text.numFormattingRuns();
+                this.expression = text.getString();
+                this.formatting = new short[runs*2];
+                for (int i=0; i<runs; i++) {
+                    formatting[i*2] = (short)text.getIndexOfFormattingRun(i);
+                    formatting[i*2+1] = text.getFontOfFormattingRun(i);
+                }
+            } else {
+                this.expression = expression;
+                this.formatting = null;
+            }
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            if (formatting==null)
+                return new BaseExpression(expression);
+            final String str = (String)expression;
+            final HSSFRichTextString text = new HSSFRichTextString(str);
+            for (int i=0; i<formatting.length; i+=2) {
+                final int end = i+2<formatting.length ? formatting[i+2] : str.length();
+                text.applyFont(formatting[i], end, formatting[i+1]);
+            }
+            return new BaseExpression(text);
+        }
+    }
+}
@@ -45,6 +45,27 @@ public class ELContext {
 
     protected final Map<Scope, Map<String,Object>> scopes;
 
+    /**
+     * Способы доступа к атрибутам текущей строки, определенные для класса объекта строки, к которому они применялись в последний раз.
+     */
+    private final Map<String,RowAttribute> rowAttributes;
+
+    /**
+     * Общее количество обращений к атрибутам текущей строки.
+     */
+    private long rowLookups;
+
+    /**
+     * Количество обращений к атрибутам текущей строки, потребовавших определения способа доступа к атрибуту.
+     */
+    private long rowLookupMisses;
+
+    /**
+     * Количество обращений к атрибутам без явного указания пространства имен, которые не были найдены в текущей строке
+     * и были переадресованы в пространства имен {@link Scope#VAR} и {@link Scope#ENV}.
+     */
+    private long rowFallbacks;
+
     /**
      * Инициализируем контекст перед началом формирования очередного отчета значениями по умолчанию.
      */
@@ -61,6 +82,7 @@ public class ELContext {
         this.locale = locale!=null ? locale : Locale.getDefault();
         this.env = env!=null ? env : new HashMap<String,Object>();
         var = new HashMap<String,Object>();
+        rowAttributes = new HashMap<String,RowAttribute>();
         scopes = new HashMap<Scope, Map<String,Object>>(4);
         scopes.put(Scope.ENV, this.env);
         scopes.put(Scope.VAR, this.var);
@@ -69,7 +91,7 @@ public class ELContext {
                                         if (key == null)
                                             throw new NullPointerException();
                                         try {
-                                            return BeanUtil.getProperty(bean, (String)key);
+                                            return getRowAttribute((String)key);
                                         } catch (Exception e) {
                                             throw new RuntimeException(e.getMessage(), e);
                                         }
@@ -140,13 +162,19 @@ public class ELContext {
             return data.get(attrName);
         } else {
             try {
-                return BeanUtil.getProperty(bean, attrName);
+                if (bean==null || !isSimpleName(attrName))
+                    return BeanUtil.getProperty(bean, attrName);
+                final PropertyAccessor accessor = getRowAccessor(attrName);
+                if (accessor.exists())
+                    return accessor.getValue(bean);
             } catch (Exception e) {
-                if (var.containsKey(attrName)) {
-                    return var.get(attrName);
-                } else {
-                    return env.get(attrName);
-                }
+                // атрибут отсутствует в текущей строке, ищем его среди переменных ...
+            }
+            rowFallbacks++;
+            if (var.containsKey(attrName)) {
+                return var.get(attrName);
+            } else {
+                return env.get(attrName);
             }
         }
     }
@@ -168,6 +196,31 @@ public class ELContext {
         return null;
     }
 
+    /**
+     * @return  общее количество обращений к атрибутам текущей строки (как с явным указанием пространства имен {@link Scope#ROW},
+     *          так и без указания пространства имен).
+     */
+    public long getRowLookups() {
+        return rowLookups;
+    }
+
+    /**
+     * @return  количество обращений к атрибутам текущей строки, для которых потребовалось заново определять способ доступа к атрибуту
+     *          (первое обращение к атрибуту либо обращение после смены класса объекта текущей строки).
+     *          В установившемся режиме работы это значение не должно расти.
+     */
+    public long getRowLookupMisses() {
+        return rowLookupMisses;
+    }
+
+    /**
+     * @return  количество обращений к атрибутам без явного указания пространства имен, которые отсутствовали в текущей строке
+     *          и потому искались среди переменных ({@link Scope#VAR}) и переменных окружения ({@link Scope#ENV}).
+     */
+    public long getRowFallbacks() {
+        return rowFallbacks;
+    }
+
     /**
      * Выполняет глубокое клонирование контекста выполнения.
      * @return  копия контекста.
@@ -184,4 +237,40 @@ public class ELContext {
         return result;
     }
 
+
+    private Object getRowAttribute(final String name) throws Exception {
+        if (bean==null || !isSimpleName(name))
+            return BeanUtil.getProperty(bean, name);
+        return getRowAccessor(name).getValue(bean);
+    }
+
+    private PropertyAccessor getRowAccessor(final String name) {
+        final Class cls = bean.getClass();
+        rowLookups++;
+        RowAttribute attr = rowAttributes.get(name);
+        if (attr==null || attr.type!=cls) {
+            rowLookupMisses++;
+            attr = new RowAttribute(cls, PropertyAccessor.getAccessor(cls, name));
+            rowAttributes.put(name, attr);
+        }
+        return attr.accessor;
+    }
+
+    private static boolean isSimpleName(final String name) {
+        for (int i=name.length()-1; i>=0; i--) {
+            final char c = name.charAt(i);
+            if (c==BeanUtil.NESTED_DELIM || c==BeanUtil.INDEXED_DELIM || c==BeanUtil.MAPPED_DELIM)
+                return false;
+        }
+        return name.length()>0;
+    }
+
+    private static final class RowAttribute {
+        private final Class type;
+        private final PropertyAccessor accessor;
+        private RowAttribute(final Class type, final PropertyAccessor accessor) {
+            this.type = type;
+            this.accessor = accessor;
+        }
+    }
 }
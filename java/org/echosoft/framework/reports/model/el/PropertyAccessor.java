@@ -0,0 +1,174 @@
+package org.echosoft.framework.reports.model.el;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Обеспечивает доступ к одному (простому, т.е. не индексированному и не вложенному) свойству объектов заданного класса.</p>
+ * <p>Правила поиска свойства полностью повторяют правила, используемые в {@link org.echosoft.common.utils.BeanUtil#getProperty(Object, String)}:
+ * <ol>
+ *  <li> для экземпляров {@link Map} возвращается значение по ключу, совпадающему с именем свойства;
+ *  <li> для экземпляров {@link Map.Entry} поддерживаются свойства <code>key</code> и <code>value</code>;
+ *  <li> используется метод чтения свойства в соответствии со спецификацией JavaBeans;
+ *  <li> используется публичный метод без аргументов с тем же именем что и свойство;
+ *  <li> используется публичное поле класса с тем же именем что и свойство.
+ * </ol>
+ * Однако, в отличие от {@link org.echosoft.common.utils.BeanUtil}, поиск выполняется лишь один раз для каждой пары
+ * (класс объекта, имя свойства), после чего найденный способ доступа к свойству кэшируется.</p>
+ *
+ * @author Anton Sharapov
+ */
+abstract class PropertyAccessor {
+
+    private static final Object[] EMPTY_ARGS = new Object[0];
+    private static final ConcurrentMap<Class, ConcurrentMap<String,PropertyAccessor>> cache =
+            new ConcurrentHashMap<Class, ConcurrentMap<String,PropertyAccessor>>();
+
+    /**
+     * Возвращает способ доступа к указанному свойству объектов заданного класса.
+     *
+     * @param cls  класс объекта.
+     * @param name  имя простого свойства объекта.
+     * @return  способ доступа к свойству. Никогда не возвращает <code>null</code>, в случае отсутствия свойства
+     *          возвращается объект, при обращении к которому поднимается исключение {@link NoSuchMethodException}.
+     */
+    static PropertyAccessor getAccessor(final Class cls, final String name) {
+        ConcurrentMap<String,PropertyAccessor> accessors = cache.get(cls);
+        if (accessors==null) {
+            accessors = new ConcurrentHashMap<String,PropertyAccessor>();
+            final ConcurrentMap<String,PropertyAccessor> prev = cache.putIfAbsent(cls, accessors);
+            if (prev!=null)
+                accessors = prev;
+        }
+        PropertyAccessor result = accessors.get(name);
+        if (result==null) {
+            result = makeAccessor(cls, name);
+            final PropertyAccessor prev = accessors.putIfAbsent(name, result);
+            if (prev!=null)
+                result = prev;
+        }
+        return result;
+    }
+
+    /**
+     * @return <code>true</code> если свойство с указанным именем у объектов данного класса существует.
+     */
+    boolean exists() {
+        return true;
+    }
+
+    /**
+     * Возвращает значение свойства указанного объекта.
+     *
+     * @param bean  объект, класс которого должен совпадать с классом, для которого был получен данный способ доступа.
+     * @return  значение свойства.
+     * @throws Exception  в случае отсутствия свойства или ошибки при вызове метода его чтения.
+     */
+    abstract Object getValue(Object bean) throws Exception;
+
+
+    private static PropertyAccessor makeAccessor(final Class cls, final String name) {
+        if (Map.class.isAssignableFrom(cls))
+            return new MapAccessor(name);
+        if (Map.Entry.class.isAssignableFrom(cls)) {
+            if ("key".equals(name))
+                return new EntryAccessor(true);
+            if ("value".equals(name))
+                return new EntryAccessor(false);
+            return new MissingAccessor("Unknown property '"+name+"' for bean: ");
+        }
+
+        PropertyDescriptor[] descriptors;
+        try {
+            final BeanInfo info = Introspector.getBeanInfo(cls);
+            descriptors = info.getPropertyDescriptors();
+        } catch (IntrospectionException e) {
+            descriptors = null;
+        }
+        if (descriptors!=null) {
+            for (PropertyDescriptor descriptor : descriptors) {
+                if (!name.equals(descriptor.getName()))
+                    continue;
+                final Method method = descriptor.getReadMethod();
+                if (method==null || !Modifier.isPublic(method.getModifiers()))
+                    return new MissingAccessor("Property '"+name+"' hasn't getter method for bean: ");
+                return new MethodAccessor(method);
+            }
+        }
+
+        for (Method method : cls.getMethods()) {
+            if (name.equals(method.getName()) && method.getParameterTypes().length==0 && !Modifier.isStatic(method.getModifiers()))
+                return new MethodAccessor(method);
+        }
+
+        try {
+            final Field field = cls.getField(name);
+            return new FieldAccessor(field);
+        } catch (NoSuchFieldException e) {
+            return new MissingAccessor("Unknown property '"+name+"' for bean: ");
+        }
+    }
+
+
+    private static final class MethodAccessor extends PropertyAccessor {
+        private final Method method;
+        private MethodAccessor(final Method method) {
+            this.method = method;
+        }
+        Object getValue(final Object bean) throws Exception {
+            return method.invoke(bean, EMPTY_ARGS);
+        }
+    }
+
+    private static final class FieldAccessor extends PropertyAccessor {
+        private final Field field;
+        private FieldAccessor(final Field field) {
+            this.field = field;
+        }
+        Object getValue(final Object bean) throws Exception {
+            return field.get(bean);
+        }
+    }
+
+    private static final class MapAccessor extends PropertyAccessor {
+        private final String key;
+        private MapAccessor(final String key) {
+            this.key = key;
+        }
+        Object getValue(final Object bean) {
+            return ((Map)bean).get(key);
+        }
+    }
+
+    private static final class EntryAccessor extends PropertyAccessor {
+        private final boolean key;
+        private EntryAccessor(final boolean key) {
+            this.key = key;
+        }
+        Object getValue(final Object bean) {
+            final Map.Entry entry = (Map.Entry)bean;
+            return key ? entry.getKey() : entry.getValue();
+        }
+    }
+
+    private static final class MissingAccessor extends PropertyAccessor {
+        private final String message;
+        private MissingAccessor(final String message) {
+            this.message = message;
+        }
+        boolean exists() {
+            return false;
+        }
+        Object getValue(final Object bean) throws Exception {
+            throw new NoSuchMethodException(message + bean);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.echosoft.framework.reports.model.el;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.echosoft.common.utils.BeanUtil;
+
+/**
+ * <p>Предварительно разобранный путь к (возможно вложенному) свойству объекта, например <code>company.address.city</code>.</p>
+ * <p>Для каждого элемента пути запоминается способ доступа к свойству (см. {@link PropertyAccessor}) для класса объекта,
+ * к которому это свойство применялось в последний раз. Пока класс объектов не меняется (а для строк одного источника данных
+ * это так и есть) вычисление пути сводится к последовательному вызову методов чтения свойств без какого-либо разбора имен и
+ * поиска методов. При смене класса объекта способ доступа к свойству определяется заново.
+ * Пути, содержащие индексированные (<code>items[0]</code>) или именованные (<code>values(key)</code>) свойства, вычисляются
+ * посредством {@link BeanUtil#getProperty(Object, String)}.</p>
+ * <p>Экземпляры данного класса могут одновременно использоваться в нескольких потоках.</p>
+ *
+ * @author Anton Sharapov
+ */
+final class PropertyPath implements Serializable {
+
+    private final String path;
+    private final String[] names;
+    private transient Binding[] bindings;
+
+    PropertyPath(final String path) {
+        this.path = path;
+        this.names = split(path);
+    }
+
+    /**
+     * Вычисляет значение свойства для указанного объекта.
+     *
+     * @param bean  объект, значение свойства которого требуется получить.
+     * @return  значение свойства или <code>null</code> если сам объект или один из промежуточных элементов пути равен <code>null</code>.
+     * @throws Exception  в случае отсутствия свойства или ошибки при вызове метода его чтения.
+     */
+    Object getValue(Object bean) throws Exception {
+        if (names==null)
+            return BeanUtil.getProperty(bean, path);
+        Binding[] bindings = this.bindings;
+        if (bindings==null)
+            this.bindings = bindings = new Binding[names.length];
+        for (int i=0; i<names.length; i++) {
+            if (bean==null)
+                return null;
+            final Class cls = bean.getClass();
+            Binding binding = bindings[i];
+            if (binding==null || binding.type!=cls) {
+                binding = new Binding(cls, PropertyAccessor.getAccessor(cls, names[i]));
+                bindings[i] = binding;
+            }
+            bean = binding.accessor.getValue(bean);
+        }
+        return bean;
+    }
+
+    public String toString() {
+        return path;
+    }
+
+
+    private static String[] split(final String path) {
+        if (path.indexOf(BeanUtil.INDEXED_DELIM)>=0 || path.indexOf(BeanUtil.MAPPED_DELIM)>=0)
+            return null;
+        final List<String> result = new ArrayList<String>(2);
+        int start = 0;
+        for (int i=path.indexOf(BeanUtil.NESTED_DELIM); i>=0; i=path.indexOf(BeanUtil.NESTED_DELIM, start)) {
+            result.add( path.substring(start, i) );
+            start = i + 1;
+        }
+        result.add( path.substring(start) );
+        for (String name : result) {
+            if (name.length()==0)
+                return null;
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Способ доступа к свойству, определенный для конкретного класса объектов.
+     * Экземпляры класса неизменяемы, поэтому их можно безопасно публиковать без синхронизации.
+     */
+    private static final class Binding {
+        private final Class type;
+        private final PropertyAccessor accessor;
+        private Binding(final Class type, final PropertyAccessor accessor) {
+            this.type = type;
+            this.accessor = accessor;
+        }
+    }
+}
@@ -14,8 +14,8 @@ import org.echosoft.framework.reports.util.POIUtils;
  * значение ячейки (то есть это сделает сам обработчик события) то для этого в событии надо установить свойство
  * {@link #isRendered()} в <code>true</code>.</p>
  * <p>Генератор отчета гарантирует что перед вызовом первого обработчика данного типа для каждой ячейки секции
- * эта ячейка уже создана (в текущей строке создан соответствующий объект {@link org.apache.poi.hssf.usermodel.HSSFCell})
- * и эта ячейка имеет пустое значение (с типом {@link org.apache.poi.hssf.usermodel.HSSFCell#CELL_TYPE_BLANK}).</p>
+ * эта ячейка уже создана (в текущей строке создан соответствующий объект {@link org.apache.poi.ss.usermodel.Cell})
+ * и эта ячейка имеет пустое значение (с типом {@link org.apache.poi.ss.usermodel.Cell#CELL_TYPE_BLANK}).</p>
  *
  * @author Anton Sharapov
  */
@@ -0,0 +1,37 @@
+package org.echosoft.framework.reports.model.providers;
+
+/**
+ * Определяет способ получения записей от поставщика данных при обработке секций отчета.
+ * В отличие от {@link ProviderUsage}, определяющего как обработчик секции использует полученный курсор,
+ * данный режим определяет лишь когда и в каком потоке выполняется обращение к самому поставщику данных.
+ *
+ * @author Anton Sharapov
+ */
+public enum FetchMode {
+
+    /**
+     * Используется по умолчанию.
+     * Обращение к поставщику данных и чтение каждой очередной записи выполняются в потоке формирования отчета
+     * непосредственно в момент, когда эта запись потребовалась обработчику секции.
+     */
+    SYNC,
+
+    /**
+     * <p>Обращение к поставщику данных выполняется в момент начала обработки секции, однако чтение записей из полученного курсора
+     * выполняется в отдельном потоке, который складывает прочитанные записи пакетами в ограниченный по размеру буфер.
+     * Поток формирования отчета забирает записи из этого буфера, благодаря чему получение очередных записей от поставщика
+     * данных (например, из базы данных) выполняется одновременно с отрисовкой уже полученных записей в отчете.</p>
+     * <p>При заполнении буфера поток чтения приостанавливается до тех пор, пока поток формирования отчета не освободит в нем место.</p>
+     */
+    ASYNC,
+
+    /**
+     * <p>Аналогичен режиму {@link #ASYNC}, однако обращение к поставщику данных выполняется не при достижении секции, а в момент начала
+     * обработки листа отчета, на котором находится секция. Таким образом запросы всех секций листа выполняются одновременно.</p>
+     * <p>Режим применим только к секциям, расположенным непосредственно на листе отчета (но не внутри составных секций) и не имеющим
+     * обработчиков событий секции, для прочих секций он действует как {@link #ASYNC}. Аргументы запроса к поставщику данных вычисляются
+     * в момент начала обработки листа и повторно - при достижении секции. Если к этому моменту аргументы запроса изменились, то
+     * заблаговременно полученный курсор закрывается и запрос выполняется заново.</p>
+     */
+    EAGER
+}
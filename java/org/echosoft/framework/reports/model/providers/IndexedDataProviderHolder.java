@@ -0,0 +1,195 @@
+package org.echosoft.framework.reports.model.providers;
+
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.Query;
+import org.echosoft.common.query.QueryResult;
+import org.echosoft.common.query.providers.DataProvider;
+import org.echosoft.common.query.providers.DataProviderException;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.model.el.Expression;
+import org.echosoft.framework.reports.processor.ExecutionContext;
+
+/**
+ * <p>"Логический" поставщик данных, возвращающий подмножество записей исходного поставщика данных, ключ которых совпадает
+ * с ключом текущей записи родительской секции. Используется для построения отчетов вида "основная запись - подчиненные записи".</p>
+ * <p>В отличие от {@link FilteredDataProviderHolder}, не требует чтобы подчиненные записи следовали в исходном поставщике данных
+ * непосредственно друг за другом. Запрос к исходному поставщику данных выполняется лишь один раз за все время формирования отчета,
+ * полученные записи раскладываются по значению ключа в хэш-индекс (см. {@link RowIndex}), после чего каждая запись родительской секции
+ * получает свои подчиненные записи за постоянное время. Индекс разделяется всеми листами отчета и удаляется по окончании его формирования.</p>
+ * <p>Поскольку запрос к исходному поставщику выполняется лишь один раз, аргументы этого запроса не должны зависеть от текущей записи
+ * родительской секции.</p>
+ *
+ * @author Anton Sharapov
+ */
+public class IndexedDataProviderHolder implements DataProviderHolder {
+
+    /**
+     * Количество разделов, на которые по умолчанию разбивается сброшенный на диск индекс.
+     */
+    public static final int DEFAULT_PARTITIONS = 16;
+
+    /**
+     * Идентификатор поставщика данных.
+     */
+    private final String id;
+
+    /**
+     * Идентификатор исходного поставщика данных.
+     */
+    private String source;
+
+    /**
+     * Выражение, вычисляющее значение ключа для записи исходного поставщика данных.
+     */
+    private Expression key;
+
+    /**
+     * Выражение, вычисляющее значение ключа для текущей записи родительской секции.
+     */
+    private Expression parentKey;
+
+    /**
+     * Максимальное количество записей индекса, хранимых в памяти.
+     */
+    private int spillThreshold;
+
+    /**
+     * Количество разделов, на которые разбивается сброшенный на диск индекс.
+     */
+    private int partitions;
+
+    public IndexedDataProviderHolder(String id) {
+        this.id = id;
+        this.partitions = DEFAULT_PARTITIONS;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Возвращает идентификатор исходного поставщика данных, все записи которого будут проиндексированы.
+     * @return  идентификатор поставщика данных, описанного в том же отчете.
+     */
+    public String getSource() {
+        return source;
+    }
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Возвращает выражение, вычисляющее значение ключа для очередной записи исходного поставщика данных, например <code>${row:companyId}</code>.
+     * Записи, ключ которых равен <code>null</code>, не попадают ни в одну из родительских записей.
+     * @return  выражение, вычисляемое для каждой записи исходного поставщика данных.
+     */
+    public Expression getKey() {
+        return key;
+    }
+    public void setKey(Expression key) {
+        this.key = key;
+    }
+
+    /**
+     * Возвращает выражение, вычисляющее значение ключа для текущей записи родительской секции, например <code>${row:id}</code>.
+     * @return  выражение, вычисляемое для каждой записи родительской секции.
+     */
+    public Expression getParentKey() {
+        return parentKey;
+    }
+    public void setParentKey(Expression parentKey) {
+        this.parentKey = parentKey;
+    }
+
+    /**
+     * Возвращает максимальное количество записей исходного поставщика данных, хранимых в памяти. Если исходный поставщик данных вернет
+     * больше записей, то индекс будет сброшен на диск. При этом все записи исходного поставщика и их ключи должны поддерживать сериализацию.
+     * @return  максимальное количество записей в памяти или <code>0</code> если индекс всегда хранится в памяти. По умолчанию <code>0</code>.
+     */
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+    public void setSpillThreshold(int spillThreshold) {
+        if (spillThreshold<0)
+            throw new IllegalArgumentException("Spill threshold can't be negative");
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Возвращает количество разделов, на которые разбивается сброшенный на диск индекс. Загруженные с диска разделы кэшируются в памяти
+     * по принципу LRU: одновременно хранится столько разделов, сколько в среднем умещается в пределах {@link #getSpillThreshold() порога},
+     * т.е. <code>max(1, min(partitions, spillThreshold*partitions/size))</code>, где <code>size</code> &mdash; общее количество записей
+     * в индексе. Таким образом, объем памяти, занимаемый индексом, регулируется свойством <code>spillThreshold</code>, а увеличение
+     * количества разделов уменьшает размер каждого из них (и, соответственно, стоимость его повторной загрузки).
+     * @return  количество разделов. По умолчанию {@link #DEFAULT_PARTITIONS}.
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+    public void setPartitions(int partitions) {
+        if (partitions<=0)
+            throw new IllegalArgumentException("Partitions count must be positive");
+        this.partitions = partitions;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public DataProvider getProvider(final ELContext ctx) {
+        return new DataProvider() {
+            public BeanIterator execute(final Query query) throws DataProviderException {
+                try {
+                    final ExecutionContext ectx = (ExecutionContext)ctx.getVariables().get("context");
+                    return getIndex(ectx, ctx).lookup(parentKey.getValue(ctx));
+                } catch (DataProviderException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new DataProviderException(e.getMessage(), e);
+                }
+            }
+            public QueryResult executePaged(final Query query) throws DataProviderException {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Query getQuery(final ELContext ctx) {
+        return null;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        return super.clone();
+    }
+
+
+    /**
+     * Возвращает индекс записей исходного поставщика данных, построенный в ходе формирования данного отчета.
+     * Если индекс еще не был построен, то выполняет запрос к исходному поставщику данных и строит его.
+     */
+    private RowIndex getIndex(final ExecutionContext ectx, final ELContext ctx) throws Exception {
+        RowIndex index = ectx.indexes.get(id);
+        if (index!=null)
+            return index;
+        synchronized (ectx.indexes) {
+            index = ectx.indexes.get(id);
+            if (index==null) {
+                final DataProviderHolder holder = ectx.report.getProviders().get(source);
+                if (holder==null)
+                    throw new DataProviderException("Source data provider '"+source+"' not found for data provider '"+id+"'");
+                final BeanIterator<?> it = holder.getProvider(ctx).execute(holder.getQuery(ctx));
+                index = RowIndex.build(it, key, ctx, spillThreshold, partitions);
+                ectx.indexes.put(id, index);
+            }
+            return index;
+        }
+    }
+}
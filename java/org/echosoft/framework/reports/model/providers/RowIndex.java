@@ -0,0 +1,317 @@
+package org.echosoft.framework.reports.model.providers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.BeanMetaData;
+import org.echosoft.common.query.providers.DataProviderException;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.model.el.Expression;
+import org.echosoft.framework.reports.util.Logs;
+
+/**
+ * <p>Хэш-индекс записей поставщика данных по значению ключа, построенный за один проход по всем записям поставщика
+ * (см. {@link IndexedDataProviderHolder}). Порядок записей с одинаковым ключом соответствует порядку их получения от поставщика данных,
+ * порядок же записей с различными ключами не имеет значения.</p>
+ * <p>Если количество записей превышает указанный порог, то индекс сбрасывается на диск: записи распределяются по хэш-коду ключа
+ * между несколькими временными файлами (разделами), а при обращении к индексу в память загружается лишь тот раздел, в котором
+ * находятся записи с искомым ключом. В памяти остаются несколько последних использованных разделов (столько, сколько позволяет
+ * указанный порог), так что чередование ключей из разных разделов не приводит к повторной загрузке раздела при каждом обращении.
+ * Сбрасываемые на диск записи должны поддерживать сериализацию.</p>
+ * <p>Экземпляры данного класса могут одновременно использоваться несколькими потоками. По окончании формирования отчета
+ * индекс должен быть закрыт (см. {@link #close()}), при этом удаляются все созданные им временные файлы.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class RowIndex implements Closeable {
+
+    /**
+     * Через какое количество записей сбрасывается таблица ссылок потока сериализации.
+     */
+    private static final int RESET_INTERVAL = 1024;
+
+    private final BeanMetaData metadata;
+    private final int threshold;
+    private final int partitionsCount;
+    private Map<Object,List<Object>> buckets;
+    private Map<Integer,Map<Object,List<Object>>> partitions;
+    private File[] files;
+    private ObjectOutputStream[] outs;
+    private int[] counts;
+    private int size;
+
+    private RowIndex(final BeanMetaData metadata, final int threshold, final int partitionsCount) {
+        this.metadata = metadata;
+        this.threshold = threshold;
+        this.partitionsCount = partitionsCount;
+        this.buckets = new HashMap<Object,List<Object>>();
+    }
+
+    /**
+     * Строит индекс по всем записям из указанного курсора. Курсор закрывается по окончании построения индекса.
+     *
+     * @param it  курсор, записи из которого должны быть проиндексированы.
+     * @param key  выражение, вычисляющее значение ключа для очередной записи курсора. Записи, чей ключ равен <code>null</code>, в индекс не попадают.
+     * @param ctx  контекст, используемый для вычисления ключей записей. Модель строки контекста восстанавливается по окончании построения индекса.
+     * @param threshold  максимальное количество записей, хранимых в памяти. Если курсор содержит больше записей, то индекс сбрасывается на диск.
+     *      Значение <code>0</code> означает что все записи хранятся в памяти.
+     * @param partitionsCount  количество разделов, на которые разбивается сброшенный на диск индекс.
+     * @return  построенный индекс.
+     * @throws Exception  в случае каких-либо проблем при чтении записей, вычислении ключей или сбросе индекса на диск.
+     */
+    public static RowIndex build(final BeanIterator<?> it, final Expression key, final ELContext ctx, final int threshold, final int partitionsCount) throws Exception {
+        final RowIndex index = new RowIndex(it.getMetaData(), threshold, partitionsCount);
+        final Object prevBean = ctx.getRowModel();
+        boolean completed = false;
+        try {
+            while (it.hasNext()) {
+                final Object bean = it.next();
+                ctx.setRowModel(bean);
+                index.add(normalize(key.getValue(ctx)), bean);
+            }
+            index.complete();
+            completed = true;
+        } finally {
+            ctx.setRowModel(prevBean);
+            it.close();
+            if (!completed)
+                index.close();
+        }
+        return index;
+    }
+
+    /**
+     * @return  количество проиндексированных записей.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return  <code>true</code> если индекс был сброшен на диск.
+     */
+    public boolean isSpilled() {
+        return counts!=null;
+    }
+
+    /**
+     * Возвращает курсор по всем записям с указанным значением ключа.
+     *
+     * @param key  значение ключа.
+     * @return  курсор по записям с указанным ключом. Никогда не возвращает <code>null</code>.
+     * @throws Exception  в случае проблем с чтением сброшенного на диск раздела индекса.
+     */
+    public BeanIterator<Object> lookup(Object key) throws Exception {
+        key = normalize(key);
+        if (key==null)
+            return new BucketIterator(Collections.emptyList());
+        if (counts==null) {
+            final List<Object> bucket = buckets.get(key);
+            return new BucketIterator(bucket!=null ? bucket : Collections.emptyList());
+        }
+        synchronized (this) {
+            if (files==null)
+                throw new IllegalStateException("Index already closed");
+            final int partition = partitionOf(key);
+            Map<Object,List<Object>> buckets = partitions.get(partition);
+            if (buckets==null) {
+                buckets = load(partition);
+                partitions.put(partition, buckets);
+            }
+            final List<Object> bucket = buckets.get(key);
+            return new BucketIterator(bucket!=null ? bucket : Collections.emptyList());
+        }
+    }
+
+    /**
+     * Освобождает все ресурсы, связанные с индексом, и удаляет все созданные им временные файлы.
+     */
+    public synchronized void close() {
+        if (outs!=null) {
+            for (ObjectOutputStream out : outs) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Logs.reports.warn("unable to close index partition: "+e.getMessage());
+                }
+            }
+            outs = null;
+        }
+        if (files!=null) {
+            for (File file : files) {
+                if (file!=null && file.exists() && !file.delete())
+                    Logs.reports.warn("unable to delete index partition: "+file);
+            }
+            files = null;
+        }
+        buckets = Collections.emptyMap();
+        if (partitions!=null)
+            partitions.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "[RowIndex{rows:"+size+", spilled:"+isSpilled()+"}]";
+    }
+
+
+    private void add(final Object key, final Object bean) throws Exception {
+        if (key==null)
+            return;
+        size++;
+        if (outs!=null) {
+            write(key, bean);
+            return;
+        }
+        List<Object> bucket = buckets.get(key);
+        if (bucket==null) {
+            bucket = new ArrayList<Object>(2);
+            buckets.put(key, bucket);
+        }
+        bucket.add(bean);
+        if (threshold>0 && size>threshold)
+            spill();
+    }
+
+    private void spill() throws Exception {
+        files = new File[partitionsCount];
+        outs = new ObjectOutputStream[partitionsCount];
+        counts = new int[partitionsCount];
+        for (int i=0; i<partitionsCount; i++) {
+            files[i] = File.createTempFile("report-index-", ".tmp");
+            outs[i] = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(files[i]), 8192));
+        }
+        final Map<Object,List<Object>> buckets = this.buckets;
+        this.buckets = null;
+        for (Map.Entry<Object,List<Object>> entry : buckets.entrySet()) {
+            for (Object bean : entry.getValue()) {
+                write(entry.getKey(), bean);
+            }
+        }
+    }
+
+    private void write(final Object key, final Object bean) throws Exception {
+        if (!(key instanceof Serializable) || !(bean instanceof Serializable))
+            throw new DataProviderException("Unable to spill index to disk: record "+bean+" (or its key) is not serializable. Increase the spill threshold or use serializable records.");
+        final int partition = partitionOf(key);
+        final ObjectOutputStream out = outs[partition];
+        out.writeObject(key);
+        out.writeObject(bean);
+        if (++counts[partition] % RESET_INTERVAL == 0)
+            out.reset();
+    }
+
+    private void complete() throws IOException {
+        if (outs!=null) {
+            for (ObjectOutputStream out : outs) {
+                out.close();
+            }
+            outs = null;
+            // в памяти одновременно хранится столько разделов, сколько в среднем умещается в пределах порога ...
+            final int capacity = (int)Math.max(1, Math.min(partitionsCount, (long)threshold*partitionsCount/size));
+            partitions = new LinkedHashMap<Integer,Map<Object,List<Object>>>(capacity*2, 0.75f, true) {
+                protected boolean removeEldestEntry(final Map.Entry<Integer,Map<Object,List<Object>>> eldest) {
+                    return size()>capacity;
+                }
+            };
+        }
+    }
+
+    private Map<Object,List<Object>> load(final int partition) throws Exception {
+        final Map<Object,List<Object>> result = new HashMap<Object,List<Object>>();
+        final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(files[partition]), 8192));
+        try {
+            for (int i=counts[partition]; i>0; i--) {
+                final Object key = in.readObject();
+                final Object bean = in.readObject();
+                List<Object> bucket = result.get(key);
+                if (bucket==null) {
+                    bucket = new ArrayList<Object>(2);
+                    result.put(key, bucket);
+                }
+                bucket.add(bean);
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    private int partitionOf(final Object key) {
+        return (key.hashCode() & 0x7FFFFFFF) % partitionsCount;
+    }
+
+    /**
+     * Приводит числовые ключи к единому типу чтобы, например, ключ типа {@link Integer} или {@link BigDecimal} в записях поставщика данных
+     * совпадал с ключом типа {@link Long} в родительской секции. Целые значения (в том числе типов {@link BigDecimal} и {@link BigInteger},
+     * если они умещаются в диапазон <code>long</code>) приводятся к типу {@link Long}, у дробных значений {@link BigDecimal}
+     * отбрасываются незначащие нули чтобы, например, значения <code>1.5</code> и <code>1.50</code> совпадали.
+     */
+    private static Object normalize(final Object key) {
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte)
+            return ((Number)key).longValue();
+        if (key instanceof BigDecimal) {
+            final BigDecimal value = (BigDecimal)key;
+            try {
+                return value.longValueExact();
+            } catch (ArithmeticException e) {
+                return value.stripTrailingZeros();
+            }
+        }
+        if (key instanceof BigInteger && ((BigInteger)key).bitLength()<64)
+            return ((BigInteger)key).longValue();
+        return key;
+    }
+
+
+    private final class BucketIterator implements BeanIterator<Object> {
+        private final List<Object> rows;
+        private int pos;
+
+        private BucketIterator(final List<Object> rows) {
+            this.rows = rows;
+        }
+
+        public BeanMetaData getMetaData() {
+            return metadata;
+        }
+
+        public boolean hasNext() {
+            return pos < rows.size();
+        }
+
+        public Object next() {
+            if (pos>=rows.size())
+                throw new NoSuchElementException();
+            return rows.get(pos++);
+        }
+
+        public Object readAhead() {
+            if (pos>=rows.size())
+                throw new NoSuchElementException();
+            return rows.get(pos);
+        }
+
+        public void close() {
+            pos = rows.size();
+        }
+    }
+}
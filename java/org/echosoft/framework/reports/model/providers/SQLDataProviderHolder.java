@@ -3,7 +3,11 @@ package org.echosoft.framework.reports.model.providers;
 import javax.sql.DataSource;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.echosoft.common.query.Query;
@@ -14,6 +18,8 @@ import org.echosoft.common.query.providers.DataProvider;
 import org.echosoft.common.query.providers.SQLDataProvider;
 import org.echosoft.framework.reports.model.el.ELContext;
 import org.echosoft.framework.reports.model.el.Expression;
+import org.echosoft.framework.reports.processor.ExecutionContext;
+import org.echosoft.framework.reports.processor.ReportSession;
 
 /**
  * Предназначен для динамического конструирования поставщиков данных на основе контекста выполнения отчета.
@@ -22,6 +28,22 @@ import org.echosoft.framework.reports.model.el.Expression;
  */
 public class SQLDataProviderHolder implements DataProviderHolder {
 
+    /**
+     * Имя псевдопараметра SQL запроса, вместо которого подставляется условие отбора записей раздела (см. {@link #getPartitionColumn()}).
+     */
+    public static final String PARTITION_PARAM = "partition";
+
+    /**
+     * Имена параметров SQL запроса, содержащих нижнюю (включительно) и верхнюю (исключительно) границы раздела.
+     */
+    public static final String PARTITION_LO = "partition_lo";
+    public static final String PARTITION_HI = "partition_hi";
+
+    /**
+     * Максимальное количество разделов, записи которых по умолчанию запрашиваются одновременно (см. {@link #getPartitionParallelism()}).
+     */
+    public static final int DEFAULT_PARTITION_PARALLELISM = 4;
+
     private final String id;
     private Expression datasource;
     private Expression processor;
@@ -30,11 +52,24 @@ public class SQLDataProviderHolder implements DataProviderHolder {
     private Expression filter;
     private Expression paramsMap;
     private Map<Expression, Expression> params;
+    private FetchMode fetchMode;
+    private boolean materialized;
+    private Expression key;
+    private Expression parentKey;
+    private String batchParam;
+    private int batchSize;
+    private String partitionColumn;
+    private Expression partitionBounds;
+    private int partitionParallelism;
+    private Expression mergeKey;
+    private boolean mergeDescending;
 
 
     public SQLDataProviderHolder(String id) {
         this.id = id;
         params = new HashMap<Expression,Expression>();
+        fetchMode = FetchMode.SYNC;
+        partitionParallelism = DEFAULT_PARTITION_PARALLELISM;
     }
 
     /**
@@ -87,6 +122,208 @@ public class SQLDataProviderHolder implements DataProviderHolder {
         this.paramsMap = paramsMap;
     }
 
+    /**
+     * Возвращает способ получения записей от данного поставщика данных.
+     *
+     * @return  способ получения записей. Никогда не возвращает <code>null</code>.
+     */
+    public FetchMode getFetchMode() {
+        return fetchMode;
+    }
+
+    /**
+     * Устанавливает способ получения записей от данного поставщика данных.
+     *
+     * @param fetchMode  способ получения записей. Если указан <code>null</code> то будет использоваться режим по умолчанию.
+     */
+    public void setFetchMode(FetchMode fetchMode) {
+        this.fetchMode = fetchMode!=null ? fetchMode : FetchMode.SYNC;
+    }
+
+    /**
+     * Возвращает <code>true</code> если записи, полученные от данного поставщика данных, должны сохраняться в памяти на время
+     * формирования отчета, с тем чтобы все последующие секции отчета, обращающиеся к этому поставщику данных с теми же аргументами
+     * запроса, получали записи из памяти без повторного выполнения запроса.
+     *
+     * @return  <code>true</code> если полученные записи должны повторно использоваться в пределах формирования одного отчета.
+     */
+    public boolean isMaterialized() {
+        return materialized;
+    }
+
+    /**
+     * Указывает должны ли записи, полученные от данного поставщика данных, повторно использоваться в пределах формирования одного отчета.
+     *
+     * @param materialized  <code>true</code> если полученные записи должны повторно использоваться всеми секциями отчета,
+     *      обращающимися к данному поставщику данных с теми же аргументами запроса.
+     */
+    public void setMaterialized(boolean materialized) {
+        this.materialized = materialized;
+    }
+
+    /**
+     * Возвращает ключ, под которым записи, полученные от данного поставщика данных, сохраняются для повторного использования
+     * (см. {@link #isMaterialized()}). Помимо аргументов запроса ключ учитывает источник данных и текст SQL запроса (или ссылку на него),
+     * поскольку оба они могут вычисляться в зависимости от контекста выполнения отчета.
+     *
+     * @param ctx  контекст выполнения отчета.
+     * @param query  аргументы запроса к поставщику данных.
+     * @return  ключ, однозначно определяющий набор записей, получаемых от данного поставщика данных.
+     */
+    public Object getMaterializationKey(ELContext ctx, Query query) {
+        try {
+            final Object ds = datasource!=null ? datasource.getValue(ctx) : null;
+            final Object text = sql!=null ? sql.getValue(ctx) : null;
+            final Object ref = sql==null && sqlref!=null ? sqlref.getValue(ctx) : null;
+            return Arrays.asList(id, ds, text, ref, query);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Возвращает выражение, вычисляющее для каждой записи данного поставщика ключ записи родительской секции, к которой эта запись относится,
+     * например <code>${row:invoiceId}</code>. Используется при пакетном получении записей (см. {@link #getBatchSize()}).
+     *
+     * @return  выражение, вычисляемое для каждой записи данного поставщика данных.
+     */
+    public Expression getKey() {
+        return key;
+    }
+    public void setKey(Expression key) {
+        this.key = key;
+    }
+
+    /**
+     * Возвращает выражение, вычисляющее ключ записи родительской секции, например <code>${row:id}</code>.
+     * Используется при пакетном получении записей (см. {@link #getBatchSize()}).
+     *
+     * @return  выражение, вычисляемое для каждой записи родительской секции.
+     */
+    public Expression getParentKey() {
+        return parentKey;
+    }
+    public void setParentKey(Expression parentKey) {
+        this.parentKey = parentKey;
+    }
+
+    /**
+     * Возвращает имя параметра SQL запроса, вместо которого при пакетном получении записей подставляется список ключей записей родительской секции,
+     * например <code>ids</code> для запроса <code>SELECT * FROM payment WHERE invoice_id IN (:ids)</code>.
+     *
+     * @return  имя параметра SQL запроса (без двоеточия).
+     */
+    public String getBatchParam() {
+        return batchParam;
+    }
+    public void setBatchParam(String batchParam) {
+        this.batchParam = batchParam;
+    }
+
+    /**
+     * <p>Возвращает максимальное количество записей родительской секции, для которых записи данного поставщика данных получаются одним запросом.</p>
+     * <p>Если поставщик данных используется секцией, вложенной в составную секцию со своим поставщиком данных, то вместо выполнения отдельного
+     * запроса для каждой записи родительской секции ключи нескольких последующих записей родительской секции (см. {@link #getParentKey()})
+     * собираются в список, который подставляется в SQL запрос вместо параметра {@link #getBatchParam()}. Полученные записи распределяются
+     * по записям родительской секции по значению их ключа (см. {@link #getKey()}). Прочие аргументы запроса не должны зависеть от текущей
+     * записи родительской секции.</p>
+     *
+     * @return  максимальное количество ключей в одном запросе или <code>0</code> если пакетное получение записей не используется.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+    public void setBatchSize(int batchSize) {
+        if (batchSize<0)
+            throw new IllegalArgumentException("Batch size can't be negative");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return  <code>true</code> если для данного поставщика данных должно использоваться пакетное получение записей (см. {@link #getBatchSize()}).
+     */
+    public boolean isBatched() {
+        return batchSize>0 && key!=null && parentKey!=null && batchParam!=null;
+    }
+
+    /**
+     * <p>Возвращает выражение SQL (как правило, имя колонки), по значениям которого записи данного поставщика разбиваются на диапазоны (разделы).
+     * Записи каждого раздела запрашиваются отдельным запросом в отдельном потоке (а следовательно, и через отдельное соединение с БД),
+     * все запросы выполняются одновременно. Для этого в SQL запросе вместо псевдопараметра <code>:partition</code> подставляется условие отбора
+     * записей соответствующего раздела, например: <code>SELECT * FROM payment WHERE state=1 AND :partition ORDER BY company_id</code>.</p>
+     * <p>Записи всех разделов объединяются в единый упорядоченный поток слиянием по значению {@link #getMergeKey()}. Если этот ключ не указан,
+     * то записи разделов следуют друг за другом в порядке возрастания границ разделов, что корректно лишь в том случае, если записи упорядочены
+     * прежде всего по значению колонки, по которой выполняется разбиение на разделы.</p>
+     *
+     * @return  выражение SQL, по значениям которого записи разбиваются на разделы, или <code>null</code> если записи запрашиваются одним запросом.
+     */
+    public String getPartitionColumn() {
+        return partitionColumn;
+    }
+    public void setPartitionColumn(String partitionColumn) {
+        this.partitionColumn = partitionColumn;
+    }
+
+    /**
+     * Возвращает выражение, вычисляющее упорядоченные по возрастанию границы разделов (см. {@link #getPartitionColumn()}).
+     * Значением выражения может быть коллекция, массив или строка со значениями через запятую. <code>N</code> границ образуют <code>N+1</code> раздел.
+     *
+     * @return  выражение, вычисляющее границы разделов.
+     */
+    public Expression getPartitionBounds() {
+        return partitionBounds;
+    }
+    public void setPartitionBounds(Expression partitionBounds) {
+        this.partitionBounds = partitionBounds;
+    }
+
+    /**
+     * Возвращает максимальное количество разделов (см. {@link #getPartitionColumn()}), записи которых одновременно запрашиваются в пуле потоков
+     * процессора. Запрос к каждому из последующих разделов выполняется лишь после того, как будут получены все записи одного из предшествующих ему разделов.
+     * Если записи раздела потребуются потоку формирования отчета раньше (например, при слиянии разделов по {@link #getMergeKey()}),
+     * то запрос к этому разделу выполняется непосредственно в потоке формирования отчета.
+     *
+     * @return  максимальное количество одновременно запрашиваемых в пуле потоков разделов. По умолчанию {@link #DEFAULT_PARTITION_PARALLELISM}.
+     */
+    public int getPartitionParallelism() {
+        return partitionParallelism;
+    }
+    public void setPartitionParallelism(int partitionParallelism) {
+        if (partitionParallelism<=0)
+            throw new IllegalArgumentException("Partition parallelism must be positive");
+        this.partitionParallelism = partitionParallelism;
+    }
+
+    /**
+     * Возвращает выражение, вычисляющее для каждой записи значение (экземпляр {@link Comparable}), в порядке возрастания которого
+     * записи упорядочены в каждом из разделов (см. {@link #getPartitionColumn()}).
+     *
+     * @return  выражение, вычисляемое для каждой записи, или <code>null</code> если разделы не требуют слияния.
+     */
+    public Expression getMergeKey() {
+        return mergeKey;
+    }
+    public void setMergeKey(Expression mergeKey) {
+        this.mergeKey = mergeKey;
+    }
+
+    /**
+     * @return  <code>true</code> если записи в разделах упорядочены по убыванию значения {@link #getMergeKey()}.
+     */
+    public boolean isMergeDescending() {
+        return mergeDescending;
+    }
+    public void setMergeDescending(boolean mergeDescending) {
+        this.mergeDescending = mergeDescending;
+    }
+
+    /**
+     * @return  <code>true</code> если записи данного поставщика данных должны запрашиваться по разделам (см. {@link #getPartitionColumn()}).
+     */
+    public boolean isPartitioned() {
+        return partitionColumn!=null && partitionBounds!=null;
+    }
+
     public void addParam(Expression name, Expression value) {
         if (name==null || value==null)
             throw new IllegalArgumentException("parameter key and value must be specified");
@@ -100,45 +337,67 @@ public class SQLDataProviderHolder implements DataProviderHolder {
     @SuppressWarnings("unchecked")
     public DataProvider getProvider(ELContext ctx) {
         try {
-            final DataSource datasource = (DataSource)this.datasource.getValue(ctx);
-
-            final QueryProcessor processor;
-            final Object p = this.processor.getValue(ctx);
-            if (p instanceof QueryProcessor) {
-                processor = (QueryProcessor)p;
-            } else
-            if (p instanceof String) {
-                processor = QueryProcessorFactory.getInstance().getProcessor( (String)p );
-            } else
-                throw new RuntimeException("Illegal processor type: "+p);
-
-            final String sql;
-            if (this.sql!=null) {
-                sql = (String)this.sql.getValue(ctx);
-            } else
-            if (this.sqlref!=null) {
-                final String ref = (String)this.sqlref.getValue(ctx);
-                final InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(ref);  //StreamUtil.getInputStream(ref);
-                if (in==null)
-                    throw new RuntimeException("Invalid sql reference: "+ref);
-                try {
-                    final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
-                    final byte[] c = new byte[1024];
-                    for (int size=in.read(c); size>0; size=in.read(c))
-                        out.write(c, 0, size);
-                    sql = out.toString("utf-8");
-                } finally {
-                    in.close();
-                }
-            } else
-                throw new RuntimeException("SQL not specified");
+            return new SQLDataProvider(getDataSource(ctx), getQueryProcessor(ctx), new JdbcBeanLoader(), getSQLText(ctx));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            return new SQLDataProvider(datasource, processor, new JdbcBeanLoader(), sql);
+    /**
+     * Возвращает источник данных, используемый при пакетном получении записей (см. {@link #getBatchSize()}).
+     * Каждый запрос к нему должен содержать ровно {@link #getBatchSize()} ключей (см. {@link #getBatchQuery(ELContext, List)}).
+     *
+     * @param ctx  контекст выполнения отчета.
+     * @return  источник данных, SQL запрос которого содержит список из {@link #getBatchSize()} параметров вместо параметра {@link #getBatchParam()}.
+     */
+    @SuppressWarnings("unchecked")
+    public DataProvider getBatchProvider(ELContext ctx) {
+        try {
+            return new SQLDataProvider(getDataSource(ctx), getQueryProcessor(ctx), new JdbcBeanLoader(), getBatchSQL(ctx));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Возвращает текст SQL запроса, используемого при пакетном получении записей. В исходном запросе каждое вхождение параметра
+     * {@link #getBatchParam()} заменяется списком из {@link #getBatchSize()} именованных параметров. Размер списка не зависит от количества
+     * ключей в конкретном пакете, что позволяет СУБД повторно использовать план выполнения запроса.
+     *
+     * @param ctx  контекст выполнения отчета.
+     * @return  текст SQL запроса.
+     * @throws Exception  в случае каких-либо проблем.
+     */
+    public String getBatchSQL(ELContext ctx) throws Exception {
+        final String sql = getSQLText(ctx);
+        final String param = ":" + batchParam;
+        final StringBuilder list = new StringBuilder(batchSize * (param.length()+6));
+        for (int i=0; i<batchSize; i++) {
+            if (i>0)
+                list.append(", ");
+            list.append(':').append(getBatchParamName(i));
+        }
+        return replaceParam(sql, param, list.toString());
+    }
+
+    /**
+     * Возвращает аргументы запроса для получения записей, относящихся к указанному пакету ключей записей родительской секции.
+     *
+     * @param ctx  контекст выполнения отчета.
+     * @param keys  ключи записей родительской секции. Их количество не должно превышать {@link #getBatchSize()}.
+     * @return  аргументы запроса к источнику данных {@link #getBatchProvider(ELContext)}.
+     */
+    public Query getBatchQuery(ELContext ctx, List<?> keys) {
+        if (keys.isEmpty() || keys.size()>batchSize)
+            throw new IllegalArgumentException("Illegal batch size: "+keys.size());
+        final Query query = (Query)getQuery(ctx).clone();
+        for (int i=0; i<batchSize; i++) {
+            // недостающие ключи дополняем последним ключом пакета ...
+            query.getNamedParams().put(getBatchParamName(i), keys.get(Math.min(i, keys.size()-1)));
+        }
+        return query;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -167,6 +426,185 @@ public class SQLDataProviderHolder implements DataProviderHolder {
     }
 
 
+    /**
+     * Вычисляет границы разделов (см. {@link #getPartitionBounds()}). Числовые значения, заданные строкой, преобразуются в {@link Long}.
+     *
+     * @param ctx  контекст выполнения отчета.
+     * @return  границы разделов.
+     * @throws Exception  в случае каких-либо проблем.
+     */
+    public Object[] getPartitionBounds(ELContext ctx) throws Exception {
+        final Object value = partitionBounds.getValue(ctx);
+        if (value==null)
+            return new Object[0];
+        if (value instanceof Object[])
+            return (Object[])value;
+        if (value instanceof Collection)
+            return ((Collection)value).toArray();
+        if (value instanceof String) {
+            final String[] items = ((String)value).split(",");
+            final List<Object> result = new ArrayList<Object>(items.length);
+            for (String item : items) {
+                item = item.trim();
+                if (item.length()==0)
+                    continue;
+                try {
+                    result.add(Long.parseLong(item));
+                } catch (NumberFormatException e) {
+                    result.add(item);
+                }
+            }
+            return result.toArray();
+        }
+        return new Object[]{value};
+    }
+
+    /**
+     * Возвращает источник данных для получения записей указанного раздела (см. {@link #getPartitionColumn()}).
+     *
+     * @param ctx  контекст выполнения отчета.
+     * @param partition  порядковый номер раздела (начиная с 0).
+     * @param count  общее количество разделов.
+     * @return  источник данных, SQL запрос которого отбирает лишь записи указанного раздела.
+     */
+    @SuppressWarnings("unchecked")
+    public DataProvider getPartitionProvider(ELContext ctx, int partition, int count) {
+        try {
+            return new SQLDataProvider(getDataSource(ctx), getQueryProcessor(ctx), new JdbcBeanLoader(), getPartitionSQL(ctx, partition, count));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Возвращает текст SQL запроса для получения записей указанного раздела: псевдопараметр <code>:partition</code> заменяется условием
+     * <code>column &gt;= :partition_lo AND column &lt; :partition_hi</code> (у первого раздела нет нижней границы, у последнего - верхней,
+     * кроме того, последний раздел содержит записи, у которых значение колонки не определено).
+     *
+     * @param ctx  контекст выполнения отчета.
+     * @param partition  порядковый номер раздела (начиная с 0).
+     * @param count  общее количество разделов.
+     * @return  текст SQL запроса.
+     * @throws Exception  в случае каких-либо проблем.
+     */
+    public String getPartitionSQL(ELContext ctx, int partition, int count) throws Exception {
+        final String condition;
+        if (count==1) {
+            condition = "(1=1)";
+        } else
+        if (partition==0) {
+            condition = "(" + partitionColumn + " < :" + PARTITION_HI + ")";
+        } else
+        if (partition==count-1) {
+            condition = "(" + partitionColumn + " >= :" + PARTITION_LO + " OR " + partitionColumn + " IS NULL)";
+        } else {
+            condition = "(" + partitionColumn + " >= :" + PARTITION_LO + " AND " + partitionColumn + " < :" + PARTITION_HI + ")";
+        }
+        return replaceParam(getSQLText(ctx), ":" + PARTITION_PARAM, condition);
+    }
+
+    /**
+     * Возвращает аргументы запроса для получения записей указанного раздела.
+     *
+     * @param query  исходные аргументы запроса к данному поставщику данных (см. {@link #getQuery(ELContext)}).
+     * @param bounds  границы разделов (см. {@link #getPartitionBounds(ELContext)}).
+     * @param partition  порядковый номер раздела (начиная с 0).
+     * @return  аргументы запроса к источнику данных {@link #getPartitionProvider(ELContext, int, int)}.
+     */
+    public Query getPartitionQuery(Query query, Object[] bounds, int partition) {
+        final Query result = query!=null ? (Query)query.clone() : new Query();
+        if (partition>0)
+            result.getNamedParams().put(PARTITION_LO, bounds[partition-1]);
+        if (partition<bounds.length)
+            result.getNamedParams().put(PARTITION_HI, bounds[partition]);
+        return result;
+    }
+
+    private String getBatchParamName(final int index) {
+        // все имена имеют одинаковую длину, чтобы имя одного параметра не было началом имени другого ...
+        final String num = Integer.toString(index);
+        final int width = Integer.toString(batchSize-1).length();
+        final StringBuilder result = new StringBuilder(batchParam.length()+width+1);
+        result.append(batchParam).append('_');
+        for (int i=num.length(); i<width; i++) {
+            result.append('0');
+        }
+        return result.append(num).toString();
+    }
+
+    /**
+     * Заменяет в тексте SQL запроса каждое вхождение указанного параметра (но не параметров, чье имя начинается с его имени) указанным текстом.
+     */
+    private String replaceParam(final String sql, final String param, final String replacement) {
+        final StringBuilder result = new StringBuilder(sql.length() + replacement.length());
+        int start = 0;
+        for (int pos=sql.indexOf(param); pos>=0; pos=sql.indexOf(param, pos+param.length())) {
+            final int end = pos + param.length();
+            if (end<sql.length() && Character.isJavaIdentifierPart(sql.charAt(end)))
+                continue;   // другой параметр, чье имя начинается с имени искомого параметра.
+            result.append(sql, start, pos).append(replacement);
+            start = end;
+        }
+        if (start==0)
+            throw new RuntimeException("Parameter "+param+" not found in SQL of data provider "+id);
+        result.append(sql, start, sql.length());
+        return result.toString();
+    }
+
+    private DataSource getDataSource(final ELContext ctx) throws Exception {
+        final DataSource ds = (DataSource)this.datasource.getValue(ctx);
+        final ReportSession session = getSession(ctx);
+        return session!=null ? session.bind(ds) : ds;
+    }
+
+    private static ReportSession getSession(final ELContext ctx) {
+        final Object ectx = ctx.getVariables().get("context");
+        return ectx instanceof ExecutionContext ? ((ExecutionContext)ectx).session : null;
+    }
+
+    private QueryProcessor getQueryProcessor(final ELContext ctx) throws Exception {
+        final Object p = this.processor.getValue(ctx);
+        if (p instanceof QueryProcessor) {
+            return (QueryProcessor)p;
+        } else
+        if (p instanceof String) {
+            return QueryProcessorFactory.getInstance().getProcessor( (String)p );
+        } else
+            throw new RuntimeException("Illegal processor type: "+p);
+    }
+
+    private String getSQLText(final ELContext ctx) throws Exception {
+        if (this.sql!=null) {
+            return (String)this.sql.getValue(ctx);
+        } else
+        if (this.sqlref!=null) {
+            final String ref = (String)this.sqlref.getValue(ctx);
+            final ReportSession session = getSession(ctx);
+            if (session!=null) {
+                final String text = session.getResource(ref);
+                if (text!=null)
+                    return text;
+            }
+            final InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(ref);  //StreamUtil.getInputStream(ref);
+            if (in==null)
+                throw new RuntimeException("Invalid sql reference: "+ref);
+            try {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+                final byte[] c = new byte[1024];
+                for (int size=in.read(c); size>0; size=in.read(c))
+                    out.write(c, 0, size);
+                final String text = out.toString("utf-8");
+                if (session!=null)
+                    session.putResource(ref, text);
+                return text;
+            } finally {
+                in.close();
+            }
+        } else
+            throw new RuntimeException("SQL not specified");
+    }
+
+
     @Override
     public Object clone() throws CloneNotSupportedException {
         final SQLDataProviderHolder result = (SQLDataProviderHolder)super.clone();
@@ -4,7 +4,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.poi.hpsf.DocumentSummaryInformation;
 import org.apache.poi.hpsf.SummaryInformation;
@@ -17,6 +19,7 @@ import org.echosoft.common.io.FastStringTokenizer;
 import org.echosoft.common.utils.Any;
 import org.echosoft.common.utils.StringUtil;
 import org.echosoft.common.utils.XMLUtil;
+import org.echosoft.framework.reports.model.AggregationMode;
 import org.echosoft.framework.reports.model.Area;
 import org.echosoft.framework.reports.model.ColumnGroup;
 import org.echosoft.framework.reports.model.CompositeSection;
@@ -34,7 +37,9 @@ import org.echosoft.framework.reports.model.events.CellEventListenerHolder;
 import org.echosoft.framework.reports.model.events.ReportEventListenerHolder;
 import org.echosoft.framework.reports.model.events.SectionEventListenerHolder;
 import org.echosoft.framework.reports.model.providers.ClassDataProviderHolder;
+import org.echosoft.framework.reports.model.providers.FetchMode;
 import org.echosoft.framework.reports.model.providers.FilteredDataProviderHolder;
+import org.echosoft.framework.reports.model.providers.IndexedDataProviderHolder;
 import org.echosoft.framework.reports.model.providers.ListDataProviderHolder;
 import org.echosoft.framework.reports.model.providers.ProviderUsage;
 import org.echosoft.framework.reports.model.providers.SQLDataProviderHolder;
@@ -77,6 +82,9 @@ public class ReportModelParser {
             report.setTitle(StringUtil.trim(root.getAttribute("title")));
             report.setUser( new BaseExpression(StringUtil.getNonEmpty(root.getAttribute("user"),"user")) );
             report.setPassword( new BaseExpression(StringUtil.trim(root.getAttribute("password"))) );
+            final String am = StringUtil.trim(root.getAttribute("aggregation-mode"));
+            report.setAggregationMode( am!=null ? AggregationMode.valueOf(am.toUpperCase()) : null );
+            report.setSubtotalFormulas( Any.asBoolean(StringUtil.trim(root.getAttribute("subtotal-formulas")), false) );
 
             for (Iterator<Element> i = XMLUtil.getChildElements(root); i.hasNext();) {
                 final Element element = i.next();
@@ -87,6 +95,9 @@ public class ReportModelParser {
                 if ("filtered-data-provider".equals(tagName)) {
                     parseFilteredDataProvider(report, element);
                 } else
+                if ("indexed-data-provider".equals(tagName)) {
+                    parseIndexedDataProvider(report, element);
+                } else
                 if ("list-data-provider".equals(tagName)) {
                     parseListDataProvider(report, element);
                 } else
@@ -181,6 +192,26 @@ public class ReportModelParser {
         report.getProviders().put(id, result);
     }
 
+    private static void parseIndexedDataProvider(final Report report, final Element element) {
+        final String id = StringUtil.trim(element.getAttribute("id"));
+        final String source = StringUtil.trim(element.getAttribute("source"));
+        final String key = StringUtil.trim(element.getAttribute("key"));
+        final String parentKey = StringUtil.trim(element.getAttribute("parent-key"));
+        if (id == null || source == null || key == null || parentKey == null)
+            throw new RuntimeException("Mandatory attributes not specified: " + element);
+        final IndexedDataProviderHolder result = new IndexedDataProviderHolder(id);
+        result.setSource(source);
+        result.setKey( new BaseExpression(key) );
+        result.setParentKey( new BaseExpression(parentKey) );
+        final String threshold = StringUtil.trim(element.getAttribute("spill-threshold"));
+        if (threshold != null)
+            result.setSpillThreshold( Integer.parseInt(threshold) );
+        final String partitions = StringUtil.trim(element.getAttribute("partitions"));
+        if (partitions != null)
+            result.setPartitions( Integer.parseInt(partitions) );
+        report.getProviders().put(id, result);
+    }
+
     private static void parseListDataProvider(final Report report, final Element element) {
         final String id = StringUtil.trim(element.getAttribute("id"));
         final String data = StringUtil.trim(element.getAttribute("data"));
@@ -219,6 +250,28 @@ public class ReportModelParser {
         final SQLDataProviderHolder result = new SQLDataProviderHolder(id);
         result.setDataSource(new BaseExpression(ds));
         result.setProcessor(new BaseExpression(processor));
+        final String fm = StringUtil.trim(element.getAttribute("fetch-mode"));
+        result.setFetchMode( fm!=null ? FetchMode.valueOf(fm.toUpperCase()) : null );
+        result.setMaterialized( Any.asBoolean(StringUtil.trim(element.getAttribute("materialized")), false) );
+        final String key = StringUtil.trim(element.getAttribute("key"));
+        final String parentKey = StringUtil.trim(element.getAttribute("parent-key"));
+        result.setKey( key!=null ? new BaseExpression(key) : null );
+        result.setParentKey( parentKey!=null ? new BaseExpression(parentKey) : null );
+        result.setBatchParam( StringUtil.trim(element.getAttribute("batch-param")) );
+        result.setBatchSize( Any.asInt(StringUtil.trim(element.getAttribute("batch-size")), 0) );
+        if (result.getBatchSize()>0 && !result.isBatched())
+            throw new RuntimeException("Attributes 'key', 'parent-key' and 'batch-param' must be specified for batched data provider: " + id);
+        final String bounds = StringUtil.trim(element.getAttribute("partition-bounds"));
+        final String mergeKey = StringUtil.trim(element.getAttribute("merge-key"));
+        result.setPartitionColumn( StringUtil.trim(element.getAttribute("partition-column")) );
+        result.setPartitionBounds( bounds!=null ? new BaseExpression(bounds) : null );
+        final String partitionParallelism = StringUtil.trim(element.getAttribute("partition-parallelism"));
+        if (partitionParallelism != null)
+            result.setPartitionParallelism( Integer.parseInt(partitionParallelism) );
+        result.setMergeKey( mergeKey!=null ? new BaseExpression(mergeKey) : null );
+        result.setMergeDescending( Any.asBoolean(StringUtil.trim(element.getAttribute("merge-descending")), false) );
+        if ((result.getPartitionColumn()==null) != (result.getPartitionBounds()==null))
+            throw new RuntimeException("Attributes 'partition-column' and 'partition-bounds' must be specified together: " + id);
         for (Iterator<Element> i = XMLUtil.getChildElements(element); i.hasNext();) {
             final Element el = i.next();
             final String tagName = el.getTagName();
@@ -306,6 +359,19 @@ public class ReportModelParser {
                 sheet.addColumnGroup( new ColumnGroup(c1, c2) );
             }
         }
+        final String depends = StringUtil.trim(element.getAttribute("depends"));
+        if (depends!=null) {
+            final List<String> ids = new ArrayList<String>();
+            for (Iterator<String> it = new FastStringTokenizer(depends,',', (char)0); it.hasNext(); ) {
+                final String token = StringUtil.trim(it.next());
+                if (token==null)
+                    continue;
+                if (report.findSheetById(token)==null)
+                    throw new IllegalArgumentException("Sheet "+id+" depends on unknown or subsequent sheet "+token);
+                ids.add(token);
+            }
+            sheet.setDependencies( ids.toArray(new String[ids.size()]) );
+        }
         sheet.getHeader().setLeft(esheet.getHeader().getLeft());
         sheet.getHeader().setCenter(esheet.getHeader().getCenter());
         sheet.getHeader().setRight(esheet.getHeader().getCenter());
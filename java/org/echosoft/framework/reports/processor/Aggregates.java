@@ -0,0 +1,131 @@
+package org.echosoft.framework.reports.processor;
+
+/**
+ * <p>Накапливает итоговые значения (сумма, минимум, максимум, количество) по каждой колонке листа для некоторого множества
+ * уже отрисованных в отчете ячеек. Используется макросами, вычисляющими итоговые значения по группам строк, в режимах
+ * {@link org.echosoft.framework.reports.model.AggregationMode#VALUE} и {@link org.echosoft.framework.reports.model.AggregationMode#CACHED}.</p>
+ * <p>Итоги вычисляются по тем же правилам что и соответствующие функции Excel (<code>SUM</code>, <code>MIN</code>, <code>MAX</code>,
+ * <code>AVERAGE</code>): учитываются только ячейки с числовыми значениями, пустые и текстовые ячейки игнорируются.
+ * Если хотя бы одна из учитываемых ячеек колонки содержит формулу, значение которой неизвестно, то итоги по данной колонке
+ * считаются неопределенными.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class Aggregates {
+
+    private static final double[] EMPTY_VALUES = new double[0];
+    private static final int[] EMPTY_COUNTS = new int[0];
+    private static final boolean[] EMPTY_FLAGS = new boolean[0];
+
+    private double[] sum;
+    private double[] min;
+    private double[] max;
+    private int[] count;
+    private boolean[] undefined;
+
+    public Aggregates() {
+        sum = EMPTY_VALUES;
+        min = EMPTY_VALUES;
+        max = EMPTY_VALUES;
+        count = EMPTY_COUNTS;
+        undefined = EMPTY_FLAGS;
+    }
+
+    /**
+     * Учитывает очередное числовое значение в указанной колонке.
+     *
+     * @param column  индекс колонки (начиная с 0).
+     * @param value  значение ячейки.
+     */
+    public void add(final int column, final double value) {
+        ensureCapacity(column);
+        if (count[column]==0) {
+            min[column] = value;
+            max[column] = value;
+        } else {
+            if (value<min[column])
+                min[column] = value;
+            if (value>max[column])
+                max[column] = value;
+        }
+        sum[column] += value;
+        count[column]++;
+    }
+
+    /**
+     * Отмечает что в указанной колонке присутствует ячейка, значение которой неизвестно на момент формирования отчета.
+     *
+     * @param column  индекс колонки (начиная с 0).
+     */
+    public void addUndefined(final int column) {
+        ensureCapacity(column);
+        undefined[column] = true;
+    }
+
+    /**
+     * @param column  индекс колонки (начиная с 0).
+     * @return  <code>true</code> если значения всех учтенных ячеек данной колонки известны и итоги по ней могут быть использованы.
+     */
+    public boolean isDefined(final int column) {
+        return column>=undefined.length || !undefined[column];
+    }
+
+    /**
+     * @param column  индекс колонки (начиная с 0).
+     * @return  количество учтенных числовых значений в колонке.
+     */
+    public int getCount(final int column) {
+        return column<count.length ? count[column] : 0;
+    }
+
+    /**
+     * @param column  индекс колонки (начиная с 0).
+     * @return  сумма всех учтенных значений в колонке.
+     */
+    public double getSum(final int column) {
+        return column<sum.length ? sum[column] : 0;
+    }
+
+    /**
+     * @param column  индекс колонки (начиная с 0).
+     * @return  минимальное из учтенных значений в колонке или 0 если в колонке не было учтено ни одного значения.
+     */
+    public double getMin(final int column) {
+        return getCount(column)>0 ? min[column] : 0;
+    }
+
+    /**
+     * @param column  индекс колонки (начиная с 0).
+     * @return  максимальное из учтенных значений в колонке или 0 если в колонке не было учтено ни одного значения.
+     */
+    public double getMax(final int column) {
+        return getCount(column)>0 ? max[column] : 0;
+    }
+
+
+    private void ensureCapacity(final int column) {
+        if (column<count.length)
+            return;
+        final int size = Math.max(column+1, count.length*2);
+        final double[] nsum = new double[size];
+        final double[] nmin = new double[size];
+        final double[] nmax = new double[size];
+        final int[] ncount = new int[size];
+        final boolean[] nundefined = new boolean[size];
+        System.arraycopy(sum, 0, nsum, 0, sum.length);
+        System.arraycopy(min, 0, nmin, 0, min.length);
+        System.arraycopy(max, 0, nmax, 0, max.length);
+        System.arraycopy(count, 0, ncount, 0, count.length);
+        System.arraycopy(undefined, 0, nundefined, 0, undefined.length);
+        sum = nsum;
+        min = nmin;
+        max = nmax;
+        count = ncount;
+        undefined = nundefined;
+    }
+
+    @Override
+    public String toString() {
+        return "[Aggregates{columns:"+count.length+"}]";
+    }
+}
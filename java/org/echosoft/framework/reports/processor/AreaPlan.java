@@ -0,0 +1,136 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.echosoft.framework.reports.model.AggregationMode;
+import org.echosoft.framework.reports.model.Area;
+import org.echosoft.framework.reports.model.Cell;
+import org.echosoft.framework.reports.model.Row;
+import org.echosoft.framework.reports.model.el.Expression;
+
+/**
+ * Подготовленное к отрисовке представление области шаблона отчета.
+ * Содержит только непустые ячейки шаблона с заранее определенными выражениями и индексами стилей,
+ * а также координаты объединенных регионов области. После создания экземпляр не изменяется и может
+ * одновременно использоваться несколькими потоками.
+ *
+ * @author Anton Sharapov
+ */
+final class AreaPlan {
+
+    /**
+     * Признак того что все строки области должны быть скрыты от пользователя.
+     */
+    final boolean hidden;
+
+    /**
+     * Признак наличия в области макросов, в аргументах которых явно запрошено вычисление итоговых значений в процессе
+     * формирования отчета (см. {@link AggregationMode}).
+     */
+    final boolean aggregates;
+
+    /**
+     * Описание строк области.
+     */
+    final RowPlan[] rows;
+
+    /**
+     * Координаты объединенных регионов области относительно ее первой строки.
+     * Каждый элемент массива содержит четыре числа: первая строка, последняя строка, первая колонка, последняя колонка.
+     */
+    private final int[][] regions;
+
+    AreaPlan(final Area area) {
+        this.hidden = area.isHidden();
+        final List<Row> src = area.getRows();
+        this.rows = new RowPlan[src.size()];
+        boolean aggregates = false;
+        for (int i=0; i<rows.length; i++) {
+            rows[i] = new RowPlan(src.get(i));
+            for (Expression expr : rows[i].expressions) {
+                aggregates |= isAggregatingMacros(expr);
+            }
+        }
+        this.aggregates = aggregates;
+        final List<int[]> regs = new ArrayList<int[]>(area.getRegions().size());
+        for (Area.Region region : area.getRegions()) {
+            regs.add( new int[]{region.getFirstRow(), region.getLastRow(), region.getFirstCol(), region.getLastCol()} );
+        }
+        this.regions = regs.toArray(new int[regs.size()][]);
+    }
+
+    /**
+     * Проверяет является ли указанное выражение вызовом макроса, в аргументах которого указан режим оформления результата,
+     * отличный от {@link AggregationMode#FORMULA}.
+     */
+    private static boolean isAggregatingMacros(final Expression expr) {
+        if (!expr.isStatic())
+            return false;
+        final Object value;
+        try {
+            value = expr.getValue(null);
+        } catch (Exception e) {
+            return false;
+        }
+        final String text = value instanceof String ? (String)value : null;
+        if (text==null || !text.startsWith("$M="))
+            return false;
+        final int si = text.indexOf('(');
+        final int fi = text.lastIndexOf(')');
+        if (si<0 || fi<si)
+            return false;
+        for (String arg : text.substring(si+1, fi).split(",")) {
+            final AggregationMode mode = AggregationMode.find(arg);
+            if (mode!=null && mode!=AggregationMode.FORMULA)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Регистрирует объединенные регионы области для ее размещения начиная с указанной строки листа.
+     * @param layout  изменения структуры листа, в который отрисовывается область.
+     * @param offset  номер строки листа (начиная с 0) соответствующий первой строке области.
+     */
+    void addRegions(final SheetLayout layout, final int offset) {
+        for (final int[] r : regions) {
+            layout.addMergedRegion(r[0]+offset, r[1]+offset, r[2], r[3]);
+        }
+    }
+
+
+    /**
+     * Подготовленное к отрисовке представление одной строки области шаблона отчета.
+     */
+    static final class RowPlan {
+        final short height;
+        final boolean hidden;
+        final int[] columns;
+        final Expression[] expressions;
+        final Short[] styles;
+
+        RowPlan(final Row row) {
+            this.height = row.getHeight();
+            this.hidden = row.isHidden();
+            final List<Cell> cells = row.getCells();
+            int count = 0;
+            for (Cell cell : cells) {
+                if (cell!=null)
+                    count++;
+            }
+            this.columns = new int[count];
+            this.expressions = new Expression[count];
+            this.styles = new Short[count];
+            for (int i=0, j=0; i<cells.size(); i++) {
+                final Cell cell = cells.get(i);
+                if (cell==null)
+                    continue;
+                columns[j] = i;
+                expressions[j] = cell.getExpression();
+                styles[j] = cell.getStyle();
+                j++;
+            }
+        }
+    }
+}
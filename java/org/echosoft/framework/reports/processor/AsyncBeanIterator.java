@@ -0,0 +1,262 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.BeanMetaData;
+import org.echosoft.common.query.Query;
+import org.echosoft.common.query.providers.DataProvider;
+
+/**
+ * <p>Курсор, записи в который читаются из поставщика данных в отдельном потоке.</p>
+ * <p>При создании курсора в отдельном потоке выполняется обращение к поставщику данных, после чего все записи полученного
+ * от него курсора пакетами по {@link #BATCH_SIZE} записей складываются в кольцевой буфер, вмещающий до {@link #CAPACITY} пакетов.
+ * Поток формирования отчета забирает записи из этого буфера. При заполнении буфера поток чтения приостанавливается до тех пор,
+ * пока в буфере не освободится место, а при его опустошении - приостанавливается поток формирования отчета.</p>
+ * <p>Чтение записей выполняется в пуле потоков процессора (см. {@link ExcelReportProcessor#getExecutor()}). Если к моменту обращения
+ * к курсору задача чтения записей еще не начала выполняться (например, все потоки пула заняты), то поток формирования отчета забирает
+ * ее себе и в дальнейшем читает записи из поставщика данных самостоятельно. Благодаря этому поток формирования отчета никогда
+ * не ожидает задачу, стоящую в очереди пула, даже если он сам является одним из потоков этого пула.</p>
+ * <p>Ошибки, возникшие при обращении к поставщику данных или при чтении из него записей, поднимаются в потоке формирования
+ * отчета при попытке получить первую из непрочитанных записей.</p>
+ * <p>Экземпляры данного класса должны использоваться лишь одним потоком формирования отчета.</p>
+ *
+ * @see org.echosoft.framework.reports.model.providers.FetchMode
+ * @author Anton Sharapov
+ */
+final class AsyncBeanIterator implements BeanIterator<Object> {
+
+    /**
+     * Максимальное количество записей в одном пакете.
+     */
+    static final int BATCH_SIZE = 256;
+
+    /**
+     * Максимальное количество пакетов в буфере.
+     */
+    static final int CAPACITY = 4;
+
+    private static final List<Object> EOF = Collections.emptyList();
+
+    private final ExecutorService executor;
+    private final DataProvider provider;
+    private final Query query;
+    private final BlockingQueue<List<Object>> queue;
+    private final AtomicBoolean submitted;
+    private final AtomicBoolean started;
+    private volatile Future<?> producer;
+    private volatile AsyncBeanIterator successor;
+    private volatile boolean finished;
+    private volatile BeanMetaData metadata;
+    private volatile Exception error;
+    private volatile boolean closed;
+    private BeanIterator delegate;      // курсор поставщика данных, если записи читаются непосредственно в потоке формирования отчета.
+    private List<Object> batch;
+    private int pos;
+
+    /**
+     * Начинает чтение записей из поставщика данных.
+     *
+     * @param executor  пул потоков, в котором должны читаться записи.
+     * @param provider  поставщик данных.
+     * @param query  аргументы обращения к поставщику данных.
+     */
+    AsyncBeanIterator(final ExecutorService executor, final DataProvider provider, final Query query) {
+        this(executor, provider, query, true);
+    }
+
+    /**
+     * @param executor  пул потоков, в котором должны читаться записи.
+     * @param provider  поставщик данных.
+     * @param query  аргументы обращения к поставщику данных.
+     * @param start  <code>true</code> если чтение записей должно начаться немедленно, <code>false</code> если оно начнется
+     *          лишь после вызова метода {@link #start()} (или при первом обращении к курсору).
+     */
+    AsyncBeanIterator(final ExecutorService executor, final DataProvider provider, final Query query, final boolean start) {
+        this.executor = executor;
+        this.provider = provider;
+        this.query = query;
+        this.queue = new ArrayBlockingQueue<List<Object>>(CAPACITY);
+        this.submitted = new AtomicBoolean(false);
+        this.started = new AtomicBoolean(false);
+        this.batch = new ArrayList<Object>(0);
+        if (start)
+            start();
+    }
+
+    /**
+     * Ставит задачу чтения записей в очередь пула потоков (если это не было сделано ранее).
+     */
+    void start() {
+        if (closed || started.get() || !submitted.compareAndSet(false, true))
+            return;
+        producer = executor.submit(new Runnable() {
+            public void run() {
+                if (started.compareAndSet(false, true))
+                    fetch();
+            }
+        });
+    }
+
+    /**
+     * Указывает курсор, чтение записей в который должно начаться сразу после того как в данный курсор будут прочитаны все записи.
+     * Позволяет ограничить количество одновременно выполняющихся запросов к поставщикам данных.
+     *
+     * @param successor  курсор, чтение записей в который было отложено (см. {@link #AsyncBeanIterator(ExecutorService, DataProvider, Query, boolean)}).
+     */
+    void setSuccessor(final AsyncBeanIterator successor) {
+        this.successor = successor;
+        if (finished)   // все записи были прочитаны еще до вызова данного метода ...
+            successor.start();
+    }
+
+    /**
+     * @return  аргументы обращения к поставщику данных, с которыми был получен данный курсор.
+     */
+    Query getQuery() {
+        return query;
+    }
+
+    public BeanMetaData getMetaData() {
+        ensureBatch();
+        return metadata;
+    }
+
+    public boolean hasNext() {
+        ensureBatch();
+        return pos < batch.size();
+    }
+
+    public Object next() throws Exception {
+        ensureBatch();
+        if (pos >= batch.size()) {
+            if (error!=null)
+                throw error;
+            throw new NoSuchElementException();
+        }
+        return batch.get(pos++);
+    }
+
+    public Object readAhead() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch.get(pos);
+    }
+
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        started.set(true);  // задача чтения записей, еще не начавшая выполняться, не должна обращаться к поставщику данных ...
+        final Future<?> producer = this.producer;
+        if (producer!=null)
+            producer.cancel(true);
+        queue.clear();      // поток чтения мог быть приостановлен в ожидании свободного места в буфере ...
+        if (delegate!=null)
+            delegate.close();
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private void fetch() {
+        BeanIterator it = null;
+        try {
+            it = provider.execute(query);
+            if (it!=null) {
+                metadata = it.getMetaData();
+                List<Object> batch = new ArrayList<Object>(BATCH_SIZE);
+                while (!closed && it.hasNext()) {
+                    batch.add(it.next());
+                    if (batch.size()==BATCH_SIZE) {
+                        queue.put(batch);
+                        batch = new ArrayList<Object>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty())
+                    queue.put(batch);
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            if (it!=null)
+                it.close();
+        }
+        try {
+            queue.put(EOF);
+        } catch (InterruptedException e) {
+            // курсор уже закрыт ...
+            return;
+        }
+        startSuccessor();
+    }
+
+    /**
+     * Читает очередной пакет записей непосредственно в потоке формирования отчета.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object> read() {
+        try {
+            if (delegate==null) {
+                delegate = provider.execute(query);
+                if (delegate==null) {
+                    startSuccessor();
+                    return EOF;
+                }
+                metadata = delegate.getMetaData();
+            }
+            final List<Object> result = new ArrayList<Object>(BATCH_SIZE);
+            while (result.size()<BATCH_SIZE && delegate.hasNext()) {
+                result.add(delegate.next());
+            }
+            if (!result.isEmpty())
+                return result;
+        } catch (Exception e) {
+            error = e;
+        }
+        if (delegate!=null) {
+            delegate.close();
+            delegate = null;
+        }
+        startSuccessor();
+        return EOF;
+    }
+
+    private void startSuccessor() {
+        finished = true;
+        final AsyncBeanIterator successor = this.successor;
+        if (successor!=null)
+            successor.start();
+    }
+
+    private void ensureBatch() {
+        if (pos < batch.size() || batch==EOF)
+            return;
+        if (closed)
+            throw new IllegalStateException("Iterator already closed");
+        if (delegate!=null || started.compareAndSet(false, true)) {
+            // задача чтения записей еще не начала выполняться, читаем записи самостоятельно ...
+            batch = read();
+            pos = 0;
+        } else {
+            try {
+                batch = queue.take();
+                pos = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for data", e);
+            }
+        }
+        if (batch==EOF && error!=null)
+            throw new RuntimeException(error.getMessage(), error);
+    }
+}
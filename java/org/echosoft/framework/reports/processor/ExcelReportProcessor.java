@@ -1,12 +1,27 @@
 package org.echosoft.framework.reports.processor;
 
 import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.poi.hpsf.DocumentSummaryInformation;
 import org.apache.poi.hpsf.MutableProperty;
@@ -17,24 +32,28 @@ import org.apache.poi.hpsf.Variant;
 import org.apache.poi.hpsf.wellknown.PropertyIDMap;
 import org.apache.poi.hpsf.wellknown.SectionIDMap;
 import org.apache.poi.hssf.record.PaletteRecord;
-import org.apache.poi.hssf.usermodel.HSSFCell;
 import org.apache.poi.hssf.usermodel.HSSFCellStyle;
 import org.apache.poi.hssf.usermodel.HSSFDataFormat;
 import org.apache.poi.hssf.usermodel.HSSFFont;
 import org.apache.poi.hssf.usermodel.HSSFPalette;
-import org.apache.poi.hssf.usermodel.HSSFRichTextString;
-import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFPrintSetup;
 import org.apache.poi.hssf.usermodel.HSSFSheet;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.poifs.filesystem.POIFSFileSystem;
-import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.ss.usermodel.Workbook;
 import org.echosoft.common.model.TreeNode;
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.ListBeanIterator;
 import org.echosoft.common.query.Query;
+import org.echosoft.common.query.QueryResult;
 import org.echosoft.common.query.providers.DataProvider;
+import org.echosoft.common.query.providers.DataProviderException;
+import org.echosoft.common.scheduler.PriorityThreadPoolExecutor;
 import org.echosoft.framework.reports.macros.Macros;
 import org.echosoft.framework.reports.model.Area;
-import org.echosoft.framework.reports.model.Cell;
-import org.echosoft.framework.reports.model.CellStyle;
 import org.echosoft.framework.reports.model.Color;
 import org.echosoft.framework.reports.model.ColumnGroup;
 import org.echosoft.framework.reports.model.CompositeSection;
@@ -44,7 +63,7 @@ import org.echosoft.framework.reports.model.GroupingSection;
 import org.echosoft.framework.reports.model.PlainSection;
 import org.echosoft.framework.reports.model.PrintSetup;
 import org.echosoft.framework.reports.model.Report;
-import org.echosoft.framework.reports.model.Row;
+import org.echosoft.framework.reports.model.ReportDescription;
 import org.echosoft.framework.reports.model.Section;
 import org.echosoft.framework.reports.model.Sheet;
 import org.echosoft.framework.reports.model.StylePalette;
@@ -53,7 +72,14 @@ import org.echosoft.framework.reports.model.events.CellEvent;
 import org.echosoft.framework.reports.model.events.CellEventListener;
 import org.echosoft.framework.reports.model.events.ReportEventListener;
 import org.echosoft.framework.reports.model.events.SectionEventListener;
+import org.echosoft.framework.reports.model.providers.DataProviderHolder;
+import org.echosoft.framework.reports.model.providers.FetchMode;
 import org.echosoft.framework.reports.model.providers.ProviderUsage;
+import org.echosoft.framework.reports.model.providers.RowIndex;
+import org.echosoft.framework.reports.model.providers.SQLDataProviderHolder;
+import org.echosoft.framework.reports.processor.xlsx.XLSXWorkbook;
+import org.echosoft.framework.reports.registry.ReportsRegistry;
+import org.echosoft.framework.reports.util.Logs;
 import org.echosoft.framework.reports.util.POIUtils;
 
 /**
@@ -73,6 +99,234 @@ public class ExcelReportProcessor {
     private static final String MACROS = "$M=";
     private static final int MACROS_LENGTH = MACROS.length();
 
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Максимальное количество записей, сохраняемых в памяти для повторного использования, по умолчанию (см. {@link #setMaterializationLimit(int)}).
+     */
+    public static final int DEFAULT_MATERIALIZATION_LIMIT = 100000;
+
+    /**
+     * Количество потоков в создаваемом процессором по умолчанию пуле потоков (см. {@link #getExecutor()}).
+     */
+    public static final int DEFAULT_POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final int HISTORY_LIMIT = 100;
+    private static final AtomicInteger POOLS = new AtomicInteger(0);
+
+    private int parallelism = 1;
+    private int materializationLimit = DEFAULT_MATERIALIZATION_LIMIT;
+    private int boundConnections;
+    private int transactionIsolation = Connection.TRANSACTION_REPEATABLE_READ;
+    private ReportMetrics metrics;
+    private ReportTracer tracer;
+    private ExecutorService executor;
+    private boolean ownExecutor;
+
+    /**
+     * Возвращает максимальное количество листов отчета, которые могут формироваться одновременно.
+     *
+     * @return  максимальное количество одновременно формируемых листов. Значение <code>1</code> (по умолчанию) означает
+     *          что листы отчета формируются строго последовательно.
+     * @see #setParallelism(int)
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * <p>Позволяет включить режим параллельного формирования листов отчета. В этом режиме каждый лист (включая получение данных
+     * от его источников данных) формируется в отдельном потоке в собственном промежуточном буфере, после чего содержимое всех
+     * буферов переносится в итоговый отчет в том порядке в котором листы описаны в модели отчета.</p>
+     * <p>Листы, секции которых ссылаются на секции других листов (посредством {@link ExecutionContext#history}, например с помощью
+     * макросов <code>nrowsum</code>, <code>fnrowsum</code>) должны явно объявлять эти листы в перечне своих зависимостей
+     * (см. {@link Sheet#getDependencies()}). Такой лист начинает формироваться лишь после того как будут сформированы
+     * все листы, от которых он зависит.</p>
+     * <p><strong>Внимание!</strong> В этом режиме обработчики событий отчета вызываются одновременно из разных потоков,
+     * а в обработчиках событий листа, секций и ячеек свойство {@link ExecutionContext#wsheet} ссылается на лист промежуточного буфера.
+     * Настройки этого листа (ширина и стили колонок, области закрепления, разрывы страниц, параметры печати и т.д.) переносятся в итоговый отчет
+     * вместе с его содержимым, однако операции, не поддерживаемые листами {@link org.apache.poi.ss.usermodel.Sheet} формата Office Open XML
+     * (сдвиг строк, рисунки, автофильтры и т.д., см. {@link org.apache.poi.ss.usermodel.Sheet}), в этих обработчиках недоступны.</p>
+     *
+     * @param parallelism  максимальное количество одновременно формируемых листов. Значение <code>1</code> отключает данный режим.
+     */
+    public void setParallelism(final int parallelism) {
+        if (parallelism<1)
+            throw new IllegalArgumentException("Parallelism must be positive");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return  максимальное количество записей, получаемых от одного поставщика данных, которые могут быть сохранены в памяти
+     *      для повторного использования в пределах формирования отчета.
+     * @see #setMaterializationLimit(int)
+     */
+    public int getMaterializationLimit() {
+        return materializationLimit;
+    }
+
+    /**
+     * Ограничивает количество записей, которые могут быть сохранены в памяти для повторного использования в пределах формирования
+     * отчета (см. {@link SQLDataProviderHolder#isMaterialized()}). Если в ответ на запрос поставщик данных вернул большее количество
+     * записей, то записи не сохраняются и каждая следующая секция отчета будет выполнять запрос заново.
+     *
+     * @param limit  максимальное количество сохраняемых записей одного запроса. Значение <code>0</code> отключает сохранение записей.
+     */
+    public void setMaterializationLimit(final int limit) {
+        if (limit<0)
+            throw new IllegalArgumentException("Materialization limit must not be negative");
+        this.materializationLimit = limit;
+    }
+
+    /**
+     * @return  количество соединений с каждым источником данных, закрепляемых за отчетом на все время его формирования,
+     *      или <code>0</code> если каждый поставщик данных самостоятельно получает соединение при выполнении запроса.
+     * @see #setBoundConnections(int)
+     */
+    public int getBoundConnections() {
+        return boundConnections;
+    }
+
+    /**
+     * <p>Позволяет закрепить за каждым формируемым отчетом фиксированное количество соединений с каждым источником данных, используемым
+     * поставщиками данных на основе SQL запросов (см. {@link ReportSession}). Соединения открываются при первом обращении к источнику
+     * данных и закрываются по окончании формирования отчета, все запросы отчета выполняются в рамках одной транзакции (для каждого
+     * соединения) в режиме "только чтение" с уровнем изоляции {@link #getTransactionIsolation()}. Подготовленные SQL запросы и тексты
+     * запросов, загружаемые из ресурсов приложения, в этом режиме повторно используются в пределах формирования отчета.</p>
+     * <p>Каждое соединение в любой момент времени используется только одним потоком (см. {@link ReportSession}), поэтому в данном режиме
+     * обращения к поставщикам данных и чтение записей всегда выполняются в потоке формирования листа: режимы {@link FetchMode#ASYNC} и
+     * {@link FetchMode#EAGER} действуют как {@link FetchMode#SYNC}, а записи поставщиков данных с разделами
+     * (см. {@link SQLDataProviderHolder#getPartitionColumn()}) отбираются одним запросом без разделения на разделы.</p>
+     * <p>Согласованное состояние данных во всех секциях отчета гарантируется только при использовании одного соединения.
+     * Большее количество соединений имеет смысл при параллельном формировании листов отчета (см. {@link #setParallelism(int)}):
+     * при одном соединении листы обращаются к базе данных по очереди.</p>
+     *
+     * @param connections  количество закрепляемых соединений. Значение <code>0</code> (по умолчанию) отключает данный режим.
+     */
+    public void setBoundConnections(final int connections) {
+        if (connections<0)
+            throw new IllegalArgumentException("Bound connections count must not be negative");
+        this.boundConnections = connections;
+    }
+
+    /**
+     * @return  уровень изоляции транзакций для соединений, закрепляемых за формируемым отчетом.
+     * @see #setTransactionIsolation(int)
+     */
+    public int getTransactionIsolation() {
+        return transactionIsolation;
+    }
+
+    /**
+     * Указывает уровень изоляции транзакций для соединений, закрепляемых за формируемым отчетом (см. {@link #setBoundConnections(int)}).
+     * Если источник данных не поддерживает указанный уровень, то используется уровень {@link Connection#TRANSACTION_SERIALIZABLE}.
+     *
+     * @param isolation  одна из констант <code>Connection.TRANSACTION_*</code>. По умолчанию {@link Connection#TRANSACTION_REPEATABLE_READ}.
+     */
+    public void setTransactionIsolation(final int isolation) {
+        if (isolation!=Connection.TRANSACTION_READ_UNCOMMITTED && isolation!=Connection.TRANSACTION_READ_COMMITTED &&
+            isolation!=Connection.TRANSACTION_REPEATABLE_READ && isolation!=Connection.TRANSACTION_SERIALIZABLE)
+            throw new IllegalArgumentException("Illegal transaction isolation level: "+isolation);
+        this.transactionIsolation = isolation;
+    }
+
+    /**
+     * @return  получатель метрик, собираемых в процессе формирования отчетов, или <code>null</code> если метрики не собираются.
+     * @see #setMetrics(ReportMetrics)
+     */
+    public ReportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Указывает получателя метрик (длительность и процессорное время обработки отчета, его листов и секций, количество обработанных
+     * записей и ячеек, время получения данных от поставщиков данных и т.д.), собираемых в процессе формирования отчетов.
+     * По умолчанию метрики не собираются.
+     *
+     * @param metrics  получатель метрик (например {@link InMemoryReportMetrics}) или <code>null</code> если метрики собирать не требуется.
+     */
+    public void setMetrics(final ReportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return  трассировщик, получающий уведомления о каждом этапе формирования отчетов, или <code>null</code> если трассировка не выполняется.
+     * @see #setTracer(ReportTracer)
+     */
+    public ReportTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Указывает трассировщик, получающий уведомления о каждом этапе формирования отчетов: формировании листов и секций,
+     * обращениях к поставщикам данных, завершении групп записей и вызовах макросов (см. {@link TraceEvent}).
+     * По умолчанию трассировка не выполняется и не влечет никаких дополнительных затрат.
+     *
+     * @param tracer  трассировщик (например {@link TraceRecorder}) или <code>null</code> если трассировка не требуется.
+     */
+    public void setTracer(final ReportTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * <p>Возвращает пул потоков, в котором выполняются все вспомогательные задачи процессора: заблаговременное и асинхронное получение
+     * записей от поставщиков данных (см. {@link org.echosoft.framework.reports.model.providers.FetchMode}), получение записей по разделам
+     * (см. {@link SQLDataProviderHolder#getPartitionColumn()}) и параллельное формирование листов отчета (см. {@link #setParallelism(int)}).</p>
+     * <p>Если пул не был указан явно (см. {@link #setExecutor(ExecutorService)}), то при первом обращении процессор создает собственный
+     * пул из {@link #DEFAULT_POOL_SIZE} потоков, которые завершаются после минуты простоя. Такой пул может быть остановлен методом {@link #shutdown()}.</p>
+     * <p>Потоки формирования отчета никогда не ожидают задачи, стоящие в очереди пула: еще не начавшая выполняться задача, результат которой
+     * потребовался потоку формирования отчета, выполняется непосредственно в этом потоке. Поэтому ни количество потоков в пуле,
+     * ни количество одновременно формируемых в нем отчетов не могут привести к взаимной блокировке потоков.</p>
+     *
+     * @return  пул потоков процессора.
+     */
+    public synchronized ExecutorService getExecutor() {
+        if (executor==null) {
+            final int pool = POOLS.incrementAndGet();
+            final PriorityThreadPoolExecutor result = new PriorityThreadPoolExecutor(DEFAULT_POOL_SIZE, HISTORY_LIMIT);
+            result.setThreadFactory(new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger(0);
+                public Thread newThread(final Runnable task) {
+                    final Thread thread = new Thread(task, "reports-" + pool + "-worker-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            result.setKeepAliveTime(60, TimeUnit.SECONDS);
+            result.allowCoreThreadTimeOut(true);
+            executor = result;
+            ownExecutor = true;
+        }
+        return executor;
+    }
+
+    /**
+     * Указывает пул потоков, в котором должны выполняться вспомогательные задачи процессора (см. {@link #getExecutor()}).
+     * Позволяет использовать один ограниченный пул потоков для нескольких процессоров. За остановку указанного пула отвечает вызывающая сторона.
+     * Если процессор к этому моменту уже создал собственный пул, то этот пул останавливается по завершении выполняющихся в нем задач.
+     *
+     * @param executor  пул потоков или <code>null</code> если процессор должен использовать собственный пул.
+     */
+    public synchronized void setExecutor(final ExecutorService executor) {
+        if (ownExecutor)
+            this.executor.shutdown();
+        this.executor = executor;
+        this.ownExecutor = false;
+    }
+
+    /**
+     * Останавливает созданный процессором собственный пул потоков (см. {@link #getExecutor()}) по завершении выполняющихся в нем задач.
+     * Пул, указанный посредством {@link #setExecutor(ExecutorService)}, не останавливается. При последующем обращении к процессору
+     * им будет создан новый пул.
+     */
+    public synchronized void shutdown() {
+        if (ownExecutor) {
+            executor.shutdown();
+            executor = null;
+            ownExecutor = false;
+        }
+    }
+
     /**
      * Формирует отчет на основании его модели и указанных пользователем в контексте параметров.
      *
@@ -81,46 +335,228 @@ public class ExcelReportProcessor {
      * @return сформированный отчет.
      * @throws ReportProcessingException в случае каких-либо проблем.
      */
-    public HSSFWorkbook process(Report report, final ELContext ctx) throws ReportProcessingException {
+    public HSSFWorkbook process(final Report report, final ELContext ctx) throws ReportProcessingException {
+        return process(compile(report), ctx);
+    }
+
+    /**
+     * Формирует отчет по заранее подготовленному плану и на основании указанных пользователем в контексте параметров.
+     * Один и тот же план может одновременно использоваться для формирования нескольких отчетов.
+     *
+     * @param plan   план формирования отчета (см. {@link #compile(Report)}).
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @return сформированный отчет.
+     * @throws ReportProcessingException в случае каких-либо проблем.
+     */
+    public HSSFWorkbook process(final ReportPlan plan, final ELContext ctx) throws ReportProcessingException {
+        return process(plan, ctx, (ExecutionControl)null);
+    }
+
+    /**
+     * Формирует отчет по заранее подготовленному плану с возможностью прервать формирование отчета и ограничить потребляемые им ресурсы.
+     *
+     * @param plan   план формирования отчета (см. {@link #compile(Report)}).
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @param control  объект, управляющий выполнением данной задачи, или <code>null</code>.
+     * @return сформированный отчет.
+     * @throws ReportInterruptedException  если формирование отчета было отменено или превышено одно из ограничений, указанных в <code>control</code>.
+     * @throws ReportProcessingException в случае каких-либо проблем.
+     */
+    public HSSFWorkbook process(final ReportPlan plan, final ELContext ctx, final ExecutionControl control) throws ReportProcessingException {
         ExecutionContext ectx = null;
         try {
-            report = new Report(null, report); // копируем модель отчета, т.к. в процессе формирования отчета она может измениться.
+            final Report report = plan.getReport();
             final HSSFWorkbook wb = makeWorkbook(report, ctx);
-            final Map<Short, HSSFCellStyle> styles = applyStyles(report, wb);
-            ectx = new ExecutionContext(report, ctx, wb, styles);
-            ctx.getVariables().put(VAR_CONTEXT, ectx);
-            final String user = report.getUser()!=null ? (String)report.getUser().getValue(ctx) : null;
-            final String password = report.getPassword()!= null ?(String)report.getPassword().getValue(ctx) : null;
-            if (user!=null && password!=null) {
-                wb.writeProtectWorkbook(password, user);
-            }
-            for (final ReportEventListener listener : ectx.listeners) {
-                listener.beforeReport(ectx);
+            final Map<Short, CellStyle> styles = applyStyles(report, wb);
+            ectx = new ExecutionContext(plan, ctx, wb, styles, null);
+            ectx.control = control;
+            processReport(ectx);
+            return wb;
+        } catch (ReportInterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ReportProcessingException(e.getMessage()+"\n"+ectx, e, ectx);
+        }
+    }
+
+    /**
+     * Формирует отчет в потоковом режиме с размером окна строк по умолчанию.
+     *
+     * @param report модель формируемого отчета.
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @param out    выходной поток, в который будет записан сформированный отчет в формате Office Open XML (<code>.xlsx</code>).
+     * @throws ReportProcessingException в случае каких-либо проблем.
+     * @see #process(Report, ELContext, OutputStream, int)
+     */
+    public void process(final Report report, final ELContext ctx, final OutputStream out) throws ReportProcessingException {
+        process(report, ctx, out, RowWindow.DEFAULT_SIZE);
+    }
+
+    /**
+     * <p>Формирует отчет в потоковом режиме. В отличие от метода {@link #process(Report, ELContext)} сформированный отчет
+     * не удерживается в памяти целиком: строки листа записываются в выходной поток как только на них не может сослаться ни одна
+     * из незавершенных групп или секций отчета (см. {@link RowWindow}). Отчет записывается в формате Office Open XML (<code>.xlsx</code>)
+     * посредством {@link XLSXWorkbook}, что в том числе снимает ограничение формата Excel 97-2003 в 65536 строк на листе.</p>
+     * <p><strong>Внимание!</strong> Обработчики событий, обращающиеся к содержимому ранее сформированных строк листа,
+     * в этом режиме имеют доступ лишь к строкам, находящимся в окне.</p>
+     *
+     * @param report модель формируемого отчета.
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @param out    выходной поток, в который будет записан сформированный отчет. По окончании работы поток не закрывается.
+     * @param windowSize  количество последних строк листа, которые всегда должны оставаться доступными.
+     * @throws ReportProcessingException в случае каких-либо проблем.
+     */
+    public void process(final Report report, final ELContext ctx, final OutputStream out, final int windowSize) throws ReportProcessingException {
+        process(compile(report), ctx, out, windowSize);
+    }
+
+    /**
+     * Формирует отчет в потоковом режиме по заранее подготовленному плану.
+     * Один и тот же план может одновременно использоваться для формирования нескольких отчетов.
+     *
+     * @param plan   план формирования отчета (см. {@link #compile(Report)}).
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @param out    выходной поток, в который будет записан сформированный отчет. По окончании работы поток не закрывается.
+     * @param windowSize  количество последних строк листа, которые всегда должны оставаться доступными.
+     * @throws ReportProcessingException в случае каких-либо проблем.
+     * @see #process(Report, ELContext, OutputStream, int)
+     */
+    public void process(final ReportPlan plan, final ELContext ctx, final OutputStream out, final int windowSize) throws ReportProcessingException {
+        process(plan, ctx, out, windowSize, null);
+    }
+
+    /**
+     * Формирует отчет в потоковом режиме по заранее подготовленному плану с возможностью прервать формирование отчета
+     * и ограничить потребляемые им ресурсы.
+     *
+     * @param plan   план формирования отчета (см. {@link #compile(Report)}).
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @param out    выходной поток, в который будет записан сформированный отчет. По окончании работы поток не закрывается.
+     * @param windowSize  количество последних строк листа, которые всегда должны оставаться доступными.
+     * @param control  объект, управляющий выполнением данной задачи, или <code>null</code>.
+     * @throws ReportInterruptedException  если формирование отчета было отменено или превышено одно из ограничений, указанных в <code>control</code>.
+     * @throws ReportProcessingException в случае каких-либо проблем.
+     */
+    public void process(final ReportPlan plan, final ELContext ctx, final OutputStream out, final int windowSize, final ExecutionControl control) throws ReportProcessingException {
+        ExecutionContext ectx = null;
+        try {
+            final Report report = plan.getReport();
+            final HSSFWorkbook template = makeWorkbook(report, ctx);
+            final Map<Short, CellStyle> styles = applyStyles(report, template);
+            final XLSXWorkbook wb = new XLSXWorkbook(out, template);
+            applyProperties(report, ctx, wb);
+            ectx = new ExecutionContext(plan, ctx, wb, styles, new RowWindow(windowSize));
+            ectx.control = control;
+            processReport(ectx);
+            wb.write(out);
+        } catch (ReportInterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ReportProcessingException(e.getMessage()+"\n"+ectx, e, ectx);
+        }
+    }
+
+    /**
+     * Подготавливает план формирования отчета по его модели. Подготовленный план может многократно (в том числе одновременно
+     * из разных потоков) использоваться для формирования отчетов без повторного копирования модели.
+     * Для зарегистрированных в реестре отчетов возвращается план, подготовленный реестром при регистрации отчета
+     * (см. {@link ReportsRegistry#getPlan(Report)}).
+     *
+     * @param report модель формируемого отчета. Последующие изменения в модели не затрагивают подготовленный план.
+     * @return план формирования отчета.
+     * @throws ReportProcessingException в случае каких-либо проблем.
+     */
+    public ReportPlan compile(final Report report) throws ReportProcessingException {
+        final ReportPlan plan = ReportsRegistry.getPlan(report);
+        if (plan!=null)
+            return plan;
+        try {
+            return new ReportPlan(report);
+        } catch (CloneNotSupportedException e) {
+            throw new ReportProcessingException(e.getMessage(), e);
+        }
+    }
+
+    protected void processReport(final ExecutionContext ectx) throws Exception {
+        ectx.tracer = tracer;
+        if (ectx.control!=null)
+            ectx.control.start();
+        if (metrics==null && tracer==null) {
+            renderReport(ectx);
+            return;
+        }
+        final long started = System.nanoTime();
+        final long cpuStarted = metrics!=null ? getCpuTime() : -1;
+        boolean completed = false;
+        try {
+            renderReport(ectx);
+            completed = true;
+        } finally {
+            final long duration = System.nanoTime() - started;
+            if (metrics!=null)
+                metrics.reportProcessed(ectx, duration, cpuStarted>=0 ? getCpuTime()-cpuStarted : -1, !completed);
+            if (tracer!=null)
+                tracer.trace(TraceEvent.REPORT, ectx, started, duration, -1, -1, -1, null);
+        }
+    }
+
+    private void renderReport(final ExecutionContext ectx) throws Exception {
+        final Workbook wb = ectx.wb;
+        ectx.elctx.getVariables().put(VAR_CONTEXT, ectx);
+        final String user = ectx.report.getUser()!=null ? (String)ectx.report.getUser().getValue(ectx.elctx) : null;
+        final String password = ectx.report.getPassword()!= null ?(String)ectx.report.getPassword().getValue(ectx.elctx) : null;
+        if (user!=null && password!=null) {
+            if (wb instanceof HSSFWorkbook) {
+                ((HSSFWorkbook)wb).writeProtectWorkbook(password, user);
+            } else
+            if (wb instanceof XLSXWorkbook) {
+                ((XLSXWorkbook)wb).writeProtectWorkbook(password, user);
             }
-            for (final Sheet sheet : report.getSheets()) {
-                processSheet(ectx, sheet);
+        }
+        for (final ReportEventListener listener : ectx.listeners) {
+            listener.beforeReport(ectx);
+        }
+        if (boundConnections>0) {
+            ectx.session = new ReportSession(boundConnections, transactionIsolation);
+            for (final DataProviderHolder holder : ectx.report.getProviders().values()) {
+                if (getFetchMode(holder)!=FetchMode.SYNC || isPartitioned(holder))
+                    Logs.reports.warn("report "+ectx.report.getId()+": data provider "+holder.getId()+" is executed synchronously because connections are bound to the report");
             }
-            boolean activeSheetSpecified = false;
-            for (int i=0, cnt=wb.getNumberOfSheets(); i<cnt; i++) {
-                if (!wb.isSheetHidden(i) && !wb.isSheetVeryHidden(i)) {
-                    wb.setActiveSheet(i);
-                    wb.setSelectedTab(i);
-                    activeSheetSpecified = true;
-                    break;
+        }
+        try {
+            if (parallelism>1 && ectx.report.getSheets().size()>1) {
+                processSheetsConcurrently(ectx);
+            } else {
+                for (final Sheet sheet : ectx.report.getSheets()) {
+                    processSheet(ectx, sheet);
                 }
             }
-            if (!activeSheetSpecified) {
-                final HSSFSheet sheet = wb.createSheet();
-                final int index = wb.getSheetIndex(sheet);
-                wb.setActiveSheet(index);
-                wb.setSelectedTab(index);
+        } finally {
+            for (final RowIndex index : ectx.indexes.values()) {
+                index.close();
             }
-            for (final ReportEventListener listener : ectx.listeners) {
-                listener.afterReport(ectx);
+            ectx.indexes.clear();
+            if (ectx.session!=null) {
+                ectx.session.close();
+                ectx.session = null;
+            }
+        }
+        boolean activeSheetSpecified = false;
+        for (int i=0, cnt=wb.getNumberOfSheets(); i<cnt; i++) {
+            if (!wb.isSheetHidden(i) && !wb.isSheetVeryHidden(i)) {
+                wb.setActiveSheet(i);
+                wb.setSelectedTab(i);
+                activeSheetSpecified = true;
+                break;
             }
-            return wb;
-        } catch (Exception e) {
-            throw new ReportProcessingException(e.getMessage()+"\n"+ectx, e, ectx);
+        }
+        if (!activeSheetSpecified) {
+            final int index = wb.getSheetIndex(wb.createSheet());
+            wb.setActiveSheet(index);
+            wb.setSelectedTab(index);
+        }
+        for (final ReportEventListener listener : ectx.listeners) {
+            listener.afterReport(ectx);
         }
     }
 
@@ -217,9 +653,45 @@ public class ExcelReportProcessor {
         return new HSSFWorkbook(fs,true);
     }
 
-    protected Map<Short, HSSFCellStyle> applyStyles(final Report report, final HSSFWorkbook wb) {
+    /**
+     * Создает рабочую книгу, используемую в качестве хранилища шрифтов и стилей ячеек промежуточного буфера листа
+     * при параллельном формировании листов отчета. Стили этой книги после вызова {@link #applyStyles(Report, HSSFWorkbook)}
+     * должны располагаться под теми же индексами что и в книге, построенной методом {@link #makeWorkbook(Report, ELContext)}.
+     *
+     * @param report модель формируемого отчета.
+     * @return пустая рабочая книга, построенная на основе шаблона отчета.
+     * @throws Exception в случае каких-либо проблем.
+     */
+    protected HSSFWorkbook makeBufferWorkbook(final Report report) throws Exception {
+        if (report.getTemplate()!=null)
+            return new HSSFWorkbook(new POIFSFileSystem(new ByteArrayInputStream(report.getTemplate())), true);
+        return new HSSFWorkbook();
+    }
+
+    /**
+     * Переносит описание отчета в свойства формируемого документа в формате Office Open XML.
+     *
+     * @param report модель формируемого отчета.
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @param wb     формируемый документ.
+     * @throws Exception в случае каких-либо проблем.
+     */
+    protected void applyProperties(final Report report, final ELContext ctx, final XLSXWorkbook wb) throws Exception {
+        final ReportDescription desc = report.getDescription();
+        final XLSXWorkbook.DocumentProperties props = wb.getProperties();
+        props.setApplication(desc.getApplication(ctx));
+        props.setAuthor(desc.getAuthor(ctx));
+        props.setVersion(desc.getVersion(ctx));
+        props.setTitle(desc.getTitle(ctx));
+        props.setSubject(desc.getSubject(ctx));
+        props.setComments(desc.getComments(ctx));
+        props.setCompany(desc.getCompany(ctx));
+        props.setCategory(desc.getCategory(ctx));
+    }
+
+    protected Map<Short, CellStyle> applyStyles(final Report report, final HSSFWorkbook wb) {
         final StylePalette palette = report.getPalette();
-        final Map<Short, HSSFCellStyle> styles = new HashMap<Short, HSSFCellStyle>();
+        final Map<Short, CellStyle> styles = new HashMap<Short, CellStyle>();
 
         if (report.getTemplate()!=null) {
             for (final short styleIndex : palette.getStyles().keySet()) {
@@ -240,11 +712,11 @@ public class ExcelReportProcessor {
         final Map<Short, HSSFFont> fonts = new HashMap<Short, HSSFFont>();
         final HSSFDataFormat formatter = wb.createDataFormat();
         for (final Font font : palette.getFonts().values()) {
-            final HSSFFont f = POIUtils.ensureFontExists(wb, font);
+            final HSSFFont f = (HSSFFont)POIUtils.ensureFontExists(wb, font);
             fonts.put(font.getId(), f);
         }
 
-        for (final CellStyle style : palette.getStyles().values()) {
+        for (final org.echosoft.framework.reports.model.CellStyle style : palette.getStyles().values()) {
             final short bbc = style.getBottomBorderColor() != null ? style.getBottomBorderColor().getId() : 0;
             final short fbc = style.getFillBackgroundColor() != null ? style.getFillBackgroundColor().getId() : 0;
             final short ffc = style.getFillForegroundColor() != null ? style.getFillForegroundColor().getId() : 0;
@@ -279,51 +751,412 @@ public class ExcelReportProcessor {
     }
 
     protected void processSheet(final ExecutionContext ectx, final Sheet sheet) throws Exception {
+        final long started = metrics!=null || ectx.tracer!=null ? System.nanoTime() : 0;
+        final long cpuStarted = metrics!=null ? getCpuTime() : -1;
+        final long formulasParsed = ectx.formulas.getMisses();
+        final long formulasReused = ectx.formulas.getHits();
+        final int styles = ectx.wb.getNumCellStyles();
         ectx.sheet = sheet;
+        ectx.sheetRendered = sheet.isRendered();
+        ectx.sheetHidden = sheet.isHidden();
         for (final ReportEventListener listener : ectx.listeners) {
             listener.beforeSheet(ectx);
         }
-        if (ectx.sheet.isRendered()) {
-            ectx.wsheet = ectx.wb.createSheet( (String)sheet.getTitle().getValue(ectx.elctx) );
-            //ctx.wsheet.setRowSumsBelow(false);
-            ectx.wsheet.setAlternativeExpression(false);  // setAlternativeExpression делает то что должен делать метод setRowSumBelow() ...
-            final int sheetIdx = ectx.wb.getSheetIndex(ectx.wsheet);
-            ectx.wb.setSheetHidden(sheetIdx, sheet.isHidden());
-            ectx.wsheet.setZoom(sheet.getZoom(), 100);
-            if (sheet.isProtected() && ectx.report.getPassword()!=null && ectx.wb.isWriteProtected()) {
-                ectx.wsheet.protectSheet( (String)ectx.report.getPassword().getValue(ectx.elctx) );
-            }
-            for (final Section section : sheet.getSections()) {
-                processSection(ectx, section);
-            }
-            final int[] widths = sheet.getColumnWidths();
-            for (int i = 0; i < widths.length; i++) {
-                ectx.wsheet.setColumnWidth((short) i, widths[i]);
-            }
-            final boolean[] hidden = sheet.getColumnHidden();
-            for (int i = 0; i < hidden.length; i++) {
-                ectx.wsheet.setColumnHidden(i, hidden[i]);
-            }
-            for (Iterator<TreeNode<ColumnGroup>> i = sheet.getColumnGroups().traverseChildNodes(); i.hasNext();) {
-                final ColumnGroup group = i.next().getData();
-                ectx.wsheet.groupColumn(group.getFirstColumn(), (short) group.getLastColumn());
+        if (ectx.sheetRendered) {
+            ectx.wsheet = createSheet(ectx, sheet, (String)sheet.getTitle().getValue(ectx.elctx));
+            ectx.layout = new SheetLayout(ectx.wsheet, ectx.window==null);
+            prefetchSections(ectx, sheet);
+            try {
+                for (final Section section : sheet.getSections()) {
+                    processSection(ectx, section);
+                }
+                ectx.layout.apply();
+            } finally {
+                for (final BeanIterator it : ectx.prefetched.values()) {
+                    it.close();
+                }
+                ectx.prefetched.clear();
             }
-            ectx.wsheet.getHeader().setLeft(sheet.getHeader().getLeft());
-            ectx.wsheet.getHeader().setCenter(sheet.getHeader().getCenter());
-            ectx.wsheet.getHeader().setRight(sheet.getHeader().getRight());
-            ectx.wsheet.getFooter().setLeft(sheet.getFooter().getLeft());
-            ectx.wsheet.getFooter().setCenter(sheet.getFooter().getCenter());
-            ectx.wsheet.getFooter().setRight(sheet.getFooter().getRight());
-            processPrintSetup(ectx.wsheet, sheet.getPrintSetup());
         }
         for (final ReportEventListener listener : ectx.listeners) {
             listener.afterSheet(ectx);
         }
+        if (metrics!=null) {
+            metrics.sheetProcessed(ectx, System.nanoTime()-started, cpuStarted>=0 ? getCpuTime()-cpuStarted : -1,
+                    ectx.formulas.getMisses()-formulasParsed, ectx.formulas.getHits()-formulasReused, ectx.wb.getNumCellStyles()-styles);
+        }
+        if (ectx.tracer!=null) {
+            final int lastRow = ectx.wsheet!=null ? ectx.getLastRowNum() : -1;
+            ectx.tracer.trace(TraceEvent.SHEET, ectx, started, System.nanoTime()-started, -1, lastRow>=0 ? 0 : -1, lastRow, null);
+        }
         ectx.sheet = null;
         ectx.wsheet = null;
+        ectx.layout = null;
+    }
+
+    /**
+     * Формирует листы отчета одновременно в нескольких потоках пула процессора (см. {@link #setParallelism(int)}, {@link #getExecutor()}).
+     * Каждый лист формируется в собственном буфере, содержимое которых затем переносится в итоговый отчет в порядке следования листов в модели.
+     * Одновременно в пул передается не более {@link #getParallelism()} листов, каждый следующий лист передается в пул после того как
+     * содержимое одного из ранее сформированных листов будет перенесено в итоговый отчет.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @throws Exception в случае каких-либо проблем.
+     */
+    protected void processSheetsConcurrently(final ExecutionContext ectx) throws Exception {
+        final List<Sheet> sheets = ectx.report.getSheets();
+        final Map<String,FutureTask<SheetBuffer>> tasks = new HashMap<String,FutureTask<SheetBuffer>>();
+        final List<FutureTask<SheetBuffer>> results = new ArrayList<FutureTask<SheetBuffer>>(sheets.size());
+        try {
+            for (final Sheet sheet : sheets) {
+                final List<FutureTask<SheetBuffer>> depends = new ArrayList<FutureTask<SheetBuffer>>();
+                for (String id : sheet.getDependencies()) {
+                    final FutureTask<SheetBuffer> task = tasks.get(id);
+                    if (task==null)
+                        throw new IllegalStateException("Sheet "+sheet.getId()+" depends on unknown or subsequent sheet "+id);
+                    depends.add(task);
+                }
+                final HSSFWorkbook template = makeBufferWorkbook(ectx.report);
+                final Map<Short,CellStyle> styles = applyStyles(ectx.report, template);
+                final SheetBuffer buffer = new SheetBuffer(ectx, sheet, template, styles);
+                // лист может зависеть лишь от ранее описанных листов, а еще не начавшие формироваться листы формируются непосредственно
+                // в ожидающем их потоке, поэтому ожидание завершения формирования этих листов не может привести к взаимной блокировке потоков ...
+                final FutureTask<SheetBuffer> task = new FutureTask<SheetBuffer>(new Callable<SheetBuffer>() {
+                    public SheetBuffer call() throws Exception {
+                        for (FutureTask<SheetBuffer> dependency : depends) {
+                            buffer.ectx.history.putAll(await(dependency).ectx.history);
+                        }
+                        processSheet(buffer.ectx, sheet);
+                        return buffer;
+                    }
+                });
+                tasks.put(sheet.getId(), task);
+                results.add(task);
+            }
+            final ExecutorService executor = getExecutor();
+            for (int i=0, size=Math.min(parallelism, results.size()); i<size; i++) {
+                executor.submit(results.get(i));
+            }
+            for (int i=0; i<results.size(); i++) {
+                final SheetBuffer buffer;
+                try {
+                    buffer = await(results.get(i));
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+                }
+                if (i+parallelism < results.size())
+                    executor.submit(results.get(i+parallelism));
+                ectx.history.putAll(buffer.ectx.history);
+                if (buffer.getSheet()!=null) {
+                    ectx.sheet = buffer.sheet;
+                    ectx.sheetRendered = true;
+                    ectx.sheetHidden = buffer.ectx.sheetHidden;
+                    ectx.wsheet = createSheet(ectx, buffer.sheet, buffer.getSheet().getSheetName());
+                    buffer.copyTo(ectx.wsheet);
+                    ectx.sheet = null;
+                    ectx.wsheet = null;
+                }
+            }
+        } finally {
+            for (FutureTask<SheetBuffer> task : results) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Дожидается результата указанной задачи, переданной ранее в пул потоков процессора. Если задача еще не начала выполняться
+     * (например, все потоки пула заняты), то она выполняется непосредственно в текущем потоке, а переданный в пул экземпляр задачи
+     * в дальнейшем будет проигнорирован. Таким образом, текущий поток никогда не ожидает задачу, стоящую в очереди пула.
+     *
+     * @param task  задача.
+     * @return  результат выполнения задачи.
+     * @throws InterruptedException  если текущий поток был прерван во время ожидания.
+     * @throws ExecutionException  если задача завершилась с ошибкой.
+     */
+    private static <V> V await(final FutureTask<V> task) throws InterruptedException, ExecutionException {
+        task.run();
+        return task.get();
+    }
+
+    /**
+     * Создает в итоговом отчете новый лист и применяет к нему все настройки, указанные в модели листа.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param sheet  модель листа отчета.
+     * @param title  название создаваемого листа.
+     * @return  созданный лист итогового отчета.
+     * @throws Exception в случае каких-либо проблем.
+     */
+    protected org.apache.poi.ss.usermodel.Sheet createSheet(final ExecutionContext ectx, final Sheet sheet, final String title) throws Exception {
+        final org.apache.poi.ss.usermodel.Sheet wsheet = ectx.wb.createSheet(title);
+        if (wsheet instanceof HSSFSheet) {
+            ((HSSFSheet)wsheet).setAlternativeExpression(false);  // setAlternativeExpression делает то что должен делать метод setRowSumBelow() ...
+        } else
+            wsheet.setRowSumsBelow(false);
+        final int sheetIdx = ectx.wb.getSheetIndex(wsheet);
+        ectx.wb.setSheetHidden(sheetIdx, ectx.sheetHidden);
+        wsheet.setZoom(sheet.getZoom(), 100);
+        if (sheet.isProtected() && ectx.report.getPassword()!=null && isWriteProtected(ectx.wb)) {
+            wsheet.protectSheet( (String)ectx.report.getPassword().getValue(ectx.elctx) );
+        }
+        // при потоковом формировании отчета все настройки листа должны быть выполнены до выгрузки его первых строк ...
+        final int[] widths = sheet.getColumnWidths();
+        for (int i = 0; i < widths.length; i++) {
+            wsheet.setColumnWidth(i, widths[i]);
+        }
+        final boolean[] hidden = sheet.getColumnHidden();
+        for (int i = 0; i < hidden.length; i++) {
+            wsheet.setColumnHidden(i, hidden[i]);
+        }
+        for (Iterator<TreeNode<ColumnGroup>> i = sheet.getColumnGroups().traverseChildNodes(); i.hasNext();) {
+            final ColumnGroup group = i.next().getData();
+            wsheet.groupColumn(group.getFirstColumn(), group.getLastColumn());
+        }
+        wsheet.getHeader().setLeft(sheet.getHeader().getLeft());
+        wsheet.getHeader().setCenter(sheet.getHeader().getCenter());
+        wsheet.getHeader().setRight(sheet.getHeader().getRight());
+        wsheet.getFooter().setLeft(sheet.getFooter().getLeft());
+        wsheet.getFooter().setCenter(sheet.getFooter().getCenter());
+        wsheet.getFooter().setRight(sheet.getFooter().getRight());
+        processPrintSetup(wsheet, sheet.getPrintSetup());
+        return wsheet;
+    }
+
+    /**
+     * Выполняет запросы к поставщикам данных всех секций листа, для которых указан режим получения данных {@link FetchMode#EAGER}.
+     * Записи из полученных курсоров читаются в отдельных потоках одновременно с формированием предшествующих секций листа.
+     * Секции, с которыми связаны обработчики событий секции, пропускаются: обработчики события 'before-section' могут отменить
+     * отрисовку секции или изменить данные, используемые при вычислении аргументов запроса.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param sheet  модель обрабатываемого листа отчета.
+     */
+    protected void prefetchSections(final ExecutionContext ectx, final Sheet sheet) {
+        for (final Section section : sheet.getSections()) {
+            final DataProviderHolder holder = section.getDataProvider();
+            if (!section.isRendered() || !section.getSectionListeners().isEmpty() || getFetchMode(holder)!=FetchMode.EAGER || ectx.session!=null)
+                continue;
+            final Query query = holder.getQuery(ectx.elctx);
+            if (isMaterialized(holder) && ectx.materialized.containsKey(((SQLDataProviderHolder)holder).getMaterializationKey(ectx.elctx, query)))
+                continue;
+            final DataProvider provider = holder.getProvider(ectx.elctx);
+            if (provider!=null)
+                ectx.prefetched.put(section, new AsyncBeanIterator(getExecutor(), provider, query));
+        }
+    }
+
+    /**
+     * Возвращает курсор с данными для текущей секции отчета с учетом указанного для ее поставщика данных способа получения записей
+     * (см. {@link FetchMode}). Если записи поставщика данных должны повторно использоваться в пределах формирования отчета
+     * (см. {@link SQLDataProviderHolder#isMaterialized()}) и уже были получены ранее с теми же аргументами запроса, то возвращается
+     * курсор по сохраненным в памяти записям.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param provider  поставщик данных текущей секции.
+     * @param query  аргументы обращения к поставщику данных.
+     * @return  курсор с данными для текущей секции.
+     * @throws Exception в случае каких-либо проблем.
+     */
+    protected BeanIterator executeProvider(final ExecutionContext ectx, final DataProvider provider, final Query query) throws Exception {
+        final long started = metrics!=null || ectx.tracer!=null ? System.nanoTime() : 0;
+        final Section section = ectx.sectionContext.section;
+        final DataProviderHolder holder = section.getDataProvider();
+        Object key = isMaterialized(holder) && materializationLimit>0 && !isBatched(holder)
+                ? ((SQLDataProviderHolder)holder).getMaterializationKey(ectx.elctx, query)
+                : null;
+        BeanIterator result = ectx.prefetched.remove(section);
+        if (result instanceof AsyncBeanIterator && !isSameQuery(((AsyncBeanIterator)result).getQuery(), query)) {
+            // аргументы запроса изменились с момента начала обработки листа ...
+            result.close();
+            result = null;
+        }
+        if (result==null && isBatched(holder)) {
+            result = executeBatch(ectx, (SQLDataProviderHolder)holder);
+        }
+        if (result==null && key!=null) {
+            final MaterializedRows rows = ectx.materialized.get(key);
+            if (rows!=null) {
+                result = rows.iterator();
+                key = null;
+            }
+        }
+        if (result==null && isPartitioned(holder)) {
+            result = executePartitioned(ectx, (SQLDataProviderHolder)holder, query);
+        }
+        if (result==null) {
+            result = getFetchMode(holder)!=FetchMode.SYNC && ectx.session==null
+                    ? new AsyncBeanIterator(getExecutor(), provider, query)
+                    : provider.execute(query);
+        }
+        if (key!=null) {
+            result = MaterializedRows.capture(result, ectx.materialized, key, materializationLimit);
+        }
+        return metrics!=null || ectx.tracer!=null ? new MeteredBeanIterator(result, metrics, ectx, started) : result;
+    }
+
+    /**
+     * Возвращает записи текущей секции, относящиеся к текущей записи родительской составной секции, из пакета записей, полученного одним запросом
+     * для нескольких последующих записей родительской секции (см. {@link SQLDataProviderHolder#getBatchSize()}). Если пакет, содержащий записи
+     * для текущей записи родительской секции, еще не был получен, то выполняет запрос для нее и следующих за ней записей родительской секции.
+     * Если родительская секция не поддерживает упреждающее чтение записей (например, секция не вложена в составную секцию со своим поставщиком
+     * данных), то выполняется тот же запрос, но с пакетом из единственного ключа текущей записи родительской секции.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param holder  поставщик данных текущей секции.
+     * @return  курсор с записями текущей секции. Если ключ текущей записи родительской секции равен <code>null</code>, то курсор пуст.
+     * @throws Exception  в случае каких-либо проблем.
+     */
+    private BeanIterator executeBatch(final ExecutionContext ectx, final SQLDataProviderHolder holder) throws Exception {
+        final Object parentKey = holder.getParentKey().getValue(ectx.elctx);
+        if (parentKey==null)
+            return new ListBeanIterator<Object>(Collections.emptyList(), null);
+        SectionContext psctx = ectx.sectionContext.parent;
+        while (psctx!=null && psctx.beanIterator==null) {
+            psctx = psctx.parent;
+        }
+        if (psctx==null || !(psctx.beanIterator instanceof LookaheadBeanIterator)) {
+            // SQL запрос пакетного получения записей содержит список параметров вместо параметра batchParam,
+            // поэтому даже для единственного ключа используется именно он ...
+            return holder.getBatchProvider(ectx.elctx).execute(holder.getBatchQuery(ectx.elctx, Collections.singletonList(parentKey)));
+        }
+        final LookaheadBeanIterator parent = (LookaheadBeanIterator)psctx.beanIterator;
+        final Section section = ectx.sectionContext.section;
+        RowIndex batch = parent.getBatch(section, psctx.bean);
+        if (batch==null) {
+            final List<Object> beans = new ArrayList<Object>(holder.getBatchSize());
+            beans.add(psctx.bean);
+            beans.addAll(parent.lookahead(holder.getBatchSize()-1));
+            final Set<Object> keys = new LinkedHashSet<Object>();
+            keys.add(parentKey);
+            final Object prevBean = ectx.elctx.getRowModel();
+            try {
+                for (int i=1; i<beans.size(); i++) {
+                    ectx.elctx.setRowModel(beans.get(i));
+                    final Object value = holder.getParentKey().getValue(ectx.elctx);
+                    if (value!=null)
+                        keys.add(value);
+                }
+            } finally {
+                ectx.elctx.setRowModel(prevBean);
+            }
+            final BeanIterator it = holder.getBatchProvider(ectx.elctx).execute(holder.getBatchQuery(ectx.elctx, new ArrayList<Object>(keys)));
+            batch = RowIndex.build(it, holder.getKey(), ectx.elctx, 0, 1);
+            parent.putBatch(section, beans, batch);
+        }
+        return batch.lookup(parentKey);
+    }
+
+    /**
+     * Выполняет одновременно запросы к поставщику данных для каждого из разделов его записей (см. {@link SQLDataProviderHolder#getPartitionColumn()}).
+     * Записи каждого раздела читаются в пуле потоков процессора (см. {@link #getExecutor()}), причем одновременно запрашиваются записи не более чем
+     * {@link SQLDataProviderHolder#getPartitionParallelism()} разделов. Полученные курсоры объединяются в единый упорядоченный курсор.
+     * Если соединения с БД закреплены за отчетом (см. {@link #setBoundConnections(int)}), то записи всех разделов отбираются одним запросом.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param holder  поставщик данных текущей секции.
+     * @param query  аргументы запроса к поставщику данных.
+     * @return  курсор, объединяющий записи всех разделов.
+     * @throws Exception  в случае каких-либо проблем.
+     */
+    private BeanIterator executePartitioned(final ExecutionContext ectx, final SQLDataProviderHolder holder, final Query query) throws Exception {
+        if (ectx.session!=null)
+            return holder.getPartitionProvider(ectx.elctx, 0, 1).execute(query);
+        final Object[] bounds = holder.getPartitionBounds(ectx.elctx);
+        final AsyncBeanIterator[] parts = new AsyncBeanIterator[bounds.length+1];
+        final int window = holder.getPartitionParallelism();
+        try {
+            for (int i=0; i<parts.length; i++) {
+                // запросы к разделам, выходящим за пределы окна, начнут выполняться по мере получения всех записей предшествующих разделов ...
+                parts[i] = new AsyncBeanIterator(getExecutor(), holder.getPartitionProvider(ectx.elctx, i, parts.length), holder.getPartitionQuery(query, bounds, i), i<window);
+                if (i>=window)
+                    parts[i-window].setSuccessor(parts[i]);
+            }
+            return new MergedBeanIterator(parts, holder.getMergeKey(), holder.isMergeDescending(), ectx.elctx);
+        } catch (Exception e) {
+            for (BeanIterator part : parts) {
+                if (part!=null)
+                    part.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Проверяет используют ли вложенные секции (в том числе вложенные в составные секции без собственного поставщика данных)
+     * пакетное получение записей (см. {@link SQLDataProviderHolder#getBatchSize()}).
+     */
+    private static boolean hasBatchedSections(final CompositeSection section) {
+        for (final Section child : section.getSections()) {
+            if (isBatched(child.getDataProvider()))
+                return true;
+            if (child instanceof CompositeSection && child.getDataProvider()==null && hasBatchedSections((CompositeSection)child))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return процессорное время (в наносекундах), затраченное текущим потоком, или <code>-1</code> если его измерение не поддерживается.
+     */
+    private static long getCpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static FetchMode getFetchMode(final DataProviderHolder holder) {
+        return holder instanceof SQLDataProviderHolder ? ((SQLDataProviderHolder)holder).getFetchMode() : FetchMode.SYNC;
+    }
+
+    private static boolean isSameQuery(final Query q1, final Query q2) {
+        return q1!=null ? q1.equals(q2) : q2==null;
+    }
+
+    /**
+     * Возвращает поставщика данных секции. Для поставщиков данных с пакетным получением записей (см. {@link SQLDataProviderHolder#getBatchSize()})
+     * поставщик данных создается лишь при первом обращении к нему: записи таких секций извлекаются из пакета, а поставщик данных пакетного запроса
+     * создается один раз на каждый пакет (см. {@link #executeBatch(ExecutionContext, SQLDataProviderHolder)}), так что вычислять источник данных
+     * и текст SQL запроса для каждой записи родительской секции не требуется.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param holder  описание поставщика данных секции.
+     * @return  поставщик данных секции.
+     */
+    @SuppressWarnings("unchecked")
+    private static DataProvider getProvider(final ExecutionContext ectx, final DataProviderHolder holder) {
+        if (!isBatched(holder))
+            return holder.getProvider(ectx.elctx);
+        final ELContext ctx = ectx.elctx;
+        return new DataProvider() {
+            public BeanIterator execute(final Query query) throws DataProviderException {
+                return holder.getProvider(ctx).execute(query);
+            }
+            public QueryResult executePaged(final Query query) throws DataProviderException {
+                return holder.getProvider(ctx).executePaged(query);
+            }
+        };
+    }
+
+    private static boolean isBatched(final DataProviderHolder holder) {
+        return holder instanceof SQLDataProviderHolder && ((SQLDataProviderHolder)holder).isBatched();
+    }
+
+    private static boolean isPartitioned(final DataProviderHolder holder) {
+        return holder instanceof SQLDataProviderHolder && ((SQLDataProviderHolder)holder).isPartitioned();
     }
 
-    private void processPrintSetup(final HSSFSheet sheet, final PrintSetup printSetup) {
+    private static boolean isMaterialized(final DataProviderHolder holder) {
+        return holder instanceof SQLDataProviderHolder && ((SQLDataProviderHolder)holder).isMaterialized();
+    }
+
+    private static boolean isWriteProtected(final Workbook wb) {
+        if (wb instanceof HSSFWorkbook)
+            return ((HSSFWorkbook)wb).isWriteProtected();
+        if (wb instanceof XLSXWorkbook)
+            return ((XLSXWorkbook)wb).isWriteProtected();
+        return false;
+    }
+
+    private void processPrintSetup(final org.apache.poi.ss.usermodel.Sheet sheet, final PrintSetup printSetup) {
         sheet.getPrintSetup().setPaperSize(printSetup.getPaperSize());
         sheet.getPrintSetup().setScale(printSetup.getScale());
         sheet.getPrintSetup().setFitWidth(printSetup.getFitWidth());
@@ -333,7 +1166,9 @@ public class ExcelReportProcessor {
         sheet.getPrintSetup().setLandscape(printSetup.getLandscape());
         sheet.getPrintSetup().setLeftToRight(printSetup.getLeftToRight());
         sheet.getPrintSetup().setNoColor(printSetup.getNoColor());
-        sheet.getPrintSetup().setOptions(printSetup.getOptions());
+        if (sheet.getPrintSetup() instanceof HSSFPrintSetup) {
+            ((HSSFPrintSetup)sheet.getPrintSetup()).setOptions(printSetup.getOptions());
+        }
         sheet.getPrintSetup().setDraft(printSetup.getDraft());
         sheet.getPrintSetup().setHResolution(printSetup.getHResolution());
         sheet.getPrintSetup().setNotes(printSetup.getNotes());
@@ -346,7 +1181,11 @@ public class ExcelReportProcessor {
     protected void processSection(final ExecutionContext ectx, final Section section) throws Exception {
         if (!section.isRendered())
             return;
+        if (ectx.control!=null)
+            ectx.control.check(ectx);
 
+        final long started = metrics!=null || ectx.tracer!=null ? System.nanoTime() : 0;
+        final long cpuStarted = metrics!=null ? getCpuTime() : -1;
         final Object prevBean = ectx.elctx.getRowModel();
         final Object prevRecord = ectx.elctx.getVariables().get(VAR_RECORD);
         final int firstRow = ectx.getNewRowNum();
@@ -355,7 +1194,8 @@ public class ExcelReportProcessor {
         for (final SectionEventListener listener : ectx.sectionContext.sectionListeners) {
             listener.beforeSection(ectx);
         }
-        if (section.isRendered()) {
+        final SectionContext sctx = ectx.sectionContext;
+        if (sctx.rendered) {
             if (section instanceof CompositeSection) {
                 processCompositeSection(ectx);
             } else
@@ -368,22 +1208,27 @@ public class ExcelReportProcessor {
                 throw new RuntimeException("Unsupported section type: "+section.getClass());
 
             final int lastRow = ectx.getLastRowNum();
-            if (section.isHidden()) {
-                for (int i = firstRow; i <= lastRow; i++) {
-                    ectx.wsheet.getRow(i).setZeroHeight(true);
-                }
+            if (sctx.hidden && lastRow>=firstRow) {
+                ectx.layout.hideRows(firstRow, lastRow);
             }
-            if (section.isCollapsible() && lastRow>firstRow) {
-                ectx.wsheet.groupRow(firstRow, lastRow);
-                ectx.wsheet.setRowGroupCollapsed(firstRow, section.isCollapsed());
+            if (sctx.collapsible && lastRow>firstRow) {
+                ectx.layout.groupRows(firstRow, lastRow, sctx.collapsed);
             }
         }
-        for (final SectionEventListener listener : ectx.sectionContext.sectionListeners) {
+        for (final SectionEventListener listener : sctx.sectionListeners) {
             listener.afterSection(ectx);
         }
+        if (metrics!=null) {
+            metrics.sectionProcessed(ectx, System.nanoTime()-started, cpuStarted>=0 ? getCpuTime()-cpuStarted : -1, sctx.record, sctx.cells);
+        }
+        if (ectx.tracer!=null) {
+            final int lastRow = ectx.getLastRowNum();
+            ectx.tracer.trace(TraceEvent.SECTION, ectx, started, System.nanoTime()-started, sctx.record,
+                    lastRow>=firstRow ? firstRow : -1, lastRow>=firstRow ? lastRow : -1, null);
+        }
 
-        ectx.history.put(ectx.sectionContext.section.getId(), ectx.sectionContext);
-        ectx.sectionContext = ectx.sectionContext.parent;
+        ectx.history.put(section.getId(), sctx);
+        ectx.sectionContext = sctx.parent;
         ectx.elctx.setRowModel(prevBean);
         ectx.elctx.getVariables().put(VAR_RECORD, prevRecord);
     }
@@ -394,15 +1239,17 @@ public class ExcelReportProcessor {
         DataProvider provider = null;
         Query query = null;
         if (section.getDataProvider() != null) {
-            provider = section.getDataProvider().getProvider(ectx.elctx);
+            provider = getProvider(ectx, section.getDataProvider());
             query = section.getDataProvider().getQuery(ectx.elctx);
         }
 
         if (provider != null) {
-            sctx.beanIterator = provider.execute(query);
+            sctx.beanIterator = executeProvider(ectx, provider, query);
             try {
                 while (sctx.beanIterator.hasNext()) {
                     sctx.bean = sctx.beanIterator.next();
+                    if (ectx.control!=null)
+                        ectx.control.recordProcessed(ectx);
                     ectx.elctx.setRowModel(sctx.bean);
                     ectx.elctx.getVariables().put(VAR_RECORD, sctx.record);
                     renderArea(ectx, section.getTemplate(), -1);
@@ -411,6 +1258,9 @@ public class ExcelReportProcessor {
                     }
                     sctx.recordFirstRow = ectx.getNewRowNum();
                     sctx.record++;
+                    if (ectx.window!=null) {
+                        ectx.window.flush(ectx);
+                    }
                 }
             } finally {
                 sctx.beanIterator.close();
@@ -428,7 +1278,7 @@ public class ExcelReportProcessor {
         DataProvider provider = null;
         Query query = null;
         if (section.getDataProvider() != null) {
-            provider = section.getDataProvider().getProvider(ectx.elctx);
+            provider = getProvider(ectx, section.getDataProvider());
             query = section.getDataProvider().getQuery(ectx.elctx);
         }
 
@@ -438,10 +1288,12 @@ public class ExcelReportProcessor {
                     renderGroup(ctx, getCurrentGroup());
                 }
             };
-            sctx.beanIterator = provider.execute(query);
+            sctx.beanIterator = executeProvider(ectx, provider, query);
             try {
                 while (sctx.beanIterator.hasNext()) {
                     sctx.bean = sctx.beanIterator.next();
+                    if (ectx.control!=null)
+                        ectx.control.recordProcessed(ectx);
                     ectx.elctx.setRowModel(sctx.bean);
                     ectx.elctx.getVariables().put(VAR_RECORD, sctx.record);
                     sctx.gm.initRecord(ectx, sctx.bean);
@@ -452,6 +1304,9 @@ public class ExcelReportProcessor {
                     }
                     sctx.recordFirstRow = ectx.getNewRowNum();
                     sctx.record++;
+                    if (ectx.window!=null) {
+                        ectx.window.flush(ectx);
+                    }
                 }
             } finally {
                 sctx.beanIterator.close();
@@ -471,7 +1326,7 @@ public class ExcelReportProcessor {
         DataProvider provider = null;
         Query query = null;
         if (section.getDataProvider() != null) {
-            provider = section.getDataProvider().getProvider(ectx.elctx);
+            provider = getProvider(ectx, section.getDataProvider());
             query = section.getDataProvider().getQuery(ectx.elctx);
         }
 
@@ -482,10 +1337,15 @@ public class ExcelReportProcessor {
                     renderGroup(ctx, getCurrentGroup());
                 }
             };
-            sctx.beanIterator = provider.execute(query);
+            sctx.beanIterator = executeProvider(ectx, provider, query);
+            if (providerUsage==ProviderUsage.STANDARD && hasBatchedSections(section)) {
+                sctx.beanIterator = new LookaheadBeanIterator(sctx.beanIterator);
+            }
             try {
                 while(sctx.beanIterator.hasNext()) {
                     sctx.bean = ProviderUsage.PREFETCH_RECORDS==providerUsage ? sctx.beanIterator.readAhead() : sctx.beanIterator.next();
+                    if (ectx.control!=null)
+                        ectx.control.recordProcessed(ectx);
                     ectx.elctx.setRowModel(sctx.bean);
                     ectx.elctx.getVariables().put(VAR_RECORD, sctx.record);
                     sctx.gm.initRecord(ectx, sctx.bean);
@@ -498,6 +1358,9 @@ public class ExcelReportProcessor {
                     }
                     sctx.recordFirstRow = ectx.getNewRowNum();
                     sctx.record++;
+                    if (ectx.window!=null) {
+                        ectx.window.flush(ectx);
+                    }
                 }
             } finally {
                 sctx.beanIterator.close();
@@ -507,7 +1370,7 @@ public class ExcelReportProcessor {
             sctx.gm.finalizeAllGroups(ectx);
             sctx.gm = null;
         } else {
-            sctx.beanIterator = provider!=null ? provider.execute(query) : null;
+            sctx.beanIterator = provider!=null ? executeProvider(ectx, provider, query) : null;
             try {
                 for (final Section childSection : section.getSections()) {
                     processSection(ectx, childSection);
@@ -536,12 +1399,9 @@ public class ExcelReportProcessor {
         renderArea(ectx, style.getTemplate(), group.startRow);
 
         final int firstRow = group.startRow + 1;
-        final int lastRow = ectx.wsheet.getLastRowNum();
+        final int lastRow = ectx.getLastRowNum();
         if (group.model.isCollapsible() && lastRow>=firstRow) {
-            ectx.wsheet.groupRow(firstRow, lastRow );
-            if (group.model.isCollapsed()) {
-                ectx.wsheet.setRowGroupCollapsed(firstRow, group.model.isCollapsed());
-            }
+            ectx.layout.groupRows(firstRow, lastRow, group.model.isCollapsed());
         }
 
         ectx.elctx.setRowModel(prevBean);
@@ -562,48 +1422,95 @@ public class ExcelReportProcessor {
 
         if (startRow < 0) {
             // работаем в режиме добавления новых записей в конец листа...
-            startRow = ectx.wsheet.getPhysicalNumberOfRows() > 0 ? ectx.wsheet.getLastRowNum() + 1 : 0;
+            startRow = ectx.getNewRowNum();
         }
         int r = startRow;
         final Map<String, Object> variables = ectx.elctx.getVariables();
-        final boolean hidden = template.isHidden();
-        for (final Row rm : template.getRows()) {
-            HSSFRow row = ectx.wsheet.getRow(r);
+        final AreaPlan area = ectx.plan!=null ? ectx.plan.getArea(template) : new AreaPlan(template);
+        final List<CellEventListener> listeners = ectx.sectionContext.cellListeners;
+        for (final AreaPlan.RowPlan rm : area.rows) {
+            org.apache.poi.ss.usermodel.Row row = ectx.wsheet.getRow(r);
             if (row == null) {
                 row = ectx.wsheet.createRow(r);
             }
-            row.setHeight(rm.getHeight());
-            if (hidden || rm.isHidden()) {
+            row.setHeight(rm.height);
+            if (area.hidden || rm.hidden) {
                 row.setZeroHeight(true);
             }
             r++;
+            ectx.sectionContext.cells += rm.columns.length;
+            if (ectx.control!=null)
+                ectx.control.cellsRendered(ectx, rm.columns.length);
             variables.put(VAR_PREV_ROW, r - 1);
             variables.put(VAR_ROW, r);
             variables.put(VAR_NEXT_ROW, r + 1);
-            final List<Cell> cells = rm.getCells();
-            for (int i = 0; i < cells.size(); i++) {
-                final Cell cm = cells.get(i);
-                if (cm == null)
-                    continue;
-                final HSSFCellStyle style = ectx.styles.get(cm.getStyle());
-                ectx.cell = row.createCell(i, HSSFCell.CELL_TYPE_BLANK);
+            for (int i = 0; i < rm.columns.length; i++) {
+                final CellStyle style = ectx.styles.get(rm.styles[i]);
+                ectx.cell = row.createCell(rm.columns[i], Cell.CELL_TYPE_BLANK);
                 if (style!=null)
                     ectx.cell.setCellStyle(style);
                 event.setRendered(false);
-                event.setCellValue(cm.getExpression().getValue(ectx.elctx));
-                for (final CellEventListener listener : ectx.sectionContext.cellListeners) {
+                event.setCellValue(rm.expressions[i].getValue(ectx.elctx));
+                ectx.formulaResult = null;
+                for (final CellEventListener listener : listeners) {
                     listener.handle(event);
                 }
                 if (!event.isRendered())
                     renderCell(ectx, event.getCellValue());
+                if (ectx.aggregates)
+                    accumulate(ectx);
             }
         }
-        for (final CellRangeAddress range : template.makePOIRegions(startRow)) {
-            ectx.wsheet.addMergedRegion(range);
-        }
+        area.addRegions(ectx.layout, startRow);
         return r;
     }
 
+    /**
+     * Учитывает значение только что отрисованной ячейки в итогах той группы или секции, к которой она относится
+     * (см. {@link Aggregates}). В итогах группы учитываются ячейки первых строк каждой ее записи (или первых строк дочерних групп),
+     * в итогах простой секции с источником данных - ячейки всех строк каждой ее записи.
+     *
+     * @param ectx  контекст выполнения задачи.
+     */
+    protected void accumulate(final ExecutionContext ectx) {
+        final SectionContext sctx = ectx.sectionContext;
+        final Cell cell = ectx.cell;
+        final Aggregates totals;
+        if (sctx.gm!=null) {
+            final List<Group> groups = sctx.gm.getProcessingGroups();
+            final int size = groups.size();
+            if (!(sctx.section instanceof GroupingSection) || size==0)
+                return;
+            final Group group = groups.get(size-1);
+            if (sctx.gm.isGroupRendering()) {
+                if (size<2 || cell.getRowIndex()!=group.startRow)
+                    return;
+                totals = groups.get(size-2).getChildTotals();
+            } else {
+                final int rsize = group.records.size();
+                if (rsize==0 || cell.getRowIndex()!=group.records.get(rsize-1))
+                    return;
+                totals = group.getRecordTotals();
+            }
+        } else
+        if (sctx.section instanceof PlainSection && sctx.beanIterator!=null) {
+            totals = sctx.getRecordTotals(cell.getRowIndex() - sctx.recordFirstRow, true);
+        } else
+            return;
+
+        switch (cell.getCellType()) {
+            case Cell.CELL_TYPE_NUMERIC :
+                totals.add(cell.getColumnIndex(), cell.getNumericCellValue());
+                break;
+            case Cell.CELL_TYPE_FORMULA :
+                if (ectx.formulaResult!=null) {
+                    totals.add(cell.getColumnIndex(), ectx.formulaResult);
+                } else
+                    totals.addUndefined(cell.getColumnIndex());
+                break;
+        }
+    }
+
     /**
      * Устанавливает значение ячейки.
      *
@@ -612,39 +1519,39 @@ public class ExcelReportProcessor {
      */
     protected void renderCell(final ExecutionContext ectx, final Object value) {
         if (value == null) {
-            ectx.cell.setCellType(HSSFCell.CELL_TYPE_BLANK);
+            ectx.cell.setCellType(Cell.CELL_TYPE_BLANK);
         } else
         if (value instanceof Date) {
-            ectx.cell.setCellType(HSSFCell.CELL_TYPE_NUMERIC);
+            ectx.cell.setCellType(Cell.CELL_TYPE_NUMERIC);
             ectx.cell.setCellValue((Date) value);
         } else
         if (value instanceof Calendar) {
-            ectx.cell.setCellType(HSSFCell.CELL_TYPE_NUMERIC);
+            ectx.cell.setCellType(Cell.CELL_TYPE_NUMERIC);
             ectx.cell.setCellValue((Calendar) value);
         } else
         if (value instanceof Double) {
-            ectx.cell.setCellType(HSSFCell.CELL_TYPE_NUMERIC);
+            ectx.cell.setCellType(Cell.CELL_TYPE_NUMERIC);
             ectx.cell.setCellValue((Double)value);
         } else
         if (value instanceof Number) {
-            ectx.cell.setCellType(HSSFCell.CELL_TYPE_NUMERIC);
+            ectx.cell.setCellType(Cell.CELL_TYPE_NUMERIC);
             ectx.cell.setCellValue( new Double(((Number)value).doubleValue()) );
         } else
         if (value instanceof Boolean) {
-            ectx.cell.setCellType(HSSFCell.CELL_TYPE_BOOLEAN);
+            ectx.cell.setCellType(Cell.CELL_TYPE_BOOLEAN);
             ectx.cell.setCellValue((Boolean) value);
         } else
-        if (value instanceof HSSFRichTextString) {
-            ectx.cell.setCellType(HSSFCell.CELL_TYPE_STRING);
-            ectx.cell.setCellValue((HSSFRichTextString) value);
+        if (value instanceof RichTextString) {
+            ectx.cell.setCellType(Cell.CELL_TYPE_STRING);
+            ectx.cell.setCellValue((RichTextString) value);
         } else {
             final String text = value.toString();
-            if (ectx.cell.getCellType() == HSSFCell.CELL_TYPE_FORMULA) {
-                ectx.cell.setCellFormula(text);
+            if (ectx.cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                ectx.formulas.setCellFormula(ectx.cell, text);
             } else
             if (text.startsWith(FORMULA)) {
-                ectx.cell.setCellType(HSSFCell.CELL_TYPE_FORMULA);
-                ectx.cell.setCellFormula(text.substring(FORMULA_LENGTH));
+                ectx.cell.setCellType(Cell.CELL_TYPE_FORMULA);
+                ectx.formulas.setCellFormula(ectx.cell, text.substring(FORMULA_LENGTH));
             } else
             if (text.startsWith(MACROS)) {
                 final int si = text.indexOf('(', MACROS_LENGTH);
@@ -662,10 +1569,16 @@ public class ExcelReportProcessor {
                 final Macros func = ectx.report.getMacros(name);
                 if (func == null)
                     throw new IllegalArgumentException("Unable to find custom function [" + name + "] at row:" + ectx.cell.getRowIndex() + ", cell:" + ectx.cell.getColumnIndex());
-                func.call(ectx, args);
+                if (ectx.tracer!=null) {
+                    final long started = System.nanoTime();
+                    final int row = ectx.cell.getRowIndex();
+                    func.call(ectx, args);
+                    ectx.tracer.trace(TraceEvent.MACROS, ectx, started, System.nanoTime()-started, -1, row, row, name);
+                } else
+                    func.call(ectx, args);
             } else {
-                ectx.cell.setCellType(HSSFCell.CELL_TYPE_STRING);
-                ectx.cell.setCellValue(new HSSFRichTextString(text));
+                ectx.cell.setCellType(Cell.CELL_TYPE_STRING);
+                ectx.cell.setCellValue(text);
             }
         }
     }
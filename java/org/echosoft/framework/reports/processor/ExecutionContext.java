@@ -2,23 +2,41 @@ package org.echosoft.framework.reports.processor;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.poi.hssf.usermodel.HSSFCell;
 import org.apache.poi.hssf.usermodel.HSSFCellStyle;
 import org.apache.poi.hssf.usermodel.HSSFSheet;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.framework.reports.model.AggregationMode;
 import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.Section;
 import org.echosoft.framework.reports.model.Sheet;
 import org.echosoft.framework.reports.model.el.ELContext;
 import org.echosoft.framework.reports.model.events.ReportEventListener;
 import org.echosoft.framework.reports.model.events.ReportEventListenerHolder;
+import org.echosoft.framework.reports.model.providers.RowIndex;
+import org.echosoft.framework.reports.util.FormulaCache;
 import org.echosoft.framework.reports.util.POIUtils;
+import org.echosoft.framework.reports.util.StylePool;
 
 /**
- * Объединяет группу часто используемых при построении отчета объектов чтобы
- * избежать необходимости их передачи во все методы по отдельности.
+ * <p>Объединяет группу часто используемых при построении отчета объектов чтобы
+ * избежать необходимости их передачи во все методы по отдельности.</p>
+ * <p><strong>Внимание!</strong> С появлением поддержки формата Office Open XML поля {@link #wb}, {@link #wsheet}, {@link #cell} и {@link #styles}
+ * описываются интерфейсами <code>org.apache.poi.ss.usermodel</code> вместо классов HSSF, что нарушает совместимость (в том числе двоичную)
+ * с обработчиками событий, обращавшимися к этим полям. Такие обработчики должны быть перекомпилированы. Для упрощения их перевода
+ * сохранены устаревшие методы {@link #getHSSFWorkbook()}, {@link #getHSSFSheet()}, {@link #getHSSFCell()} и {@link #getHSSFStyles()},
+ * возвращающие те же объекты в виде классов HSSF, а также прежний конструктор контекста. Новые обработчики должны использовать
+ * непосредственно поля контекста.</p>
  *
  * @author Anton Sharapov
  */
@@ -30,7 +48,13 @@ public final class ExecutionContext {
     public final ELContext elctx;
 
     /**
-     * Модель формируемого отчета.
+     * План формирования отчета. Может использоваться одновременно несколькими потоками.
+     */
+    public final ReportPlan plan;
+
+    /**
+     * Модель формируемого отчета. Используется одновременно всеми отчетами, формируемыми по одному и тому же плану,
+     * а потому не должна изменяться в процессе формирования отчета.
      */
     public final Report report;
 
@@ -44,6 +68,18 @@ public final class ExecutionContext {
      */
     public Sheet sheet;
 
+    /**
+     * Признак необходимости отрисовки текущего листа в данном отчете. Изначально берется из модели листа,
+     * обработчики события 'before-sheet' могут изменить его значение. Модель листа при этом изменяться не должна.
+     */
+    public boolean sheetRendered;
+
+    /**
+     * Признак того что текущий лист должен быть скрыт от пользователя. Изначально берется из модели листа,
+     * обработчики события 'before-sheet' могут изменить его значение. Модель листа при этом изменяться не должна.
+     */
+    public boolean sheetHidden;
+
     /**
      * Контекст обработки текущей секции.
      */
@@ -57,34 +93,136 @@ public final class ExecutionContext {
      */
     public final Map<String, SectionContext> history;
 
+    /**
+     * Курсоры, полученные от поставщиков данных секций текущего листа заблаговременно, при начале обработки листа
+     * (см. {@link org.echosoft.framework.reports.model.providers.FetchMode#EAGER}). Курсор удаляется отсюда как только
+     * начинается обработка соответствующей ему секции. Если к этому моменту аргументы запроса изменились, то курсор закрывается.
+     */
+    public final Map<Section, BeanIterator> prefetched;
+
+    /**
+     * Записи, полученные от поставщиков данных и сохраненные в памяти для повторного использования последующими секциями отчета
+     * (см. {@link org.echosoft.framework.reports.model.providers.SQLDataProviderHolder#isMaterialized()}).
+     * Ключом является значение {@link org.echosoft.framework.reports.model.providers.SQLDataProviderHolder#getMaterializationKey(ELContext, org.echosoft.common.query.Query)}
+     * (идентификатор поставщика данных, источник данных, текст SQL запроса и аргументы запроса). Разделяется всеми листами отчета.
+     */
+    final ConcurrentMap<Object, MaterializedRows> materialized;
+
+    /**
+     * Индексы записей поставщиков данных, построенные в ходе формирования отчета
+     * (см. {@link org.echosoft.framework.reports.model.providers.IndexedDataProviderHolder}).
+     * Ключом является идентификатор поставщика данных. Разделяется всеми листами отчета, по окончании формирования отчета все индексы закрываются.
+     */
+    public final ConcurrentMap<String, RowIndex> indexes;
+
+    /**
+     * Сеанс работы с базами данных, закрепленный за формируемым отчетом, или <code>null</code> если соединения за отчетом не закрепляются
+     * (см. {@link ExcelReportProcessor#setBoundConnections(int)}). Разделяется всеми листами отчета.
+     */
+    public ReportSession session;
+
     /**
      * Таблица трансляции номеров стилей ячеек шаблона в стили итогового отчета.
      */
-    public final Map<Short, HSSFCellStyle> styles;
+    public final Map<Short, CellStyle> styles;
 
     /**
-     * Формируемый итоговый отчет.
+     * Формируемый итоговый отчет. В зависимости от выбранного формата это либо {@link org.apache.poi.hssf.usermodel.HSSFWorkbook}
+     * либо {@link org.echosoft.framework.reports.processor.xlsx.XLSXWorkbook}.
      */
-    public final HSSFWorkbook wb;
+    public final Workbook wb;
 
     /**
      * Обрабатываемый в настоящее время лист итогового отчета.
      */
-    public HSSFSheet wsheet;
+    public org.apache.poi.ss.usermodel.Sheet wsheet;
+
+    /**
+     * Изменения структуры текущего листа итогового отчета (группировки строк, скрытые строки, объединенные области ячеек),
+     * которые будут применены к листу по окончании его формирования.
+     */
+    public SheetLayout layout;
+
+    /**
+     * Трассировщик, получающий уведомления о каждом этапе формирования отчета, или <code>null</code> если трассировка не выполняется
+     * (см. {@link ExcelReportProcessor#setTracer(ReportTracer)}).
+     */
+    public ReportTracer tracer;
+
+    /**
+     * Объект, позволяющий прервать формирование отчета и ограничивающий потребляемые им ресурсы, или <code>null</code>
+     * (см. {@link ExecutionControl}).
+     */
+    public ExecutionControl control;
 
     /**
      * Обрабатываемая в настоящее время ячейка итогового отчета.
      */
-    public HSSFCell cell;
+    public Cell cell;
 
+    /**
+     * Окно строк, используемое при потоковом формировании отчета, или <code>null</code> если отчет формируется целиком в памяти.
+     */
+    public final RowWindow window;
 
+    /**
+     * Кэш разобранных формул, используемый при установке формул в ячейки итогового отчета.
+     */
+    public final FormulaCache formulas;
+
+    /**
+     * Пул стилей ячеек и шрифтов итогового отчета. Должен использоваться обработчиками событий, которым требуется
+     * изменить оформление отдельных ячеек отчета.
+     */
+    public final StylePool stylePool;
+
+    /**
+     * Признак необходимости накапливать итоговые значения по отрисованным ячейкам в группах и секциях отчета (см. {@link Aggregates}).
+     * Устанавливается в том случае, если в отчете используются макросы, вычисляющие итоговые значения в процессе формирования отчета
+     * (см. {@link org.echosoft.framework.reports.model.AggregationMode}).
+     */
+    public final boolean aggregates;
+
+    /**
+     * Вычисленное значение формулы, установленной макросом в текущую ячейку отчета, или <code>null</code> если значение формулы
+     * на момент формирования отчета неизвестно. Сбрасывается перед отрисовкой каждой ячейки.
+     */
+    public Double formulaResult;
+
+
+    public ExecutionContext(Report report, ELContext ctx, Workbook wb, Map<Short,CellStyle> styles) {
+        this(null, report, ctx, wb, styles, null);
+    }
+
+    /**
+     * @deprecated  используйте {@link #ExecutionContext(Report, ELContext, Workbook, Map)}. Таблица стилей <code>styles</code>
+     *      используется контекстом непосредственно, без копирования.
+     */
+    @Deprecated
+    @SuppressWarnings("unchecked")
     public ExecutionContext(Report report, ELContext ctx, HSSFWorkbook wb, Map<Short,HSSFCellStyle> styles) {
+        this(null, report, ctx, wb, (Map<Short,CellStyle>)(Map)styles, null);
+    }
+
+    public ExecutionContext(ReportPlan plan, ELContext ctx, Workbook wb, Map<Short,CellStyle> styles, RowWindow window) {
+        this(plan, plan.getReport(), ctx, wb, styles, window);
+    }
+
+    private ExecutionContext(ReportPlan plan, Report report, ELContext ctx, Workbook wb, Map<Short,CellStyle> styles, RowWindow window) {
         this.elctx = ctx;
+        this.plan = plan;
         this.report = report;
         this.sectionContext = null;
         this.wb = wb;
         this.styles = styles;
+        this.window = window;
         this.history = new HashMap<String,SectionContext>();
+        this.prefetched = new IdentityHashMap<Section,BeanIterator>();
+        this.materialized = new ConcurrentHashMap<Object,MaterializedRows>();
+        this.indexes = new ConcurrentHashMap<String,RowIndex>();
+        this.formulas = new FormulaCache();
+        this.stylePool = new StylePool(wb);
+        this.aggregates = report.getAggregationMode()!=AggregationMode.FORMULA || (plan!=null && plan.isAggregatesRequired());
         this.listeners = new ArrayList<ReportEventListener>();
         for (final ReportEventListenerHolder holder : report.getListeners()) {
             final ReportEventListener listener = holder.getListener(ctx);
@@ -93,6 +231,37 @@ public final class ExecutionContext {
         }
     }
 
+    /**
+     * Создает контекст для формирования отдельного листа отчета при параллельном формировании листов.
+     * План, модель отчета и обработчики событий отчета в целом разделяются с исходным контекстом, история обработанных секций
+     * у каждого контекста своя.
+     *
+     * @param parent  контекст формирования отчета в целом.
+     * @param ctx  копия контекста вычисления выражений, используемая только при формировании данного листа.
+     * @param wb  книга, в которую будет сформирован данный лист.
+     * @param styles  таблица трансляции номеров стилей ячеек шаблона в стили книги <code>wb</code>.
+     */
+    public ExecutionContext(ExecutionContext parent, ELContext ctx, Workbook wb, Map<Short,CellStyle> styles) {
+        this.elctx = ctx;
+        this.plan = parent.plan;
+        this.report = parent.report;
+        this.sectionContext = null;
+        this.wb = wb;
+        this.styles = styles;
+        this.window = null;
+        this.history = new HashMap<String,SectionContext>();
+        this.prefetched = new IdentityHashMap<Section,BeanIterator>();
+        this.materialized = parent.materialized;
+        this.indexes = parent.indexes;
+        this.session = parent.session;
+        this.formulas = new FormulaCache();
+        this.stylePool = new StylePool(wb);
+        this.aggregates = parent.aggregates;
+        this.listeners = parent.listeners;
+        this.tracer = parent.tracer;
+        this.control = parent.control;
+    }
+
     /**
      * Возвращает индекс (начиная с 0) последней строки созданной на текущем листе.
      *
@@ -112,6 +281,65 @@ public final class ExecutionContext {
         return wsheet.getPhysicalNumberOfRows() > 0 ? wsheet.getLastRowNum() + 1 : 0;
     }
 
+    /**
+     * Возвращает формируемый итоговый отчет в виде книги HSSF. Предназначен для обработчиков событий, написанных до появления поддержки
+     * формата Office Open XML. Следует учитывать, что при параллельном формировании листов (см. {@link ExcelReportProcessor#setParallelism(int)})
+     * листы формируются в промежуточных книгах другого типа даже если итоговый отчет формируется в формате HSSF.
+     *
+     * @return формируемый итоговый отчет.
+     * @throws IllegalStateException  если отчет (лист) формируется не в формате HSSF.
+     * @deprecated  используйте поле {@link #wb}.
+     */
+    @Deprecated
+    public HSSFWorkbook getHSSFWorkbook() {
+        if (!(wb instanceof HSSFWorkbook))
+            throw new IllegalStateException("Report is not rendered in the HSSF format: "+wb.getClass().getName());
+        return (HSSFWorkbook)wb;
+    }
+
+    /**
+     * Возвращает обрабатываемый в настоящее время лист итогового отчета в виде листа HSSF (см. {@link #getHSSFWorkbook()}).
+     *
+     * @return текущий лист итогового отчета или <code>null</code> если лист еще не создан.
+     * @throws IllegalStateException  если отчет (лист) формируется не в формате HSSF.
+     * @deprecated  используйте поле {@link #wsheet}.
+     */
+    @Deprecated
+    public HSSFSheet getHSSFSheet() {
+        if (wsheet!=null && !(wsheet instanceof HSSFSheet))
+            throw new IllegalStateException("Report is not rendered in the HSSF format: "+wsheet.getClass().getName());
+        return (HSSFSheet)wsheet;
+    }
+
+    /**
+     * Возвращает обрабатываемую в настоящее время ячейку итогового отчета в виде ячейки HSSF (см. {@link #getHSSFWorkbook()}).
+     *
+     * @return текущая ячейка итогового отчета или <code>null</code>.
+     * @throws IllegalStateException  если отчет (лист) формируется не в формате HSSF.
+     * @deprecated  используйте поле {@link #cell}.
+     */
+    @Deprecated
+    public HSSFCell getHSSFCell() {
+        if (cell!=null && !(cell instanceof HSSFCell))
+            throw new IllegalStateException("Report is not rendered in the HSSF format: "+cell.getClass().getName());
+        return (HSSFCell)cell;
+    }
+
+    /**
+     * Возвращает таблицу трансляции номеров стилей ячеек шаблона в стили итогового отчета в виде стилей HSSF (см. {@link #getHSSFWorkbook()}).
+     *
+     * @return таблица трансляции стилей (та же, что и в поле {@link #styles}).
+     * @throws IllegalStateException  если отчет (лист) формируется не в формате HSSF.
+     * @deprecated  используйте поле {@link #styles}.
+     */
+    @Deprecated
+    @SuppressWarnings("unchecked")
+    public Map<Short,HSSFCellStyle> getHSSFStyles() {
+        if (!(wb instanceof HSSFWorkbook))
+            throw new IllegalStateException("Report is not rendered in the HSSF format: "+wb.getClass().getName());
+        return (Map<Short,HSSFCellStyle>)(Map)styles;
+    }
+
 
     @Override
     public String toString() {
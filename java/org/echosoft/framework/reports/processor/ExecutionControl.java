@@ -0,0 +1,190 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Позволяет управлять выполнением задачи формирования отчета: прервать формирование отчета из другого потока (см. {@link #cancel()})
+ * и ограничить ресурсы, которые может потребить задача (количество записей, полученных от поставщиков данных, количество отрисованных
+ * ячеек, длительность формирования и оценочный объем памяти, занимаемой формируемым отчетом).</p>
+ * <p>Прерывание выполняется кооперативно: построитель отчета проверяет состояние задачи перед обработкой каждой секции и каждой
+ * очередной записи из источника данных секции. При превышении какого-либо ограничения или отмене задачи построитель отчета закрывает
+ * все открытые курсоры и поднимает исключение {@link ReportInterruptedException}.</p>
+ * <p>Каждый экземпляр данного класса предназначен для управления лишь одной задачей формирования отчета
+ * (см. {@link ExcelReportProcessor#process(ReportPlan, org.echosoft.framework.reports.model.el.ELContext, ExecutionControl)}).
+ * При одновременном формировании нескольких листов отчета ограничения применяются к отчету в целом.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class ExecutionControl {
+
+    /**
+     * Оценочный объем памяти (в байтах), занимаемой одной ячейкой отчета, формируемого целиком в памяти.
+     * Используется при оценке объема памяти, занимаемой формируемым отчетом (см. {@link #getEstimatedMemory()}).
+     */
+    public static final int ESTIMATED_CELL_SIZE = 160;
+
+    private final AtomicLong records;
+    private final AtomicLong cells;
+    private final AtomicLong retainedCells;
+    private volatile boolean cancelled;
+    private volatile long started;
+    private long maxRecords;
+    private long maxCells;
+    private long maxTime;
+    private long maxMemory;
+
+    public ExecutionControl() {
+        this.records = new AtomicLong(0);
+        this.cells = new AtomicLong(0);
+        this.retainedCells = new AtomicLong(0);
+    }
+
+    /**
+     * @return  максимальное количество записей, которые могут быть получены от поставщиков данных всех секций отчета, или 0 если ограничение не задано.
+     */
+    public long getMaxRecords() {
+        return maxRecords;
+    }
+    /**
+     * @param maxRecords  максимальное количество записей, которые могут быть получены от поставщиков данных всех секций отчета, или 0 если ограничение не требуется.
+     */
+    public void setMaxRecords(final long maxRecords) {
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * @return  максимальное количество ячеек, которые могут быть отрисованы в отчете, или 0 если ограничение не задано.
+     */
+    public long getMaxCells() {
+        return maxCells;
+    }
+    /**
+     * @param maxCells  максимальное количество ячеек, которые могут быть отрисованы в отчете, или 0 если ограничение не требуется.
+     */
+    public void setMaxCells(final long maxCells) {
+        this.maxCells = maxCells;
+    }
+
+    /**
+     * @return  максимальная длительность формирования отчета (в миллисекундах) или 0 если ограничение не задано.
+     */
+    public long getMaxTime() {
+        return maxTime;
+    }
+    /**
+     * @param maxTime  максимальная длительность формирования отчета (в миллисекундах) или 0 если ограничение не требуется.
+     */
+    public void setMaxTime(final long maxTime) {
+        this.maxTime = maxTime;
+    }
+
+    /**
+     * @return  максимальный оценочный объем памяти (в байтах), занимаемой формируемым отчетом, или 0 если ограничение не задано.
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+    /**
+     * Ограничивает оценочный объем памяти, занимаемой формируемым отчетом (см. {@link #getEstimatedMemory()}).
+     * @param maxMemory  максимальный оценочный объем памяти (в байтах), занимаемой формируемым отчетом, или 0 если ограничение не требуется.
+     */
+    public void setMaxMemory(final long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Требует прервать формирование отчета. Может вызываться из любого потока, формирование отчета будет прервано
+     * при ближайшей проверке состояния задачи построителем отчета.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return  <code>true</code> если формирование отчета было отменено.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return  количество записей, полученных от поставщиков данных всех секций отчета на текущий момент.
+     */
+    public long getRecords() {
+        return records.get();
+    }
+
+    /**
+     * @return  количество ячеек, отрисованных в отчете на текущий момент.
+     */
+    public long getCells() {
+        return cells.get();
+    }
+
+    /**
+     * Возвращает оценочный объем памяти, занимаемой формируемым отчетом. Оценка вычисляется по количеству ячеек, удерживаемых
+     * в памяти до окончания формирования отчета (см. {@link #ESTIMATED_CELL_SIZE}). Ячейки отчетов, формируемых в потоковом режиме,
+     * не учитываются, поскольку в этом режиме в памяти удерживается лишь ограниченное окно строк (см. {@link RowWindow}).
+     *
+     * @return  оценочный объем памяти в байтах.
+     */
+    public long getEstimatedMemory() {
+        return retainedCells.get() * ESTIMATED_CELL_SIZE;
+    }
+
+    /**
+     * Вызывается построителем отчета в начале формирования отчета. Длительность формирования отчета отсчитывается от первого вызова.
+     */
+    void start() {
+        if (started==0)
+            started = Math.max(System.nanoTime(), 1);
+    }
+
+    /**
+     * Регистрирует очередную запись, полученную от поставщика данных текущей секции, и проверяет состояние задачи.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @throws ReportInterruptedException  если формирование отчета должно быть прервано.
+     */
+    void recordProcessed(final ExecutionContext ectx) throws ReportInterruptedException {
+        records.incrementAndGet();
+        check(ectx);
+    }
+
+    /**
+     * Регистрирует ячейки очередной отрисованной строки отчета.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param count  количество отрисованных ячеек.
+     */
+    void cellsRendered(final ExecutionContext ectx, final int count) {
+        cells.addAndGet(count);
+        if (ectx.window==null)
+            retainedCells.addAndGet(count);
+    }
+
+    /**
+     * Проверяет не была ли задача отменена и не превышено ли одно из ограничений.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @throws ReportInterruptedException  если формирование отчета должно быть прервано.
+     */
+    void check(final ExecutionContext ectx) throws ReportInterruptedException {
+        if (cancelled)
+            throw new ReportInterruptedException("Report processing was cancelled\n"+ectx, ReportInterruptedException.Reason.CANCELLED, ectx);
+        if (maxRecords>0 && records.get()>maxRecords)
+            throw new ReportInterruptedException("Records limit ("+maxRecords+") exceeded\n"+ectx, ReportInterruptedException.Reason.RECORDS_LIMIT, ectx);
+        if (maxCells>0 && cells.get()>maxCells)
+            throw new ReportInterruptedException("Cells limit ("+maxCells+") exceeded\n"+ectx, ReportInterruptedException.Reason.CELLS_LIMIT, ectx);
+        if (maxMemory>0 && getEstimatedMemory()>maxMemory)
+            throw new ReportInterruptedException("Estimated memory limit ("+maxMemory+" bytes) exceeded\n"+ectx, ReportInterruptedException.Reason.MEMORY_LIMIT, ectx);
+        if (maxTime>0 && started!=0 && System.nanoTime()-started > maxTime*1000000)
+            throw new ReportInterruptedException("Time limit ("+maxTime+" ms) exceeded\n"+ectx, ReportInterruptedException.Reason.TIME_LIMIT, ectx);
+    }
+
+    @Override
+    public String toString() {
+        return "[ExecutionControl{cancelled:"+cancelled+", records:"+records.get()+", cells:"+cells.get()+", maxRecords:"+maxRecords+
+                ", maxCells:"+maxCells+", maxTime:"+maxTime+", maxMemory:"+maxMemory+"}]";
+    }
+}
@@ -107,6 +107,20 @@ public final class Group {
      */
     public final Integer level;
 
+    /**
+     * Итоги по значениям в первых строках всех записей, входящих в данную группу (см. {@link #records}).
+     * Накапливаются только в том случае, если в отчете используются макросы, вычисляющие итоговые значения в процессе
+     * формирования отчета (см. {@link org.echosoft.framework.reports.model.AggregationMode}).
+     */
+    private Aggregates recordTotals;
+
+    /**
+     * Итоги по значениям в первых строках всех дочерних групп данной группы (см. {@link #children}).
+     * Накапливаются только в том случае, если в отчете используются макросы, вычисляющие итоговые значения в процессе
+     * формирования отчета (см. {@link org.echosoft.framework.reports.model.AggregationMode}).
+     */
+    private Aggregates childTotals;
+
 
     public Group(GroupModel model, Object bean, int startRow, int depth) throws Exception {
         this.model = model;
@@ -138,6 +152,42 @@ public final class Group {
             return true;  // эта группа - итоговая позиция, она включает в себя все объекты из источника данных.
     }
 
+    /**
+     * Возвращает итоги по значениям ячеек, на которые ссылаются формулы групповых макросов данной группы: если группа содержит
+     * дочерние группы то это итоги по первым строкам дочерних групп, в противном случае - итоги по первым строкам всех записей группы.
+     *
+     * @return  итоговые значения по колонкам листа. Никогда не возвращает <code>null</code>.
+     */
+    public Aggregates getTotals() {
+        return children.isEmpty() ? getRecordTotals() : getChildTotals();
+    }
+
+    /**
+     * @return  итоги по значениям в первых строках всех записей, входящих в данную группу. Никогда не возвращает <code>null</code>.
+     */
+    public Aggregates getRecordTotals() {
+        if (recordTotals==null)
+            recordTotals = new Aggregates();
+        return recordTotals;
+    }
+
+    /**
+     * @return  итоги по значениям в первых строках всех дочерних групп данной группы. Никогда не возвращает <code>null</code>.
+     */
+    public Aggregates getChildTotals() {
+        if (childTotals==null)
+            childTotals = new Aggregates();
+        return childTotals;
+    }
+
+    /**
+     * Освобождает накопленные итоги после того как группа была полностью отрисована в отчете.
+     */
+    void releaseTotals() {
+        recordTotals = null;
+        childTotals = null;
+    }
+
     /**
      * Влияет на вычисление поля {@link #depth} у дочерних групп. Если это свойство равно <code>false</code> то у дочерних
      * групп оно не увеличивается по сравнению с этим же свойством данной (родительской) группы.
@@ -197,7 +197,7 @@ public abstract class GroupManager {
      * @throws Exception  в случае каких-либо проблем.
      */
     protected boolean initGroup(final ExecutionContext ctx, final GroupModel model, final Object bean) throws Exception {
-        int row = ctx.wsheet.getPhysicalNumberOfRows()>0 ? ctx.wsheet.getLastRowNum()+1 : 0;
+        int row = ctx.getNewRowNum();
         final Group parent = getCurrentGroup();
         final Group group = parent==null
                 ? new Group(model, bean, row, 0)
@@ -230,10 +230,16 @@ public abstract class GroupManager {
      * @throws Exception  в случае каких-либо проблем.
      */
     protected void finalizeGroup(final ExecutionContext ctx) throws Exception {
+        final long started = ctx.tracer!=null ? System.nanoTime() : 0;
         groupRendering = true;
         renderCurrentGroup(ctx);
         groupRendering = false;
-        groups.remove(groups.size()-1);
+        final Group group = groups.remove(groups.size()-1);
+        group.releaseTotals();
+        if (ctx.tracer!=null) {
+            ctx.tracer.trace(TraceEvent.GROUP, ctx, started, System.nanoTime()-started, group.records.size(),
+                    group.startRow, ctx.getLastRowNum(), group.model.getDiscriminatorField());
+        }
     }
 
     /**
@@ -0,0 +1,286 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.echosoft.framework.reports.util.Histogram;
+
+/**
+ * <p>Реализация {@link ReportMetrics} по умолчанию, накапливающая метрики в памяти в виде гистограмм (см. {@link Histogram})
+ * отдельно для каждого отчета, каждого листа и каждой секции отчета. Отчеты, листы и секции идентифицируются по их
+ * идентификаторам в модели отчета, поэтому метрики всех экземпляров одного и того же отчета накапливаются вместе.</p>
+ * <p>После того как для отчета, листа или секции будет зарегистрировано первое значение, регистрация последующих значений
+ * не требует создания новых объектов.</p>
+ * <p>Экземпляры данного класса являются потокобезопасными и могут использоваться одновременно несколькими построителями отчетов.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class InMemoryReportMetrics implements ReportMetrics {
+
+    private final ConcurrentMap<String,ReportStats> reports;
+
+    public InMemoryReportMetrics() {
+        reports = new ConcurrentHashMap<String,ReportStats>();
+    }
+
+    public void reportProcessed(final ExecutionContext ectx, final long wallTime, final long cpuTime, final boolean failed) {
+        final ReportStats stats = getOrCreate(ectx.report.getId());
+        stats.wallTime.record(wallTime);
+        stats.cpuTime.record(cpuTime);
+        if (failed)
+            stats.failures.incrementAndGet();
+    }
+
+    public void sheetProcessed(final ExecutionContext ectx, final long wallTime, final long cpuTime, final long formulasParsed, final long formulasReused, final int stylesCreated) {
+        final ReportStats report = getOrCreate(ectx.report.getId());
+        final Stats stats = getOrCreate(report.sheets, ectx.sheet.getId());
+        stats.wallTime.record(wallTime);
+        stats.cpuTime.record(cpuTime);
+        stats.formulasParsed.addAndGet(formulasParsed);
+        stats.formulasReused.addAndGet(formulasReused);
+        stats.stylesCreated.addAndGet(stylesCreated);
+        report.formulasParsed.addAndGet(formulasParsed);
+        report.formulasReused.addAndGet(formulasReused);
+        report.stylesCreated.addAndGet(stylesCreated);
+    }
+
+    public void sectionProcessed(final ExecutionContext ectx, final long wallTime, final long cpuTime, final int records, final long cells) {
+        final Stats stats = getOrCreate(getOrCreate(ectx.report.getId()).sections, ectx.sectionContext.section.getId());
+        stats.wallTime.record(wallTime);
+        stats.cpuTime.record(cpuTime);
+        stats.records.record(records);
+        stats.cells.record(cells);
+    }
+
+    public void providerExecuted(final ExecutionContext ectx, final long firstRowTime, final long fetchTime, final int records) {
+        if (ectx.sectionContext==null)
+            return;
+        final Stats stats = getOrCreate(getOrCreate(ectx.report.getId()).sections, ectx.sectionContext.section.getId());
+        stats.firstRowTime.record(firstRowTime);
+        stats.fetchTime.record(fetchTime);
+    }
+
+    /**
+     * @return  идентификаторы всех отчетов, для которых были зарегистрированы метрики.
+     */
+    public Set<String> getReports() {
+        return Collections.unmodifiableSet(reports.keySet());
+    }
+
+    /**
+     * @param reportId  идентификатор отчета.
+     * @return  метрики отчета или <code>null</code> если для данного отчета метрики не регистрировались.
+     */
+    public ReportStats getReportStats(final String reportId) {
+        return reports.get(reportId);
+    }
+
+    /**
+     * Удаляет все накопленные метрики.
+     */
+    public void clear() {
+        reports.clear();
+    }
+
+    /**
+     * Формирует текстовую сводку по всем накопленным метрикам: отчеты упорядочены по убыванию суммарного времени их формирования,
+     * а секции каждого отчета - по убыванию суммарного времени их обработки. Длительности приводятся в миллисекундах.
+     *
+     * @return  текстовая сводка.
+     */
+    public String format() {
+        final StringBuilder out = new StringBuilder(1024);
+        for (ReportStats report : sort(reports)) {
+            out.append("report ").append(report.id);
+            append(out, report);
+            out.append(", failures: ").append(report.failures.get()).append('\n');
+            for (Stats sheet : sort(report.sheets)) {
+                out.append("  sheet ").append(sheet.id);
+                append(out, sheet);
+                out.append('\n');
+            }
+            for (Stats section : sort(report.sections)) {
+                out.append("  section ").append(section.id);
+                append(out, section);
+                out.append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "[InMemoryReportMetrics{reports:"+reports.size()+"}]";
+    }
+
+
+    private ReportStats getOrCreate(final String reportId) {
+        ReportStats stats = reports.get(reportId);
+        if (stats==null) {
+            final ReportStats created = new ReportStats(reportId);
+            stats = reports.putIfAbsent(reportId, created);
+            if (stats==null)
+                stats = created;
+        }
+        return stats;
+    }
+
+    private static Stats getOrCreate(final ConcurrentMap<String,Stats> map, final String id) {
+        Stats stats = map.get(id);
+        if (stats==null) {
+            final Stats created = new Stats(id);
+            stats = map.putIfAbsent(id, created);
+            if (stats==null)
+                stats = created;
+        }
+        return stats;
+    }
+
+    private static <T extends Stats> List<T> sort(final Map<String,T> map) {
+        final List<T> result = new ArrayList<T>(map.values());
+        Collections.sort(result, new Comparator<T>() {
+            public int compare(final T s1, final T s2) {
+                final long t1 = s1.wallTime.getSum();
+                final long t2 = s2.wallTime.getSum();
+                return t1>t2 ? -1 : (t1<t2 ? 1 : s1.id.compareTo(s2.id));
+            }
+        });
+        return result;
+    }
+
+    private static void append(final StringBuilder out, final Stats stats) {
+        out.append(": count ").append(stats.wallTime.getCount());
+        out.append(", wall ").append(millis(stats.wallTime.getSum()));
+        out.append(" (p50 ").append(millis(stats.wallTime.getPercentile(50)));
+        out.append(", p99 ").append(millis(stats.wallTime.getPercentile(99)));
+        out.append(", max ").append(millis(stats.wallTime.getMax())).append(')');
+        if (stats.cpuTime.getCount()>0)
+            out.append(", cpu ").append(millis(stats.cpuTime.getSum()));
+        if (stats.records.getSum()>0)
+            out.append(", records ").append(stats.records.getSum());
+        if (stats.cells.getSum()>0)
+            out.append(", cells ").append(stats.cells.getSum());
+        if (stats.fetchTime.getCount()>0) {
+            out.append(", first row p50 ").append(millis(stats.firstRowTime.getPercentile(50)));
+            out.append(", fetch ").append(millis(stats.fetchTime.getSum()));
+        }
+        if (stats.formulasParsed.get()>0 || stats.formulasReused.get()>0)
+            out.append(", formulas parsed ").append(stats.formulasParsed.get()).append(" reused ").append(stats.formulasReused.get());
+        if (stats.stylesCreated.get()>0)
+            out.append(", styles created ").append(stats.stylesCreated.get());
+    }
+
+    private static String millis(final long nanos) {
+        return Long.toString(nanos / 1000000);
+    }
+
+
+    /**
+     * Метрики, накопленные для одного листа или одной секции отчета (а также для отчета в целом).
+     * Длительности регистрируются в наносекундах.
+     */
+    public static class Stats {
+        /**
+         * Идентификатор листа, секции или отчета.
+         */
+        public final String id;
+        /**
+         * Длительность обработки.
+         */
+        public final Histogram wallTime;
+        /**
+         * Процессорное время, затраченное на обработку.
+         */
+        public final Histogram cpuTime;
+        /**
+         * Количество обработанных записей из источника данных секции.
+         */
+        public final Histogram records;
+        /**
+         * Количество отрисованных секцией ячеек.
+         */
+        public final Histogram cells;
+        /**
+         * Время от обращения к поставщику данных секции до получения первой записи.
+         */
+        public final Histogram firstRowTime;
+        /**
+         * Время, затраченное на обращение к поставщику данных секции и чтение записей.
+         */
+        public final Histogram fetchTime;
+        /**
+         * Количество формул, для установки которых потребовался разбор их текста.
+         */
+        public final AtomicLong formulasParsed;
+        /**
+         * Количество формул, установленных по ранее разобранному шаблону.
+         */
+        public final AtomicLong formulasReused;
+        /**
+         * Количество созданных в документе стилей ячеек.
+         */
+        public final AtomicLong stylesCreated;
+
+        Stats(final String id) {
+            this.id = id;
+            this.wallTime = new Histogram();
+            this.cpuTime = new Histogram();
+            this.records = new Histogram();
+            this.cells = new Histogram();
+            this.firstRowTime = new Histogram();
+            this.fetchTime = new Histogram();
+            this.formulasParsed = new AtomicLong(0);
+            this.formulasReused = new AtomicLong(0);
+            this.stylesCreated = new AtomicLong(0);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder out = new StringBuilder(128);
+            out.append("[Stats{").append(id);
+            append(out, this);
+            out.append("}]");
+            return out.toString();
+        }
+    }
+
+    /**
+     * Метрики, накопленные для отчета в целом, а также для всех его листов и секций.
+     */
+    public static final class ReportStats extends Stats {
+        /**
+         * Количество случаев аварийного завершения формирования отчета.
+         */
+        public final AtomicLong failures;
+        private final ConcurrentMap<String,Stats> sheets;
+        private final ConcurrentMap<String,Stats> sections;
+
+        ReportStats(final String id) {
+            super(id);
+            this.failures = new AtomicLong(0);
+            this.sheets = new ConcurrentHashMap<String,Stats>();
+            this.sections = new ConcurrentHashMap<String,Stats>();
+        }
+
+        /**
+         * @return  метрики листов отчета (ключом является идентификатор листа).
+         */
+        public Map<String,Stats> getSheets() {
+            return Collections.unmodifiableMap(sheets);
+        }
+
+        /**
+         * @return  метрики секций отчета (ключом является идентификатор секции).
+         */
+        public Map<String,Stats> getSections() {
+            return Collections.unmodifiableMap(sections);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.BeanMetaData;
+import org.echosoft.framework.reports.model.Section;
+import org.echosoft.framework.reports.model.providers.RowIndex;
+
+/**
+ * <p>Курсор составной секции отчета, позволяющий заглянуть на несколько записей вперед. Используется при пакетном получении записей
+ * вложенными секциями (см. {@link org.echosoft.framework.reports.model.providers.SQLDataProviderHolder#getBatchSize()}): вложенная секция
+ * получает одним запросом записи сразу для текущей и нескольких последующих записей составной секции.</p>
+ * <p>Помимо этого, курсор хранит последний полученный пакет записей для каждой вложенной секции.
+ * Пакет остается доступным пока составная секция не перейдет к записи, для которой он не был получен.</p>
+ *
+ * @author Anton Sharapov
+ */
+final class LookaheadBeanIterator implements BeanIterator<Object> {
+
+    private final BeanIterator<?> it;
+    private final LinkedList<Object> buffer;
+    private final Map<Section,Batch> batches;
+
+    LookaheadBeanIterator(final BeanIterator<?> it) {
+        this.it = it;
+        this.buffer = new LinkedList<Object>();
+        this.batches = new HashMap<Section,Batch>();
+    }
+
+    public BeanMetaData getMetaData() {
+        return it.getMetaData();
+    }
+
+    public boolean hasNext() {
+        return !buffer.isEmpty() || it.hasNext();
+    }
+
+    public Object next() throws Exception {
+        return buffer.isEmpty() ? it.next() : buffer.removeFirst();
+    }
+
+    public Object readAhead() {
+        return buffer.isEmpty() ? it.readAhead() : buffer.getFirst();
+    }
+
+    public void close() {
+        buffer.clear();
+        batches.clear();
+        it.close();
+    }
+
+    /**
+     * Возвращает до <code>count</code> записей, следующих за текущей записью курсора. Возвращенные записи остаются в курсоре.
+     *
+     * @param count  максимальное количество записей.
+     * @return  список последующих записей курсора.
+     * @throws Exception  в случае проблем при чтении записей из исходного курсора.
+     */
+    List<Object> lookahead(final int count) throws Exception {
+        while (buffer.size()<count && it.hasNext()) {
+            buffer.addLast(it.next());
+        }
+        return buffer.size()<=count ? new ArrayList<Object>(buffer) : new ArrayList<Object>(buffer.subList(0, count));
+    }
+
+    /**
+     * Возвращает пакет записей указанной вложенной секции, полученный в том числе и для указанной записи данного курсора.
+     *
+     * @param section  вложенная секция.
+     * @param bean  текущая запись данного курсора.
+     * @return  индекс записей вложенной секции или <code>null</code> если для данной записи пакет еще не был получен.
+     */
+    RowIndex getBatch(final Section section, final Object bean) {
+        final Batch batch = batches.get(section);
+        return batch!=null && batch.beans.contains(bean) ? batch.index : null;
+    }
+
+    /**
+     * Запоминает пакет записей вложенной секции, полученный для указанных записей данного курсора. Предыдущий пакет этой секции удаляется.
+     *
+     * @param section  вложенная секция.
+     * @param beans  записи данного курсора, для которых был получен пакет.
+     * @param index  индекс полученных записей вложенной секции.
+     */
+    void putBatch(final Section section, final List<Object> beans, final RowIndex index) {
+        final Batch prev = batches.put(section, new Batch(beans, index));
+        if (prev!=null)
+            prev.index.close();
+    }
+
+
+    private static final class Batch {
+        private final Set<Object> beans;
+        private final RowIndex index;
+        private Batch(final List<Object> beans, final RowIndex index) {
+            this.beans = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>(beans.size()*2));
+            this.beans.addAll(beans);
+            this.index = index;
+        }
+    }
+}
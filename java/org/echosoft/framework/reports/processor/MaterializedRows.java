@@ -0,0 +1,150 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentMap;
+
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.BeanMetaData;
+
+/**
+ * <p>Записи, полученные от поставщика данных и сохраненные в памяти на время формирования отчета
+ * (см. {@link org.echosoft.framework.reports.model.providers.SQLDataProviderHolder#isMaterialized()}).</p>
+ * <p>Записи сохраняются по мере их чтения секцией отчета из исходного курсора (см. {@link #capture(BeanIterator, ConcurrentMap, Object, int)}).
+ * Лишь после того как из исходного курсора были прочитаны все записи, сохраненные записи становятся доступны прочим секциям отчета.
+ * Если секция прочитала не все записи или их количество превысило указанный предел, то записи не сохраняются.</p>
+ * <p>Экземпляры данного класса после их публикации не изменяются и могут одновременно использоваться несколькими потоками.</p>
+ *
+ * @author Anton Sharapov
+ */
+final class MaterializedRows {
+
+    private final BeanMetaData metadata;
+    private final Object[] rows;
+
+    private MaterializedRows(final BeanMetaData metadata, final Object[] rows, final int size) {
+        this.metadata = metadata;
+        if (rows.length==size) {
+            this.rows = rows;
+        } else {
+            this.rows = new Object[size];
+            System.arraycopy(rows, 0, this.rows, 0, size);
+        }
+    }
+
+    /**
+     * Возвращает курсор, перечисляющий сохраненные ранее записи, из исходного курсора, записи из которого будут сохраняться по мере их чтения.
+     *
+     * @param it  исходный курсор.
+     * @param registry  реестр сохраненных записей, в который записи будут помещены по окончании чтения всех записей из исходного курсора.
+     * @param key  ключ, под которым записи будут помещены в реестр.
+     * @param limit  максимальное количество сохраняемых записей. Если исходный курсор содержит больше записей, то записи не сохраняются.
+     * @return  курсор, сохраняющий записи по мере их чтения.
+     */
+    static BeanIterator<Object> capture(final BeanIterator<?> it, final ConcurrentMap<Object,MaterializedRows> registry, final Object key, final int limit) {
+        return new Recorder(it, registry, key, limit);
+    }
+
+    /**
+     * @return  количество сохраненных записей.
+     */
+    int size() {
+        return rows.length;
+    }
+
+    /**
+     * @return  новый курсор, перечисляющий все сохраненные записи.
+     */
+    BeanIterator<Object> iterator() {
+        return new Replay();
+    }
+
+    @Override
+    public String toString() {
+        return "[MaterializedRows{rows:"+rows.length+"}]";
+    }
+
+
+    private final class Replay implements BeanIterator<Object> {
+        private int pos;
+
+        public BeanMetaData getMetaData() {
+            return metadata;
+        }
+
+        public boolean hasNext() {
+            return pos < rows.length;
+        }
+
+        public Object next() {
+            if (pos>=rows.length)
+                throw new NoSuchElementException();
+            return rows[pos++];
+        }
+
+        public Object readAhead() {
+            if (pos>=rows.length)
+                throw new NoSuchElementException();
+            return rows[pos];
+        }
+
+        public void close() {
+            pos = rows.length;
+        }
+    }
+
+    private static final class Recorder implements BeanIterator<Object> {
+        private final BeanIterator<?> it;
+        private final ConcurrentMap<Object,MaterializedRows> registry;
+        private final Object key;
+        private final int limit;
+        private Object[] rows;
+        private int size;
+
+        private Recorder(final BeanIterator<?> it, final ConcurrentMap<Object,MaterializedRows> registry, final Object key, final int limit) {
+            this.it = it;
+            this.registry = registry;
+            this.key = key;
+            this.limit = limit;
+            this.rows = new Object[16];
+        }
+
+        public BeanMetaData getMetaData() {
+            return it.getMetaData();
+        }
+
+        public boolean hasNext() {
+            final boolean result = it.hasNext();
+            if (!result && rows!=null) {
+                registry.putIfAbsent(key, new MaterializedRows(it.getMetaData(), rows, size));
+                rows = null;
+            }
+            return result;
+        }
+
+        public Object next() throws Exception {
+            final Object result = it.next();
+            if (rows!=null) {
+                if (size>=limit) {
+                    rows = null;
+                } else {
+                    if (size==rows.length) {
+                        final Object[] buf = new Object[Math.min(Math.max(rows.length*2, 16), Math.max(limit, 16))];
+                        System.arraycopy(rows, 0, buf, 0, size);
+                        rows = buf;
+                    }
+                    rows[size++] = result;
+                }
+            }
+            return result;
+        }
+
+        public Object readAhead() {
+            return it.readAhead();
+        }
+
+        public void close() {
+            rows = null;
+            it.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.BeanMetaData;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.model.el.Expression;
+
+/**
+ * <p>Объединяет записи нескольких курсоров (разделов), каждый из которых упорядочен по значению одного и того же ключа, в единый упорядоченный курсор
+ * (см. {@link org.echosoft.framework.reports.model.providers.SQLDataProviderHolder#getPartitionColumn()}).
+ * Записи с одинаковым значением ключа следуют в порядке номеров разделов, внутри раздела порядок записей сохраняется. Записи,
+ * у которых ключ не определен, считаются большими любых других записей (т.е. при упорядочении по убыванию следуют перед всеми прочими записями).</p>
+ * <p>Если ключ не указан, то записи разделов следуют друг за другом в порядке номеров разделов.</p>
+ *
+ * @author Anton Sharapov
+ */
+final class MergedBeanIterator implements BeanIterator<Object> {
+
+    private final BeanIterator[] parts;
+    private final Expression key;
+    private final boolean descending;
+    private final ELContext ctx;
+    private final PriorityQueue<Head> heads;
+    private int current;
+
+    /**
+     * @param parts  курсоры разделов в порядке возрастания границ разделов.
+     * @param key  выражение, вычисляющее значение ключа для каждой записи, или <code>null</code>.
+     * @param descending  <code>true</code> если записи в разделах упорядочены по убыванию ключа.
+     * @param ctx  контекст, используемый для вычисления ключей записей.
+     * @throws Exception  в случае проблем при чтении первых записей разделов.
+     */
+    MergedBeanIterator(final BeanIterator[] parts, final Expression key, final boolean descending, final ELContext ctx) throws Exception {
+        this.parts = parts;
+        this.key = key;
+        this.descending = descending;
+        this.ctx = ctx;
+        if (key!=null) {
+            heads = new PriorityQueue<Head>(parts.length);
+            for (int i=0; i<parts.length; i++) {
+                advance(new Head(i));
+            }
+        } else {
+            heads = null;
+        }
+    }
+
+    public BeanMetaData getMetaData() {
+        return parts[0].getMetaData();
+    }
+
+    public boolean hasNext() {
+        if (heads!=null)
+            return !heads.isEmpty();
+        while (current<parts.length && !parts[current].hasNext()) {
+            current++;
+        }
+        return current<parts.length;
+    }
+
+    public Object next() throws Exception {
+        if (heads==null) {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return parts[current].next();
+        }
+        final Head head = heads.poll();
+        if (head==null)
+            throw new NoSuchElementException();
+        final Object result = head.bean;
+        advance(head);
+        return result;
+    }
+
+    public Object readAhead() {
+        if (heads==null) {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return parts[current].readAhead();
+        }
+        final Head head = heads.peek();
+        if (head==null)
+            throw new NoSuchElementException();
+        return head.bean;
+    }
+
+    public void close() {
+        for (BeanIterator part : parts) {
+            part.close();
+        }
+        if (heads!=null)
+            heads.clear();
+        current = parts.length;
+    }
+
+    /**
+     * Читает очередную запись раздела и, если таковая имеется, возвращает раздел в очередь.
+     */
+    private void advance(final Head head) throws Exception {
+        final BeanIterator part = parts[head.index];
+        if (!part.hasNext())
+            return;
+        head.bean = part.next();
+        final Object prevBean = ctx.getRowModel();
+        ctx.setRowModel(head.bean);
+        try {
+            head.key = (Comparable)key.getValue(ctx);
+        } finally {
+            ctx.setRowModel(prevBean);
+        }
+        heads.add(head);
+    }
+
+
+    private final class Head implements Comparable<Head> {
+        private final int index;
+        private Object bean;
+        private Comparable key;
+
+        private Head(final int index) {
+            this.index = index;
+        }
+
+        @SuppressWarnings("unchecked")
+        public int compareTo(final Head other) {
+            int result;
+            if (key==null) {
+                result = other.key==null ? 0 : 1;
+            } else {
+                result = other.key==null ? -1 : key.compareTo(other.key);
+            }
+            if (descending)
+                result = -result;
+            return result!=0 ? result : index - other.index;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.echosoft.framework.reports.processor;
+
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.BeanMetaData;
+
+/**
+ * Курсор, измеряющий время получения записей из исходного курсора. По закрытии курсора собранные значения передаются
+ * получателю метрик (см. {@link ReportMetrics#providerExecuted(ExecutionContext, long, long, int)}) и трассировщику
+ * (см. {@link TraceEvent#PROVIDER}), если они указаны.
+ *
+ * @author Anton Sharapov
+ */
+final class MeteredBeanIterator implements BeanIterator<Object> {
+
+    private final BeanIterator<?> it;
+    private final ReportMetrics metrics;
+    private final ExecutionContext ectx;
+    private final long started;
+    private long firstRowTime;
+    private long fetchTime;
+    private int records;
+    private boolean closed;
+
+    /**
+     * @param it  исходный курсор.
+     * @param metrics  получатель метрик или <code>null</code>.
+     * @param ectx  контекст выполнения задачи.
+     * @param started  момент обращения к поставщику данных (см. {@link System#nanoTime()}).
+     */
+    MeteredBeanIterator(final BeanIterator<?> it, final ReportMetrics metrics, final ExecutionContext ectx, final long started) {
+        this.it = it;
+        this.metrics = metrics;
+        this.ectx = ectx;
+        this.started = started;
+        this.firstRowTime = -1;
+        this.fetchTime = System.nanoTime() - started;
+    }
+
+    public BeanMetaData getMetaData() {
+        return it.getMetaData();
+    }
+
+    public boolean hasNext() {
+        final long start = System.nanoTime();
+        final boolean result = it.hasNext();
+        final long end = System.nanoTime();
+        fetchTime += end - start;
+        if (firstRowTime<0)
+            firstRowTime = end - started;
+        return result;
+    }
+
+    public Object next() throws Exception {
+        final long start = System.nanoTime();
+        final Object result = it.next();
+        fetchTime += System.nanoTime() - start;
+        records++;
+        return result;
+    }
+
+    public Object readAhead() {
+        final long start = System.nanoTime();
+        final Object result = it.readAhead();
+        fetchTime += System.nanoTime() - start;
+        return result;
+    }
+
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        final long start = System.nanoTime();
+        try {
+            it.close();
+        } finally {
+            fetchTime += System.nanoTime() - start;
+            if (metrics!=null)
+                metrics.providerExecuted(ectx, firstRowTime>=0 ? firstRowTime : fetchTime, fetchTime, records);
+            if (ectx.tracer!=null)
+                ectx.tracer.trace(TraceEvent.PROVIDER, ectx, started, fetchTime, records, -1, -1, null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[MeteredBeanIterator{records:"+records+", it:"+it+"}]";
+    }
+}
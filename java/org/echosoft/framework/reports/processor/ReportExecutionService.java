@@ -0,0 +1,484 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.common.scheduler.AbstractTask;
+import org.echosoft.common.scheduler.PriorityThreadPoolExecutor;
+import org.echosoft.common.scheduler.TaskPriority;
+import org.echosoft.framework.reports.model.el.ELContext;
+
+/**
+ * <p>Сервис асинхронного формирования отчетов с ограничением количества одновременно формируемых отчетов и занимаемой ими памяти.</p>
+ * <p>Перед постановкой в очередь для каждой задачи оценивается ее стоимость - объем памяти, который займет сформированный отчет
+ * (см. {@link ExecutionControl#getEstimatedMemory()}). Оценка основывается на истории предыдущих формирований того же отчета
+ * с тем же набором параметров (см. {@link #getShape(ReportPlan, ELContext)}), а при отсутствии истории принимается равной
+ * {@link #getDefaultCost()}. В историю попадают не только успешно сформированные отчеты: если формирование отчета было прервано
+ * из-за превышения одного из ограничений, нехватки памяти или какой-либо ошибки, то его стоимость принимается равной как минимум
+ * всему бюджету памяти пакетных задач, а отмененные задачи учитываются по объему памяти, занятому ими к моменту отмены.</p>
+ * <p>Задачи, стоимость которых не превышает {@link #getBatchThreshold()}, считаются интерактивными и выполняются в отдельном пуле потоков,
+ * а потому никогда не ожидают завершения тяжелых (пакетных) задач. Пакетные задачи выполняются в собственном пуле потоков и
+ * дополнительно ограничены суммарной оценочной стоимостью одновременно выполняемых задач: задача передается в пул лишь тогда,
+ * когда ее стоимость укладывается в свободную часть бюджета памяти, до этого она ожидает в очереди сервиса (в порядке поступления)
+ * и не занимает потоков пула. В каждом из пулов задачи с меньшей стоимостью имеют более высокий приоритет (см. {@link PriorityThreadPoolExecutor}).</p>
+ *
+ * @author Anton Sharapov
+ */
+public class ReportExecutionService {
+
+    /**
+     * Стоимость задачи по умолчанию, используемая в случае отсутствия истории формирования отчета (в байтах).
+     */
+    public static final long DEFAULT_COST = 8 * 1024 * 1024;
+
+    /**
+     * Граница, отделяющая интерактивные задачи от пакетных, по умолчанию (в байтах).
+     */
+    public static final long DEFAULT_BATCH_THRESHOLD = 16 * 1024 * 1024;
+
+    private static final int HISTORY_LIMIT = 100;
+    private static final int UNIT = 1024;   // единица измерения бюджета памяти.
+
+    private final ExcelReportProcessor processor;
+    private final PriorityThreadPoolExecutor interactive;
+    private final PriorityThreadPoolExecutor batch;
+    private final LinkedList<Admission> admissions;     // пакетные задачи, ожидающие свободной части бюджета памяти.
+    private final int memoryUnits;
+    private int availableUnits;
+    private boolean shutdown;
+    private final ConcurrentMap<String,Long> history;
+    private volatile long defaultCost;
+    private volatile long batchThreshold;
+
+    /**
+     * @param processor  построитель отчетов, используемый для формирования отчетов.
+     * @param interactiveThreads  максимальное количество одновременно формируемых интерактивных отчетов.
+     * @param batchThreads  максимальное количество одновременно формируемых пакетных отчетов.
+     * @param memoryBudget  максимальная суммарная оценочная стоимость (в байтах) одновременно формируемых пакетных отчетов.
+     *      Отчет, стоимость которого превышает данное значение, формируется лишь при отсутствии других пакетных отчетов.
+     */
+    public ReportExecutionService(final ExcelReportProcessor processor, final int interactiveThreads, final int batchThreads, final long memoryBudget) {
+        if (processor==null)
+            throw new IllegalArgumentException("Report processor must be specified");
+        if (interactiveThreads<=0 || batchThreads<=0 || memoryBudget<=0)
+            throw new IllegalArgumentException("Illegal service configuration");
+        this.processor = processor;
+        this.interactive = new PriorityThreadPoolExecutor(interactiveThreads, HISTORY_LIMIT);
+        this.batch = new PriorityThreadPoolExecutor(batchThreads, HISTORY_LIMIT);
+        this.memoryUnits = (int)Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget / UNIT));
+        this.availableUnits = memoryUnits;
+        this.admissions = new LinkedList<Admission>();
+        this.history = new ConcurrentHashMap<String,Long>();
+        this.defaultCost = DEFAULT_COST;
+        this.batchThreshold = DEFAULT_BATCH_THRESHOLD;
+    }
+
+    /**
+     * @return  стоимость задачи (в байтах), принимаемая при отсутствии истории формирования отчета.
+     */
+    public long getDefaultCost() {
+        return defaultCost;
+    }
+    /**
+     * @param defaultCost  стоимость задачи (в байтах), принимаемая при отсутствии истории формирования отчета.
+     */
+    public void setDefaultCost(final long defaultCost) {
+        this.defaultCost = defaultCost;
+    }
+
+    /**
+     * @return  максимальная стоимость (в байтах) интерактивной задачи. Задачи с большей стоимостью считаются пакетными.
+     */
+    public long getBatchThreshold() {
+        return batchThreshold;
+    }
+    /**
+     * @param batchThreshold  максимальная стоимость (в байтах) интерактивной задачи. Задачи с большей стоимостью считаются пакетными.
+     */
+    public void setBatchThreshold(final long batchThreshold) {
+        this.batchThreshold = batchThreshold;
+    }
+
+    /**
+     * @return  пул потоков, в котором формируются интерактивные отчеты. Может использоваться для мониторинга очереди задач.
+     */
+    public PriorityThreadPoolExecutor getInteractiveExecutor() {
+        return interactive;
+    }
+
+    /**
+     * @return  пул потоков, в котором формируются пакетные отчеты. Может использоваться для мониторинга очереди задач.
+     */
+    public PriorityThreadPoolExecutor getBatchExecutor() {
+        return batch;
+    }
+
+    /**
+     * Ставит в очередь задачу формирования отчета по заранее подготовленному плану.
+     *
+     * @param plan  план формирования отчета (см. {@link ExcelReportProcessor#compile(org.echosoft.framework.reports.model.Report)}).
+     * @param ctx  данные необходимые для формирования данного отчета.
+     * @return  объект, позволяющий получить сформированный отчет или отменить его формирование.
+     */
+    public ReportFuture submit(final ReportPlan plan, final ELContext ctx) {
+        final String shape = getShape(plan, ctx);
+        final long cost = estimateCost(shape);
+        final boolean heavy = cost > batchThreshold;
+        final int units = heavy ? (int)Math.min(memoryUnits, Math.max(1, cost / UNIT)) : 0;
+        final ExecutionControl control = new ExecutionControl();
+        final ReportTask task = new ReportTask(shape, plan, ctx, control, units);
+        if (!heavy)
+            return new ReportFuture(interactive.addTask(task, getPriority(cost)), control, cost, false);
+        final Admission admission = new Admission(task, getPriority(cost));
+        synchronized (admissions) {
+            if (shutdown)
+                throw new RejectedExecutionException("Service was shut down");
+            admissions.add(admission);
+        }
+        dispatch();
+        return new ReportFuture(admission, control, cost, true);
+    }
+
+    /**
+     * Оценивает стоимость формирования отчета.
+     *
+     * @param plan  план формирования отчета.
+     * @param ctx  данные необходимые для формирования данного отчета.
+     * @return  оценочный объем памяти (в байтах), который займет сформированный отчет.
+     */
+    public long estimateCost(final ReportPlan plan, final ELContext ctx) {
+        return estimateCost(getShape(plan, ctx));
+    }
+
+    /**
+     * Прекращает прием новых задач. Ранее поставленные в очередь задачи будут выполнены.
+     */
+    public void shutdown() {
+        interactive.shutdown();
+        synchronized (admissions) {
+            shutdown = true;
+        }
+        dispatch();
+    }
+
+    @Override
+    public String toString() {
+        final int pending, available;
+        synchronized (admissions) {
+            pending = admissions.size();
+            available = availableUnits;
+        }
+        return "[ReportExecutionService{interactive:"+interactive.getActiveCount()+"/"+interactive.getQueue().size()+
+                ", batch:"+batch.getActiveCount()+"/"+batch.getQueue().size()+"/"+pending+", memory:"+available+"/"+memoryUnits+"K}]";
+    }
+
+
+    /**
+     * Возвращает ключ, по которому накапливается история формирования отчетов. Ключ включает в себя идентификатор отчета,
+     * а также имена и типы значений всех параметров отчета (но не сами значения), поскольку именно от наличия тех или иных
+     * параметров (например, условий фильтрации) как правило зависит объем отчета.
+     *
+     * @param plan  план формирования отчета.
+     * @param ctx  данные необходимые для формирования данного отчета.
+     * @return  ключ, характеризующий отчет и набор его параметров.
+     */
+    protected String getShape(final ReportPlan plan, final ELContext ctx) {
+        final StringBuilder out = new StringBuilder(64);
+        out.append(plan.getReport().getId());
+        for (Map.Entry<String,Object> entry : new TreeMap<String,Object>(ctx.getEnvironment()).entrySet()) {
+            final Object value = entry.getValue();
+            out.append('|').append(entry.getKey()).append(':').append(value!=null ? value.getClass().getName() : "null");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Определяет приоритет задачи в очереди по ее стоимости.
+     *
+     * @param cost  оценочная стоимость задачи (в байтах).
+     * @return  приоритет задачи.
+     */
+    protected TaskPriority getPriority(final long cost) {
+        final long threshold = batchThreshold;
+        if (cost <= threshold/16)
+            return TaskPriority.HIGHEST;
+        if (cost <= threshold/4)
+            return TaskPriority.HIGH;
+        if (cost <= threshold)
+            return TaskPriority.MEDIUM;
+        if (cost <= threshold*4)
+            return TaskPriority.LOW;
+        return TaskPriority.LOWEST;
+    }
+
+    private long estimateCost(final String shape) {
+        final Long cost = history.get(shape);
+        return cost!=null ? cost : defaultCost;
+    }
+
+    /**
+     * Передает в пул потоков пакетные задачи из начала очереди, стоимость которых укладывается в свободную часть бюджета памяти.
+     * После того как сервис был остановлен и очередь опустела, останавливает и пул потоков пакетных задач.
+     */
+    private void dispatch() {
+        synchronized (admissions) {
+            while (!admissions.isEmpty() && admissions.getFirst().task.units<=availableUnits) {
+                final Admission admission = admissions.removeFirst();
+                availableUnits -= admission.task.units;
+                admission.submit();
+            }
+            if (shutdown && admissions.isEmpty() && !batch.isShutdown())
+                batch.shutdown();
+        }
+    }
+
+    /**
+     * Возвращает в бюджет памяти часть, занимаемую завершившейся (или отмененной) пакетной задачей.
+     *
+     * @param units  стоимость задачи в единицах бюджета памяти.
+     */
+    private void release(final int units) {
+        synchronized (admissions) {
+            availableUnits += units;
+        }
+        dispatch();
+    }
+
+    /**
+     * Фиксирует в истории формирования отчетов результат прерванной задачи.
+     *
+     * @param shape  ключ, характеризующий отчет и набор его параметров.
+     * @param control  объект, управлявший выполнением задачи.
+     * @param error  причина, по которой формирование отчета было прервано.
+     */
+    private void updateHistory(final String shape, final ExecutionControl control, final Throwable error) {
+        final long consumed = control.getEstimatedMemory();
+        if (error instanceof ReportInterruptedException && ((ReportInterruptedException)error).getReason()==ReportInterruptedException.Reason.CANCELLED) {
+            // объем памяти, занятый отчетом к моменту отмены, является лишь нижней границей его стоимости ...
+            final Long prev = history.get(shape);
+            if (consumed > (prev!=null ? prev : defaultCost))
+                updateHistory(shape, consumed);
+        } else {
+            updateHistory(shape, Math.max(consumed, Math.max(batchThreshold + 1, (long)memoryUnits * UNIT)));
+        }
+    }
+
+    private void updateHistory(final String shape, final long cost) {
+        // экспоненциальное сглаживание: последнее значение учитывается с весом 1/4 ...
+        while (true) {
+            final Long prev = history.get(shape);
+            if (prev==null) {
+                if (history.putIfAbsent(shape, cost)==null)
+                    return;
+            } else
+            if (history.replace(shape, prev, prev - prev/4 + cost/4))
+                return;
+        }
+    }
+
+
+    private final class ReportTask extends AbstractTask<HSSFWorkbook> {
+        private final String shape;
+        private final ReportPlan plan;
+        private final ELContext ctx;
+        private final ExecutionControl control;
+        private final int units;
+        private final AtomicBoolean started;
+
+        private ReportTask(final String shape, final ReportPlan plan, final ELContext ctx, final ExecutionControl control, final int units) {
+            super(new Object(), "report", plan.getReport().getId());
+            this.shape = shape;
+            this.plan = plan;
+            this.ctx = ctx;
+            this.control = control;
+            this.units = units;
+            this.started = new AtomicBoolean(false);
+        }
+
+        public HSSFWorkbook call() throws Exception {
+            if (!started.compareAndSet(false, true))
+                return null;    // задача была отменена до начала ее выполнения.
+            try {
+                final HSSFWorkbook result = processor.process(plan, ctx, control);
+                updateHistory(shape, control.getEstimatedMemory());
+                return result;
+            } catch (Exception e) {
+                updateHistory(shape, control, e);
+                throw e;
+            } catch (OutOfMemoryError e) {
+                updateHistory(shape, control, e);
+                throw e;
+            } finally {
+                if (units>0)
+                    release(units);
+            }
+        }
+
+        /**
+         * Вызывается при отмене задачи. Если выполнение задачи еще не началось, то оно уже и не начнется,
+         * а занимаемая задачей часть бюджета памяти возвращается.
+         */
+        private void cancelled() {
+            if (started.compareAndSet(false, true) && units>0)
+                release(units);
+        }
+    }
+
+    /**
+     * Пакетная задача, которая передается в пул потоков лишь после выделения ей необходимой части бюджета памяти.
+     */
+    private final class Admission implements Future<HSSFWorkbook> {
+        private final ReportTask task;
+        private final TaskPriority priority;
+        private final CountDownLatch submitted;
+        private volatile Future<HSSFWorkbook> future;
+        private volatile boolean cancelled;
+
+        private Admission(final ReportTask task, final TaskPriority priority) {
+            this.task = task;
+            this.priority = priority;
+            this.submitted = new CountDownLatch(1);
+        }
+
+        /**
+         * Передает задачу в пул потоков. Вызывается при удерживаемой блокировке очереди задач.
+         */
+        private void submit() {
+            try {
+                future = batch.addTask(task, priority);
+            } catch (RejectedExecutionException e) {
+                cancelled = true;
+                task.cancelled();
+            }
+            submitted.countDown();
+        }
+
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            synchronized (admissions) {
+                if (future==null && !cancelled) {
+                    for (Iterator<Admission> it=admissions.iterator(); it.hasNext(); ) {
+                        if (it.next()==this) {
+                            it.remove();
+                            cancelled = true;
+                            submitted.countDown();
+                        }
+                    }
+                }
+            }
+            if (cancelled) {
+                dispatch();
+                return true;
+            }
+            final Future<HSSFWorkbook> f = future;
+            if (f==null || !f.cancel(mayInterruptIfRunning))
+                return false;
+            task.cancelled();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            final Future<HSSFWorkbook> f = future;
+            return cancelled || (f!=null && f.isCancelled());
+        }
+
+        public boolean isDone() {
+            final Future<HSSFWorkbook> f = future;
+            return cancelled || (f!=null && f.isDone());
+        }
+
+        public HSSFWorkbook get() throws InterruptedException, ExecutionException {
+            submitted.await();
+            if (cancelled)
+                throw new CancellationException();
+            return future.get();
+        }
+
+        public HSSFWorkbook get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            if (!submitted.await(timeout, unit))
+                throw new TimeoutException();
+            if (cancelled)
+                throw new CancellationException();
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Результат асинхронного формирования отчета. Отмена задачи (см. {@link #cancel(boolean)}) в том числе прерывает
+     * формирование уже начатого отчета (см. {@link ExecutionControl#cancel()}).
+     */
+    public static final class ReportFuture implements Future<HSSFWorkbook> {
+        private final Future<HSSFWorkbook> future;
+        private final ExecutionControl control;
+        private final long cost;
+        private final boolean batch;
+
+        private ReportFuture(final Future<HSSFWorkbook> future, final ExecutionControl control, final long cost, final boolean batch) {
+            this.future = future;
+            this.control = control;
+            this.cost = cost;
+            this.batch = batch;
+        }
+
+        /**
+         * @return  объект, управляющий выполнением задачи. Может использоваться для указания ограничений на потребляемые задачей
+         *      ресурсы до начала ее выполнения.
+         */
+        public ExecutionControl getControl() {
+            return control;
+        }
+
+        /**
+         * @return  оценочная стоимость задачи (в байтах), вычисленная при ее постановке в очередь.
+         */
+        public long getCost() {
+            return cost;
+        }
+
+        /**
+         * @return  <code>true</code> если задача была отнесена к пакетным.
+         */
+        public boolean isBatch() {
+            return batch;
+        }
+
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            control.cancel();
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        public HSSFWorkbook get() throws InterruptedException, ExecutionException {
+            return future.get();
+        }
+
+        public HSSFWorkbook get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return future.get(timeout, unit);
+        }
+
+        @Override
+        public String toString() {
+            return "[ReportFuture{cost:"+cost+", batch:"+batch+", done:"+future.isDone()+"}]";
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.echosoft.framework.reports.processor;
+
+/**
+ * Данное исключение поднимается в случае если формирование отчета было прервано по требованию пользователя
+ * или из-за превышения одного из ограничений, указанных в {@link ExecutionControl}.
+ * Метод {@link #getContext()} возвращает контекст выполнения задачи в том состоянии, в котором он находился на момент прерывания
+ * (текущий лист, секция, номер записи и т.д.).
+ *
+ * @author Anton Sharapov
+ */
+public class ReportInterruptedException extends ReportProcessingException {
+
+    /**
+     * Причина прерывания формирования отчета.
+     */
+    public static enum Reason {
+        /**
+         * Формирование отчета было отменено (см. {@link ExecutionControl#cancel()}).
+         */
+        CANCELLED,
+        /**
+         * Превышено максимальное количество обработанных записей (см. {@link ExecutionControl#setMaxRecords(long)}).
+         */
+        RECORDS_LIMIT,
+        /**
+         * Превышено максимальное количество отрисованных ячеек (см. {@link ExecutionControl#setMaxCells(long)}).
+         */
+        CELLS_LIMIT,
+        /**
+         * Превышена максимальная длительность формирования отчета (см. {@link ExecutionControl#setMaxTime(long)}).
+         */
+        TIME_LIMIT,
+        /**
+         * Превышен максимальный оценочный объем памяти, занимаемой отчетом (см. {@link ExecutionControl#setMaxMemory(long)}).
+         */
+        MEMORY_LIMIT
+    }
+
+    private final Reason reason;
+
+    public ReportInterruptedException(String message, Reason reason, ExecutionContext ctx) {
+        super(message, ctx);
+        this.reason = reason;
+    }
+
+    /**
+     * @return  причина прерывания формирования отчета.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,63 @@
+package org.echosoft.framework.reports.processor;
+
+/**
+ * <p>Получатель метрик, собираемых в процессе формирования отчетов (см. {@link ExcelReportProcessor#setMetrics(ReportMetrics)}).</p>
+ * <p>Методы данного интерфейса вызываются построителем отчета по окончании обработки отчета в целом, каждого его листа, секции
+ * и каждого обращения к поставщику данных. Информация о том к какому отчету, листу и секции относятся переданные значения
+ * содержится в контексте выполнения. Все длительности передаются в наносекундах, процессорное время - для потока, в котором
+ * выполнялась соответствующая обработка (или <code>-1</code> если JVM не поддерживает измерение процессорного времени потоков).</p>
+ * <p>Методы могут вызываться одновременно из нескольких потоков (при одновременном формировании нескольких отчетов или листов
+ * одного отчета), а потому реализации данного интерфейса должны быть потокобезопасными. Поскольку методы вызываются непосредственно
+ * в потоке формирования отчета, их реализация не должна выполнять длительных операций.</p>
+ *
+ * @see InMemoryReportMetrics
+ * @author Anton Sharapov
+ */
+public interface ReportMetrics {
+
+    /**
+     * Вызывается по окончании формирования отчета (в том числе аварийном).
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param wallTime  общая длительность формирования отчета.
+     * @param cpuTime  процессорное время, затраченное потоком, в котором был вызван построитель отчета.
+     *      При одновременном формировании листов отчета время, затраченное на формирование листов в других потоках, не учитывается.
+     * @param failed  <code>true</code> если формирование отчета было прервано из-за ошибки.
+     */
+    public void reportProcessed(ExecutionContext ectx, long wallTime, long cpuTime, boolean failed);
+
+    /**
+     * Вызывается по окончании обработки очередного листа отчета. Модель листа все еще находится в контексте выполнения.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param wallTime  длительность обработки листа.
+     * @param cpuTime  процессорное время, затраченное на обработку листа.
+     * @param formulasParsed  количество формул, для установки которых в ячейки листа потребовался разбор их текста.
+     * @param formulasReused  количество формул, установленных в ячейки листа по ранее разобранному шаблону (см. {@link org.echosoft.framework.reports.util.FormulaCache}).
+     * @param stylesCreated  количество стилей ячеек, созданных в документе в процессе обработки листа.
+     */
+    public void sheetProcessed(ExecutionContext ectx, long wallTime, long cpuTime, long formulasParsed, long formulasReused, int stylesCreated);
+
+    /**
+     * Вызывается по окончании обработки очередной секции отчета. Контекст обработанной секции все еще является текущим.
+     * Длительность обработки секции включает в себя в том числе время обработки всех вложенных в нее секций.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param wallTime  длительность обработки секции.
+     * @param cpuTime  процессорное время, затраченное на обработку секции.
+     * @param records  количество обработанных записей из источника данных секции.
+     * @param cells  количество ячеек, отрисованных непосредственно данной секцией (без учета вложенных в нее секций).
+     */
+    public void sectionProcessed(ExecutionContext ectx, long wallTime, long cpuTime, int records, long cells);
+
+    /**
+     * Вызывается по окончании чтения данных из курсора, полученного от поставщика данных текущей секции.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @param firstRowTime  время, прошедшее с момента обращения к поставщику данных до получения первой записи
+     *      (или до обнаружения отсутствия записей).
+     * @param fetchTime  суммарное время, затраченное потоком формирования отчета на обращение к поставщику данных и чтение записей из курсора.
+     * @param records  количество прочитанных из курсора записей.
+     */
+    public void providerExecuted(ExecutionContext ectx, long firstRowTime, long fetchTime, int records);
+}
@@ -0,0 +1,680 @@
+package org.echosoft.framework.reports.processor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.util.Logs;
+
+/**
+ * <p>Кэш сформированных отчетов. Позволяет не формировать повторно отчет, который недавно уже был сформирован по тому же плану
+ * и с теми же значениями параметров (см. {@link ELContext#getEnvironment()}).</p>
+ * <p>Ключом кэша является идентификатор отчета, номер версии отчета и хэш канонического
+ * представления всех параметров отчета. Параметры простых типов (строки, числа, даты и т.д.), коллекции, массивы и ассоциативные
+ * массивы из них представляются по их значениям, прочие сериализуемые объекты - по их сериализованному представлению.
+ * Если среди параметров есть несериализуемые объекты, то результат формирования такого отчета не кэшируется.</p>
+ * <p>Номером версии отчета служит номер поколения его плана (см. {@link ReportPlan#getGeneration()}). Для зарегистрированных отчетов
+ * план подготавливается реестром однократно (см. {@link org.echosoft.framework.reports.registry.ReportsRegistry#getPlan(String)}),
+ * поэтому номер поколения изменяется лишь при повторной загрузке отчета. Как только в кэш поступает запрос по плану более нового поколения,
+ * все ранее сформированные экземпляры этого отчета удаляются из кэша, а результаты формирования отчета по планам устаревших поколений
+ * в дальнейшем не кэшируются.</p>
+ * <p>Общий объем хранимых в памяти отчетов ограничен, при превышении ограничения из памяти вытесняются наиболее давно востребованные
+ * отчеты. Вытесненные отчеты могут сохраняться в указанном каталоге локальной файловой системы (см. {@link #setSpillDirectory(File)}),
+ * суммарный объем сохраненных на диске отчетов также ограничен (см. {@link #setMaxSpillSize(long)}), при его превышении удаляются
+ * наиболее давно сохраненные отчеты. Имена файлов сохраненных отчетов вычисляются как хэш ключа кэша. Время хранения отчетов может быть указано отдельно для каждого отчета (см. {@link #setTTL(String, long)}).
+ * Отчеты с истекшим временем хранения удаляются (в том числе с диска) при каждом помещении в кэш нового отчета.</p>
+ * <p>Если один и тот же отчет с одними и теми же параметрами одновременно запрашивается из нескольких потоков, то отчет формируется
+ * лишь один раз, а все остальные потоки ожидают результат его формирования.</p>
+ *
+ * @author Anton Sharapov
+ */
+public class ReportOutputCache {
+
+    /**
+     * Время хранения сформированных отчетов по умолчанию (в миллисекундах).
+     */
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    /**
+     * Максимальный суммарный объем (в байтах) сохраненных на диске отчетов по умолчанию.
+     */
+    public static final long DEFAULT_MAX_SPILL_SIZE = 256L * 1024 * 1024;
+
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        public void write(final int b) {
+        }
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    private final ExcelReportProcessor processor;
+    private final long maxSize;
+    private final LinkedHashMap<String,Entry> entries;      // отчеты в памяти, в порядке последнего обращения к ним.
+    private final LinkedHashMap<String,Entry> spilled;      // отчеты, вытесненные из памяти на диск, в порядке их вытеснения.
+    private final ConcurrentMap<String,FutureTask<byte[]>> pending;
+    private final ConcurrentMap<String,Long> ttls;
+    private final Map<String,Long> versions;                // последние известные кэшу номера версий отчетов.
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private long size;
+    private long spilledSize;
+    private volatile long defaultTTL;
+    private volatile long maxSpillSize;
+    private volatile File spillDirectory;
+
+    /**
+     * @param processor  построитель отчетов, используемый для формирования отчетов.
+     * @param maxSize  максимальный суммарный объем (в байтах) хранимых в памяти отчетов.
+     */
+    public ReportOutputCache(final ExcelReportProcessor processor, final long maxSize) {
+        if (processor==null)
+            throw new IllegalArgumentException("Report processor must be specified");
+        this.processor = processor;
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String,Entry>(64, 0.75f, true);
+        this.spilled = new LinkedHashMap<String,Entry>();
+        this.pending = new ConcurrentHashMap<String,FutureTask<byte[]>>();
+        this.ttls = new ConcurrentHashMap<String,Long>();
+        this.versions = new HashMap<String,Long>();
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.defaultTTL = DEFAULT_TTL;
+        this.maxSpillSize = DEFAULT_MAX_SPILL_SIZE;
+    }
+
+    /**
+     * @return  время хранения (в миллисекундах) отчетов, для которых оно не было указано явно.
+     */
+    public long getDefaultTTL() {
+        return defaultTTL;
+    }
+    /**
+     * @param ttl  время хранения (в миллисекундах) отчетов, для которых оно не было указано явно.
+     *      Значение 0 означает что по умолчанию отчеты не кэшируются.
+     */
+    public void setDefaultTTL(final long ttl) {
+        this.defaultTTL = ttl;
+    }
+
+    /**
+     * @param reportId  идентификатор отчета.
+     * @return  время хранения (в миллисекундах) сформированных экземпляров данного отчета.
+     */
+    public long getTTL(final String reportId) {
+        final Long ttl = ttls.get(reportId);
+        return ttl!=null ? ttl : defaultTTL;
+    }
+    /**
+     * Указывает время хранения сформированных экземпляров отчета.
+     *
+     * @param reportId  идентификатор отчета.
+     * @param ttl  время хранения в миллисекундах. Значение 0 означает что данный отчет не должен кэшироваться.
+     */
+    public void setTTL(final String reportId, final long ttl) {
+        ttls.put(reportId, ttl);
+    }
+
+    /**
+     * @return  каталог, в котором сохраняются вытесненные из памяти отчеты, или <code>null</code>.
+     */
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+    /**
+     * Указывает каталог, в котором будут сохраняться вытесненные из памяти отчеты (до истечения времени их хранения).
+     *
+     * @param dir  каталог локальной файловой системы или <code>null</code> если вытесненные из памяти отчеты сохранять не требуется.
+     */
+    public void setSpillDirectory(final File dir) {
+        if (dir!=null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IllegalArgumentException("Unable to create directory "+dir);
+        this.spillDirectory = dir;
+    }
+
+    /**
+     * @return  максимальный суммарный объем (в байтах) сохраненных на диске отчетов.
+     */
+    public long getMaxSpillSize() {
+        return maxSpillSize;
+    }
+    /**
+     * Указывает максимальный суммарный объем сохраненных на диске отчетов. При превышении этого объема с диска удаляются
+     * наиболее давно сохраненные отчеты. Отчеты, объем которых превышает указанное значение, на диске не сохраняются.
+     *
+     * @param maxSpillSize  максимальный суммарный объем в байтах.
+     */
+    public void setMaxSpillSize(final long maxSpillSize) {
+        this.maxSpillSize = maxSpillSize;
+    }
+
+    /**
+     * @return  количество запросов, результат которых был взят из кэша (в том числе ожидавших завершения формирования того же отчета в другом потоке).
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return  количество запросов, потребовавших формирования отчета.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return  суммарный объем (в байтах) хранимых в памяти отчетов.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return  суммарный объем (в байтах) сохраненных на диске отчетов.
+     */
+    public synchronized long getSpilledSize() {
+        return spilledSize;
+    }
+
+    /**
+     * Возвращает сформированный отчет из кэша или, при его отсутствии, формирует его.
+     *
+     * @param plan   план формирования отчета (см. {@link ExcelReportProcessor#compile(org.echosoft.framework.reports.model.Report)}).
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @return  содержимое сформированного отчета в формате Excel 97-2003. Массив может разделяться несколькими потребителями и не должен изменяться.
+     * @throws ReportProcessingException в случае каких-либо проблем.
+     */
+    public byte[] process(final ReportPlan plan, final ELContext ctx) throws ReportProcessingException {
+        final String reportId = plan.getReport().getId();
+        final long ttl = getTTL(reportId);
+        final String key = ttl>0 && checkVersion(plan) ? makeKey(plan, ctx) : null;
+        if (key==null) {
+            misses.incrementAndGet();
+            return render(plan, ctx);
+        }
+        final byte[] cached = lookup(key);
+        if (cached!=null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        final FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                byte[] content = lookup(key);
+                if (content==null) {
+                    misses.incrementAndGet();
+                    content = render(plan, ctx);
+                    store(new Entry(key, reportId, plan.getGeneration(), content, System.currentTimeMillis() + ttl));
+                } else
+                    hits.incrementAndGet();
+                return content;
+            }
+        });
+        final FutureTask<byte[]> running = pending.putIfAbsent(key, task);
+        if (running==null) {
+            try {
+                task.run();
+            } finally {
+                pending.remove(key, task);
+            }
+        } else
+            hits.incrementAndGet();
+        try {
+            return (running!=null ? running : task).get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ReportProcessingException)
+                throw (ReportProcessingException)cause;
+            throw new ReportProcessingException(cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReportProcessingException("Interrupted while waiting for report "+reportId, e);
+        }
+    }
+
+    /**
+     * Возвращает сформированный отчет из кэша или, при его отсутствии, формирует его.
+     *
+     * @param plan   план формирования отчета.
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @param out    выходной поток, в который будет записан отчет. По окончании работы поток не закрывается.
+     * @throws ReportProcessingException в случае каких-либо проблем.
+     * @throws IOException  в случае ошибок записи в выходной поток.
+     */
+    public void process(final ReportPlan plan, final ELContext ctx, final OutputStream out) throws ReportProcessingException, IOException {
+        out.write(process(plan, ctx));
+    }
+
+    /**
+     * Удаляет из кэша все сформированные экземпляры указанного отчета.
+     *
+     * @param reportId  идентификатор отчета.
+     */
+    public void invalidate(final String reportId) {
+        final List<Entry> removed = new ArrayList<Entry>();
+        synchronized (this) {
+            remove(reportId, removed);
+        }
+        delete(removed);
+    }
+
+    /**
+     * Удаляет из кэша все сформированные отчеты.
+     */
+    public void clear() {
+        final List<Entry> removed;
+        synchronized (this) {
+            removed = new ArrayList<Entry>(spilled.values());
+            entries.clear();
+            spilled.clear();
+            size = 0;
+            spilledSize = 0;
+        }
+        delete(removed);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[ReportOutputCache{entries:"+entries.size()+", spilled:"+spilled.size()+", size:"+size+", maxSize:"+maxSize+
+                ", spilledSize:"+spilledSize+", maxSpillSize:"+maxSpillSize+
+                ", hits:"+hits.get()+", misses:"+misses.get()+"}]";
+    }
+
+
+    /**
+     * Формирует отчет.
+     *
+     * @param plan   план формирования отчета.
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @return  содержимое сформированного отчета.
+     * @throws ReportProcessingException в случае каких-либо проблем.
+     */
+    protected byte[] render(final ReportPlan plan, final ELContext ctx) throws ReportProcessingException {
+        final HSSFWorkbook wb = processor.process(plan, ctx);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        try {
+            wb.write(out);
+        } catch (IOException e) {
+            throw new ReportProcessingException(e.getMessage(), e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Вычисляет ключ кэша для отчета с указанными параметрами.
+     *
+     * @param plan   план формирования отчета.
+     * @param ctx    данные необходимые для формирования данного отчета.
+     * @return  ключ кэша или <code>null</code> если отчет с такими параметрами не может кэшироваться.
+     */
+    protected String makeKey(final ReportPlan plan, final ELContext ctx) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            final DataOutputStream out = new DataOutputStream(new DigestOutputStream(NULL_STREAM, md));
+            if (!canonicalize(out, ctx.getEnvironment()))
+                return null;
+            out.flush();
+            final StringBuilder key = new StringBuilder(96);
+            key.append(plan.getReport().getId()).append('@').append(plan.getGeneration()).append(':').append(toHex(md.digest()));
+            return key.toString();
+        } catch (Exception e) {
+            Logs.reports.warn("unable to make cache key for report "+plan.getReport().getId()+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Записывает в поток каноническое представление указанного значения.
+     *
+     * @param out  поток, в который записывается каноническое представление значения.
+     * @param value  значение параметра отчета.
+     * @return  <code>false</code> если значение не имеет канонического представления.
+     * @throws IOException  в случае ошибок записи в поток.
+     */
+    protected boolean canonicalize(final DataOutputStream out, final Object value) throws IOException {
+        if (value==null) {
+            out.writeByte('N');
+        } else
+        if (value instanceof String) {
+            out.writeByte('S');
+            writeString(out, (String)value);
+        } else
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum) {
+            out.writeByte('V');
+            writeString(out, value.getClass().getName());
+            writeString(out, value.toString());
+        } else
+        if (value instanceof Date) {
+            out.writeByte('D');
+            writeString(out, value.getClass().getName());
+            out.writeLong(((Date)value).getTime());
+        } else
+        if (value instanceof Map) {
+            final TreeMap<String,Object> sorted = new TreeMap<String,Object>();
+            for (Map.Entry<?,?> entry : ((Map<?,?>)value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            if (sorted.size()!=((Map)value).size())
+                return false;
+            out.writeByte('M');
+            out.writeInt(sorted.size());
+            for (Map.Entry<String,Object> entry : sorted.entrySet()) {
+                writeString(out, entry.getKey());
+                if (!canonicalize(out, entry.getValue()))
+                    return false;
+            }
+        } else
+        if (value instanceof Collection) {
+            out.writeByte('C');
+            out.writeInt(((Collection)value).size());
+            for (Object item : (Collection)value) {
+                if (!canonicalize(out, item))
+                    return false;
+            }
+        } else
+        if (value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            out.writeByte('A');
+            out.writeInt(length);
+            for (int i=0; i<length; i++) {
+                if (!canonicalize(out, Array.get(value, i)))
+                    return false;
+            }
+        } else
+        if (value instanceof Serializable) {
+            out.writeByte('O');
+            final ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(value);
+            oos.flush();
+        } else
+            return false;
+        return true;
+    }
+
+
+    /**
+     * Сверяет номер версии отчета (поколение его плана) с последним известным кэшу номером версии этого отчета.
+     * Если план относится к более новой версии отчета, то все ранее сформированные экземпляры отчета удаляются из кэша.
+     *
+     * @param plan  план формирования отчета.
+     * @return  <code>false</code> если план относится к устаревшей версии отчета и результат его формирования не должен кэшироваться.
+     */
+    private boolean checkVersion(final ReportPlan plan) {
+        final String reportId = plan.getReport().getId();
+        final List<Entry> removed = new ArrayList<Entry>();
+        synchronized (this) {
+            final Long current = versions.get(reportId);
+            if (current!=null && current>=plan.getGeneration())
+                return current==plan.getGeneration();
+            versions.put(reportId, plan.getGeneration());
+            if (current!=null)
+                remove(reportId, removed);
+        }
+        delete(removed);
+        return true;
+    }
+
+    /**
+     * @return  <code>true</code> если отчет относится к устаревшей версии. Должен вызываться при удерживаемой блокировке кэша.
+     */
+    private boolean isStale(final Entry entry) {
+        final Long current = versions.get(entry.reportId);
+        return current!=null && current>entry.generation;
+    }
+
+    /**
+     * Исключает из кэша все экземпляры указанного отчета. Должен вызываться при удерживаемой блокировке кэша.
+     *
+     * @param reportId  идентификатор отчета.
+     * @param removed  список, в который добавляются исключенные из кэша отчеты, сохраненные на диске.
+     */
+    private void remove(final String reportId, final List<Entry> removed) {
+        for (Iterator<Entry> it=entries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.reportId.equals(reportId)) {
+                it.remove();
+                size -= entry.length;
+            }
+        }
+        for (Iterator<Entry> it=spilled.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.reportId.equals(reportId)) {
+                it.remove();
+                spilledSize -= entry.length;
+                removed.add(entry);
+            }
+        }
+    }
+
+    private byte[] lookup(final String key) {
+        final Entry spill;
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry!=null) {
+                if (!entry.isExpired())
+                    return entry.content;
+                entries.remove(key);
+                size -= entry.content.length;
+                return null;
+            }
+            spill = spilled.remove(key);
+            if (spill!=null)
+                spilledSize -= spill.length;
+        }
+        if (spill==null)
+            return null;
+        byte[] content = null;
+        if (!spill.isExpired()) {
+            try {
+                content = read(spill.file);
+            } catch (IOException e) {
+                Logs.reports.warn("unable to read cached report from "+spill.file+": "+e.getMessage());
+            }
+        }
+        if (!spill.file.delete())
+            spill.file.deleteOnExit();
+        if (content!=null)
+            store(new Entry(key, spill.reportId, spill.generation, content, spill.expires));
+        return content;
+    }
+
+    private void store(final Entry entry) {
+        final List<Entry> evicted = new ArrayList<Entry>();
+        final List<Entry> removed = new ArrayList<Entry>();
+        synchronized (this) {
+            sweep(removed);
+            if (!isStale(entry)) {
+                final Entry prev = entries.put(entry.key, entry);
+                if (prev!=null)
+                    size -= prev.content.length;
+                size += entry.content.length;
+                for (Iterator<Entry> it=entries.values().iterator(); size>maxSize && it.hasNext(); ) {
+                    final Entry eldest = it.next();
+                    it.remove();
+                    size -= eldest.content.length;
+                    evicted.add(eldest);
+                }
+            }
+        }
+        delete(removed);
+        final File dir = spillDirectory;
+        if (dir==null)
+            return;
+        for (Entry e : evicted) {
+            if (e.isExpired() || e.length>maxSpillSize)
+                continue;
+            final File file = new File(dir, getSpillFileName(e.key));
+            try {
+                write(file, e.content);
+            } catch (IOException ex) {
+                Logs.reports.warn("unable to spill cached report to "+file+": "+ex.getMessage());
+                continue;
+            }
+            removed.clear();
+            synchronized (this) {
+                final Entry prev = spilled.remove(e.key);
+                if (prev!=null) {
+                    spilledSize -= prev.length;
+                    if (!prev.file.equals(file))
+                        removed.add(prev);
+                }
+                if (isStale(e)) {
+                    // пока отчет записывался на диск, в кэш поступил запрос по более новой версии отчета ...
+                    removed.add(new Entry(e.key, e.reportId, e.generation, file, e.content.length, e.expires));
+                } else {
+                    spilled.put(e.key, new Entry(e.key, e.reportId, e.generation, file, e.content.length, e.expires));
+                    spilledSize += e.content.length;
+                }
+                for (Iterator<Entry> it=spilled.values().iterator(); spilledSize>maxSpillSize && it.hasNext(); ) {
+                    final Entry eldest = it.next();
+                    it.remove();
+                    spilledSize -= eldest.length;
+                    removed.add(eldest);
+                }
+            }
+            delete(removed);
+        }
+    }
+
+    /**
+     * Исключает из кэша все отчеты с истекшим временем хранения. Должен вызываться при удерживаемой блокировке кэша.
+     *
+     * @param removed  список, в который добавляются исключенные из кэша отчеты, сохраненные на диске.
+     */
+    private void sweep(final List<Entry> removed) {
+        for (Iterator<Entry> it=entries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.isExpired()) {
+                it.remove();
+                size -= entry.length;
+            }
+        }
+        for (Iterator<Entry> it=spilled.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.isExpired()) {
+                it.remove();
+                spilledSize -= entry.length;
+                removed.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Возвращает имя файла, в котором сохраняется вытесненный на диск отчет. Имя вычисляется как хэш ключа кэша,
+     * поэтому оно не зависит от символов, используемых в идентификаторе отчета.
+     *
+     * @param key  ключ кэша.
+     * @return  имя файла в каталоге сохраненных отчетов.
+     */
+    private static String getSpillFileName(final String key) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return toHex(md.digest(key.getBytes("UTF-8"))) + ".xls";
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            buf.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+        }
+        return buf.toString();
+    }
+
+    private static void delete(final List<Entry> entries) {
+        for (Entry entry : entries) {
+            entry.file.delete();
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+
+    private static byte[] read(final File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] result = new byte[(int)file.length()];
+            int pos = 0;
+            for (int n; pos<result.length && (n=in.read(result, pos, result.length-pos))>=0; pos += n);
+            if (pos<result.length)
+                throw new IOException("Unexpected end of file");
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(final File file, final byte[] content) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+
+    private static final class Entry {
+        private final String key;
+        private final String reportId;
+        private final long generation;
+        private final byte[] content;
+        private final File file;
+        private final long length;
+        private final long expires;
+
+        private Entry(final String key, final String reportId, final long generation, final byte[] content, final long expires) {
+            this.key = key;
+            this.reportId = reportId;
+            this.generation = generation;
+            this.content = content;
+            this.file = null;
+            this.length = content.length;
+            this.expires = expires;
+        }
+
+        private Entry(final String key, final String reportId, final long generation, final File file, final long length, final long expires) {
+            this.key = key;
+            this.reportId = reportId;
+            this.generation = generation;
+            this.content = null;
+            this.file = file;
+            this.length = length;
+            this.expires = expires;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.echosoft.framework.reports.model.Area;
+import org.echosoft.framework.reports.model.CompositeSection;
+import org.echosoft.framework.reports.model.GroupModel;
+import org.echosoft.framework.reports.model.GroupStyle;
+import org.echosoft.framework.reports.model.GroupingSection;
+import org.echosoft.framework.reports.model.PlainSection;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.Section;
+import org.echosoft.framework.reports.model.Sheet;
+
+/**
+ * <p>Подготовленный к многократному выполнению план формирования отчета.</p>
+ * <p>При создании плана модель отчета однократно копируется, а все области ее шаблонов преобразуются в удобное для отрисовки
+ * представление (только непустые ячейки, заранее определенные выражения и индексы стилей ячеек, координаты объединенных регионов).
+ * Копия модели замораживается (см. {@link Report#freeze()}), а подготовленные области в дальнейшем не изменяются, поэтому один и тот же
+ * экземпляр плана может одновременно использоваться для формирования произвольного количества отчетов в разных потоках.
+ * Все изменяемое в процессе формирования отчета состояние (в том числе признаки отображения листов и секций, изначально
+ * копируемые из замороженной модели) хранится в {@link ExecutionContext} и {@link SectionContext}.</p>
+ * <p><strong>Внимание!</strong> Обработчики событий не могут изменять модель отчета, доступную через {@link ExecutionContext#report}:
+ * любая попытка изменить свойства модели отчета, ее листов или секций приводит к {@link IllegalStateException}.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class ReportPlan {
+
+    private static final AtomicLong GENERATIONS = new AtomicLong(0);
+
+    private final Report report;
+    private final long generation;
+    private final Map<Area, AreaPlan> areas;
+    private boolean aggregatesRequired;
+
+    /**
+     * @param report  модель отчета. Последующие изменения в этой модели не затрагивают созданный план.
+     * @throws CloneNotSupportedException  в случае проблем с копированием модели отчета.
+     */
+    public ReportPlan(final Report report) throws CloneNotSupportedException {
+        if (report==null)
+            throw new IllegalArgumentException("Report model must be specified");
+        this.report = new Report(null, report);
+        this.generation = GENERATIONS.incrementAndGet();
+        this.areas = new IdentityHashMap<Area, AreaPlan>();
+        for (Sheet sheet : this.report.getSheets()) {
+            for (Section section : sheet.getSections()) {
+                compile(section);
+            }
+        }
+        this.report.freeze();
+    }
+
+    /**
+     * @return  замороженная копия модели отчета, на основе которой был построен данный план.
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    /**
+     * Возвращает уникальный в пределах JVM номер данного плана. Каждый подготовленный план (в том числе повторно подготовленный
+     * по той же модели отчета) получает новый номер, что позволяет отличать результаты, полученные по разным редакциям модели отчета.
+     *
+     * @return  номер поколения плана.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Возвращает <code>true</code> если в шаблонах отчета есть макросы, в аргументах которых явно запрошено вычисление итоговых
+     * значений в процессе формирования отчета (см. {@link org.echosoft.framework.reports.model.AggregationMode}).
+     * Учитываются только ячейки шаблона, содержимое которых не зависит от данных отчета.
+     *
+     * @return  <code>true</code> если при формировании отчета требуется накапливать итоговые значения по отрисованным ячейкам.
+     */
+    public boolean isAggregatesRequired() {
+        return aggregatesRequired;
+    }
+
+    /**
+     * Возвращает подготовленное к отрисовке представление указанной области шаблона.
+     * Для областей, не входящих в модель отчета данного плана, представление строится заново при каждом вызове.
+     *
+     * @param area  область шаблона отчета.
+     * @return  подготовленное к отрисовке представление области.
+     */
+    AreaPlan getArea(final Area area) {
+        final AreaPlan result = areas.get(area);
+        return result!=null ? result : new AreaPlan(area);
+    }
+
+    private void compile(final Section section) {
+        if (section instanceof PlainSection) {
+            compile(((PlainSection)section).getTemplate());
+        } else
+        if (section instanceof GroupingSection) {
+            compile(((GroupingSection)section).getRowTemplate());
+            for (GroupModel group : ((GroupingSection)section).getGroups()) {
+                compile(group);
+            }
+        } else
+        if (section instanceof CompositeSection) {
+            for (GroupModel group : ((CompositeSection)section).getGroups()) {
+                compile(group);
+            }
+            for (Section child : ((CompositeSection)section).getSections()) {
+                compile(child);
+            }
+        }
+    }
+
+    private void compile(final GroupModel group) {
+        group.getDefaultStyle();    // инициализируем лениво вычисляемые свойства группы до начала ее использования в разных потоках.
+        group.getColumnsCount();
+        for (GroupStyle style : group.getStyles()) {
+            compile(style.getTemplate());
+        }
+    }
+
+    private void compile(final Area area) {
+        if (area!=null && !areas.containsKey(area)) {
+            final AreaPlan plan = new AreaPlan(area);
+            areas.put(area, plan);
+            aggregatesRequired |= plan.aggregates;
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return "[ReportPlan{report:"+report.getId()+", areas:"+areas.size()+"}]";
+    }
+}
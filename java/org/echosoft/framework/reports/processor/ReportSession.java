@@ -0,0 +1,423 @@
+package org.echosoft.framework.reports.processor;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.echosoft.framework.reports.util.Logs;
+
+/**
+ * <p>Сеанс работы с базами данных, общий для всех секций и листов одного формируемого отчета (см. {@link ExcelReportProcessor#setBoundConnections(int)}).</p>
+ * <p>Для каждого источника данных, к которому обращаются поставщики данных отчета, сеанс единожды открывает фиксированное количество соединений
+ * и закрепляет их за отчетом на все время его формирования. Соединения открываются в режиме "только чтение", в транзакции с указанным уровнем
+ * изоляции (по умолчанию {@link Connection#TRANSACTION_REPEATABLE_READ}), так что при использовании одного соединения все секции отчета
+ * видят одно и то же согласованное состояние БД. Подготовленные SQL запросы ({@link PreparedStatement}) после закрытия не уничтожаются,
+ * а повторно используются последующими обращениями к тому же соединению с тем же текстом запроса.</p>
+ * <p>В каждый момент времени соединение используется только одним потоком. Поток, запросивший соединение, получает его в монопольное
+ * пользование до тех пор, пока не закроет все полученные им экземпляры этого соединения (физически соединение при этом не закрывается).
+ * Повторные запросы соединения тем же потоком (например, для вложенных секций отчета) возвращают то же самое соединение. Если все соединения
+ * заняты другими потоками, то поток приостанавливается до освобождения одного из них.</p>
+ * <p>Помимо этого, сеанс хранит тексты SQL запросов, загруженных из ресурсов приложения
+ * (см. {@link org.echosoft.framework.reports.model.providers.SQLDataProviderHolder#getSQLReference()}).</p>
+ * <p>По окончании формирования отчета сеанс закрывается: транзакции откатываются, а все соединения закрываются.
+ * Экземпляры данного класса могут одновременно использоваться несколькими потоками, однако поток не должен ожидать другой поток, удерживая
+ * при этом полученное соединение (поэтому в данном режиме записи поставщиков данных всегда читаются в потоке формирования отчета,
+ * см. {@link ExcelReportProcessor#setBoundConnections(int)}).</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class ReportSession {
+
+    /**
+     * Максимальное количество неиспользуемых подготовленных запросов с одинаковым текстом, хранимых для каждого соединения.
+     */
+    private static final int MAX_IDLE_STATEMENTS = 4;
+
+    private final int connections;
+    private final int isolation;
+    private final Map<DataSource, BoundDataSource> sources;
+    private final ConcurrentMap<String,String> resources;
+    private volatile boolean closed;
+
+    /**
+     * @param connections  количество соединений, открываемых для каждого источника данных.
+     * @param isolation  уровень изоляции транзакций (см. {@link Connection#setTransactionIsolation(int)}).
+     */
+    public ReportSession(final int connections, final int isolation) {
+        if (connections<1)
+            throw new IllegalArgumentException("Connections count must be positive");
+        this.connections = connections;
+        this.isolation = isolation;
+        this.sources = new IdentityHashMap<DataSource, BoundDataSource>();
+        this.resources = new ConcurrentHashMap<String,String>();
+    }
+
+    /**
+     * Возвращает источник данных, выдающий вместо новых соединений соединения, закрепленные за данным сеансом.
+     *
+     * @param ds  исходный источник данных.
+     * @return  источник данных, закрепленный за данным сеансом.
+     */
+    public DataSource bind(final DataSource ds) {
+        synchronized (sources) {
+            if (closed)
+                throw new IllegalStateException("Session already closed");
+            BoundDataSource result = sources.get(ds);
+            if (result==null) {
+                result = new BoundDataSource(ds);
+                sources.put(ds, result);
+            }
+            return result.proxy;
+        }
+    }
+
+    /**
+     * @param ref  ссылка на ресурс приложения.
+     * @return  загруженное ранее в рамках данного сеанса содержимое ресурса или <code>null</code>.
+     */
+    public String getResource(final String ref) {
+        return resources.get(ref);
+    }
+
+    /**
+     * Запоминает содержимое ресурса приложения до окончания данного сеанса.
+     *
+     * @param ref  ссылка на ресурс приложения.
+     * @param content  содержимое ресурса.
+     */
+    public void putResource(final String ref, final String content) {
+        resources.put(ref, content);
+    }
+
+    /**
+     * @return  общее количество соединений, открытых данным сеансом.
+     */
+    public int getOpenedConnections() {
+        int result = 0;
+        synchronized (sources) {
+            for (BoundDataSource source : sources.values()) {
+                result += source.opened();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Откатывает транзакции и закрывает все соединения, открытые данным сеансом.
+     */
+    public void close() {
+        final List<BoundDataSource> sources;
+        synchronized (this.sources) {
+            if (closed)
+                return;
+            closed = true;
+            sources = new ArrayList<BoundDataSource>(this.sources.values());
+            this.sources.clear();
+        }
+        for (BoundDataSource source : sources) {
+            source.close();
+        }
+        resources.clear();
+    }
+
+
+    private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    /**
+     * Источник данных, выдающий закрепленные за сеансом соединения в монопольное пользование запросившим их потокам.
+     */
+    private final class BoundDataSource implements InvocationHandler {
+        private final DataSource ds;
+        private final DataSource proxy;
+        private final BoundConnection[] pool;
+
+        private BoundDataSource(final DataSource ds) {
+            this.ds = ds;
+            this.proxy = (DataSource)Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class[]{DataSource.class}, this);
+            this.pool = new BoundConnection[connections];
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final String name = method.getName();
+            if ("getConnection".equals(name))
+                return acquire();
+            if ("equals".equals(name))
+                return proxy==args[0];
+            if ("hashCode".equals(name))
+                return System.identityHashCode(proxy);
+            if ("toString".equals(name))
+                return "[BoundDataSource{" + ds + "}]";
+            return ReportSession.invoke(ds, method, args);
+        }
+
+        /**
+         * Возвращает соединение, уже принадлежащее текущему потоку, либо любое свободное соединение. Если все соединения заняты
+         * другими потоками, то ожидает освобождения одного из них.
+         */
+        private Connection acquire() throws SQLException {
+            final Thread thread = Thread.currentThread();
+            synchronized (pool) {
+                while (true) {
+                    if (closed)
+                        throw new SQLException("Report session already closed");
+                    BoundConnection result = null;
+                    for (BoundConnection conn : pool) {
+                        if (conn!=null && conn.owner==thread) {
+                            result = conn;
+                            break;
+                        }
+                    }
+                    for (int i=0; i<pool.length && result==null; i++) {
+                        if (pool[i]==null) {
+                            result = pool[i] = new BoundConnection(this, open());
+                        } else
+                        if (pool[i].owner==null) {
+                            result = pool[i];
+                        }
+                    }
+                    if (result!=null) {
+                        result.owner = thread;
+                        result.leases++;
+                        return new Lease(result).proxy;
+                    }
+                    try {
+                        pool.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for connection", e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Вызывается при закрытии очередного экземпляра соединения. Когда закрыты все выданные потоку экземпляры,
+         * соединение становится доступным другим потокам.
+         */
+        private void release(final BoundConnection conn) {
+            synchronized (pool) {
+                if (--conn.leases==0) {
+                    conn.owner = null;
+                    pool.notifyAll();
+                }
+            }
+        }
+
+        private Connection open() throws SQLException {
+            final Connection conn = ds.getConnection();
+            try {
+                conn.setAutoCommit(false);
+                conn.setReadOnly(true);
+                if (conn.getMetaData().supportsTransactionIsolationLevel(isolation)) {
+                    conn.setTransactionIsolation(isolation);
+                } else
+                if (conn.getMetaData().supportsTransactionIsolationLevel(Connection.TRANSACTION_SERIALIZABLE)) {
+                    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+                } else {
+                    Logs.reports.warn("transaction isolation level "+isolation+" is not supported by "+ds);
+                }
+            } catch (SQLException e) {
+                conn.close();
+                throw e;
+            }
+            return conn;
+        }
+
+        private int opened() {
+            int result = 0;
+            synchronized (pool) {
+                for (BoundConnection conn : pool) {
+                    if (conn!=null)
+                        result++;
+                }
+            }
+            return result;
+        }
+
+        private void close() {
+            synchronized (pool) {
+                for (int i=0; i<pool.length; i++) {
+                    if (pool[i]!=null) {
+                        pool[i].close();
+                        pool[i] = null;
+                    }
+                }
+                pool.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Соединение, закрепленное за сеансом, и кэш подготовленных для него запросов.
+     */
+    private final class BoundConnection {
+        private final BoundDataSource source;
+        private final Connection conn;
+        private final Map<List<Object>, LinkedList<PreparedStatement>> statements;
+        private Thread owner;       // доступ только под блокировкой source.pool
+        private int leases;         // доступ только под блокировкой source.pool
+
+        private BoundConnection(final BoundDataSource source, final Connection conn) {
+            this.source = source;
+            this.conn = conn;
+            this.statements = new HashMap<List<Object>, LinkedList<PreparedStatement>>();
+        }
+
+        private PreparedStatement prepare(final Connection lease, final Method method, final Object[] args) throws Throwable {
+            final List<Object> key = Arrays.asList(args);
+            PreparedStatement stmt = null;
+            synchronized (statements) {
+                final LinkedList<PreparedStatement> idle = statements.get(key);
+                if (idle!=null && !idle.isEmpty())
+                    stmt = idle.removeFirst();
+            }
+            if (stmt==null)
+                stmt = (PreparedStatement)ReportSession.invoke(conn, method, args);
+            return new CachedStatement(lease, key, stmt).proxy;
+        }
+
+        /**
+         * Возвращает подготовленный запрос в кэш соединения.
+         */
+        private void release(final List<Object> key, final PreparedStatement stmt) throws SQLException {
+            if (!closed) {
+                synchronized (statements) {
+                    LinkedList<PreparedStatement> idle = statements.get(key);
+                    if (idle==null) {
+                        idle = new LinkedList<PreparedStatement>();
+                        statements.put(key, idle);
+                    }
+                    if (idle.size()<MAX_IDLE_STATEMENTS) {
+                        stmt.clearParameters();
+                        idle.addLast(stmt);
+                        return;
+                    }
+                }
+            }
+            stmt.close();
+        }
+
+        private void close() {
+            synchronized (statements) {
+                for (List<PreparedStatement> idle : statements.values()) {
+                    for (PreparedStatement stmt : idle) {
+                        try {
+                            stmt.close();
+                        } catch (SQLException e) {
+                            Logs.reports.warn("unable to close statement: "+e.getMessage());
+                        }
+                    }
+                }
+                statements.clear();
+            }
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                Logs.reports.warn("unable to rollback transaction: "+e.getMessage());
+            }
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                Logs.reports.warn("unable to close connection: "+e.getMessage());
+            }
+        }
+
+        /**
+         * Подготовленный запрос, возвращаемый при закрытии в кэш соединения.
+         */
+        private final class CachedStatement implements InvocationHandler {
+            private final Connection lease;
+            private final List<Object> key;
+            private final PreparedStatement stmt;
+            private final PreparedStatement proxy;
+            private boolean released;
+
+            private CachedStatement(final Connection lease, final List<Object> key, final PreparedStatement stmt) {
+                this.lease = lease;
+                this.key = key;
+                this.stmt = stmt;
+                this.proxy = (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class[]{PreparedStatement.class}, this);
+            }
+
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                final String name = method.getName();
+                if ("close".equals(name)) {
+                    if (!released) {
+                        released = true;
+                        release(key, stmt);
+                    }
+                    return null;
+                }
+                if ("isClosed".equals(name))
+                    return released || stmt.isClosed();
+                if ("getConnection".equals(name))
+                    return lease;
+                if ("equals".equals(name))
+                    return proxy==args[0];
+                if ("hashCode".equals(name))
+                    return System.identityHashCode(proxy);
+                if (released)
+                    throw new SQLException("Statement already closed");
+                return ReportSession.invoke(stmt, method, args);
+            }
+        }
+    }
+
+    /**
+     * Экземпляр соединения, выданный потоку. Закрытие экземпляра возвращает соединение в распоряжение сеанса.
+     */
+    private final class Lease implements InvocationHandler {
+        private final BoundConnection conn;
+        private final Connection proxy;
+        private boolean released;
+
+        private Lease(final BoundConnection conn) {
+            this.conn = conn;
+            this.proxy = (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, this);
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final String name = method.getName();
+            if ("close".equals(name)) {
+                if (!released) {
+                    released = true;
+                    conn.source.release(conn);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name))
+                return released || closed || conn.conn.isClosed();
+            if ("equals".equals(name))
+                return proxy==args[0];
+            if ("hashCode".equals(name))
+                return System.identityHashCode(proxy);
+            if ("toString".equals(name))
+                return "[BoundConnection{" + conn.conn + "}]";
+            if (released)
+                throw new SQLException("Connection already closed");
+            if ("prepareStatement".equals(name))
+                return conn.prepare(this.proxy, method, args);
+            return ReportSession.invoke(conn.conn, method, args);
+        }
+    }
+}
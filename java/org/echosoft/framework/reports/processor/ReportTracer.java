@@ -0,0 +1,33 @@
+package org.echosoft.framework.reports.processor;
+
+/**
+ * <p>Трассировщик, получающий уведомления о каждом отдельном этапе формирования отчета (см. {@link TraceEvent}):
+ * формировании отчета, его листов и секций, обращениях к поставщикам данных, завершении групп записей и вызовах макросов.</p>
+ * <p>В отличие от {@link ReportMetrics}, получающего агрегируемые значения, трассировщик получает информацию о каждом событии
+ * с привязкой ко времени его начала, что позволяет сопоставить затраты на формирование отчета с конкретными листами, секциями
+ * и диапазонами строк шаблона отчета. Информация о том к какому отчету, листу и секции относится событие содержится в контексте
+ * выполнения.</p>
+ * <p>Если трассировщик не указан (см. {@link ExcelReportProcessor#setTracer(ReportTracer)}), то построитель отчета не выполняет никаких
+ * дополнительных действий. Методы трассировщика вызываются непосредственно в потоке формирования отчета (возможно одновременно
+ * из нескольких потоков), а потому их реализация должна быть потокобезопасной и не должна выполнять длительных операций.</p>
+ *
+ * @see TraceRecorder
+ * @author Anton Sharapov
+ */
+public interface ReportTracer {
+
+    /**
+     * Вызывается по окончании очередного события.
+     *
+     * @param event  тип события.
+     * @param ectx  контекст выполнения задачи.
+     * @param startTime  момент начала события (см. {@link System#nanoTime()}).
+     * @param duration  длительность события в наносекундах.
+     * @param records  количество записей, обработанных в ходе события, или <code>-1</code> если для данного типа события не применимо.
+     * @param firstRow  номер первой строки листа итогового отчета (начиная с 0), затронутой событием, или <code>-1</code>.
+     * @param lastRow  номер последней строки листа итогового отчета (начиная с 0), затронутой событием, или <code>-1</code>.
+     * @param name  имя макроса (для событий {@link TraceEvent#MACROS}), имя свойства группировки (для событий {@link TraceEvent#GROUP})
+     *      или <code>null</code>.
+     */
+    public void trace(TraceEvent event, ExecutionContext ectx, long startTime, long duration, int records, int firstRow, int lastRow, String name);
+}
@@ -0,0 +1,88 @@
+package org.echosoft.framework.reports.processor;
+
+import java.io.IOException;
+
+import org.echosoft.framework.reports.processor.xlsx.XLSXSheet;
+
+/**
+ * <p>Окно строк, используемое при потоковом формировании отчета (см. {@link ExcelReportProcessor#process(org.echosoft.framework.reports.model.Report, org.echosoft.framework.reports.model.el.ELContext, java.io.OutputStream, int)}).</p>
+ * <p>В памяти удерживаются лишь те строки текущего листа, на которые еще может сослаться построитель отчета. Все остальные строки
+ * записываются в выходной поток и удаляются с листа. Размер окна не является фиксированным, строка остается доступной если
+ * выполняется хотя бы одно из следующих условий:
+ * <ul>
+ *  <li> строка входит в число <code>size</code> последних созданных на листе строк;</li>
+ *  <li> строка принадлежит группе, обработка которой еще не завершена в {@link GroupManager} (включая зарезервированные
+ *       в {@link GroupManager#initGroup(ExecutionContext, org.echosoft.framework.reports.model.GroupModel, Object)} строки
+ *       заголовка группы, которые будут заполнены лишь при завершении группы);</li>
+ *  <li> строка принадлежит еще не обработанной до конца секции, для которой по окончании обработки требуется
+ *       скрыть или сгруппировать все ее строки (а также строка, непосредственно предшествующая такой секции, поскольку в ней
+ *       сохраняется признак свертки группы строк).</li>
+ * </ul>
+ * Сброс строк осуществляется только между отрисовкой областей шаблона, поэтому объединенные области ячеек, создаваемые в
+ * {@link ExcelReportProcessor#renderArea(ExecutionContext, org.echosoft.framework.reports.model.Area, int)}, никогда не ссылаются на уже сброшенные строки.
+ * </p>
+ *
+ * @author Anton Sharapov
+ */
+public final class RowWindow {
+
+    /**
+     * Количество последних строк листа, которые всегда остаются доступными, используемое по умолчанию.
+     */
+    public static final int DEFAULT_SIZE = 100;
+
+    private final int size;
+
+    /**
+     * @param size  количество последних строк листа, которые всегда должны оставаться доступными. Должно быть больше нуля.
+     */
+    public RowWindow(final int size) {
+        if (size<1)
+            throw new IllegalArgumentException("Window size must be positive");
+        this.size = size;
+    }
+
+    /**
+     * @return количество последних строк листа, которые всегда остаются доступными.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Возвращает номер первой строки листа, на которую еще может сослаться построитель отчета
+     * (с учетом незавершенных групп и секций).
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @return номер первой строки, которую нельзя выгружать из памяти.
+     */
+    public int getPinnedRow(final ExecutionContext ectx) {
+        int result = ectx.getNewRowNum();
+        for (SectionContext sctx=ectx.sectionContext; sctx!=null; sctx=sctx.parent) {
+            if (sctx.hidden || sctx.collapsible) {
+                result = Math.min(result, Math.max(sctx.sectionFirstRow-1, 0));
+            }
+            if (sctx.gm!=null) {
+                final Group group = sctx.gm.getProcessingGroups().isEmpty() ? null : sctx.gm.getProcessingGroups().get(0);
+                if (group!=null)
+                    result = Math.min(result, group.startRow);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Записывает в выходной поток все строки текущего листа которые более не могут быть затронуты построителем отчета
+     * и удаляет их из памяти.
+     *
+     * @param ectx  контекст выполнения задачи.
+     * @throws IOException  в случае проблем с записью в выходной поток.
+     */
+    public void flush(final ExecutionContext ectx) throws IOException {
+        final XLSXSheet sheet = (XLSXSheet)ectx.wsheet;
+        final int limit = Math.min(getPinnedRow(ectx), ectx.getNewRowNum() - size);
+        if (limit > sheet.getFlushedRowsCount()) {
+            sheet.flushRows(limit);
+        }
+    }
+}
@@ -30,6 +30,30 @@ public final class SectionContext {
      */
     public final Section section;
 
+    /**
+     * Признак необходимости отрисовки секции в данном отчете. Изначально берется из модели секции,
+     * обработчики события 'before-section' могут изменить его значение.
+     */
+    public boolean rendered;
+
+    /**
+     * Признак того что все строки секции должны быть скрыты от пользователя. Изначально берется из модели секции,
+     * обработчики событий секции могут изменить его значение вплоть до окончания обработки секции.
+     */
+    public boolean hidden;
+
+    /**
+     * Признак того что все строки секции должны быть сгруппированы. Изначально берется из модели секции,
+     * обработчики событий секции могут изменить его значение вплоть до окончания обработки секции.
+     */
+    public boolean collapsible;
+
+    /**
+     * Признак того что сгруппированные строки секции должны быть свернуты. Изначально берется из модели секции,
+     * обработчики событий секции могут изменить его значение вплоть до окончания обработки секции.
+     */
+    public boolean collapsed;
+
     /**
      * Ассоциированный с текущей секцией список подписчиков на событие "отрисовка ячейки".
      */
@@ -75,14 +99,30 @@ public final class SectionContext {
      */
     public int record;
 
+    /**
+     * Количество ячеек, отрисованных в отчете непосредственно данной секцией (без учета вложенных в нее секций).
+     */
+    public long cells;
+
     /**
      * Переменные окружения время жизни которых ограничено временем обработки данной секции.
      */
     private Map<String,Object> env;
 
+    /**
+     * Итоги по значениям ячеек секции, накопленные отдельно для каждой строки шаблона записи (элемент массива с индексом <code>i</code>
+     * содержит итоги по <code>i</code>-м строкам всех записей секции). Накапливаются только для простых секций с источником данных и
+     * только в том случае, если в отчете используются макросы, вычисляющие итоговые значения в процессе формирования отчета.
+     */
+    private Aggregates[] totals;
+
     public SectionContext(final SectionContext parent, final Section section, final int firstRow, final ELContext elctx) {
         this.parent = parent;
         this.section = section;
+        this.rendered = section.isRendered();
+        this.hidden = section.isHidden();
+        this.collapsible = section.isCollapsible();
+        this.collapsed = section.isCollapsed();
         this.sectionListeners = new ArrayList<SectionEventListener>();
         for (SectionEventListenerHolder holder : section.getSectionListeners()) {
             final SectionEventListener listener = holder.getListener(elctx);
@@ -99,6 +139,28 @@ public final class SectionContext {
         this.recordFirstRow = firstRow;
     }
 
+    /**
+     * Возвращает итоги по значениям ячеек, расположенных в указанной строке каждой записи секции.
+     *
+     * @param row  индекс строки (начиная с 0) относительно первой строки записи.
+     * @param create  если <code>true</code> то в случае отсутствия итогов по данной строке они будут созданы.
+     * @return  итоговые значения по колонкам листа или <code>null</code> если итоги по данной строке не накапливались
+     *          (и аргумент <code>create</code> равен <code>false</code>).
+     */
+    public Aggregates getRecordTotals(final int row, final boolean create) {
+        if (totals==null || row>=totals.length) {
+            if (!create)
+                return null;
+            final Aggregates[] tmp = new Aggregates[Math.max(row+1, section.getTemplateRowsCount())];
+            if (totals!=null)
+                System.arraycopy(totals, 0, tmp, 0, totals.length);
+            totals = tmp;
+        }
+        if (totals[row]==null && create)
+            totals[row] = new Aggregates();
+        return totals[row];
+    }
+
     /**
      * Возвращает значение переменной окружения время жизни которой ограничено временем обработки данной секции.
      * @param name  имя переменной.
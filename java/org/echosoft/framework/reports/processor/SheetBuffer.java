@@ -0,0 +1,286 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.poi.hssf.usermodel.HSSFPrintSetup;
+import org.apache.poi.hssf.usermodel.HSSFRichTextString;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.hssf.util.PaneInformation;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.PrintSetup;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.echosoft.framework.reports.model.Sheet;
+import org.echosoft.framework.reports.processor.xlsx.XLSXCell;
+import org.echosoft.framework.reports.processor.xlsx.XLSXRow;
+import org.echosoft.framework.reports.processor.xlsx.XLSXSheet;
+import org.echosoft.framework.reports.processor.xlsx.XLSXWorkbook;
+import org.echosoft.framework.reports.util.FormulaCache;
+
+/**
+ * <p>Промежуточный буфер, в котором формируется один лист отчета при параллельном формировании листов.</p>
+ * <p>Лист формируется в собственной книге {@link XLSXWorkbook}, которая целиком хранится в памяти и построена на основе
+ * собственной копии шаблона отчета. Поскольку все копии шаблона содержат одни и те же стили ячеек под одними и теми же
+ * индексами, то по окончании формирования содержимое листа может быть перенесено в итоговую книгу отчета
+ * (см. {@link #copyTo(org.apache.poi.ss.usermodel.Sheet)}) с сохранением оформления ячеек. Стили и шрифты, созданные в процессе
+ * формирования листа, при переносе копируются в итоговую книгу.</p>
+ * <p><strong>Внимание!</strong> Группировки колонок и защита листа, установленные обработчиками событий, при переносе не сохраняются
+ * (сохраняются лишь те, что описаны в модели листа).</p>
+ *
+ * @author Anton Sharapov
+ */
+final class SheetBuffer {
+
+    /**
+     * Модель формируемого листа.
+     */
+    final Sheet sheet;
+
+    /**
+     * Контекст формирования данного листа.
+     */
+    final ExecutionContext ectx;
+
+    private final XLSXWorkbook wb;
+    private final int baseStyles;
+    private final int baseFonts;
+    private final Map<Short,CellStyle> copiedStyles;
+    private final Map<Short,Short> copiedFonts;
+
+    SheetBuffer(final ExecutionContext parent, final Sheet sheet, final HSSFWorkbook template, final Map<Short,CellStyle> styles) {
+        this.sheet = sheet;
+        this.wb = new XLSXWorkbook(template);
+        this.baseStyles = template.getNumCellStyles();
+        this.baseFonts = template.getNumberOfFonts();
+        this.copiedStyles = new HashMap<Short,CellStyle>();
+        this.copiedFonts = new HashMap<Short,Short>();
+        this.ectx = new ExecutionContext(parent, parent.elctx.cloneContext(), wb, styles);
+        this.ectx.elctx.getVariables().put(ExcelReportProcessor.VAR_CONTEXT, this.ectx);
+    }
+
+    /**
+     * @return сформированный лист или <code>null</code> если лист не должен присутствовать в итоговом отчете.
+     */
+    XLSXSheet getSheet() {
+        return wb.getNumberOfSheets()>0 ? wb.getSheetAt(0) : null;
+    }
+
+    /**
+     * Переносит содержимое сформированного листа (строки, ячейки, объединенные области и группировки строк) и его настройки
+     * (ширина, видимость и стили колонок, области закрепления, разрывы страниц, колонтитулы, поля и параметры печати)
+     * на указанный лист итоговой книги.
+     *
+     * @param target  лист итоговой книги отчета. Должен быть пустым.
+     */
+    void copyTo(final org.apache.poi.ss.usermodel.Sheet target) {
+        final XLSXSheet source = getSheet();
+        final Workbook twb = target.getWorkbook();
+        final FormulaCache formulas = new FormulaCache();
+        copySettings(source, target, twb);
+        int maxLevel = 0;
+        for (Iterator<Row> it = source.rowIterator(); it.hasNext(); ) {
+            final XLSXRow src = (XLSXRow)it.next();
+            final Row dst = target.createRow(src.getRowNum());
+            if (src.isCustomHeight())
+                dst.setHeight(src.getHeight());
+            if (src.getZeroHeight())
+                dst.setZeroHeight(true);
+            maxLevel = Math.max(maxLevel, src.getOutlineLevel());
+            for (Iterator<Cell> cit = src.cellIterator(); cit.hasNext(); ) {
+                copyCell(cit.next(), dst, twb, formulas);
+            }
+        }
+        for (int i=0, cnt=source.getNumMergedRegions(); i<cnt; i++) {
+            target.addMergedRegion(source.getMergedRegion(i));
+        }
+
+        // уровни группировки строк восстанавливаются последовательной группировкой непрерывных диапазонов строк каждого уровня ...
+        for (int level=1; level<=maxLevel; level++) {
+            int first = -1, last = -1;
+            for (Iterator<Row> it = source.rowIterator(); it.hasNext(); ) {
+                final XLSXRow row = (XLSXRow)it.next();
+                if (row.getOutlineLevel()>=level && row.getRowNum()==last+1 && first>=0) {
+                    last++;
+                } else {
+                    if (first>=0)
+                        target.groupRow(first, last);
+                    first = last = row.getOutlineLevel()>=level ? row.getRowNum() : -1;
+                }
+            }
+            if (first>=0)
+                target.groupRow(first, last);
+        }
+        for (Iterator<Row> it = source.rowIterator(); it.hasNext(); ) {
+            final XLSXRow row = (XLSXRow)it.next();
+            if (row.isCollapsed())
+                target.setRowGroupCollapsed(source.getRowSumsBelow() ? row.getRowNum()-1 : row.getRowNum()+1, true);
+        }
+    }
+
+
+    private void copySettings(final XLSXSheet source, final org.apache.poi.ss.usermodel.Sheet target, final Workbook twb) {
+        target.setDefaultColumnWidth(source.getDefaultColumnWidth());
+        target.setDefaultRowHeight(source.getDefaultRowHeight());
+        for (int c=0, cnt=source.getColumnsCount(); c<cnt; c++) {
+            target.setColumnWidth(c, source.getColumnWidth(c));
+            target.setColumnHidden(c, source.isColumnHidden(c));
+            final CellStyle style = source.getColumnStyle(c);
+            if (style!=null)
+                target.setDefaultColumnStyle(c, translateStyle(style, twb));
+        }
+        target.setDisplayGridlines(source.isDisplayGridlines());
+        target.setDisplayFormulas(source.isDisplayFormulas());
+        target.setDisplayRowColHeadings(source.isDisplayRowColHeadings());
+        target.setDisplayZeros(source.isDisplayZeros());
+        target.setDisplayGuts(source.getDisplayGuts());
+        target.setPrintGridlines(source.isPrintGridlines());
+        target.setFitToPage(source.getFitToPage());
+        target.setAutobreaks(source.getAutobreaks());
+        target.setHorizontallyCenter(source.getHorizontallyCenter());
+        target.setVerticallyCenter(source.getVerticallyCenter());
+        target.setRowSumsBelow(source.getRowSumsBelow());
+        target.setRowSumsRight(source.getRowSumsRight());
+        if (source.getZoom()!=100)
+            target.setZoom(source.getZoom(), 100);
+
+        final PaneInformation pane = source.getPaneInformation();
+        if (pane!=null) {
+            if (pane.isFreezePane()) {
+                target.createFreezePane(pane.getVerticalSplitPosition(), pane.getHorizontalSplitPosition(), pane.getVerticalSplitLeftColumn(), pane.getHorizontalSplitTopRow());
+            } else
+                target.createSplitPane(pane.getVerticalSplitPosition(), pane.getHorizontalSplitPosition(), pane.getVerticalSplitLeftColumn(), pane.getHorizontalSplitTopRow(), pane.getActivePane());
+        }
+        if (source.getTopRow()>0 || source.getLeftCol()>0)
+            target.showInPane(source.getTopRow(), source.getLeftCol());
+        for (int row : source.getRowBreaks()) {
+            target.setRowBreak(row);
+        }
+        for (int column : source.getColumnBreaks()) {
+            target.setColumnBreak(column);
+        }
+
+        target.setMargin(org.apache.poi.ss.usermodel.Sheet.LeftMargin, source.getMargin(org.apache.poi.ss.usermodel.Sheet.LeftMargin));
+        target.setMargin(org.apache.poi.ss.usermodel.Sheet.RightMargin, source.getMargin(org.apache.poi.ss.usermodel.Sheet.RightMargin));
+        target.setMargin(org.apache.poi.ss.usermodel.Sheet.TopMargin, source.getMargin(org.apache.poi.ss.usermodel.Sheet.TopMargin));
+        target.setMargin(org.apache.poi.ss.usermodel.Sheet.BottomMargin, source.getMargin(org.apache.poi.ss.usermodel.Sheet.BottomMargin));
+        target.getHeader().setLeft(source.getHeader().getLeft());
+        target.getHeader().setCenter(source.getHeader().getCenter());
+        target.getHeader().setRight(source.getHeader().getRight());
+        target.getFooter().setLeft(source.getFooter().getLeft());
+        target.getFooter().setCenter(source.getFooter().getCenter());
+        target.getFooter().setRight(source.getFooter().getRight());
+
+        final PrintSetup src = source.getPrintSetup();
+        final PrintSetup dst = target.getPrintSetup();
+        dst.setPaperSize(src.getPaperSize());
+        dst.setScale(src.getScale());
+        dst.setFitWidth(src.getFitWidth());
+        dst.setFitHeight(src.getFitHeight());
+        dst.setPageStart(src.getPageStart());
+        dst.setHeaderMargin(src.getHeaderMargin());
+        dst.setFooterMargin(src.getFooterMargin());
+        dst.setLandscape(src.getLandscape());
+        dst.setLeftToRight(src.getLeftToRight());
+        dst.setNoColor(src.getNoColor());
+        if (src instanceof HSSFPrintSetup && dst instanceof HSSFPrintSetup)
+            ((HSSFPrintSetup)dst).setOptions(((HSSFPrintSetup)src).getOptions());
+        dst.setDraft(src.getDraft());
+        dst.setHResolution(src.getHResolution());
+        dst.setVResolution(src.getVResolution());
+        dst.setNotes(src.getNotes());
+        dst.setUsePage(src.getUsePage());
+        dst.setCopies(src.getCopies());
+        dst.setValidSettings(src.getValidSettings());
+        dst.setNoOrientation(src.getNoOrientation());
+    }
+
+    private void copyCell(final Cell src, final Row row, final Workbook twb, final FormulaCache formulas) {
+        final Cell dst = row.createCell(src.getColumnIndex(), Cell.CELL_TYPE_BLANK);
+        final CellStyle style = translateStyle(src.getCellStyle(), twb);
+        if (style!=null)
+            dst.setCellStyle(style);
+        switch (src.getCellType()) {
+            case Cell.CELL_TYPE_NUMERIC : {
+                dst.setCellValue(src.getNumericCellValue());
+                break;
+            }
+            case Cell.CELL_TYPE_STRING : {
+                dst.setCellValue(translateText(src.getRichStringCellValue(), twb));
+                break;
+            }
+            case Cell.CELL_TYPE_BOOLEAN : {
+                dst.setCellValue(src.getBooleanCellValue());
+                break;
+            }
+            case Cell.CELL_TYPE_FORMULA : {
+                dst.setCellType(Cell.CELL_TYPE_FORMULA);
+                formulas.setCellFormula(dst, src.getCellFormula());
+                if (src instanceof XLSXCell && ((XLSXCell)src).hasCachedFormulaResult())
+                    dst.setCellValue(src.getNumericCellValue());
+                break;
+            }
+            case Cell.CELL_TYPE_ERROR : {
+                dst.setCellErrorValue(src.getErrorCellValue());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Номера шрифтов во фрагментах форматированного текста транслируются так же как и номера стилей ячеек.
+     */
+    private RichTextString translateText(final RichTextString text, final Workbook twb) {
+        if (text.numFormattingRuns()==0 || !(text instanceof HSSFRichTextString))
+            return text;
+        final HSSFRichTextString src = (HSSFRichTextString)text;
+        final RichTextString result = twb.getCreationHelper().createRichTextString(src.getString());
+        for (int i=0, cnt=src.numFormattingRuns(); i<cnt; i++) {
+            final int start = src.getIndexOfFormattingRun(i);
+            final int end = i+1<cnt ? src.getIndexOfFormattingRun(i+1) : src.length();
+            if (start<end)
+                result.applyFont(start, end, translateFont(src.getFontOfFormattingRun(i), twb));
+        }
+        return result;
+    }
+
+    private short translateFont(final short index, final Workbook twb) {
+        if (index<baseFonts)
+            return index;
+        Short result = copiedFonts.get(index);
+        if (result==null) {
+            final Font src = wb.getFontAt(index);
+            final Font dst = twb.createFont();
+            dst.setBoldweight(src.getBoldweight());
+            dst.setCharSet(src.getCharSet());
+            dst.setColor(src.getColor());
+            dst.setFontHeight(src.getFontHeight());
+            dst.setFontName(src.getFontName());
+            dst.setItalic(src.getItalic());
+            dst.setStrikeout(src.getStrikeout());
+            dst.setTypeOffset(src.getTypeOffset());
+            dst.setUnderline(src.getUnderline());
+            result = dst.getIndex();
+            copiedFonts.put(index, result);
+        }
+        return result;
+    }
+
+    private CellStyle translateStyle(final CellStyle style, final Workbook twb) {
+        if (style==null)
+            return null;
+        if (style.getIndex()<baseStyles)
+            return twb.getCellStyleAt(style.getIndex());
+        CellStyle result = copiedStyles.get(style.getIndex());
+        if (result==null) {
+            result = twb.createCellStyle();
+            result.cloneStyleFrom(style);
+            copiedStyles.put(style.getIndex(), result);
+        }
+        return result;
+    }
+}
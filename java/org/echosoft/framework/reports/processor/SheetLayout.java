@@ -0,0 +1,280 @@
+package org.echosoft.framework.reports.processor;
+
+import java.lang.reflect.Method;
+
+import org.apache.poi.hssf.record.RowRecord;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.echosoft.framework.reports.processor.xlsx.XLSXRow;
+import org.echosoft.framework.reports.processor.xlsx.XLSXSheet;
+import org.echosoft.framework.reports.util.Logs;
+
+/**
+ * <p>Накапливает изменения структуры листа итогового отчета (группировки строк, скрытые строки и объединенные области ячеек),
+ * выполняемые в процессе его формирования, и применяет их к листу за один проход по окончании формирования листа.</p>
+ * <p>Каждый вызов {@link Sheet#groupRow(int, int)} для листов формата Excel 97-2003 приводит к полному перебору всех строк листа
+ * (для пересчета ширины области отображения уровней группировки), а свертка группы строк - к поиску ее границ по уровням
+ * группировки соседних строк. При большом количестве вложенных групп затраты на эти операции растут быстрее чем размер отчета.
+ * Данный класс сохраняет все диапазоны в компактных массивах, а по окончании формирования листа вычисляет уровень группировки
+ * каждой строки непосредственно (как количество охватывающих ее диапазонов) и устанавливает его в строку.</p>
+ * <p>При потоковом формировании отчета строки листа выгружаются из памяти по мере формирования, поэтому в этом режиме
+ * (см. {@link #SheetLayout(Sheet, boolean)}) все изменения применяются к листу немедленно.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class SheetLayout {
+
+    private static final int MAX_OUTLINE_LEVEL = 7;
+    private static final Method GET_ROW_RECORD;
+    static {
+        Method method;
+        try {
+            method = HSSFRow.class.getDeclaredMethod("getRowRecord");
+            method.setAccessible(true);
+        } catch (Exception e) {
+            Logs.reports.warn("direct outline levels assignment is not available: "+e.getMessage());
+            method = null;
+        }
+        GET_ROW_RECORD = method;
+    }
+
+    private final Sheet sheet;
+    private final boolean deferred;
+    private int[] groups;       // тройки [первая строка, последняя строка, признак свертки]
+    private int groupsCount;
+    private int[] hidden;       // пары [первая строка, последняя строка]
+    private int hiddenCount;
+    private int[] regions;      // четверки [первая строка, последняя строка, первая колонка, последняя колонка]
+    private int regionsCount;
+
+    /**
+     * @param sheet  лист итогового отчета.
+     * @param deferred  <code>true</code> если изменения должны быть применены к листу лишь при вызове метода {@link #apply()},
+     *      <code>false</code> если изменения должны применяться к листу немедленно.
+     */
+    public SheetLayout(final Sheet sheet, final boolean deferred) {
+        this.sheet = sheet;
+        this.deferred = deferred;
+        this.groups = new int[24];
+        this.hidden = new int[8];
+        this.regions = new int[32];
+    }
+
+    /**
+     * Группирует указанный диапазон строк листа.
+     *
+     * @param firstRow  номер первой строки диапазона (начиная с 0).
+     * @param lastRow  номер последней строки диапазона (начиная с 0).
+     * @param collapsed  <code>true</code> если группа строк должна быть свернута.
+     */
+    public void groupRows(final int firstRow, final int lastRow, final boolean collapsed) {
+        if (!deferred) {
+            sheet.groupRow(firstRow, lastRow);
+            if (collapsed)
+                sheet.setRowGroupCollapsed(firstRow, true);
+            return;
+        }
+        if (groupsCount*3+3 > groups.length)
+            groups = grow(groups);
+        groups[groupsCount*3] = firstRow;
+        groups[groupsCount*3+1] = lastRow;
+        groups[groupsCount*3+2] = collapsed ? 1 : 0;
+        groupsCount++;
+    }
+
+    /**
+     * Скрывает указанный диапазон строк листа.
+     *
+     * @param firstRow  номер первой строки диапазона (начиная с 0).
+     * @param lastRow  номер последней строки диапазона (начиная с 0).
+     */
+    public void hideRows(final int firstRow, final int lastRow) {
+        if (!deferred) {
+            for (int i=firstRow; i<=lastRow; i++) {
+                final Row row = sheet.getRow(i);
+                if (row!=null)
+                    row.setZeroHeight(true);
+            }
+            return;
+        }
+        if (hiddenCount*2+2 > hidden.length)
+            hidden = grow(hidden);
+        hidden[hiddenCount*2] = firstRow;
+        hidden[hiddenCount*2+1] = lastRow;
+        hiddenCount++;
+    }
+
+    /**
+     * Объединяет ячейки указанной области листа.
+     *
+     * @param firstRow  номер первой строки области (начиная с 0).
+     * @param lastRow  номер последней строки области (начиная с 0).
+     * @param firstCol  номер первой колонки области (начиная с 0).
+     * @param lastCol  номер последней колонки области (начиная с 0).
+     */
+    public void addMergedRegion(final int firstRow, final int lastRow, final int firstCol, final int lastCol) {
+        if (!deferred) {
+            sheet.addMergedRegion(new CellRangeAddress(firstRow, lastRow, firstCol, lastCol));
+            return;
+        }
+        if (regionsCount*4+4 > regions.length)
+            regions = grow(regions);
+        regions[regionsCount*4] = firstRow;
+        regions[regionsCount*4+1] = lastRow;
+        regions[regionsCount*4+2] = firstCol;
+        regions[regionsCount*4+3] = lastCol;
+        regionsCount++;
+    }
+
+    /**
+     * Применяет к листу все накопленные изменения. Должен вызываться по окончании формирования листа.
+     */
+    public void apply() {
+        for (int i=0; i<regionsCount; i++) {
+            sheet.addMergedRegion(new CellRangeAddress(regions[i*4], regions[i*4+1], regions[i*4+2], regions[i*4+3]));
+        }
+        regionsCount = 0;
+        if (groupsCount==0 && hiddenCount==0)
+            return;
+        if (!(sheet instanceof XLSXSheet) && (!(sheet instanceof HSSFSheet) || GET_ROW_RECORD==null)) {
+            replay();
+            return;
+        }
+
+        int first = Integer.MAX_VALUE, last = -1;
+        for (int i=0; i<groupsCount; i++) {
+            first = Math.min(first, groups[i*3]);
+            last = Math.max(last, groups[i*3+1]);
+        }
+        for (int i=0; i<hiddenCount; i++) {
+            first = Math.min(first, hidden[i*2]);
+            last = Math.max(last, hidden[i*2+1]);
+        }
+        // разностные массивы: после вычисления префиксных сумм содержат уровень группировки строки и количество скрывающих ее диапазонов ...
+        final int size = last - first + 2;
+        final int[] levels = new int[size];
+        final int[] zeroHeights = new int[size];
+        for (int i=0; i<groupsCount; i++) {
+            final int from = groups[i*3] - first;
+            final int to = groups[i*3+1] - first + 1;
+            levels[from]++;
+            levels[to]--;
+            if (groups[i*3+2]!=0) {
+                zeroHeights[from]++;
+                zeroHeights[to]--;
+            }
+        }
+        for (int i=0; i<hiddenCount; i++) {
+            zeroHeights[hidden[i*2] - first]++;
+            zeroHeights[hidden[i*2+1] - first + 1]--;
+        }
+
+        int level = 0, zeroHeight = 0, maxLevel = 0, maxLevelRow = -1;
+        for (int i=0; i<size-1; i++) {
+            level += levels[i];
+            zeroHeight += zeroHeights[i];
+            if (level==0 && zeroHeight==0)
+                continue;
+            final int rownum = first + i;
+            Row row = sheet.getRow(rownum);
+            if (row==null) {
+                if (level==0)
+                    continue;
+                row = sheet.createRow(rownum);
+            }
+            final int outlineLevel = Math.min(level, MAX_OUTLINE_LEVEL);
+            if (outlineLevel>0)
+                setOutlineLevel(row, outlineLevel);
+            if (outlineLevel>maxLevel) {
+                maxLevel = outlineLevel;
+                maxLevelRow = rownum;
+            }
+            if (zeroHeight>0)
+                row.setZeroHeight(true);
+        }
+
+        for (int i=0; i<groupsCount; i++) {
+            if (groups[i*3+2]==0)
+                continue;
+            // признак свертки сохраняется в итоговой строке группы (аналогично Sheet.setRowGroupCollapsed) ...
+            final int summary = sheet instanceof XLSXSheet && !sheet.getRowSumsBelow() ? groups[i*3]-1 : groups[i*3+1]+1;
+            if (summary<0)
+                continue;
+            Row row = sheet.getRow(summary);
+            if (row==null && sheet instanceof HSSFSheet) {
+                // группа завершает лист: штатная свертка создает итоговую строку лишь на уровне записей листа, не изменяя его размеров ...
+                sheet.setRowGroupCollapsed(groups[i*3+1], true);
+                continue;
+            }
+            if (row==null)
+                row = sheet.createRow(summary);
+            setCollapsed(row);
+        }
+
+        if (sheet instanceof HSSFSheet && maxLevel>0) {
+            // область отображения уровней группировки пересчитывается листом лишь при группировке строк, поэтому одна из строк
+            // с максимальным уровнем группировки группируется штатным образом ...
+            setOutlineLevel(sheet.getRow(maxLevelRow), maxLevel-1);
+            sheet.groupRow(maxLevelRow, maxLevelRow);
+        }
+        groupsCount = 0;
+        hiddenCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "[SheetLayout{deferred:"+deferred+", groups:"+groupsCount+", hidden:"+hiddenCount+", regions:"+regionsCount+"}]";
+    }
+
+
+    /**
+     * Применяет накопленные изменения к листу посредством штатных методов листа.
+     */
+    private void replay() {
+        for (int i=0; i<hiddenCount; i++) {
+            for (int r=hidden[i*2]; r<=hidden[i*2+1]; r++) {
+                final Row row = sheet.getRow(r);
+                if (row!=null)
+                    row.setZeroHeight(true);
+            }
+        }
+        for (int i=0; i<groupsCount; i++) {
+            sheet.groupRow(groups[i*3], groups[i*3+1]);
+            if (groups[i*3+2]!=0)
+                sheet.setRowGroupCollapsed(groups[i*3], true);
+        }
+        groupsCount = 0;
+        hiddenCount = 0;
+    }
+
+    private static void setOutlineLevel(final Row row, final int level) {
+        if (row instanceof XLSXRow) {
+            ((XLSXRow)row).setOutlineLevel(level);
+        } else
+            getRowRecord(row).setOutlineLevel((short)level);
+    }
+
+    private static void setCollapsed(final Row row) {
+        if (row instanceof XLSXRow) {
+            ((XLSXRow)row).setCollapsed(true);
+        } else
+            getRowRecord(row).setColapsed(true);
+    }
+
+    private static RowRecord getRowRecord(final Row row) {
+        try {
+            return (RowRecord)GET_ROW_RECORD.invoke(row);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static int[] grow(final int[] array) {
+        final int[] result = new int[array.length*2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+}
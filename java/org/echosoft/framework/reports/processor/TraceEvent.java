@@ -0,0 +1,44 @@
+package org.echosoft.framework.reports.processor;
+
+/**
+ * Типы событий, о которых построитель отчета уведомляет трассировщик (см. {@link ReportTracer}).
+ *
+ * @author Anton Sharapov
+ */
+public enum TraceEvent {
+
+    /**
+     * Формирование отчета в целом.
+     */
+    REPORT,
+
+    /**
+     * Формирование очередного листа отчета. Диапазон строк охватывает все строки сформированного листа.
+     */
+    SHEET,
+
+    /**
+     * Обработка очередной секции отчета (включая обработку всех вложенных в нее секций).
+     * Количество записей - количество обработанных записей из источника данных секции.
+     */
+    SECTION,
+
+    /**
+     * Обращение к поставщику данных секции и чтение записей из полученного курсора. Длительность события - суммарное время,
+     * затраченное потоком формирования отчета на обращение к поставщику данных и чтение записей.
+     * Количество записей - количество прочитанных из курсора записей.
+     */
+    PROVIDER,
+
+    /**
+     * Завершение группы записей в группировочной секции (отрисовка группировочной строки, см. {@link GroupManager}).
+     * Диапазон строк охватывает всю группу, количество записей - количество записей непосредственно входящих в данную группу
+     * (но не в ее дочерние группы). Дополнительно передается имя свойства, по которому выполняется группировка.
+     */
+    GROUP,
+
+    /**
+     * Вызов макроса в ячейке отчета. Диапазон строк указывает на строку ячейки, дополнительно передается имя макроса.
+     */
+    MACROS
+}
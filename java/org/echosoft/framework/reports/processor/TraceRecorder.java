@@ -0,0 +1,293 @@
+package org.echosoft.framework.reports.processor;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Реализация {@link ReportTracer}, сохраняющая информацию о последних событиях в кольцевых буферах фиксированного размера.
+ * Каждый поток, регистрирующий события, получает собственный буфер, который выделяется один раз при регистрации первого события
+ * в этом потоке. Регистрация событий не требует создания новых объектов и не приводит к конкуренции потоков за общую блокировку
+ * (буфер потока блокируется лишь на время чтения его содержимого), а потому трассировщик может быть постоянно подключен
+ * к построителю отчетов, одновременно формирующему множество отчетов в рабочем окружении. При заполнении буфера
+ * наиболее старые события вытесняются новыми.</p>
+ * <p>Чтобы снизить затраты и не вытеснять из буфера значимые события, можно указать минимальную длительность регистрируемых
+ * событий (см. {@link #setThreshold(long)}).</p>
+ * <p>Экземпляры данного класса являются потокобезопасными.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class TraceRecorder implements ReportTracer {
+
+    /**
+     * Размер буфера по умолчанию.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final TraceEvent[] EVENTS = TraceEvent.values();
+
+    private final int capacity;
+    private final AtomicLong sequence;                  // порядковый номер следующего регистрируемого события.
+    private final CopyOnWriteArrayList<Buffer> buffers;
+    private final ThreadLocal<Buffer> local;
+    private volatile long cleared;                      // порядковый номер первого события после последней очистки буферов.
+    private volatile long threshold;
+
+    public TraceRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity  максимальное количество хранимых событий (как всего, так и в буфере каждого из потоков).
+     */
+    public TraceRecorder(final int capacity) {
+        if (capacity<=0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+        this.sequence = new AtomicLong(0);
+        this.buffers = new CopyOnWriteArrayList<Buffer>();
+        this.local = new ThreadLocal<Buffer>() {
+            protected Buffer initialValue() {
+                purge();
+                final Buffer buffer = new Buffer(Thread.currentThread(), TraceRecorder.this.capacity);
+                buffers.add(buffer);
+                return buffer;
+            }
+        };
+    }
+
+    /**
+     * @return  минимальная длительность (в наносекундах) регистрируемых событий.
+     */
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Указывает минимальную длительность регистрируемых событий. События меньшей длительности игнорируются.
+     * По умолчанию регистрируются все события.
+     *
+     * @param threshold  минимальная длительность события в наносекундах.
+     */
+    public void setThreshold(final long threshold) {
+        this.threshold = threshold;
+    }
+
+    public void trace(final TraceEvent event, final ExecutionContext ectx, final long startTime, final long duration, final int records, final int firstRow, final int lastRow, final String name) {
+        if (duration<threshold)
+            return;
+        final String report = ectx.report.getId();
+        final String sheet = ectx.sheet!=null ? ectx.sheet.getId() : null;
+        final String section = ectx.sectionContext!=null ? ectx.sectionContext.section.getId() : null;
+        final Buffer buffer = local.get();
+        final long seq = sequence.getAndIncrement();
+        // буфер заполняется лишь потоком-владельцем, поэтому блокировка конкурирует лишь с редкими обращениями на чтение ...
+        synchronized (buffer) {
+            final int pos = (int)(buffer.written++ % capacity);
+            buffer.sequences[pos] = seq;
+            buffer.events[pos] = (byte)event.ordinal();
+            buffer.reports[pos] = report;
+            buffer.sheets[pos] = sheet;
+            buffer.sections[pos] = section;
+            buffer.names[pos] = name;
+            buffer.startTimes[pos] = startTime;
+            buffer.durations[pos] = duration;
+            buffer.records[pos] = records;
+            buffer.firstRows[pos] = firstRow;
+            buffer.lastRows[pos] = lastRow;
+        }
+    }
+
+    /**
+     * @return  общее количество событий, зарегистрированных с момента создания трассировщика или последнего вызова метода {@link #clear()}
+     *      (включая события, вытесненные из буфера).
+     */
+    public long getRecorded() {
+        return sequence.get() - cleared;
+    }
+
+    /**
+     * @return  последние зарегистрированные события (не более <code>capacity</code>), находящиеся в настоящий момент в буферах потоков,
+     *      в порядке их регистрации.
+     */
+    public List<Entry> getEntries() {
+        final long from = Math.max(cleared, sequence.get() - capacity);
+        final TreeMap<Long,Entry> entries = new TreeMap<Long,Entry>();
+        for (Buffer buffer : buffers) {
+            synchronized (buffer) {
+                final int count = (int)Math.min(buffer.written, capacity);
+                for (long i=buffer.written-count; i<buffer.written; i++) {
+                    final int pos = (int)(i % capacity);
+                    final long seq = buffer.sequences[pos];
+                    if (seq<from)
+                        continue;
+                    entries.put(seq, new Entry(EVENTS[buffer.events[pos]], buffer.reports[pos], buffer.sheets[pos], buffer.sections[pos],
+                            buffer.names[pos], buffer.thread, buffer.startTimes[pos], buffer.durations[pos], buffer.records[pos],
+                            buffer.firstRows[pos], buffer.lastRows[pos]));
+                }
+            }
+        }
+        // события, зарегистрированные во время чтения буферов, могли вытеснить из результата более ранние события ...
+        while (entries.size()>capacity) {
+            entries.pollFirstEntry();
+        }
+        final List<Entry> result = new ArrayList<Entry>(entries.size());
+        for (Map.Entry<Long,Entry> entry : entries.entrySet()) {
+            result.add(entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Удаляет из буферов все зарегистрированные события.
+     */
+    public void clear() {
+        cleared = sequence.get();
+        for (Buffer buffer : buffers) {
+            synchronized (buffer) {
+                buffer.clear();
+            }
+        }
+        purge();
+    }
+
+    /**
+     * Формирует текстовое представление всех событий, находящихся в настоящий момент в буфере (по одному событию в строке).
+     *
+     * @return  текстовое представление событий.
+     */
+    public String format() {
+        final List<Entry> entries = getEntries();
+        final StringBuilder out = new StringBuilder(entries.size()*80 + 16);
+        for (Entry entry : entries) {
+            out.append(entry).append('\n');
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "[TraceRecorder{capacity:"+capacity+", recorded:"+getRecorded()+", buffers:"+buffers.size()+", threshold:"+threshold+"}]";
+    }
+
+    /**
+     * Освобождает буферы завершившихся потоков, все события в которых уже вытеснены более поздними событиями других потоков.
+     */
+    private void purge() {
+        final long from = Math.max(cleared, sequence.get() - capacity);
+        for (Buffer buffer : buffers) {
+            final Thread owner = buffer.owner.get();
+            if (owner!=null && owner.isAlive())
+                continue;
+            final boolean obsolete;
+            synchronized (buffer) {
+                obsolete = buffer.written==0 || buffer.sequences[(int)((buffer.written-1) % capacity)] < from;
+            }
+            if (obsolete)
+                buffers.remove(buffer);
+        }
+    }
+
+
+    /**
+     * Кольцевой буфер событий, зарегистрированных одним потоком.
+     */
+    private static final class Buffer {
+        private final WeakReference<Thread> owner;
+        private final long thread;
+        private final long[] sequences;
+        private final byte[] events;
+        private final String[] reports;
+        private final String[] sheets;
+        private final String[] sections;
+        private final String[] names;
+        private final long[] startTimes;
+        private final long[] durations;
+        private final int[] records;
+        private final int[] firstRows;
+        private final int[] lastRows;
+        private long written;
+
+        private Buffer(final Thread owner, final int capacity) {
+            this.owner = new WeakReference<Thread>(owner);
+            this.thread = owner.getId();
+            this.sequences = new long[capacity];
+            this.events = new byte[capacity];
+            this.reports = new String[capacity];
+            this.sheets = new String[capacity];
+            this.sections = new String[capacity];
+            this.names = new String[capacity];
+            this.startTimes = new long[capacity];
+            this.durations = new long[capacity];
+            this.records = new int[capacity];
+            this.firstRows = new int[capacity];
+            this.lastRows = new int[capacity];
+        }
+
+        private void clear() {
+            for (int i=0; i<reports.length; i++) {
+                reports[i] = null;
+                sheets[i] = null;
+                sections[i] = null;
+                names[i] = null;
+            }
+            written = 0;
+        }
+    }
+
+
+    /**
+     * Информация об одном зарегистрированном событии.
+     */
+    public static final class Entry {
+        public final TraceEvent event;
+        public final String report;
+        public final String sheet;
+        public final String section;
+        public final String name;
+        public final long thread;
+        public final long startTime;
+        public final long duration;
+        public final int records;
+        public final int firstRow;
+        public final int lastRow;
+
+        Entry(final TraceEvent event, final String report, final String sheet, final String section, final String name, final long thread,
+              final long startTime, final long duration, final int records, final int firstRow, final int lastRow) {
+            this.event = event;
+            this.report = report;
+            this.sheet = sheet;
+            this.section = section;
+            this.name = name;
+            this.thread = thread;
+            this.startTime = startTime;
+            this.duration = duration;
+            this.records = records;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder out = new StringBuilder(80);
+            out.append(event).append(' ').append(report);
+            if (sheet!=null)
+                out.append('/').append(sheet);
+            if (section!=null)
+                out.append('/').append(section);
+            if (name!=null)
+                out.append(" [").append(name).append(']');
+            out.append(" thread:").append(thread);
+            out.append(" duration:").append(duration/1000).append("us");
+            if (records>=0)
+                out.append(" records:").append(records);
+            if (firstRow>=0)
+                out.append(" rows:").append(firstRow).append('-').append(lastRow);
+            return out.toString();
+        }
+    }
+}
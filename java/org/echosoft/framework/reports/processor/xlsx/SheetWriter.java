@@ -0,0 +1,418 @@
+package org.echosoft.framework.reports.processor.xlsx;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+import org.apache.poi.hssf.util.PaneInformation;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.ErrorConstants;
+import org.apache.poi.ss.usermodel.PrintSetup;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.echosoft.framework.reports.util.POIUtils;
+
+/**
+ * Осуществляет потоковую запись содержимого одного листа отчета в формате SpreadsheetML (Office Open XML).
+ * Строки листа записываются в выходной поток по мере их поступления и после этого более не нуждаются в хранении в памяти.
+ * Экземпляры данного класса создаются исключительно рабочей книгой {@link XLSXWorkbook} для каждого из ее листов.
+ *
+ * @author Anton Sharapov
+ */
+final class SheetWriter {
+
+    private static final int MAX_OUTLINE_LEVEL = 7;
+
+    private final Writer out;
+    private String[] colnames;
+    private int lastRow;
+
+    SheetWriter(final Writer out) {
+        this.out = out;
+        this.colnames = new String[32];
+        this.lastRow = -1;
+    }
+
+    /**
+     * Записывает все что должно предшествовать строкам листа: общие свойства листа, настройки отображения (в том числе области закрепления),
+     * ширины и стили колонок.
+     *
+     * @param sheet  лист итогового отчета.
+     * @throws IOException  в случае проблем с записью в выходной поток.
+     */
+    void writeHeader(final XLSXSheet sheet) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        out.write("<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">");
+        out.write("<sheetPr><outlinePr summaryBelow=\"");
+        out.write(sheet.getRowSumsBelow() ? '1' : '0');
+        out.write("\"/>");
+        if (sheet.getFitToPage())
+            out.write("<pageSetUpPr fitToPage=\"1\"/>");
+        out.write("</sheetPr>");
+        out.write("<sheetViews><sheetView workbookViewId=\"0\"");
+        if (sheet.getZoom()!=100) {
+            out.write(" zoomScale=\"");
+            out.write(Integer.toString(sheet.getZoom()));
+            out.write('"');
+        }
+        if (sheet.getTopRow()>0 || sheet.getLeftCol()>0) {
+            out.write(" topLeftCell=\"");
+            out.write(getColumnName(sheet.getLeftCol()));
+            out.write(Integer.toString(sheet.getTopRow()+1));
+            out.write('"');
+        }
+        final PaneInformation pane = sheet.getPaneInformation();
+        if (pane!=null) {
+            out.write('>');
+            writePane(pane);
+            out.write("</sheetView></sheetViews>");
+        } else
+            out.write("/></sheetViews>");
+        out.write("<sheetFormatPr defaultRowHeight=\"");
+        out.write(Float.toString(sheet.getDefaultRowHeightInPoints()));
+        out.write("\"/>");
+
+        final int columns = sheet.getColumnsCount();
+        if (columns>0) {
+            out.write("<cols>");
+            for (int c=0; c<columns; c++) {
+                out.write("<col min=\"");
+                out.write(Integer.toString(c+1));
+                out.write("\" max=\"");
+                out.write(Integer.toString(c+1));
+                out.write("\" width=\"");
+                out.write(Float.toString(sheet.getColumnWidth(c)/256f));
+                out.write("\" customWidth=\"1\"");
+                if (sheet.isColumnHidden(c))
+                    out.write(" hidden=\"1\"");
+                final CellStyle style = sheet.getColumnStyle(c);
+                if (style!=null && style.getIndex()!=0) {
+                    out.write(" style=\"");
+                    out.write(Integer.toString(style.getIndex()));
+                    out.write('"');
+                }
+                final int level = sheet.getColumnOutlineLevel(c);
+                if (level>0) {
+                    out.write(" outlineLevel=\"");
+                    out.write(Integer.toString(Math.min(level, MAX_OUTLINE_LEVEL)));
+                    out.write('"');
+                }
+                out.write("/>");
+            }
+            out.write("</cols>");
+        }
+        out.write("<sheetData>");
+    }
+
+    /**
+     * Записывает описание области закрепления или разделения листа.
+     * В отличие от формата HSSF, активная часть закрепленной области в SpreadsheetML зависит от направлений закрепления.
+     */
+    private void writePane(final PaneInformation pane) throws IOException {
+        final int xsplit = pane.getVerticalSplitPosition();
+        final int ysplit = pane.getHorizontalSplitPosition();
+        final String active;
+        if (pane.isFreezePane()) {
+            active = xsplit>0 && ysplit>0 ? "bottomRight" : (ysplit>0 ? "bottomLeft" : "topRight");
+        } else {
+            switch (pane.getActivePane()) {
+                case PaneInformation.PANE_LOWER_RIGHT : active = "bottomRight"; break;
+                case PaneInformation.PANE_UPPER_RIGHT : active = "topRight"; break;
+                case PaneInformation.PANE_LOWER_LEFT : active = "bottomLeft"; break;
+                default : active = "topLeft";
+            }
+        }
+        out.write("<pane");
+        if (xsplit>0) {
+            out.write(" xSplit=\"");
+            out.write(Integer.toString(xsplit));
+            out.write('"');
+        }
+        if (ysplit>0) {
+            out.write(" ySplit=\"");
+            out.write(Integer.toString(ysplit));
+            out.write('"');
+        }
+        out.write(" topLeftCell=\"");
+        out.write(getColumnName(pane.getVerticalSplitLeftColumn()));
+        out.write(Integer.toString(pane.getHorizontalSplitTopRow()+1));
+        out.write("\" activePane=\"");
+        out.write(active);
+        out.write("\" state=\"");
+        out.write(pane.isFreezePane() ? "frozen" : "split");
+        out.write("\"/><selection pane=\"");
+        out.write(active);
+        out.write("\"/>");
+    }
+
+    /**
+     * Записывает в выходной поток очередную строку листа. Строки должны поступать строго в порядке возрастания их номеров.
+     *
+     * @param row  строка листа.
+     * @throws IOException  в случае проблем с записью в выходной поток.
+     */
+    void writeRow(final XLSXRow row) throws IOException {
+        final int rownum = row.getRowNum();
+        if (rownum<=lastRow)
+            throw new IllegalStateException("Row "+rownum+" already written");
+        lastRow = rownum;
+        final String rowref = Integer.toString(rownum+1);
+        out.write("<row r=\"");
+        out.write(rowref);
+        out.write('"');
+        if (row.isCustomHeight()) {
+            out.write(" ht=\"");
+            out.write(Float.toString(row.getHeightInPoints()));
+            out.write("\" customHeight=\"1\"");
+        }
+        if (row.getZeroHeight())
+            out.write(" hidden=\"1\"");
+        if (row.getOutlineLevel()>0) {
+            out.write(" outlineLevel=\"");
+            out.write(Integer.toString(Math.min(row.getOutlineLevel(), MAX_OUTLINE_LEVEL)));
+            out.write('"');
+        }
+        if (row.isCollapsed())
+            out.write(" collapsed=\"1\"");
+        if (row.getPhysicalNumberOfCells()==0) {
+            out.write("/>");
+            return;
+        }
+        out.write('>');
+        for (Iterator<Cell> it = row.cellIterator(); it.hasNext(); ) {
+            writeCell(it.next(), rowref);
+        }
+        out.write("</row>");
+    }
+    private void writeCell(final Cell cell, final String rowref) throws IOException {
+        out.write("<c r=\"");
+        out.write(getColumnName(cell.getColumnIndex()));
+        out.write(rowref);
+        out.write('"');
+        final CellStyle style = cell.getCellStyle();
+        if (style!=null && style.getIndex()!=0) {
+            out.write(" s=\"");
+            out.write(Integer.toString(style.getIndex()));
+            out.write('"');
+        }
+        switch (cell.getCellType()) {
+            case Cell.CELL_TYPE_NUMERIC : {
+                out.write("><v>");
+                writeNumber(out, cell.getNumericCellValue());
+                out.write("</v></c>");
+                break;
+            }
+            case Cell.CELL_TYPE_STRING : {
+                out.write(" t=\"inlineStr\"><is><t xml:space=\"preserve\">");
+                escape(out, cell.getStringCellValue());
+                out.write("</t></is></c>");
+                break;
+            }
+            case Cell.CELL_TYPE_FORMULA : {
+                out.write("><f>");
+                escape(out, cell.getCellFormula());
+                if (cell instanceof XLSXCell && ((XLSXCell)cell).hasCachedFormulaResult()) {
+                    out.write("</f><v>");
+                    writeNumber(out, cell.getNumericCellValue());
+                    out.write("</v></c>");
+                } else
+                    out.write("</f></c>");
+                break;
+            }
+            case Cell.CELL_TYPE_BOOLEAN : {
+                out.write(" t=\"b\"><v>");
+                out.write(cell.getBooleanCellValue() ? '1' : '0');
+                out.write("</v></c>");
+                break;
+            }
+            case Cell.CELL_TYPE_ERROR : {
+                final byte code = cell.getErrorCellValue();
+                out.write(" t=\"e\"><v>");
+                out.write(ErrorConstants.isValidCode(code) ? ErrorConstants.getText(code) : "#N/A");
+                out.write("</v></c>");
+                break;
+            }
+            default : {
+                out.write("/>");
+            }
+        }
+    }
+
+    /**
+     * Записывает все что должно следовать за строками листа: защиту листа, объединенные области ячеек, параметры печати и разрывы страниц.
+     *
+     * @param sheet  лист итогового отчета.
+     * @throws IOException  в случае проблем с записью в выходной поток.
+     */
+    void writeFooter(final XLSXSheet sheet) throws IOException {
+        out.write("</sheetData>");
+        if (sheet.getProtect()) {
+            out.write("<sheetProtection password=\"");
+            out.write(Integer.toHexString(sheet.getPassword() & 0xFFFF).toUpperCase());
+            out.write("\" sheet=\"1\" objects=\"1\" scenarios=\"1\"/>");
+        }
+        final int regions = sheet.getNumMergedRegions();
+        if (regions>0) {
+            out.write("<mergeCells count=\"");
+            out.write(Integer.toString(regions));
+            out.write("\">");
+            for (int i=0; i<regions; i++) {
+                final CellRangeAddress range = sheet.getMergedRegion(i);
+                out.write("<mergeCell ref=\"");
+                out.write(getColumnName(range.getFirstColumn()));
+                out.write(Integer.toString(range.getFirstRow()+1));
+                out.write(':');
+                out.write(getColumnName(range.getLastColumn()));
+                out.write(Integer.toString(range.getLastRow()+1));
+                out.write("\"/>");
+            }
+            out.write("</mergeCells>");
+        }
+        final PrintSetup ps = sheet.getPrintSetup();
+        out.write("<pageMargins left=\"");
+        out.write(Double.toString(sheet.getMargin(Sheet.LeftMargin)));
+        out.write("\" right=\"");
+        out.write(Double.toString(sheet.getMargin(Sheet.RightMargin)));
+        out.write("\" top=\"");
+        out.write(Double.toString(sheet.getMargin(Sheet.TopMargin)));
+        out.write("\" bottom=\"");
+        out.write(Double.toString(sheet.getMargin(Sheet.BottomMargin)));
+        out.write("\" header=\"");
+        out.write(Double.toString(ps.getHeaderMargin()));
+        out.write("\" footer=\"");
+        out.write(Double.toString(ps.getFooterMargin()));
+        out.write("\"/>");
+        if (ps.getValidSettings()) {
+            out.write("<pageSetup paperSize=\"");
+            out.write(Integer.toString(ps.getPaperSize()));
+            out.write("\" scale=\"");
+            out.write(Integer.toString(ps.getScale()));
+            if (ps.getUsePage()) {
+                out.write("\" firstPageNumber=\"");
+                out.write(Integer.toString(ps.getPageStart()));
+                out.write("\" useFirstPageNumber=\"1");
+            }
+            out.write("\" fitToWidth=\"");
+            out.write(Integer.toString(ps.getFitWidth()));
+            out.write("\" fitToHeight=\"");
+            out.write(Integer.toString(ps.getFitHeight()));
+            out.write("\" pageOrder=\"");
+            out.write(ps.getLeftToRight() ? "overThenDown" : "downThenOver");
+            out.write("\" orientation=\"");
+            out.write(ps.getLandscape() ? "landscape" : "portrait");
+            out.write('"');
+            if (ps.getNoColor())
+                out.write(" blackAndWhite=\"1\"");
+            if (ps.getDraft())
+                out.write(" draft=\"1\"");
+            out.write("/>");
+        }
+        final String header = makeHeaderFooter(sheet.getHeader().getLeft(), sheet.getHeader().getCenter(), sheet.getHeader().getRight());
+        final String footer = makeHeaderFooter(sheet.getFooter().getLeft(), sheet.getFooter().getCenter(), sheet.getFooter().getRight());
+        if (header!=null || footer!=null) {
+            out.write("<headerFooter>");
+            if (header!=null) {
+                out.write("<oddHeader>");
+                escape(out, header);
+                out.write("</oddHeader>");
+            }
+            if (footer!=null) {
+                out.write("<oddFooter>");
+                escape(out, footer);
+                out.write("</oddFooter>");
+            }
+            out.write("</headerFooter>");
+        }
+        writeBreaks("rowBreaks", sheet.getRowBreaks(), XLSXSheet.MAX_COLUMNS-1);
+        writeBreaks("colBreaks", sheet.getColumnBreaks(), XLSXSheet.MAX_ROWS-1);
+        out.write("</worksheet>");
+    }
+
+
+    private void writeBreaks(final String tag, final int[] breaks, final int max) throws IOException {
+        if (breaks.length==0)
+            return;
+        final String count = Integer.toString(breaks.length);
+        out.write('<');
+        out.write(tag);
+        out.write(" count=\"");
+        out.write(count);
+        out.write("\" manualBreakCount=\"");
+        out.write(count);
+        out.write("\">");
+        for (int brk : breaks) {
+            out.write("<brk id=\"");
+            out.write(Integer.toString(brk));
+            out.write("\" max=\"");
+            out.write(Integer.toString(max));
+            out.write("\" man=\"1\"/>");
+        }
+        out.write("</");
+        out.write(tag);
+        out.write('>');
+    }
+
+    private String getColumnName(final int col) {
+        if (col>=colnames.length) {
+            final String[] tmp = new String[Math.max(col+1, colnames.length*2)];
+            System.arraycopy(colnames, 0, tmp, 0, colnames.length);
+            colnames = tmp;
+        }
+        String result = colnames[col];
+        if (result==null) {
+            result = POIUtils.getColumnName(col);
+            colnames[col] = result;
+        }
+        return result;
+    }
+
+    private static String makeHeaderFooter(final String left, final String center, final String right) {
+        if ((left==null || left.length()==0) && (center==null || center.length()==0) && (right==null || right.length()==0))
+            return null;
+        final StringBuilder buf = new StringBuilder(32);
+        if (left!=null && left.length()>0)
+            buf.append("&L").append(left);
+        if (center!=null && center.length()>0)
+            buf.append("&C").append(center);
+        if (right!=null && right.length()>0)
+            buf.append("&R").append(right);
+        return buf.toString();
+    }
+
+    /**
+     * Записывает число в формате требуемом спецификацией SpreadsheetML.
+     * Целые числа записываются без дробной части.
+     */
+    static void writeNumber(final Writer out, final double value) throws IOException {
+        if (value==Math.rint(value) && Math.abs(value)<1e15) {
+            out.write(Long.toString((long)value));
+        } else {
+            out.write(Double.toString(value));
+        }
+    }
+
+    /**
+     * Записывает в выходной поток текст, экранируя в нем все символы, недопустимые в тексте документа XML.
+     */
+    static void escape(final Writer out, final String text) throws IOException {
+        if (text==null)
+            return;
+        for (int i=0, len=text.length(); i<len; i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '<' : out.write("&lt;"); break;
+                case '>' : out.write("&gt;"); break;
+                case '&' : out.write("&amp;"); break;
+                case '"' : out.write("&quot;"); break;
+                case '\t' :
+                case '\n' :
+                case '\r' : out.write(c); break;
+                default : {
+                    if (c>=0x20)
+                        out.write(c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package org.echosoft.framework.reports.processor.xlsx;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.hssf.usermodel.HSSFFont;
+import org.apache.poi.hssf.usermodel.HSSFPalette;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.hssf.util.HSSFColor;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * <p>Осуществляет потоковую запись итогового отчета в формате Office Open XML (<code>.xlsx</code>).</p>
+ * <p>Содержимое листов отчета записывается в выходной поток по мере их формирования (см. {@link SheetWriter}), а все остальные
+ * части документа (описание книги, стили, свойства документа) записываются по окончании формирования отчета в методе
+ * {@link #finish(XLSXWorkbook)}.</p>
+ * <p>Строковые значения ячеек записываются непосредственно в ячейках (inline strings), что позволяет не хранить в памяти
+ * таблицу всех использованных в отчете строк.</p>
+ *
+ * @author Anton Sharapov
+ */
+final class WorkbookWriter {
+
+    private static final String[] BORDERS = {"none", "thin", "medium", "dashed", "dotted", "thick", "double", "hair",
+            "mediumDashed", "dashDot", "mediumDashDot", "dashDotDot", "mediumDashDotDot", "slantDashDot"};
+    private static final String[] FILLS = {"none", "solid", "mediumGray", "darkGray", "lightGray", "darkHorizontal",
+            "darkVertical", "darkDown", "darkUp", "darkGrid", "darkTrellis", "lightHorizontal", "lightVertical",
+            "lightDown", "lightUp", "lightGrid", "lightTrellis", "gray125", "gray0625"};
+    private static final String[] HALIGN = {"general", "left", "center", "right", "fill", "justify", "centerContinuous"};
+    private static final String[] VALIGN = {"top", "center", "bottom", "justify"};
+    private static final String[] BASE_COLORS = {"FF000000", "FFFFFFFF", "FFFF0000", "FF00FF00", "FF0000FF", "FFFFFF00", "FFFF00FF", "FF00FFFF"};
+
+    private final ZipOutputStream zip;
+    private final Writer out;
+    private boolean sheetInProgress;
+
+    /**
+     * @param out  выходной поток в который будет записан сформированный отчет.
+     */
+    WorkbookWriter(final OutputStream out) {
+        this.zip = new ZipOutputStream(out);
+        this.out = new BufferedWriter(new OutputStreamWriter(zip, Charset.forName("UTF-8")), 16384);
+    }
+
+    /**
+     * Начинает запись очередного листа отчета. Одновременно может записываться лишь один лист.
+     *
+     * @param index  порядковый номер листа в книге (начиная с 0).
+     * @return  объект, осуществляющий запись содержимого данного листа.
+     * @throws IOException  в случае проблем с записью в выходной поток.
+     */
+    SheetWriter startSheet(final int index) throws IOException {
+        if (sheetInProgress)
+            throw new IllegalStateException("Previous sheet not finished yet");
+        zip.putNextEntry(new ZipEntry("xl/worksheets/sheet"+(index+1)+".xml"));
+        sheetInProgress = true;
+        return new SheetWriter(out);
+    }
+
+    /**
+     * Завершает запись текущего листа отчета.
+     *
+     * @throws IOException  в случае проблем с записью в выходной поток.
+     */
+    void finishSheet() throws IOException {
+        if (!sheetInProgress)
+            throw new IllegalStateException("No sheet in progress");
+        sheetInProgress = false;
+        closeEntry();
+    }
+
+    /**
+     * Записывает все оставшиеся части документа и завершает запись отчета в выходной поток.
+     * Сам выходной поток при этом не закрывается. К этому моменту запись всех листов книги уже должна быть завершена.
+     *
+     * @param wb  рабочая книга отчета.
+     * @throws IOException  в случае каких-либо проблем.
+     */
+    void finish(final XLSXWorkbook wb) throws IOException {
+        if (sheetInProgress)
+            throw new IllegalStateException("Sheet not finished yet");
+        final List<XLSXSheet> sheets = wb.getSheets();
+        final int count = sheets.size();
+
+        zip.putNextEntry(new ZipEntry("[Content_Types].xml"));
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        out.write("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">");
+        out.write("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>");
+        out.write("<Default Extension=\"xml\" ContentType=\"application/xml\"/>");
+        out.write("<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>");
+        out.write("<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>");
+        for (int i=1; i<=count; i++) {
+            out.write("<Override PartName=\"/xl/worksheets/sheet"+i+".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+        }
+        out.write("<Override PartName=\"/docProps/core.xml\" ContentType=\"application/vnd.openxmlformats-package.core-properties+xml\"/>");
+        out.write("<Override PartName=\"/docProps/app.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.extended-properties+xml\"/>");
+        out.write("</Types>");
+        closeEntry();
+
+        zip.putNextEntry(new ZipEntry("_rels/.rels"));
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        out.write("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+        out.write("<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>");
+        out.write("<Relationship Id=\"rId2\" Type=\"http://schemas.openxmlformats.org/package/2006/relationships/metadata/core-properties\" Target=\"docProps/core.xml\"/>");
+        out.write("<Relationship Id=\"rId3\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/extended-properties\" Target=\"docProps/app.xml\"/>");
+        out.write("</Relationships>");
+        closeEntry();
+
+        zip.putNextEntry(new ZipEntry("xl/_rels/workbook.xml.rels"));
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        out.write("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+        for (int i=1; i<=count; i++) {
+            out.write("<Relationship Id=\"rId"+i+"\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet"+i+".xml\"/>");
+        }
+        out.write("<Relationship Id=\"rId"+(count+1)+"\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/styles\" Target=\"styles.xml\"/>");
+        out.write("</Relationships>");
+        closeEntry();
+
+        zip.putNextEntry(new ZipEntry("xl/workbook.xml"));
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        out.write("<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">");
+        if (wb.isWriteProtected()) {
+            out.write("<fileSharing userName=\"");
+            SheetWriter.escape(out, wb.getWriteProtectUser());
+            out.write("\" reservationPassword=\"");
+            out.write(Integer.toHexString(wb.getWriteProtectPassword() & 0xFFFF).toUpperCase());
+            out.write("\"/>");
+        }
+        out.write("<bookViews><workbookView firstSheet=\"");
+        out.write(Integer.toString(wb.getFirstVisibleTab()));
+        out.write("\" activeTab=\"");
+        out.write(Integer.toString(wb.getActiveSheetIndex()));
+        out.write("\"/></bookViews><sheets>");
+        for (int i=0; i<count; i++) {
+            out.write("<sheet name=\"");
+            SheetWriter.escape(out, sheets.get(i).getSheetName());
+            out.write("\" sheetId=\"");
+            out.write(Integer.toString(i+1));
+            out.write('"');
+            final int state = wb.getSheetState(i);
+            if (state==Workbook.SHEET_STATE_HIDDEN) {
+                out.write(" state=\"hidden\"");
+            } else
+            if (state==Workbook.SHEET_STATE_VERY_HIDDEN) {
+                out.write(" state=\"veryHidden\"");
+            }
+            out.write(" r:id=\"rId");
+            out.write(Integer.toString(i+1));
+            out.write("\"/>");
+        }
+        out.write("</sheets><calcPr calcId=\"0\" fullCalcOnLoad=\"1\"/></workbook>");
+        closeEntry();
+
+        zip.putNextEntry(new ZipEntry("xl/styles.xml"));
+        writeStyles(wb.getTemplate());
+        closeEntry();
+
+        final XLSXWorkbook.DocumentProperties props = wb.getProperties();
+        zip.putNextEntry(new ZipEntry("docProps/core.xml"));
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        out.write("<cp:coreProperties xmlns:cp=\"http://schemas.openxmlformats.org/package/2006/metadata/core-properties\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:dcterms=\"http://purl.org/dc/terms/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">");
+        writeElement("dc:title", props.getTitle());
+        writeElement("dc:subject", props.getSubject());
+        writeElement("dc:creator", props.getAuthor());
+        writeElement("dc:description", props.getComments());
+        writeElement("cp:category", props.getCategory());
+        writeElement("cp:version", props.getVersion());
+        final SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        out.write("<dcterms:created xsi:type=\"dcterms:W3CDTF\">");
+        out.write(fmt.format(new Date()));
+        out.write("</dcterms:created></cp:coreProperties>");
+        closeEntry();
+
+        zip.putNextEntry(new ZipEntry("docProps/app.xml"));
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        out.write("<Properties xmlns=\"http://schemas.openxmlformats.org/officeDocument/2006/extended-properties\">");
+        writeElement("Application", props.getApplication());
+        writeElement("Company", props.getCompany());
+        out.write("</Properties>");
+        closeEntry();
+
+        zip.finish();
+    }
+
+
+    private void closeEntry() throws IOException {
+        out.flush();
+        zip.closeEntry();
+    }
+
+    private void writeElement(final String name, final String value) throws IOException {
+        if (value==null)
+            return;
+        out.write('<');
+        out.write(name);
+        out.write('>');
+        SheetWriter.escape(out, value);
+        out.write("</");
+        out.write(name);
+        out.write('>');
+    }
+
+    /**
+     * Формирует таблицу стилей документа. Каждому стилю рабочей книги HSSF соответствует стиль ячеек в документе
+     * с тем же самым индексом, поэтому при записи ячеек никакой трансляции индексов стилей не требуется.
+     */
+    private void writeStyles(final HSSFWorkbook wb) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        out.write("<styleSheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">");
+
+        final short stylesCount = wb.getNumCellStyles();
+        final Map<Short,String> formats = new HashMap<Short,String>();
+        for (short i=0; i<stylesCount; i++) {
+            final HSSFCellStyle style = wb.getCellStyleAt(i);
+            final short fmt = style.getDataFormat();
+            if (fmt>0 && !isBuiltinFormat(fmt) && !formats.containsKey(fmt)) {
+                formats.put(fmt, style.getDataFormatString());
+            }
+        }
+        if (formats.size()>0) {
+            out.write("<numFmts count=\"");
+            out.write(Integer.toString(formats.size()));
+            out.write("\">");
+            for (Map.Entry<Short,String> e : formats.entrySet()) {
+                out.write("<numFmt numFmtId=\"");
+                out.write(Integer.toString(e.getKey()));
+                out.write("\" formatCode=\"");
+                SheetWriter.escape(out, e.getValue());
+                out.write("\"/>");
+            }
+            out.write("</numFmts>");
+        }
+
+        // в HSSF шрифт с индексом 4 отсутствует, поэтому все последующие индексы смещаются на единицу ...
+        final short fontsCount = wb.getNumberOfFonts();
+        out.write("<fonts count=\"");
+        out.write(Integer.toString(fontsCount));
+        out.write("\">");
+        for (short i=0, n=0; n<fontsCount; i++) {
+            if (i==4)
+                continue;
+            writeFont(wb.getFontAt(i));
+            n++;
+        }
+        out.write("</fonts>");
+
+        final Map<String,Integer> fills = new HashMap<String,Integer>();
+        final Map<String,Integer> borders = new HashMap<String,Integer>();
+        final StringBuilder xfs = new StringBuilder(stylesCount*128);
+        final List<String> fillsList = new ArrayList<String>();
+        final List<String> bordersList = new ArrayList<String>();
+        fillsList.add("<fill><patternFill patternType=\"none\"/></fill>");
+        fillsList.add("<fill><patternFill patternType=\"gray125\"/></fill>");
+        fills.put(fillsList.get(0), 0);
+        fills.put(fillsList.get(1), 1);
+        for (short i=0; i<stylesCount; i++) {
+            final HSSFCellStyle style = wb.getCellStyleAt(i);
+            final String fill = makeFill(style);
+            Integer fillId = fills.get(fill);
+            if (fillId==null) {
+                fillId = fillsList.size();
+                fillsList.add(fill);
+                fills.put(fill, fillId);
+            }
+            final String border = makeBorder(style);
+            Integer borderId = borders.get(border);
+            if (borderId==null) {
+                borderId = bordersList.size();
+                bordersList.add(border);
+                borders.put(border, borderId);
+            }
+            final short fontIndex = style.getFontIndex();
+            xfs.append("<xf numFmtId=\"").append(style.getDataFormat())
+               .append("\" fontId=\"").append(fontIndex>4 ? fontIndex-1 : fontIndex)
+               .append("\" fillId=\"").append(fillId)
+               .append("\" borderId=\"").append(borderId)
+               .append("\" xfId=\"0\" applyNumberFormat=\"1\" applyFont=\"1\" applyFill=\"1\" applyBorder=\"1\" applyAlignment=\"1\" applyProtection=\"1\">");
+            xfs.append("<alignment horizontal=\"").append(style.getAlignment()<HALIGN.length ? HALIGN[style.getAlignment()] : HALIGN[0])
+               .append("\" vertical=\"").append(style.getVerticalAlignment()<VALIGN.length ? VALIGN[style.getVerticalAlignment()] : VALIGN[2]).append('"');
+            if (style.getWrapText())
+                xfs.append(" wrapText=\"1\"");
+            if (style.getIndention()>0)
+                xfs.append(" indent=\"").append(style.getIndention()).append('"');
+            final short rotation = style.getRotation();
+            if (rotation!=0)
+                xfs.append(" textRotation=\"").append(rotation<0 ? 90-rotation : rotation).append('"');
+            xfs.append("/><protection locked=\"").append(style.getLocked() ? '1' : '0')
+               .append("\" hidden=\"").append(style.getHidden() ? '1' : '0').append("\"/></xf>");
+        }
+
+        out.write("<fills count=\"");
+        out.write(Integer.toString(fillsList.size()));
+        out.write("\">");
+        for (String fill : fillsList) {
+            out.write(fill);
+        }
+        out.write("</fills>");
+
+        out.write("<borders count=\"");
+        out.write(Integer.toString(bordersList.size()));
+        out.write("\">");
+        for (String border : bordersList) {
+            out.write(border);
+        }
+        out.write("</borders>");
+
+        out.write("<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>");
+        out.write("<cellXfs count=\"");
+        out.write(Integer.toString(stylesCount));
+        out.write("\">");
+        out.write(xfs.toString());
+        out.write("</cellXfs>");
+        out.write("<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>");
+
+        final HSSFPalette palette = wb.getCustomPalette();
+        out.write("<colors><indexedColors>");
+        for (short i=0; i<64; i++) {
+            out.write("<rgbColor rgb=\"");
+            out.write(i<8 ? BASE_COLORS[i] : makeRGB(palette.getColor(i)));
+            out.write("\"/>");
+        }
+        out.write("</indexedColors></colors>");
+        out.write("</styleSheet>");
+    }
+
+    private void writeFont(final HSSFFont font) throws IOException {
+        out.write("<font>");
+        if (font.getBoldweight()>=HSSFFont.BOLDWEIGHT_BOLD)
+            out.write("<b/>");
+        if (font.getItalic())
+            out.write("<i/>");
+        if (font.getStrikeout())
+            out.write("<strike/>");
+        switch (font.getUnderline()) {
+            case HSSFFont.U_SINGLE : out.write("<u/>"); break;
+            case HSSFFont.U_DOUBLE : out.write("<u val=\"double\"/>"); break;
+            case HSSFFont.U_SINGLE_ACCOUNTING : out.write("<u val=\"singleAccounting\"/>"); break;
+            case HSSFFont.U_DOUBLE_ACCOUNTING : out.write("<u val=\"doubleAccounting\"/>"); break;
+        }
+        switch (font.getTypeOffset()) {
+            case HSSFFont.SS_SUPER : out.write("<vertAlign val=\"superscript\"/>"); break;
+            case HSSFFont.SS_SUB : out.write("<vertAlign val=\"subscript\"/>"); break;
+        }
+        out.write("<sz val=\"");
+        out.write(Float.toString(font.getFontHeight()/20f));
+        out.write("\"/>");
+        final short color = font.getColor();
+        out.write("<color indexed=\"");
+        out.write(Integer.toString(color<64 ? color : 64));
+        out.write("\"/><name val=\"");
+        SheetWriter.escape(out, font.getFontName());
+        out.write('"');
+        out.write("/><charset val=\"");
+        out.write(Integer.toString(font.getCharSet()));
+        out.write("\"/></font>");
+    }
+
+    private static String makeFill(final HSSFCellStyle style) {
+        final short pattern = style.getFillPattern();
+        if (pattern<=0 || pattern>=FILLS.length)
+            return "<fill><patternFill patternType=\"none\"/></fill>";
+        return "<fill><patternFill patternType=\"" + FILLS[pattern] + "\">" +
+                "<fgColor indexed=\"" + Math.min(style.getFillForegroundColor(), 64) + "\"/>" +
+                "<bgColor indexed=\"" + Math.min(style.getFillBackgroundColor(), 65) + "\"/>" +
+                "</patternFill></fill>";
+    }
+
+    private static String makeBorder(final HSSFCellStyle style) {
+        return "<border>" +
+                makeBorderSide("left", style.getBorderLeft(), style.getLeftBorderColor()) +
+                makeBorderSide("right", style.getBorderRight(), style.getRightBorderColor()) +
+                makeBorderSide("top", style.getBorderTop(), style.getTopBorderColor()) +
+                makeBorderSide("bottom", style.getBorderBottom(), style.getBottomBorderColor()) +
+                "<diagonal/></border>";
+    }
+
+    private static String makeBorderSide(final String side, final short border, final short color) {
+        if (border<=0 || border>=BORDERS.length)
+            return "<" + side + "/>";
+        return "<" + side + " style=\"" + BORDERS[border] + "\"><color indexed=\"" + Math.min(color, 64) + "\"/></" + side + ">";
+    }
+
+    private static String makeRGB(final HSSFColor color) {
+        if (color==null)
+            return "FF000000";
+        final short[] rgb = color.getTriplet();
+        final StringBuilder buf = new StringBuilder(8);
+        buf.append("FF");
+        for (short c : rgb) {
+            if (c<16)
+                buf.append('0');
+            buf.append(Integer.toHexString(c).toUpperCase());
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Возвращает <code>true</code> если указанный формат является встроенным форматом SpreadsheetML
+     * и не требует явного описания в таблице стилей документа.
+     */
+    private static boolean isBuiltinFormat(final short fmt) {
+        return (fmt>=1 && fmt<=4) || (fmt>=9 && fmt<=22) || (fmt>=37 && fmt<=40) || (fmt>=45 && fmt<=49);
+    }
+}
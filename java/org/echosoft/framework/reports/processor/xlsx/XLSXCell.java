@@ -0,0 +1,307 @@
+package org.echosoft.framework.reports.processor.xlsx;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import org.apache.poi.hssf.usermodel.HSSFRichTextString;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.ErrorConstants;
+import org.apache.poi.ss.usermodel.Hyperlink;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * Ячейка листа отчета, формируемого в формате Office Open XML.
+ * В отличие от ячеек HSSF хранит лишь минимально необходимую для записи в выходной поток информацию.
+ * Формулы сохраняются в текстовом виде и не подвергаются синтаксическому разбору.
+ * Форматирование фрагментов текста (rich text) сохраняется в ячейке, но в выходной поток не записывается: оно используется лишь
+ * при переносе содержимого ячейки в книги других форматов.
+ *
+ * @author Anton Sharapov
+ */
+public final class XLSXCell implements Cell {
+
+    private final XLSXRow row;
+    private final int column;
+    private int type;
+    private double number;
+    private String text;
+    private RichTextString rich;
+    private boolean cached;
+    private CellStyle style;
+
+    XLSXCell(final XLSXRow row, final int column, final int type) {
+        this.row = row;
+        this.column = column;
+        setCellType(type);
+    }
+
+    public int getColumnIndex() {
+        return column;
+    }
+
+    public int getRowIndex() {
+        return row.getRowNum();
+    }
+
+    public XLSXSheet getSheet() {
+        return row.getSheet();
+    }
+
+    public XLSXRow getRow() {
+        return row;
+    }
+
+    public void setCellType(final int cellType) {
+        if (cellType!=CELL_TYPE_STRING)
+            rich = null;
+        switch (cellType) {
+            case CELL_TYPE_BLANK : {
+                text = null;
+                number = 0;
+                break;
+            }
+            case CELL_TYPE_NUMERIC : {
+                if (type==CELL_TYPE_STRING && text!=null) {
+                    try {
+                        number = Double.parseDouble(text);
+                    } catch (NumberFormatException e) {
+                        number = 0;
+                    }
+                } else
+                if (type!=CELL_TYPE_NUMERIC && type!=CELL_TYPE_BOOLEAN) {
+                    number = 0;
+                }
+                text = null;
+                break;
+            }
+            case CELL_TYPE_STRING : {
+                if (type==CELL_TYPE_NUMERIC) {
+                    text = Double.toString(number);
+                } else
+                if (type==CELL_TYPE_BOOLEAN) {
+                    text = number!=0 ? "TRUE" : "FALSE";
+                } else
+                if (type!=CELL_TYPE_STRING) {
+                    text = "";
+                }
+                break;
+            }
+            case CELL_TYPE_BOOLEAN : {
+                number = type==CELL_TYPE_NUMERIC || type==CELL_TYPE_BOOLEAN ? (number!=0 ? 1 : 0) : 0;
+                text = null;
+                break;
+            }
+            case CELL_TYPE_FORMULA : {
+                if (type!=CELL_TYPE_FORMULA) {
+                    text = null;
+                    number = 0;
+                    cached = false;
+                }
+                break;
+            }
+            case CELL_TYPE_ERROR : {
+                number = ErrorConstants.ERROR_NA;
+                text = null;
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Illegal cell type: " + cellType);
+        }
+        this.type = cellType;
+    }
+
+    public int getCellType() {
+        return type;
+    }
+
+    public int getCachedFormulaResultType() {
+        if (type!=CELL_TYPE_FORMULA)
+            throw new IllegalStateException("Only formula cells have cached results");
+        return CELL_TYPE_NUMERIC;
+    }
+
+    /**
+     * Устанавливает числовое значение ячейки. Если ячейка содержит формулу, то формула сохраняется, а указанное значение
+     * записывается в документ в качестве последнего вычисленного результата этой формулы (аналогично ячейкам HSSF).
+     *
+     * @param value  новое значение ячейки.
+     */
+    public void setCellValue(final double value) {
+        rich = null;
+        if (type==CELL_TYPE_FORMULA && text!=null) {
+            if (!Double.isInfinite(value) && !Double.isNaN(value)) {
+                number = value;
+                cached = true;
+            }
+            return;
+        }
+        if (Double.isInfinite(value) || Double.isNaN(value)) {
+            type = CELL_TYPE_ERROR;
+            number = Double.isNaN(value) ? ErrorConstants.ERROR_NUM : ErrorConstants.ERROR_DIV_0;
+        } else {
+            type = CELL_TYPE_NUMERIC;
+            number = value;
+        }
+        text = null;
+    }
+
+    public void setCellValue(final Date value) {
+        if (value==null) {
+            setCellType(CELL_TYPE_BLANK);
+        } else
+            setCellValue(DateUtil.getExcelDate(value));
+    }
+
+    public void setCellValue(final Calendar value) {
+        if (value==null) {
+            setCellType(CELL_TYPE_BLANK);
+        } else
+            setCellValue(DateUtil.getExcelDate(value, false));
+    }
+
+    public void setCellValue(final RichTextString value) {
+        setCellValue(value!=null ? value.getString() : null);
+        if (value!=null && value.numFormattingRuns()>0)
+            rich = value;
+    }
+
+    public void setCellValue(final String value) {
+        rich = null;
+        if (value==null) {
+            setCellType(CELL_TYPE_BLANK);
+        } else {
+            type = CELL_TYPE_STRING;
+            text = value;
+        }
+    }
+
+    public void setCellFormula(final String formula) {
+        rich = null;
+        if (formula==null) {
+            setCellType(CELL_TYPE_BLANK);
+        } else {
+            type = CELL_TYPE_FORMULA;
+            text = formula;
+            number = 0;
+            cached = false;
+        }
+    }
+
+    /**
+     * @return  <code>true</code> если ячейка содержит формулу, для которой известен последний вычисленный результат
+     *   (см. {@link #setCellValue(double)}).
+     */
+    public boolean hasCachedFormulaResult() {
+        return type==CELL_TYPE_FORMULA && cached;
+    }
+
+    public String getCellFormula() {
+        if (type!=CELL_TYPE_FORMULA)
+            throw new IllegalStateException("Cell "+column+" in row "+row.getRowNum()+" is not a formula cell");
+        return text;
+    }
+
+    public double getNumericCellValue() {
+        if (type==CELL_TYPE_BLANK)
+            return 0;
+        if (type==CELL_TYPE_FORMULA)
+            return number;
+        if (type!=CELL_TYPE_NUMERIC)
+            throw new IllegalStateException("Cell "+column+" in row "+row.getRowNum()+" is not a numeric cell");
+        return number;
+    }
+
+    public Date getDateCellValue() {
+        return type==CELL_TYPE_BLANK ? null : DateUtil.getJavaDate(getNumericCellValue());
+    }
+
+    public RichTextString getRichStringCellValue() {
+        if (rich!=null && type==CELL_TYPE_STRING)
+            return rich;
+        return new HSSFRichTextString(getStringCellValue());
+    }
+
+    public String getStringCellValue() {
+        if (type==CELL_TYPE_BLANK)
+            return "";
+        if (type!=CELL_TYPE_STRING)
+            throw new IllegalStateException("Cell "+column+" in row "+row.getRowNum()+" is not a text cell");
+        return text;
+    }
+
+    public void setCellValue(final boolean value) {
+        rich = null;
+        type = CELL_TYPE_BOOLEAN;
+        number = value ? 1 : 0;
+        text = null;
+    }
+
+    public void setCellErrorValue(final byte value) {
+        rich = null;
+        type = CELL_TYPE_ERROR;
+        number = value;
+        text = null;
+    }
+
+    public boolean getBooleanCellValue() {
+        if (type==CELL_TYPE_BLANK)
+            return false;
+        if (type!=CELL_TYPE_BOOLEAN)
+            throw new IllegalStateException("Cell "+column+" in row "+row.getRowNum()+" is not a boolean cell");
+        return number!=0;
+    }
+
+    public byte getErrorCellValue() {
+        if (type!=CELL_TYPE_ERROR)
+            throw new IllegalStateException("Cell "+column+" in row "+row.getRowNum()+" is not an error cell");
+        return (byte)number;
+    }
+
+    public void setCellStyle(final CellStyle style) {
+        this.style = style;
+    }
+
+    public CellStyle getCellStyle() {
+        return style;
+    }
+
+    public void setAsActiveCell() {
+    }
+
+    public void setCellComment(final Comment comment) {
+        throw new UnsupportedOperationException("Cell comments are not supported");
+    }
+
+    public Comment getCellComment() {
+        return null;
+    }
+
+    public void removeCellComment() {
+    }
+
+    public Hyperlink getHyperlink() {
+        return null;
+    }
+
+    public void setHyperlink(final Hyperlink link) {
+        throw new UnsupportedOperationException("Hyperlinks are not supported");
+    }
+
+    public CellRangeAddress getArrayFormulaRange() {
+        throw new IllegalStateException("Cell is not part of an array formula");
+    }
+
+    public boolean isPartOfArrayFormulaGroup() {
+        return false;
+    }
+
+
+    @Override
+    public String toString() {
+        return "[XLSXCell{row:"+row.getRowNum()+", col:"+column+", type:"+type+"}]";
+    }
+}
@@ -0,0 +1,201 @@
+package org.echosoft.framework.reports.processor.xlsx;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+
+/**
+ * Строка листа отчета, формируемого в формате Office Open XML.
+ * Помимо стандартных для строк POI свойств хранит уровень вложенности строки в группировках и признак свертки группы.
+ *
+ * @author Anton Sharapov
+ */
+public final class XLSXRow implements Row {
+
+    private static final XLSXCell[] EMPTY = new XLSXCell[0];
+
+    private final XLSXSheet sheet;
+    private final int rownum;
+    private XLSXCell[] cells;
+    private int cellsCount;
+    private short height;
+    private boolean zeroHeight;
+    private int outlineLevel;
+    private boolean collapsed;
+
+    XLSXRow(final XLSXSheet sheet, final int rownum) {
+        this.sheet = sheet;
+        this.rownum = rownum;
+        this.cells = EMPTY;
+        this.height = -1;
+    }
+
+    public XLSXCell createCell(final int column) {
+        return createCell(column, Cell.CELL_TYPE_BLANK);
+    }
+
+    public XLSXCell createCell(final int column, final int type) {
+        if (column<0 || column>=XLSXSheet.MAX_COLUMNS)
+            throw new IllegalArgumentException("Invalid column index ("+column+")");
+        if (column>=cells.length) {
+            final XLSXCell[] tmp = new XLSXCell[Math.max(column+1, cells.length*2)];
+            System.arraycopy(cells, 0, tmp, 0, cells.length);
+            cells = tmp;
+        }
+        final XLSXCell cell = new XLSXCell(this, column, type);
+        if (cells[column]==null)
+            cellsCount++;
+        cells[column] = cell;
+        return cell;
+    }
+
+    public void removeCell(final Cell cell) {
+        final int column = cell.getColumnIndex();
+        if (column<cells.length && cells[column]==cell) {
+            cells[column] = null;
+            cellsCount--;
+        }
+    }
+
+    public void setRowNum(final int rownum) {
+        throw new UnsupportedOperationException("Rows can not be moved");
+    }
+
+    public int getRowNum() {
+        return rownum;
+    }
+
+    public XLSXCell getCell(final int column) {
+        return column>=0 && column<cells.length ? cells[column] : null;
+    }
+
+    public Cell getCell(final int column, final MissingCellPolicy policy) {
+        final XLSXCell cell = getCell(column);
+        if (policy==RETURN_BLANK_AS_NULL)
+            return cell!=null && cell.getCellType()==Cell.CELL_TYPE_BLANK ? null : cell;
+        if (policy==CREATE_NULL_AS_BLANK)
+            return cell!=null ? cell : createCell(column);
+        return cell;
+    }
+
+    public short getFirstCellNum() {
+        for (int i=0; i<cells.length; i++) {
+            if (cells[i]!=null)
+                return (short)i;
+        }
+        return -1;
+    }
+
+    public short getLastCellNum() {
+        for (int i=cells.length-1; i>=0; i--) {
+            if (cells[i]!=null)
+                return (short)(i+1);
+        }
+        return -1;
+    }
+
+    public int getPhysicalNumberOfCells() {
+        return cellsCount;
+    }
+
+    public void setHeight(final short height) {
+        this.height = height;
+    }
+
+    public void setZeroHeight(final boolean zeroHeight) {
+        this.zeroHeight = zeroHeight;
+    }
+
+    public boolean getZeroHeight() {
+        return zeroHeight;
+    }
+
+    public void setHeightInPoints(final float height) {
+        this.height = height<0 ? -1 : (short)(height*20);
+    }
+
+    public short getHeight() {
+        return height>=0 ? height : sheet.getDefaultRowHeight();
+    }
+
+    public float getHeightInPoints() {
+        return getHeight()/20f;
+    }
+
+    /**
+     * @return <code>true</code> если высота строки была задана явно.
+     */
+    public boolean isCustomHeight() {
+        return height>=0;
+    }
+
+    /**
+     * @return уровень вложенности строки в группировках строк листа.
+     */
+    public int getOutlineLevel() {
+        return outlineLevel;
+    }
+
+    /**
+     * Устанавливает уровень вложенности строки в группировках строк листа. В отличие от {@link XLSXSheet#groupRow(int, int)}
+     * не затрагивает соседние строки.
+     *
+     * @param outlineLevel  уровень вложенности строки.
+     */
+    public void setOutlineLevel(final int outlineLevel) {
+        this.outlineLevel = outlineLevel;
+    }
+
+    /**
+     * @return <code>true</code> если группа строк, итоговой строкой которой является данная строка, свернута.
+     */
+    public boolean isCollapsed() {
+        return collapsed;
+    }
+
+    /**
+     * @param collapsed  <code>true</code> если группа строк, итоговой строкой которой является данная строка, свернута.
+     */
+    public void setCollapsed(final boolean collapsed) {
+        this.collapsed = collapsed;
+    }
+
+    public Iterator<Cell> cellIterator() {
+        return new Iterator<Cell>() {
+            private int next = advance(0);
+            private int advance(int i) {
+                while (i<cells.length && cells[i]==null) i++;
+                return i;
+            }
+            public boolean hasNext() {
+                return next<cells.length;
+            }
+            public Cell next() {
+                if (next>=cells.length)
+                    throw new NoSuchElementException();
+                final Cell result = cells[next];
+                next = advance(next+1);
+                return result;
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public Iterator<Cell> iterator() {
+        return cellIterator();
+    }
+
+    public XLSXSheet getSheet() {
+        return sheet;
+    }
+
+
+    @Override
+    public String toString() {
+        return "[XLSXRow{rownum:"+rownum+", cells:"+cellsCount+"}]";
+    }
+}
@@ -0,0 +1,681 @@
+package org.echosoft.framework.reports.processor.xlsx;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.util.PaneInformation;
+import org.apache.poi.ss.usermodel.AutoFilter;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellRange;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.DataValidation;
+import org.apache.poi.ss.usermodel.DataValidationHelper;
+import org.apache.poi.ss.usermodel.Drawing;
+import org.apache.poi.ss.usermodel.Footer;
+import org.apache.poi.ss.usermodel.Header;
+import org.apache.poi.ss.usermodel.PrintSetup;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * <p>Лист отчета, формируемого в формате Office Open XML.</p>
+ * <p>Строки листа хранятся в памяти лишь до тех пор пока они не будут выгружены в выходной поток вызовом метода {@link #flushRows(int)}.
+ * После этого обращение к ним более невозможно, метод {@link #getRow(int)} для таких строк возвращает <code>null</code>.
+ * Методы {@link #getLastRowNum()} и {@link #getPhysicalNumberOfRows()} учитывают все созданные на листе строки, в том числе и уже выгруженные.
+ * Группировка строк листа осуществляется непосредственно в строках, которые еще находятся в памяти.</p>
+ * <p>Все настройки листа, не влияющие на его содержимое (параметры печати, колонтитулы, поля, защита листа, ширина колонок),
+ * хранятся в соответствующем листе рабочей книги HSSF, построенной на основе шаблона отчета. Поскольку в формате SpreadsheetML
+ * описание колонок листа (ширина, стили по умолчанию) и областей закрепления предшествует его строкам, все эти настройки должны быть
+ * выполнены до первой выгрузки строк листа.</p>
+ * <p>Объединенные области ячеек записываются в выходной поток лишь по завершении листа (этого требует формат SpreadsheetML),
+ * до тех пор они хранятся в памяти в компактном виде (16 байт на каждую область).</p>
+ * <p>Сдвиг строк, автоматический подбор ширины колонок, рисунки, формулы массивов, проверка вводимых данных и автофильтры
+ * не поддерживаются, соответствующие методы возбуждают {@link UnsupportedOperationException}.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class XLSXSheet implements Sheet {
+
+    /**
+     * Максимальное количество строк на листе в формате Office Open XML.
+     */
+    public static final int MAX_ROWS = 1048576;
+
+    /**
+     * Максимальное количество колонок на листе в формате Office Open XML.
+     */
+    public static final int MAX_COLUMNS = 16384;
+
+    private final XLSXWorkbook wb;
+    private final HSSFSheet settings;
+    private final SortedMap<Integer,XLSXRow> rows;
+    private final SortedSet<Integer> rowBreaks;
+    private final SortedSet<Integer> columnBreaks;
+    private int[] regions;
+    private int regionsCount;
+    private SheetWriter writer;
+    private String name;
+    private int[] columnLevels;
+    private int columnsCount;
+    private int zoom;
+    private boolean rowSumsBelow;
+    private int lastRow;
+    private int rowsCount;
+    private int flushed;
+    private boolean finished;
+
+    XLSXSheet(final XLSXWorkbook wb, final String name, final HSSFSheet settings) {
+        this.wb = wb;
+        this.name = name;
+        this.settings = settings;
+        this.rows = new TreeMap<Integer,XLSXRow>();
+        this.rowBreaks = new TreeSet<Integer>();
+        this.columnBreaks = new TreeSet<Integer>();
+        this.regions = new int[64];
+        this.columnLevels = new int[16];
+        this.zoom = 100;
+        this.rowSumsBelow = true;
+        this.lastRow = -1;
+    }
+
+    /**
+     * @return количество строк листа (начиная с первой), которые уже были выгружены в выходной поток.
+     */
+    public int getFlushedRowsCount() {
+        return flushed;
+    }
+
+    /**
+     * Выгружает в выходной поток все строки листа с номерами меньшими чем указанный и удаляет их из памяти.
+     * При первом вызове в выходной поток записывается также описание общих свойств листа и его колонок.
+     *
+     * @param limit  номер первой строки листа, которая должна остаться в памяти.
+     * @throws IOException  в случае проблем с записью в выходной поток.
+     */
+    public void flushRows(final int limit) throws IOException {
+        if (finished)
+            throw new IllegalStateException("Sheet '"+name+"' already finished");
+        if (writer==null) {
+            writer = wb.startSheet(this);
+            writer.writeHeader(this);
+        }
+        while (!rows.isEmpty()) {
+            final Integer rownum = rows.firstKey();
+            if (rownum>=limit)
+                break;
+            writer.writeRow(rows.remove(rownum));
+        }
+        if (limit>flushed)
+            flushed = limit;
+    }
+
+    /**
+     * Выгружает в выходной поток все оставшиеся строки листа и завершает его запись.
+     *
+     * @throws IOException  в случае проблем с записью в выходной поток.
+     */
+    void finish() throws IOException {
+        if (finished)
+            return;
+        flushRows(Integer.MAX_VALUE);
+        writer.writeFooter(this);
+        writer = null;
+        finished = true;
+        wb.finishSheet(this);
+    }
+
+    /**
+     * @return <code>true</code> если запись листа в выходной поток уже завершена.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return лист рабочей книги HSSF, в котором хранятся настройки данного листа.
+     */
+    HSSFSheet getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return количество первых колонок листа, для которых были заданы какие-либо свойства (ширина, видимость, стиль или группировка).
+     */
+    public int getColumnsCount() {
+        return columnsCount;
+    }
+
+    /**
+     * @param column  номер колонки (начиная с 0).
+     * @return уровень вложенности колонки в группировках колонок листа.
+     */
+    int getColumnOutlineLevel(final int column) {
+        return column<columnLevels.length ? columnLevels[column] : 0;
+    }
+
+    /**
+     * @return масштаб отображения листа в процентах.
+     */
+    public int getZoom() {
+        return zoom;
+    }
+
+    void setSheetName(final String name) {
+        this.name = name;
+    }
+
+
+    public XLSXRow createRow(final int rownum) {
+        if (rownum<0 || rownum>=MAX_ROWS)
+            throw new IllegalArgumentException("Invalid row number ("+rownum+") outside allowable range (0.."+(MAX_ROWS-1)+")");
+        if (rownum<flushed)
+            throw new IllegalStateException("Row "+rownum+" already flushed to the output stream");
+        final XLSXRow row = new XLSXRow(this, rownum);
+        if (rows.put(rownum, row)==null)
+            rowsCount++;
+        if (rownum>lastRow)
+            lastRow = rownum;
+        return row;
+    }
+
+    public void removeRow(final Row row) {
+        if (rows.get(row.getRowNum())==row) {
+            rows.remove(row.getRowNum());
+            rowsCount--;
+            if (row.getRowNum()==lastRow)
+                lastRow = rows.isEmpty() ? flushed-1 : rows.lastKey();
+        }
+    }
+
+    public XLSXRow getRow(final int rownum) {
+        return rows.get(rownum);
+    }
+
+    public int getPhysicalNumberOfRows() {
+        return rowsCount;
+    }
+
+    public int getFirstRowNum() {
+        return rows.isEmpty() ? flushed : rows.firstKey();
+    }
+
+    public int getLastRowNum() {
+        return lastRow>=0 ? lastRow : 0;
+    }
+
+    public Iterator<Row> rowIterator() {
+        final Iterator<XLSXRow> it = rows.values().iterator();
+        return new Iterator<Row>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+            public Row next() {
+                return it.next();
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public Iterator<Row> iterator() {
+        return rowIterator();
+    }
+
+    public int addMergedRegion(final CellRangeAddress region) {
+        if (regionsCount*4==regions.length) {
+            final int[] tmp = new int[regions.length*2];
+            System.arraycopy(regions, 0, tmp, 0, regions.length);
+            regions = tmp;
+        }
+        final int pos = regionsCount*4;
+        regions[pos] = region.getFirstRow();
+        regions[pos+1] = region.getLastRow();
+        regions[pos+2] = region.getFirstColumn();
+        regions[pos+3] = region.getLastColumn();
+        return regionsCount++;
+    }
+
+    public void removeMergedRegion(final int index) {
+        if (index<0 || index>=regionsCount)
+            throw new IndexOutOfBoundsException("Index: "+index+", Size: "+regionsCount);
+        System.arraycopy(regions, (index+1)*4, regions, index*4, (regionsCount-index-1)*4);
+        regionsCount--;
+    }
+
+    public int getNumMergedRegions() {
+        return regionsCount;
+    }
+
+    public CellRangeAddress getMergedRegion(final int index) {
+        if (index<0 || index>=regionsCount)
+            throw new IndexOutOfBoundsException("Index: "+index+", Size: "+regionsCount);
+        final int pos = index*4;
+        return new CellRangeAddress(regions[pos], regions[pos+1], regions[pos+2], regions[pos+3]);
+    }
+
+    public void groupRow(final int fromRow, final int toRow) {
+        for (int r=Math.max(fromRow, flushed); r<=toRow; r++) {
+            XLSXRow row = rows.get(r);
+            if (row==null)
+                row = createRow(r);
+            row.setOutlineLevel(row.getOutlineLevel()+1);
+        }
+    }
+
+    public void ungroupRow(final int fromRow, final int toRow) {
+        for (int r=Math.max(fromRow, flushed); r<=toRow; r++) {
+            final XLSXRow row = rows.get(r);
+            if (row!=null && row.getOutlineLevel()>0)
+                row.setOutlineLevel(row.getOutlineLevel()-1);
+        }
+    }
+
+    /**
+     * Сворачивает или разворачивает группу строк листа, к которой относится указанная строка.
+     * Признак свертки группы сохраняется в ее итоговой строке, которая в зависимости от значения свойства {@link #getRowSumsBelow()}
+     * находится либо непосредственно под группой либо непосредственно над ней.
+     *
+     * @param rownum  номер строки, входящей в группу.
+     * @param collapse  <code>true</code> если группа должна быть свернута.
+     */
+    public void setRowGroupCollapsed(final int rownum, final boolean collapse) {
+        final XLSXRow row = rows.get(rownum);
+        if (row==null || row.getOutlineLevel()==0)
+            return;
+        final int level = row.getOutlineLevel();
+        int first = rownum;
+        for (XLSXRow r=rows.get(first-1); r!=null && r.getOutlineLevel()>=level; r=rows.get(first-1)) {
+            first--;
+        }
+        int last = rownum;
+        for (XLSXRow r=rows.get(last+1); r!=null && r.getOutlineLevel()>=level; r=rows.get(last+1)) {
+            last++;
+        }
+        if (collapse) {
+            for (int i=first; i<=last; i++) {
+                rows.get(i).setZeroHeight(true);
+            }
+        }
+        final int summary = rowSumsBelow ? last+1 : first-1;
+        if (summary>=flushed) {
+            XLSXRow srow = rows.get(summary);
+            if (srow==null)
+                srow = createRow(summary);
+            srow.setCollapsed(collapse);
+        }
+    }
+
+    public void groupColumn(final int fromColumn, final int toColumn) {
+        ensureColumns(toColumn);
+        for (int c=fromColumn; c<=toColumn; c++) {
+            columnLevels[c]++;
+        }
+        settings.groupColumn(fromColumn, toColumn);
+    }
+
+    public void ungroupColumn(final int fromColumn, final int toColumn) {
+        ensureColumns(toColumn);
+        for (int c=fromColumn; c<=toColumn; c++) {
+            if (columnLevels[c]>0)
+                columnLevels[c]--;
+        }
+        settings.ungroupColumn(fromColumn, toColumn);
+    }
+
+    public void setColumnGroupCollapsed(final int column, final boolean collapsed) {
+        settings.setColumnGroupCollapsed(column, collapsed);
+    }
+
+    public void setColumnHidden(final int column, final boolean hidden) {
+        ensureColumns(column);
+        settings.setColumnHidden(column, hidden);
+    }
+
+    public boolean isColumnHidden(final int column) {
+        return settings.isColumnHidden(column);
+    }
+
+    public void setColumnWidth(final int column, final int width) {
+        ensureColumns(column);
+        settings.setColumnWidth(column, width);
+    }
+
+    public int getColumnWidth(final int column) {
+        return settings.getColumnWidth(column);
+    }
+
+    public void setDefaultColumnWidth(final int width) {
+        settings.setDefaultColumnWidth(width);
+    }
+
+    public int getDefaultColumnWidth() {
+        return settings.getDefaultColumnWidth();
+    }
+
+    public short getDefaultRowHeight() {
+        return settings.getDefaultRowHeight();
+    }
+
+    public float getDefaultRowHeightInPoints() {
+        return settings.getDefaultRowHeightInPoints();
+    }
+
+    public void setDefaultRowHeight(final short height) {
+        settings.setDefaultRowHeight(height);
+    }
+
+    public void setDefaultRowHeightInPoints(final float height) {
+        settings.setDefaultRowHeightInPoints(height);
+    }
+
+    public CellStyle getColumnStyle(final int column) {
+        return settings.getColumnStyle(column);
+    }
+
+    public void setDefaultColumnStyle(final int column, final CellStyle style) {
+        ensureColumns(column);
+        settings.setDefaultColumnStyle(column, style);
+    }
+
+    public void setVerticallyCenter(final boolean value) {
+        settings.setVerticallyCenter(value);
+    }
+
+    public void setHorizontallyCenter(final boolean value) {
+        settings.setHorizontallyCenter(value);
+    }
+
+    public boolean getHorizontallyCenter() {
+        return settings.getHorizontallyCenter();
+    }
+
+    public boolean getVerticallyCenter() {
+        return settings.getVerticallyCenter();
+    }
+
+    public void setAutobreaks(final boolean value) {
+        settings.setAutobreaks(value);
+    }
+
+    public void setDisplayGuts(final boolean value) {
+        settings.setDisplayGuts(value);
+    }
+
+    public void setDisplayZeros(final boolean value) {
+        settings.setDisplayZeros(value);
+    }
+
+    public boolean isDisplayZeros() {
+        return settings.isDisplayZeros();
+    }
+
+    public void setFitToPage(final boolean value) {
+        settings.setFitToPage(value);
+    }
+
+    public void setRowSumsBelow(final boolean value) {
+        this.rowSumsBelow = value;
+    }
+
+    public void setRowSumsRight(final boolean value) {
+        settings.setRowSumsRight(value);
+    }
+
+    public boolean getAutobreaks() {
+        return settings.getAutobreaks();
+    }
+
+    public boolean getDisplayGuts() {
+        return settings.getDisplayGuts();
+    }
+
+    public boolean getFitToPage() {
+        return settings.getFitToPage();
+    }
+
+    public boolean getRowSumsBelow() {
+        return rowSumsBelow;
+    }
+
+    public boolean getRowSumsRight() {
+        return settings.getRowSumsRight();
+    }
+
+    public boolean isPrintGridlines() {
+        return settings.isPrintGridlines();
+    }
+
+    public void setPrintGridlines(final boolean show) {
+        settings.setPrintGridlines(show);
+    }
+
+    public PrintSetup getPrintSetup() {
+        return settings.getPrintSetup();
+    }
+
+    public Header getHeader() {
+        return settings.getHeader();
+    }
+
+    public Footer getFooter() {
+        return settings.getFooter();
+    }
+
+    public void setSelected(final boolean value) {
+    }
+
+    public boolean isSelected() {
+        return false;
+    }
+
+    public double getMargin(final short margin) {
+        return settings.getMargin(margin);
+    }
+
+    public void setMargin(final short margin, final double size) {
+        settings.setMargin(margin, size);
+    }
+
+    public boolean getProtect() {
+        return settings.getProtect();
+    }
+
+    /**
+     * @return хэш пароля, которым защищен лист.
+     */
+    short getPassword() {
+        return settings.getPassword();
+    }
+
+    public void protectSheet(final String password) {
+        settings.protectSheet(password);
+    }
+
+    public boolean getScenarioProtect() {
+        return settings.getScenarioProtect();
+    }
+
+    public void setZoom(final int numerator, final int denominator) {
+        if (numerator<1 || numerator>65535)
+            throw new IllegalArgumentException("Numerator must be greater than 1 and less than 65536");
+        if (denominator<1 || denominator>65535)
+            throw new IllegalArgumentException("Denominator must be greater than 1 and less than 65536");
+        this.zoom = numerator*100/denominator;
+    }
+
+    public short getTopRow() {
+        return settings.getTopRow();
+    }
+
+    public short getLeftCol() {
+        return settings.getLeftCol();
+    }
+
+    public void showInPane(final short toprow, final short leftcol) {
+        settings.showInPane(toprow, leftcol);
+    }
+
+    public void shiftRows(final int startRow, final int endRow, final int n) {
+        throw new UnsupportedOperationException("Rows can not be shifted");
+    }
+
+    public void shiftRows(final int startRow, final int endRow, final int n, final boolean copyRowHeight, final boolean resetOriginalRowHeight) {
+        throw new UnsupportedOperationException("Rows can not be shifted");
+    }
+
+    public void createFreezePane(final int colSplit, final int rowSplit, final int leftmostColumn, final int topRow) {
+        settings.createFreezePane(colSplit, rowSplit, leftmostColumn, topRow);
+    }
+
+    public void createFreezePane(final int colSplit, final int rowSplit) {
+        settings.createFreezePane(colSplit, rowSplit);
+    }
+
+    public void createSplitPane(final int xSplitPos, final int ySplitPos, final int leftmostColumn, final int topRow, final int activePane) {
+        settings.createSplitPane(xSplitPos, ySplitPos, leftmostColumn, topRow, activePane);
+    }
+
+    public PaneInformation getPaneInformation() {
+        return settings.getPaneInformation();
+    }
+
+    public void setDisplayGridlines(final boolean show) {
+        settings.setDisplayGridlines(show);
+    }
+
+    public boolean isDisplayGridlines() {
+        return settings.isDisplayGridlines();
+    }
+
+    public void setDisplayFormulas(final boolean show) {
+        settings.setDisplayFormulas(show);
+    }
+
+    public boolean isDisplayFormulas() {
+        return settings.isDisplayFormulas();
+    }
+
+    public void setDisplayRowColHeadings(final boolean show) {
+        settings.setDisplayRowColHeadings(show);
+    }
+
+    public boolean isDisplayRowColHeadings() {
+        return settings.isDisplayRowColHeadings();
+    }
+
+    public void setRowBreak(final int row) {
+        if (row<0 || row>=MAX_ROWS)
+            throw new IllegalArgumentException("Invalid row number ("+row+") outside allowable range (0.."+(MAX_ROWS-1)+")");
+        rowBreaks.add(row);
+    }
+
+    public boolean isRowBroken(final int row) {
+        return rowBreaks.contains(row);
+    }
+
+    public void removeRowBreak(final int row) {
+        rowBreaks.remove(row);
+    }
+
+    public int[] getRowBreaks() {
+        return toArray(rowBreaks);
+    }
+
+    public int[] getColumnBreaks() {
+        return toArray(columnBreaks);
+    }
+
+    public void setColumnBreak(final int column) {
+        if (column<0 || column>=MAX_COLUMNS)
+            throw new IllegalArgumentException("Invalid column index ("+column+")");
+        columnBreaks.add(column);
+    }
+
+    public boolean isColumnBroken(final int column) {
+        return columnBreaks.contains(column);
+    }
+
+    public void removeColumnBreak(final int column) {
+        columnBreaks.remove(column);
+    }
+
+    public void autoSizeColumn(final int column) {
+        throw new UnsupportedOperationException("Columns auto sizing is not supported");
+    }
+
+    public void autoSizeColumn(final int column, final boolean useMergedCells) {
+        throw new UnsupportedOperationException("Columns auto sizing is not supported");
+    }
+
+    public Comment getCellComment(final int row, final int column) {
+        return null;
+    }
+
+    public Drawing createDrawingPatriarch() {
+        throw new UnsupportedOperationException("Drawings are not supported");
+    }
+
+    public XLSXWorkbook getWorkbook() {
+        return wb;
+    }
+
+    public String getSheetName() {
+        return name;
+    }
+
+    public CellRange<? extends Cell> setArrayFormula(final String formula, final CellRangeAddress range) {
+        throw new UnsupportedOperationException("Array formulas are not supported");
+    }
+
+    public CellRange<? extends Cell> removeArrayFormula(final Cell cell) {
+        throw new UnsupportedOperationException("Array formulas are not supported");
+    }
+
+    public DataValidationHelper getDataValidationHelper() {
+        throw new UnsupportedOperationException("Data validations are not supported");
+    }
+
+    public void addValidationData(final DataValidation dataValidation) {
+        throw new UnsupportedOperationException("Data validations are not supported");
+    }
+
+    public AutoFilter setAutoFilter(final CellRangeAddress range) {
+        throw new UnsupportedOperationException("Auto filters are not supported");
+    }
+
+
+    private static int[] toArray(final SortedSet<Integer> set) {
+        final int[] result = new int[set.size()];
+        int i = 0;
+        for (Integer value : set) {
+            result[i++] = value;
+        }
+        return result;
+    }
+
+    private void ensureColumns(final int column) {
+        if (column<0 || column>=MAX_COLUMNS)
+            throw new IllegalArgumentException("Invalid column index ("+column+")");
+        if (column>=columnLevels.length) {
+            final int[] tmp = new int[Math.max(column+1, columnLevels.length*2)];
+            System.arraycopy(columnLevels, 0, tmp, 0, columnLevels.length);
+            columnLevels = tmp;
+        }
+        if (column>=columnsCount)
+            columnsCount = column+1;
+    }
+
+
+    @Override
+    public String toString() {
+        return "[XLSXSheet{name:"+name+", rows:"+rowsCount+", flushed:"+flushed+"}]";
+    }
+}
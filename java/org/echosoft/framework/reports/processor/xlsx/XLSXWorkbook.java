@@ -0,0 +1,491 @@
+package org.echosoft.framework.reports.processor.xlsx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.hssf.record.FileSharingRecord;
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.hssf.usermodel.HSSFFont;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.CreationHelper;
+import org.apache.poi.ss.usermodel.DataFormat;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.PictureData;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * <p>Рабочая книга отчета, формируемого в формате Office Open XML (<code>.xlsx</code>).</p>
+ * <p>Книга записывается в выходной поток по мере ее формирования: строки листа выгружаются в поток вызовом метода
+ * {@link XLSXSheet#flushRows(int)}, создание очередного листа книги завершает запись предыдущего листа, а все остальные части
+ * документа (описание книги, стили, свойства документа) записываются при вызове метода {@link #write(OutputStream)}.
+ * Таким образом, объем потребляемой при формировании отчета памяти не зависит от количества строк в нем.</p>
+ * <p>Шрифты, стили ячеек и форматы данных хранятся в рабочей книге HSSF, построенной на основе шаблона отчета.
+ * Каждому стилю этой книги в итоговом документе соответствует стиль с тем же самым индексом.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class XLSXWorkbook implements Workbook {
+
+    private final OutputStream out;
+    private final HSSFWorkbook template;
+    private final WorkbookWriter writer;
+    private final List<XLSXSheet> sheets;
+    private final List<Integer> sheetStates;
+    private final DocumentProperties properties;
+    private Row.MissingCellPolicy missingCellPolicy;
+    private XLSXSheet current;
+    private int activeSheet;
+    private int firstVisibleTab;
+    private String writeProtectUser;
+    private short writeProtectPassword;
+    private boolean finished;
+
+    /**
+     * @param out  выходной поток, в который будет записан сформированный отчет. По окончании работы поток не закрывается.
+     * @param template  рабочая книга HSSF, построенная на основе шаблона отчета. Используется в качестве хранилища
+     *          шрифтов, стилей ячеек, форматов данных и палитры цветов.
+     */
+    public XLSXWorkbook(final OutputStream out, final HSSFWorkbook template) {
+        this.out = out;
+        this.template = template;
+        this.writer = out!=null ? new WorkbookWriter(out) : null;
+        this.sheets = new ArrayList<XLSXSheet>();
+        this.sheetStates = new ArrayList<Integer>();
+        this.properties = new DocumentProperties();
+        this.missingCellPolicy = Row.RETURN_NULL_AND_BLANK;
+    }
+
+    /**
+     * Создает книгу, которая формируется целиком в памяти и не может быть записана в выходной поток.
+     * Используется в качестве промежуточного буфера, содержимое которого впоследствии переносится в другую книгу.
+     *
+     * @param template  рабочая книга HSSF, построенная на основе шаблона отчета. Используется в качестве хранилища
+     *          шрифтов, стилей ячеек, форматов данных и палитры цветов.
+     */
+    public XLSXWorkbook(final HSSFWorkbook template) {
+        this(null, template);
+    }
+
+    /**
+     * @return рабочая книга HSSF, в которой хранятся шрифты, стили ячеек и форматы данных данной книги.
+     */
+    public HSSFWorkbook getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return свойства формируемого документа.
+     */
+    public DocumentProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * Устанавливает режим защиты книги от записи. Аналог метода {@link HSSFWorkbook#writeProtectWorkbook(String, String)}.
+     *
+     * @param password  пароль.
+     * @param username  имя пользователя.
+     */
+    public void writeProtectWorkbook(final String password, final String username) {
+        this.writeProtectPassword = (short)FileSharingRecord.hashPassword(password);
+        this.writeProtectUser = username;
+    }
+
+    /**
+     * Снимает защиту книги от записи.
+     */
+    public void unwriteProtectWorkbook() {
+        this.writeProtectPassword = 0;
+        this.writeProtectUser = null;
+    }
+
+    /**
+     * @return <code>true</code> если книга защищена от записи.
+     */
+    public boolean isWriteProtected() {
+        return writeProtectUser!=null;
+    }
+
+    String getWriteProtectUser() {
+        return writeProtectUser;
+    }
+
+    short getWriteProtectPassword() {
+        return writeProtectPassword;
+    }
+
+    List<XLSXSheet> getSheets() {
+        return sheets;
+    }
+
+    /**
+     * Вызывается листом книги перед выгрузкой в выходной поток его первых строк.
+     * Если в этот момент еще не завершена запись предыдущего листа книги, то она будет завершена.
+     */
+    SheetWriter startSheet(final XLSXSheet sheet) throws IOException {
+        if (current!=null && current!=sheet)
+            current.finish();
+        if (finished)
+            throw new IllegalStateException("Workbook already finished");
+        if (writer==null)
+            throw new IllegalStateException("Workbook has no output stream");
+        current = sheet;
+        return writer.startSheet(sheets.indexOf(sheet));
+    }
+
+    /**
+     * Вызывается листом книги по окончании его записи в выходной поток.
+     */
+    void finishSheet(final XLSXSheet sheet) throws IOException {
+        writer.finishSheet();
+        if (current==sheet)
+            current = null;
+    }
+
+
+    public int getActiveSheetIndex() {
+        return activeSheet;
+    }
+
+    public void setActiveSheet(final int index) {
+        checkSheetIndex(index);
+        this.activeSheet = index;
+    }
+
+    public int getFirstVisibleTab() {
+        return firstVisibleTab;
+    }
+
+    public void setFirstVisibleTab(final int index) {
+        this.firstVisibleTab = index;
+    }
+
+    public void setSheetOrder(final String sheetname, final int pos) {
+        throw new UnsupportedOperationException("Sheets can not be reordered");
+    }
+
+    public void setSelectedTab(final int index) {
+        checkSheetIndex(index);
+    }
+
+    public void setSheetName(final int index, final String name) {
+        checkSheetIndex(index);
+        checkSheetName(name);
+        sheets.get(index).setSheetName(name);
+    }
+
+    public String getSheetName(final int index) {
+        checkSheetIndex(index);
+        return sheets.get(index).getSheetName();
+    }
+
+    public int getSheetIndex(final String name) {
+        for (int i=0; i<sheets.size(); i++) {
+            if (sheets.get(i).getSheetName().equalsIgnoreCase(name))
+                return i;
+        }
+        return -1;
+    }
+
+    public int getSheetIndex(final Sheet sheet) {
+        return sheets.indexOf(sheet);
+    }
+
+    public XLSXSheet createSheet() {
+        return createSheet("Sheet"+sheets.size());
+    }
+
+    /**
+     * Создает новый лист книги. Если в этот момент еще не завершена запись в выходной поток предыдущего листа, то она будет завершена.
+     *
+     * @param sheetname  наименование листа.
+     * @return созданный лист.
+     */
+    public XLSXSheet createSheet(final String sheetname) {
+        if (finished)
+            throw new IllegalStateException("Workbook already finished");
+        checkSheetName(sheetname);
+        try {
+            for (XLSXSheet sheet : sheets) {
+                if (!sheet.isFinished())
+                    sheet.finish();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        final XLSXSheet sheet = new XLSXSheet(this, sheetname, template.createSheet());
+        sheets.add(sheet);
+        sheetStates.add(SHEET_STATE_VISIBLE);
+        return sheet;
+    }
+
+    public Sheet cloneSheet(final int index) {
+        throw new UnsupportedOperationException("Sheets can not be cloned");
+    }
+
+    public int getNumberOfSheets() {
+        return sheets.size();
+    }
+
+    public XLSXSheet getSheetAt(final int index) {
+        checkSheetIndex(index);
+        return sheets.get(index);
+    }
+
+    public XLSXSheet getSheet(final String name) {
+        final int index = getSheetIndex(name);
+        return index>=0 ? sheets.get(index) : null;
+    }
+
+    public void removeSheetAt(final int index) {
+        throw new UnsupportedOperationException("Sheets can not be removed");
+    }
+
+    public void setRepeatingRowsAndColumns(final int sheetIndex, final int startColumn, final int endColumn, final int startRow, final int endRow) {
+        throw new UnsupportedOperationException("Repeating rows and columns are not supported");
+    }
+
+    public HSSFFont createFont() {
+        return template.createFont();
+    }
+
+    public HSSFFont findFont(final short boldWeight, final short color, final short fontHeight, final String name, final boolean italic, final boolean strikeout, final short typeOffset, final byte underline) {
+        return template.findFont(boldWeight, color, fontHeight, name, italic, strikeout, typeOffset, underline);
+    }
+
+    public short getNumberOfFonts() {
+        return template.getNumberOfFonts();
+    }
+
+    public HSSFFont getFontAt(final short idx) {
+        return template.getFontAt(idx);
+    }
+
+    public HSSFCellStyle createCellStyle() {
+        return template.createCellStyle();
+    }
+
+    public short getNumCellStyles() {
+        return template.getNumCellStyles();
+    }
+
+    public HSSFCellStyle getCellStyleAt(final short idx) {
+        return template.getCellStyleAt(idx);
+    }
+
+    /**
+     * Завершает запись книги в выходной поток, указанный при ее создании. Сам выходной поток при этом не закрывается.
+     *
+     * @param stream  выходной поток. Должен совпадать с потоком, указанным в конструкторе.
+     * @throws IOException  в случае проблем с записью в выходной поток.
+     */
+    public void write(final OutputStream stream) throws IOException {
+        if (stream==null || stream!=out)
+            throw new IllegalArgumentException("Workbook can be written only to the output stream specified in constructor");
+        if (finished)
+            throw new IllegalStateException("Workbook already finished");
+        for (XLSXSheet sheet : sheets) {
+            sheet.finish();
+        }
+        writer.finish(this);
+        finished = true;
+    }
+
+    public int getNumberOfNames() {
+        return 0;
+    }
+
+    public Name getName(final String name) {
+        return null;
+    }
+
+    public Name getNameAt(final int index) {
+        throw new IllegalStateException("There are no defined names in this workbook");
+    }
+
+    public Name createName() {
+        throw new UnsupportedOperationException("Defined names are not supported");
+    }
+
+    public int getNameIndex(final String name) {
+        return -1;
+    }
+
+    public void removeName(final int index) {
+        throw new IllegalStateException("There are no defined names in this workbook");
+    }
+
+    public void removeName(final String name) {
+        throw new IllegalStateException("There are no defined names in this workbook");
+    }
+
+    public void setPrintArea(final int sheetIndex, final String reference) {
+        throw new UnsupportedOperationException("Print areas are not supported");
+    }
+
+    public void setPrintArea(final int sheetIndex, final int startColumn, final int endColumn, final int startRow, final int endRow) {
+        throw new UnsupportedOperationException("Print areas are not supported");
+    }
+
+    public String getPrintArea(final int sheetIndex) {
+        return null;
+    }
+
+    public void removePrintArea(final int sheetIndex) {
+    }
+
+    public Row.MissingCellPolicy getMissingCellPolicy() {
+        return missingCellPolicy;
+    }
+
+    public void setMissingCellPolicy(final Row.MissingCellPolicy missingCellPolicy) {
+        this.missingCellPolicy = missingCellPolicy;
+    }
+
+    public DataFormat createDataFormat() {
+        return template.createDataFormat();
+    }
+
+    public int addPicture(final byte[] pictureData, final int format) {
+        throw new UnsupportedOperationException("Pictures are not supported");
+    }
+
+    public List<? extends PictureData> getAllPictures() {
+        return new ArrayList<PictureData>();
+    }
+
+    public CreationHelper getCreationHelper() {
+        return template.getCreationHelper();
+    }
+
+    public boolean isHidden() {
+        return false;
+    }
+
+    public void setHidden(final boolean hiddenFlag) {
+        throw new UnsupportedOperationException("Workbook window can not be hidden");
+    }
+
+    public boolean isSheetHidden(final int index) {
+        checkSheetIndex(index);
+        return sheetStates.get(index)==SHEET_STATE_HIDDEN;
+    }
+
+    public boolean isSheetVeryHidden(final int index) {
+        checkSheetIndex(index);
+        return sheetStates.get(index)==SHEET_STATE_VERY_HIDDEN;
+    }
+
+    public void setSheetHidden(final int index, final boolean hidden) {
+        setSheetHidden(index, hidden ? SHEET_STATE_HIDDEN : SHEET_STATE_VISIBLE);
+    }
+
+    public void setSheetHidden(final int index, final int hidden) {
+        checkSheetIndex(index);
+        if (hidden!=SHEET_STATE_VISIBLE && hidden!=SHEET_STATE_HIDDEN && hidden!=SHEET_STATE_VERY_HIDDEN)
+            throw new IllegalArgumentException("Invalid sheet state : " + hidden);
+        sheetStates.set(index, hidden);
+    }
+
+    /**
+     * @param index  индекс листа книги.
+     * @return  состояние видимости листа (одна из констант <code>SHEET_STATE_*</code>).
+     */
+    int getSheetState(final int index) {
+        return sheetStates.get(index);
+    }
+
+
+    private void checkSheetIndex(final int index) {
+        if (index<0 || index>=sheets.size())
+            throw new IllegalArgumentException("Sheet index ("+index+") is out of range (0.."+(sheets.size()-1)+")");
+    }
+
+    private void checkSheetName(final String name) {
+        if (name==null)
+            throw new IllegalArgumentException("Sheet name cannot be null");
+        if (getSheetIndex(name)>=0)
+            throw new IllegalArgumentException("The workbook already contains a sheet of this name");
+    }
+
+
+    @Override
+    public String toString() {
+        return "[XLSXWorkbook{sheets:"+sheets.size()+"}]";
+    }
+
+
+    /**
+     * Свойства документа, записываемые в итоговый документ по окончании его формирования.
+     */
+    public static final class DocumentProperties {
+        private String title;
+        private String subject;
+        private String author;
+        private String comments;
+        private String category;
+        private String version;
+        private String application;
+        private String company;
+
+        public String getTitle() {
+            return title;
+        }
+        public void setTitle(final String title) {
+            this.title = title;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+        public void setSubject(final String subject) {
+            this.subject = subject;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+        public void setAuthor(final String author) {
+            this.author = author;
+        }
+
+        public String getComments() {
+            return comments;
+        }
+        public void setComments(final String comments) {
+            this.comments = comments;
+        }
+
+        public String getCategory() {
+            return category;
+        }
+        public void setCategory(final String category) {
+            this.category = category;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+        public void setVersion(final String version) {
+            this.version = version;
+        }
+
+        public String getApplication() {
+            return application;
+        }
+        public void setApplication(final String application) {
+            this.application = application;
+        }
+
+        public String getCompany() {
+            return company;
+        }
+        public void setCompany(final String company) {
+            this.company = company;
+        }
+    }
+}
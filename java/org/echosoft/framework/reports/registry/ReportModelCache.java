@@ -0,0 +1,187 @@
+package org.echosoft.framework.reports.registry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.parser.ReportModelParser;
+import org.echosoft.framework.reports.util.Logs;
+
+/**
+ * <p>Кэш разобранных моделей отчетов.</p>
+ * <p>Разбор отчета (загрузка шаблона в {@link org.apache.poi.hssf.usermodel.HSSFWorkbook}, разбор XML описания и т.д.)
+ * является достаточно дорогой операцией. Поэтому после разбора модель отчета сериализуется в файл с расширением <code>.model</code>,
+ * расположенный в указанном каталоге кэша или, если каталог кэша не указан, рядом с файлами отчета. Помимо модели в этом файле сохраняется хэш содержимого
+ * обоих исходных файлов отчета, что позволяет при последующих загрузках использовать сохраненную модель лишь в случае если
+ * исходные файлы не изменились. Во всех остальных случаях (включая несовместимые изменения в классах модели) отчет разбирается
+ * заново, а файл кэша перезаписывается.</p>
+ * <p>Ошибки чтения и записи файла кэша не являются фатальными и приводят лишь к повторному разбору отчета.</p>
+ * <p>Реестр отчетов использует данный кэш лишь если это было явно указано (см. {@link ReportsRegistry#setModelCacheEnabled(boolean)}).</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class ReportModelCache {
+
+    /**
+     * Расширение файлов, в которых хранятся сериализованные модели отчетов.
+     */
+    public static final String EXTENSION = "model";
+
+    private static final int MAGIC = 0x45524D43;    // "ERMC"
+    private static final int VERSION = 1;
+    private static final String DIGEST = "SHA-1";
+
+    private ReportModelCache() {
+    }
+
+    /**
+     * Возвращает модель отчета, описываемого указанными файлами. Если для отчета существует актуальный файл кэша,
+     * то модель загружается из него, в противном случае отчет разбирается заново и файл кэша обновляется.
+     *
+     * @param template  файл с шаблоном отчета (Excel документ).
+     * @param structure  файл со структурным описанием отчета (XML документ).
+     * @return  модель отчета.
+     * @throws Exception  в случае проблем с разбором отчета.
+     */
+    public static Report load(final File template, final File structure) throws Exception {
+        return load(template, structure, null);
+    }
+
+    /**
+     * Возвращает модель отчета, описываемого указанными файлами. Если для отчета существует актуальный файл кэша,
+     * то модель загружается из него, в противном случае отчет разбирается заново и файл кэша обновляется.
+     *
+     * @param template  файл с шаблоном отчета (Excel документ).
+     * @param structure  файл со структурным описанием отчета (XML документ).
+     * @param cacheDir  каталог в котором хранятся файлы кэша или <code>null</code> если файлы кэша должны располагаться рядом с файлами отчета.
+     * @return  модель отчета.
+     * @throws Exception  в случае проблем с разбором отчета.
+     */
+    public static Report load(final File template, final File structure, final File cacheDir) throws Exception {
+        final byte[] tdata = readFile(template);
+        final byte[] sdata = readFile(structure);
+        final MessageDigest md = MessageDigest.getInstance(DIGEST);
+        md.update(tdata);
+        md.update(sdata);
+        final byte[] hash = md.digest();
+
+        final File cache = getCacheFile(template, cacheDir);
+        final Report cached = read(cache, hash);
+        if (cached!=null)
+            return cached;
+
+        final Report report = ReportModelParser.parse(new ByteArrayInputStream(tdata), new ByteArrayInputStream(sdata));
+        write(cache, hash, report);
+        return report;
+    }
+
+    /**
+     * Возвращает файл кэша для отчета с указанным шаблоном.
+     *
+     * @param template  файл с шаблоном отчета.
+     * @return  файл, в котором хранится (или будет храниться) сериализованная модель отчета.
+     */
+    public static File getCacheFile(final File template) {
+        return getCacheFile(template, null);
+    }
+
+    /**
+     * Возвращает файл кэша для отчета с указанным шаблоном. Поскольку в общем каталоге кэша могут храниться модели отчетов
+     * из разных каталогов, то к имени такого файла добавляется хэш полного пути к каталогу с шаблоном отчета.
+     *
+     * @param template  файл с шаблоном отчета.
+     * @param cacheDir  каталог в котором хранятся файлы кэша или <code>null</code> если файлы кэша располагаются рядом с файлами отчета.
+     * @return  файл, в котором хранится (или будет храниться) сериализованная модель отчета.
+     */
+    public static File getCacheFile(final File template, final File cacheDir) {
+        final String name = template.getName();
+        final int s = name.lastIndexOf('.');
+        final String base = s>=0 ? name.substring(0,s) : name;
+        if (cacheDir==null)
+            return new File(template.getParentFile(), base + '.' + EXTENSION);
+        final String dir = template.getAbsoluteFile().getParent();
+        return new File(cacheDir, base + '-' + Integer.toHexString(dir!=null ? dir.hashCode() : 0) + '.' + EXTENSION);
+    }
+
+
+    private static Report read(final File cache, final byte[] hash) {
+        if (!cache.isFile())
+            return null;
+        try {
+            // файл не отображается в память: отображение освобождается лишь сборщиком мусора,
+            // что препятствует последующему переименованию или удалению файла в ОС Windows ...
+            final DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+            try {
+                if (din.readInt()!=MAGIC || din.readInt()!=VERSION)
+                    return null;
+                final byte[] stored = new byte[din.readUnsignedShort()];
+                din.readFully(stored);
+                if (!Arrays.equals(hash, stored))
+                    return null;
+                final ObjectInputStream oin = new ObjectInputStream(din);
+                final Report result = (Report)oin.readObject();
+                Logs.reports.debug("report model loaded from cache: "+cache.getPath());
+                return result;
+            } finally {
+                din.close();
+            }
+        } catch (Exception e) {
+            Logs.reports.warn("unable to load report model from cache: "+cache.getPath(), e);
+            return null;
+        }
+    }
+
+    private static void write(final File cache, final byte[] hash, final Report report) {
+        final File tmp = new File(cache.getPath() + ".tmp");
+        try {
+            final File dir = cache.getParentFile();
+            if (dir!=null && !dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Unable to create directory "+dir.getPath());
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeShort(hash.length);
+                out.write(hash);
+                final ObjectOutputStream oout = new ObjectOutputStream(out);
+                oout.writeObject(report);
+                oout.flush();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(cache)) {
+                cache.delete();
+                if (!tmp.renameTo(cache))
+                    throw new IOException("Unable to rename "+tmp.getPath()+" to "+cache.getPath());
+            }
+        } catch (Exception e) {
+            tmp.delete();
+            Logs.reports.warn("unable to save report model to cache: "+cache.getPath(), e);
+        }
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        final long length = file.length();
+        if (length>Integer.MAX_VALUE)
+            throw new IOException("File is too large: "+file.getPath());
+        final byte[] result = new byte[(int)length];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(result);
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+}
@@ -3,32 +3,89 @@ package org.echosoft.framework.reports.registry;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.echosoft.framework.reports.model.Report;
 import org.echosoft.framework.reports.parser.ReportModelParser;
+import org.echosoft.framework.reports.processor.ReportPlan;
 import org.echosoft.framework.reports.util.Logs;
 
 /**
- * Реестр зарегистрированных в системе отчетов.
+ * <p>Реестр зарегистрированных в системе отчетов.</p>
+ * <p>Реестр может безопасно использоваться из нескольких потоков одновременно. Перечень зарегистрированных отчетов хранится
+ * в виде неизменяемого снимка, который при каждом изменении реестра заменяется новым. Благодаря этому операции чтения
+ * никогда не блокируются и всегда видят согласованное состояние реестра, даже во время загрузки отчетов.</p>
+ * <p>При регистрации каждый отчет однократно компилируется в план формирования отчета (см. {@link ReportPlan}), который хранится в реестре
+ * вместе с моделью отчета и заменяется новым при повторной загрузке отчета. Именно этот план используется процессором при формировании
+ * зарегистрированного отчета (см. {@link org.echosoft.framework.reports.processor.ExcelReportProcessor#compile(Report)}), поэтому изменения,
+ * внесенные в модель отчета после его регистрации, не учитываются до его повторной регистрации.</p>
+ * <p>Реестр может самостоятельно отслеживать изменения в каталогах с шаблонами отчетов (см. {@link #startWatching(long)})
+ * и повторно загружать лишь те отчеты, файлы которых были изменены.</p>
+ * <p>Для сокращения времени загрузки отчетов из каталогов может использоваться кэш разобранных моделей отчетов (см. {@link ReportModelCache}).
+ * По умолчанию кэш отключен, поскольку он требует права на запись в каталог кэша (см. {@link #setModelCacheDir(File)}).</p>
  *
  * @author Anton Sharapov
  */
 public class ReportsRegistry {
 
-    private static final Map<String, Report> reports = new HashMap<String,Report>();
+    private static final Object lock = new Object();
+    private static volatile Map<String, Registration> reports = Collections.emptyMap();
+
+    /**
+     * Информация о всех каталогах с отчетами, изменения в которых отслеживаются реестром.
+     */
+    private static final List<WatchedDirectory> directories = new ArrayList<WatchedDirectory>();
+    private static ScheduledExecutorService watcher;
+    private static volatile boolean modelCacheEnabled = false;
+    private static volatile File modelCacheDir;
 
     /**
      * Возвращает информацию по всем зарегистрированным в системе отчетам. Удаление элемента данной коллекции приведет
      * к исключению соответствующего отчета из списка зарегистрированных отчетов. Добавление элементов в коллекцию
      * не поддерживается.
      *
-     * @return  перечень всех зарегистрированных отчетов.
+     * @return  перечень всех зарегистрированных на момент вызова метода отчетов.
      */
     public static Collection<Report> getReports() {
-        return reports.values();
+        final Collection<Registration> snapshot = reports.values();
+        return new AbstractCollection<Report>() {
+            public Iterator<Report> iterator() {
+                final Iterator<Registration> it = snapshot.iterator();
+                return new Iterator<Report>() {
+                    private Report current;
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+                    public Report next() {
+                        return current = it.next().report;
+                    }
+                    public void remove() {
+                        if (current==null)
+                            throw new IllegalStateException();
+                        unregisterReport(current.getId());
+                        current = null;
+                    }
+                };
+            }
+            public int size() {
+                return snapshot.size();
+            }
+        };
     }
 
     /**
@@ -38,7 +95,32 @@ public class ReportsRegistry {
      * @return  модель отчета или <code>null</code> если отчет с таким id не зарегистрирован в системе.
      */
     public static Report getReport(String id) {
-        return reports.get(id);
+        final Registration registration = reports.get(id);
+        return registration!=null ? registration.report : null;
+    }
+
+    /**
+     * Возвращает подготовленный при регистрации отчета план его формирования. План заменяется новым при каждой повторной
+     * регистрации (загрузке) отчета, поэтому номер поколения плана (см. {@link ReportPlan#getGeneration()}) может использоваться
+     * в качестве номера версии отчета в реестре.
+     *
+     * @param id  идентификатор отчета.
+     * @return  план формирования отчета или <code>null</code> если отчет с таким id не зарегистрирован в системе.
+     */
+    public static ReportPlan getPlan(String id) {
+        final Registration registration = reports.get(id);
+        return registration!=null ? registration.plan : null;
+    }
+
+    /**
+     * Возвращает подготовленный при регистрации план формирования указанного отчета.
+     *
+     * @param report  модель отчета.
+     * @return  план формирования отчета или <code>null</code> если указанная модель (именно этот экземпляр) не зарегистрирована в системе.
+     */
+    public static ReportPlan getPlan(Report report) {
+        final Registration registration = report!=null ? reports.get(report.getId()) : null;
+        return registration!=null && registration.report==report ? registration.plan : null;
     }
 
     /**
@@ -50,7 +132,28 @@ public class ReportsRegistry {
     public static void registerReport(Report report) {
         if (report==null)
             throw new IllegalArgumentException("Report not specified");
-        reports.put(report.getId(), report);
+        final Registration registration;
+        try {
+            registration = new Registration(report);
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalArgumentException("Unable to compile report "+report.getId(), e);
+        }
+        publish(Collections.singletonList(registration), Collections.<String>emptyList());
+    }
+
+    /**
+     * Исключает отчет из списка зарегистрированных в системе отчетов.
+     *
+     * @param id  идентификатор отчета.
+     * @return  модель исключенного отчета или <code>null</code> если отчет с таким id не был зарегистрирован в системе.
+     */
+    public static Report unregisterReport(String id) {
+        synchronized (lock) {
+            final Registration result = reports.get(id);
+            if (result!=null)
+                publish(Collections.<Registration>emptyList(), Collections.singletonList(id));
+            return result!=null ? result.report : null;
+        }
     }
 
 
@@ -62,6 +165,10 @@ public class ReportsRegistry {
      *   <li> XML документ, содержащий  дополнительное описание и структурную разметку отчета.
      * </ul>
      * </p>
+     * <p>Разбор найденных отчетов выполняется параллельно, после чего все успешно разобранные отчеты публикуются в реестре одновременно.
+     * Если хотя бы один из отчетов разобрать не удалось, то после публикации остальных отчетов поднимается исключение.</p>
+     * <p>Указанный каталог запоминается реестром, и в дальнейшем, если будет вызван метод {@link #startWatching(long)},
+     * изменения отчетов в нем будут отслеживаться автоматически.</p>
      *
      * @param dir  каталог, начиная с которого следует искать декларации отчетов.
      * @param recursive  следует ли искать информацию об отчетах только в указанном каталоге или еще и во всех его дочерних подкаталогах.
@@ -73,64 +180,326 @@ public class ReportsRegistry {
         if (dir==null || !dir.isDirectory()) {
             return 0;
         }
+        final WatchedDirectory wd = new WatchedDirectory(dir, recursive, filter);
+        synchronized (directories) {
+            for (Iterator<WatchedDirectory> it=directories.iterator(); it.hasNext(); ) {
+                if (it.next().dir.equals(wd.dir))
+                    it.remove();
+            }
+            directories.add(wd);
+            return wd.refresh(true);
+        }
+    }
 
+    /**
+     * Проверяет все ранее зарегистрированные посредством {@link #registerReportsFromDirectory(File, boolean, FileFilter)} каталоги
+     * на предмет изменений в файлах отчетов и повторно загружает лишь те отчеты, файлы которых были изменены (или появились впервые).
+     * Отчеты, файлы которых были удалены, исключаются из реестра.
+     * Данный метод периодически вызывается реестром после вызова {@link #startWatching(long)}.
+     *
+     * @return  количество загруженных в результате выполнения данного метода отчетов.
+     * @throws Exception  в случае каких-либо проблем при разборе отчетов.
+     */
+    public static int refresh() throws Exception {
         int result = 0;
-        final HashMap<String,File[]> files = new HashMap<String,File[]>();
-        for (File file : dir.listFiles(filter)) {
-            if (file.isDirectory()) {
-                if (recursive) {
-                    result += registerReportsFromDirectory(file, recursive, filter);
+        Exception cause = null;
+        synchronized (directories) {
+            for (WatchedDirectory wd : directories) {
+                try {
+                    result += wd.refresh(false);
+                } catch (Exception e) {
+                    cause = e;
                 }
-                continue;
-            }
-            final int s = file.getName().lastIndexOf('.');
-            final String ext = s>=0 ? file.getName().substring(s+1).toLowerCase() : null;
-            if (!"xls".equals(ext) && !"xml".equals(ext))
-                continue;
-            final String name = file.getName().substring(0,s);
-
-            File[] tuple = files.get(name);
-            if (tuple==null) {
-                tuple = new File[2];
-                files.put(name, tuple);
             }
+        }
+        if (cause!=null)
+            throw cause;
+        return result;
+    }
+
+    /**
+     * Запускает фоновую задачу, которая с указанной периодичностью проверяет все ранее зарегистрированные каталоги с отчетами
+     * на предмет изменений (см. {@link #refresh()}). Повторный вызов метода перезапускает задачу с новой периодичностью.
+     *
+     * @param period  периодичность проверки каталогов (в миллисекундах). Должна быть больше нуля.
+     */
+    public static void startWatching(final long period) {
+        if (period<=0)
+            throw new IllegalArgumentException("Period must be positive");
+        synchronized (lock) {
+            stopWatching();
+            watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "reports-registry-watcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            watcher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (Exception e) {
+                        // все проблемы уже были запротоколированы ...
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
 
-            if ("xls".equals(ext)) {
-                tuple[0] = file;
-            } else {
-                tuple[1] = file;
+    /**
+     * Останавливает фоновую задачу по отслеживанию изменений в каталогах с отчетами (если она была запущена).
+     */
+    public static void stopWatching() {
+        synchronized (lock) {
+            if (watcher!=null) {
+                watcher.shutdownNow();
+                watcher = null;
             }
         }
+    }
+
+
+    /**
+     * @return <code>true</code> если при загрузке отчетов из каталогов используется кэш разобранных моделей отчетов.
+     */
+    public static boolean isModelCacheEnabled() {
+        return modelCacheEnabled;
+    }
+
+    /**
+     * Определяет следует ли при загрузке отчетов из каталогов использовать кэш разобранных моделей отчетов (см. {@link ReportModelCache}).
+     *
+     * По умолчанию кэш не используется.
+     *
+     * @param enabled  <code>true</code> если кэш должен использоваться.
+     */
+    public static void setModelCacheEnabled(final boolean enabled) {
+        modelCacheEnabled = enabled;
+    }
+
+    /**
+     * @return  каталог, в котором хранятся файлы кэша разобранных моделей отчетов, или <code>null</code> (по умолчанию)
+     *      если файлы кэша располагаются рядом с файлами отчетов.
+     */
+    public static File getModelCacheDir() {
+        return modelCacheDir;
+    }
+
+    /**
+     * Указывает каталог, в котором должны храниться файлы кэша разобранных моделей отчетов. Если каталог не существует,
+     * то он будет создан при первой записи в кэш.
+     *
+     * @param dir  каталог кэша или <code>null</code> если файлы кэша должны располагаться рядом с файлами отчетов.
+     */
+    public static void setModelCacheDir(final File dir) {
+        modelCacheDir = dir;
+    }
 
-        Exception cause = null;
-        for (File[] tuple : files.values()) {
-            if (tuple[0]==null || tuple[1]==null)
-                continue;
 
-            Logs.reports.debug("registering report: "+tuple[0].getPath());
-            final FileInputStream template = new FileInputStream(tuple[0]);
+    /**
+     * Публикует новый снимок реестра, который получается из текущего путем добавления (замены) и удаления указанных отчетов.
+     *
+     * @param registered  отчеты, которые должны быть зарегистрированы.
+     * @param unregistered  идентификаторы отчетов, которые должны быть исключены из реестра.
+     */
+    private static void publish(final Collection<Registration> registered, final Collection<String> unregistered) {
+        synchronized (lock) {
+            final Map<String,Registration> snapshot = new HashMap<String,Registration>(reports);
+            for (String id : unregistered) {
+                snapshot.remove(id);
+            }
+            for (Registration registration : registered) {
+                snapshot.put(registration.report.getId(), registration);
+            }
+            reports = Collections.unmodifiableMap(snapshot);
+        }
+    }
+
+    private static Report parse(final File template, final File structure) throws Exception {
+        Logs.reports.debug("registering report: "+template.getPath());
+        if (modelCacheEnabled)
+            return ReportModelCache.load(template, structure, modelCacheDir);
+        final FileInputStream tin = new FileInputStream(template);
+        try {
+            final FileInputStream sin = new FileInputStream(structure);
             try {
-                final FileInputStream structure = new FileInputStream(tuple[1]);
+                return ReportModelParser.parse(tin, sin);
+            } finally {
+                sin.close();
+            }
+        } finally {
+            tin.close();
+        }
+    }
+
+
+    /**
+     * Каталог с шаблонами отчетов, изменения в котором отслеживаются реестром.
+     */
+    /**
+     * Зарегистрированный в реестре отчет вместе с подготовленным для него планом формирования.
+     */
+    private static final class Registration {
+        private final Report report;
+        private final ReportPlan plan;
+
+        private Registration(final Report report) throws CloneNotSupportedException {
+            this.report = report;
+            this.plan = new ReportPlan(report);
+        }
+    }
+
+    private static final class WatchedDirectory {
+        private final File dir;
+        private final boolean recursive;
+        private final FileFilter filter;
+        /**
+         * Информация о ранее загруженных из данного каталога отчетах. Ключом является путь к шаблону отчета без расширения.
+         */
+        private final Map<String,ReportFiles> loaded;
+
+        private WatchedDirectory(final File dir, final boolean recursive, final FileFilter filter) {
+            this.dir = dir.getAbsoluteFile();
+            this.recursive = recursive;
+            this.filter = filter;
+            this.loaded = new HashMap<String,ReportFiles>();
+        }
+
+        /**
+         * Загружает (повторно) отчеты из каталога.
+         * @param all  <code>true</code> если должны быть загружены все отчеты, <code>false</code> если должны быть загружены лишь отчеты,
+         *             файлы которых изменились с момента последней загрузки.
+         * @return  количество загруженных отчетов.
+         * @throws Exception  в случае проблем с разбором хотя бы одного отчета.
+         */
+        private int refresh(final boolean all) throws Exception {
+            final Map<String,ReportFiles> found = new HashMap<String,ReportFiles>();
+            scan(dir, found);
+
+            final List<String> removed = new ArrayList<String>();
+            for (Map.Entry<String,ReportFiles> entry : loaded.entrySet()) {
+                if (!found.containsKey(entry.getKey()) && entry.getValue().reportId!=null)
+                    removed.add(entry.getValue().reportId);
+            }
+            loaded.keySet().retainAll(found.keySet());
+
+            final List<ReportFiles> changed = new ArrayList<ReportFiles>();
+            for (Map.Entry<String,ReportFiles> entry : found.entrySet()) {
+                final ReportFiles prev = loaded.get(entry.getKey());
+                if (all || prev==null || !prev.isSameAs(entry.getValue()))
+                    changed.add(entry.getValue());
+            }
+            if (changed.isEmpty() && removed.isEmpty())
+                return 0;
+
+            final List<Registration> parsed = new ArrayList<Registration>(changed.size());
+            Exception cause = null;
+            if (!changed.isEmpty()) {
+                final int threads = Math.min(changed.size(), Runtime.getRuntime().availableProcessors());
+                final ExecutorService executor = Executors.newFixedThreadPool(threads);
                 try {
-                    final Report report = ReportModelParser.parse(template, structure);
-                    reports.put(report.getId(), report);
-                    result++;
-                } catch (Exception e) {
-                    cause = e;
-                    Logs.reports.error(e.getMessage(), e);
+                    final List<Future<Registration>> futures = new ArrayList<Future<Registration>>(changed.size());
+                    for (final ReportFiles files : changed) {
+                        futures.add(executor.submit(new Callable<Registration>() {
+                            public Registration call() throws Exception {
+                                return new Registration(parse(files.template, files.structure));
+                            }
+                        }));
+                    }
+                    for (int i=0; i<changed.size(); i++) {
+                        final ReportFiles files = changed.get(i);
+                        try {
+                            final Registration registration = futures.get(i).get();
+                            final Report report = registration.report;
+                            final ReportFiles prev = loaded.get(files.key);
+                            if (prev!=null && prev.reportId!=null && !prev.reportId.equals(report.getId())) {
+                                // идентификатор отчета в описании изменился, отчет под прежним идентификатором больше не доступен ...
+                                removed.add(prev.reportId);
+                            }
+                            files.reportId = report.getId();
+                            parsed.add(registration);
+                        } catch (ExecutionException e) {
+                            // отчет не удалось разобрать, при следующей проверке попробуем сделать это снова ...
+                            cause = e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+                            Logs.reports.error(cause.getMessage(), cause);
+                            final ReportFiles prev = loaded.get(files.key);
+                            files.reportId = prev!=null ? prev.reportId : null;
+                            files.templateModified = -1;
+                        }
+                        loaded.put(files.key, files);
+                    }
                 } finally {
-                    structure.close();
+                    executor.shutdown();
                 }
-                } finally {
-                template.close();
             }
+            publish(parsed, removed);
+            if (cause!=null)
+                throw cause;
+            return parsed.size();
         }
 
-        if (cause!=null)
-            throw cause;
-        return result;
+        private void scan(final File dir, final Map<String,ReportFiles> found) {
+            final File[] list = dir.listFiles(filter);
+            if (list==null)
+                return;
+            final HashMap<String,File[]> files = new HashMap<String,File[]>();
+            for (File file : list) {
+                if (file.isDirectory()) {
+                    if (recursive) {
+                        scan(file, found);
+                    }
+                    continue;
+                }
+                final int s = file.getName().lastIndexOf('.');
+                final String ext = s>=0 ? file.getName().substring(s+1).toLowerCase() : null;
+                if (!"xls".equals(ext) && !"xml".equals(ext))
+                    continue;
+                final String name = file.getName().substring(0,s);
+
+                File[] tuple = files.get(name);
+                if (tuple==null) {
+                    tuple = new File[2];
+                    files.put(name, tuple);
+                }
+
+                if ("xls".equals(ext)) {
+                    tuple[0] = file;
+                } else {
+                    tuple[1] = file;
+                }
+            }
+            for (Map.Entry<String,File[]> entry : files.entrySet()) {
+                final File[] tuple = entry.getValue();
+                if (tuple[0]==null || tuple[1]==null)
+                    continue;
+                final String key = new File(dir, entry.getKey()).getPath();
+                found.put(key, new ReportFiles(key, tuple[0], tuple[1]));
+            }
+        }
     }
 
+    /**
+     * Пара файлов, описывающих один отчет, и время их последней модификации на момент обнаружения.
+     */
+    private static final class ReportFiles {
+        private final String key;
+        private final File template;
+        private final File structure;
+        private long templateModified;
+        private final long structureModified;
+        private String reportId;
 
-    
+        private ReportFiles(final String key, final File template, final File structure) {
+            this.key = key;
+            this.template = template;
+            this.structure = structure;
+            this.templateModified = template.lastModified();
+            this.structureModified = structure.lastModified();
+        }
+
+        private boolean isSameAs(final ReportFiles other) {
+            return templateModified==other.templateModified && structureModified==other.structureModified;
+        }
+    }
 }
@@ -0,0 +1,319 @@
+package org.echosoft.framework.reports.util;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.poi.hssf.record.CellValueRecordInterface;
+import org.apache.poi.hssf.record.aggregates.FormulaRecordAggregate;
+import org.apache.poi.hssf.record.formula.AreaPtgBase;
+import org.apache.poi.hssf.record.formula.Ptg;
+import org.apache.poi.hssf.record.formula.RefPtgBase;
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Sheet;
+
+/**
+ * <p>Кэш разобранных формул Excel, позволяющий избежать повторного разбора однотипных формул.</p>
+ * <p>Формулы, формируемые при построении отчета (как в ячейках вида <code>$F=...</code>, так и макросами), как правило отличаются друг
+ * от друга лишь адресами ячеек, на которые они ссылаются. Поэтому для каждой формулы определяется ее "форма" - текст формулы, в котором
+ * номера строк и колонок во всех ссылках на ячейки заменены специальными маркерами. Первая формула каждой формы разбирается штатным
+ * образом, а полученный в результате список лексем сохраняется в кэше в качестве шаблона. Для всех последующих формул той же формы
+ * разбор не выполняется: в копии шаблона лишь заменяются адреса ссылок, после чего лексемы напрямую устанавливаются в ячейку.</p>
+ * <p>Шаблон формулы используется только в том случае, если удалось однозначно сопоставить каждую ссылку в тексте формулы
+ * соответствующей ей лексеме. Во всех остальных случаях (а также для ячеек, не относящихся к формату Excel 97-2003) формула
+ * устанавливается в ячейку обычным способом.</p>
+ * <p>Экземпляры данного класса не являются потокобезопасными и должны использоваться лишь в одном потоке формирования отчета.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class FormulaCache {
+
+    /**
+     * Максимальное количество шаблонов формул в кэше по умолчанию.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final char COLUMN_MARK = '\u0001';
+    private static final char ROW_MARK = '\u0002';
+    private static final int MAX_ROW = 0xFFFF;
+    private static final int MAX_COLUMN = 0xFF;
+    private static final Template UNSUPPORTED = new Template(null, 0);
+    private static final Method GET_RECORD;
+    static {
+        Method method;
+        try {
+            method = HSSFCell.class.getDeclaredMethod("getCellValueRecord");
+            method.setAccessible(true);
+        } catch (Exception e) {
+            Logs.reports.warn("formula templates are not available: "+e.getMessage());
+            method = null;
+        }
+        GET_RECORD = method;
+    }
+
+    private final Map<String,Template> templates;
+    private final StringBuilder key;
+    private int[] refs;
+    private int refsCount;
+    private Sheet sheet;
+    private long hits;
+    private long misses;
+
+    public FormulaCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity  максимальное количество хранимых в кэше шаблонов формул.
+     */
+    public FormulaCache(final int capacity) {
+        this.templates = new LinkedHashMap<String,Template>(32, 0.75f, true) {
+            protected boolean removeEldestEntry(final Map.Entry<String,Template> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.key = new StringBuilder(64);
+        this.refs = new int[16];
+    }
+
+    /**
+     * Устанавливает формулу в указанную ячейку. Результат полностью аналогичен вызову метода {@link Cell#setCellFormula(String)}.
+     *
+     * @param cell  ячейка отчета.
+     * @param formula  текст формулы (без начального символа <code>=</code>).
+     */
+    public void setCellFormula(final Cell cell, final String formula) {
+        if (GET_RECORD==null || formula==null || !(cell instanceof HSSFCell)) {
+            cell.setCellFormula(formula);
+            return;
+        }
+        final int type = cell.getCellType();
+        if ((type!=Cell.CELL_TYPE_BLANK && type!=Cell.CELL_TYPE_FORMULA) || cell.isPartOfArrayFormulaGroup()) {
+            cell.setCellFormula(formula);
+            return;
+        }
+        if (cell.getSheet()!=sheet) {
+            // имена могут иметь своей областью видимости конкретный лист, поэтому шаблоны формул используются в пределах одного листа ...
+            templates.clear();
+            sheet = cell.getSheet();
+        }
+        if (!scan(formula)) {
+            cell.setCellFormula(formula);
+            return;
+        }
+
+        final String shape = key.toString();
+        final Template template = templates.get(shape);
+        if (template==null) {
+            misses++;
+            cell.setCellFormula(formula);
+            templates.put(shape, Template.create(getRecord(cell).getFormulaTokens(), refs, refsCount));
+        } else
+        if (template==UNSUPPORTED || !template.relocate(refs)) {
+            misses++;
+            cell.setCellFormula(formula);
+        } else {
+            hits++;
+            cell.setCellType(Cell.CELL_TYPE_FORMULA);
+            final FormulaRecordAggregate agg = getRecord(cell);
+            agg.getFormulaRecord().setOptions((short)2);
+            agg.getFormulaRecord().setValue(0);
+            if (agg.getXFIndex()==(short)0)
+                agg.setXFIndex((short)0x0f);
+            agg.setParsedExpression(template.tokens);
+        }
+    }
+
+    /**
+     * @return  количество формул, установленных в ячейки без разбора их текста.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return  количество формул, для установки которых потребовался разбор их текста.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    public String toString() {
+        return "[FormulaCache{templates:"+templates.size()+", hits:"+hits+", misses:"+misses+"}]";
+    }
+
+
+    private static FormulaRecordAggregate getRecord(final Cell cell) {
+        try {
+            final CellValueRecordInterface record = (CellValueRecordInterface)GET_RECORD.invoke(cell);
+            return (FormulaRecordAggregate)record;
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Определяет форму формулы (сохраняется в {@link #key}) и адреса всех ссылок на ячейки в ней (сохраняются в {@link #refs}
+     * парами [строка, колонка]).
+     *
+     * @param formula  текст формулы.
+     * @return <code>false</code> если для данной формулы не может быть использован шаблон.
+     */
+    private boolean scan(final String formula) {
+        key.setLength(0);
+        refsCount = 0;
+        final int length = formula.length();
+        int i = 0;
+        while (i<length) {
+            final char c = formula.charAt(i);
+            if (c=='"' || c=='\'') {
+                // строковые константы и имена листов копируем как есть ...
+                final int end = formula.indexOf(c, i+1);
+                if (end<0)
+                    return false;
+                key.append(formula, i, end+1);
+                i = end + 1;
+            } else
+            if (isWordChar(c)) {
+                int end = i + 1;
+                while (end<length && isWordChar(formula.charAt(end)))
+                    end++;
+                int next = end;
+                while (next<length && formula.charAt(next)==' ')
+                    next++;
+                final char nc = next<length ? formula.charAt(next) : 0;
+                if (nc=='(' || nc=='!' || !appendReference(formula, i, end))
+                    key.append(formula, i, end);
+                i = end;
+            } else {
+                key.append(c);
+                i++;
+            }
+        }
+        return refsCount>0;
+    }
+
+    /**
+     * Проверяет является ли фрагмент формулы ссылкой на ячейку (вида <code>B12</code>, <code>$B12</code>, <code>B$12</code>, <code>$B$12</code>)
+     * и в случае успеха добавляет его в форму формулы и в список ссылок.
+     */
+    private boolean appendReference(final String formula, final int start, final int end) {
+        int i = start;
+        final boolean colAbs = formula.charAt(i)=='$';
+        if (colAbs)
+            i++;
+        int col = 0;
+        final int colStart = i;
+        for (char c; i<end && i-colStart<3 && (((c=formula.charAt(i))>='A' && c<='Z') || (c>='a' && c<='z')); i++) {
+            col = col*26 + (Character.toUpperCase(c) - 'A' + 1);
+        }
+        if (i==colStart || i==end)
+            return false;
+        final boolean rowAbs = formula.charAt(i)=='$';
+        if (rowAbs)
+            i++;
+        int row = 0;
+        final int rowStart = i;
+        for (char c; i<end && i-rowStart<6 && (c=formula.charAt(i))>='0' && c<='9'; i++) {
+            row = row*10 + (c - '0');
+        }
+        if (i==rowStart || i!=end || row<1 || row-1>MAX_ROW || col-1>MAX_COLUMN)
+            return false;
+
+        if (refsCount*2+2 > refs.length) {
+            final int[] tmp = new int[refs.length*2];
+            System.arraycopy(refs, 0, tmp, 0, refs.length);
+            refs = tmp;
+        }
+        refs[refsCount*2] = row - 1;
+        refs[refsCount*2+1] = col - 1;
+        refsCount++;
+        if (colAbs)
+            key.append('$');
+        key.append(COLUMN_MARK);
+        if (rowAbs)
+            key.append('$');
+        key.append(ROW_MARK);
+        return true;
+    }
+
+    private static boolean isWordChar(final char c) {
+        return Character.isLetterOrDigit(c) || c=='$' || c=='_' || c=='.';
+    }
+
+
+    /**
+     * Список лексем разобранной формулы, в котором могут быть изменены адреса ссылок на ячейки.
+     */
+    private static final class Template {
+        private final Ptg[] tokens;
+        private final int refsCount;
+
+        private Template(final Ptg[] tokens, final int refsCount) {
+            this.tokens = tokens;
+            this.refsCount = refsCount;
+        }
+
+        /**
+         * Формирует шаблон на основе лексем формулы. Шаблон формируется только в том случае, если адреса всех ссылок в лексемах
+         * совпадают с адресами ссылок, найденных в тексте формулы (в том же порядке).
+         */
+        private static Template create(final Ptg[] tokens, final int[] refs, final int refsCount) {
+            int r = 0;
+            for (Ptg token : tokens) {
+                if (token instanceof RefPtgBase) {
+                    final RefPtgBase ref = (RefPtgBase)token;
+                    if (r>=refsCount || ref.getRow()!=refs[r*2] || ref.getColumn()!=refs[r*2+1])
+                        return UNSUPPORTED;
+                    r++;
+                } else
+                if (token instanceof AreaPtgBase) {
+                    final AreaPtgBase area = (AreaPtgBase)token;
+                    if (r+1>=refsCount || area.getFirstRow()!=refs[r*2] || area.getFirstColumn()!=refs[r*2+1]
+                            || area.getLastRow()!=refs[r*2+2] || area.getLastColumn()!=refs[r*2+3])
+                        return UNSUPPORTED;
+                    r += 2;
+                }
+            }
+            return r==refsCount ? new Template(tokens, refsCount) : UNSUPPORTED;
+        }
+
+        /**
+         * Заменяет адреса ссылок на ячейки в лексемах шаблона.
+         *
+         * @return <code>false</code> если в полученной формуле области ячеек будут заданы не в нормализованном виде.
+         *   В этом случае шаблон не изменяется.
+         */
+        private boolean relocate(final int[] refs) {
+            for (int i=0, r=0; i<tokens.length && r<refsCount; i++) {
+                if (tokens[i] instanceof AreaPtgBase) {
+                    if (refs[r*2]>refs[r*2+2] || refs[r*2+1]>refs[r*2+3])
+                        return false;
+                    r += 2;
+                } else
+                if (tokens[i] instanceof RefPtgBase) {
+                    r++;
+                }
+            }
+            for (int i=0, r=0; i<tokens.length && r<refsCount; i++) {
+                final Ptg token = tokens[i];
+                if (token instanceof RefPtgBase) {
+                    final RefPtgBase ref = (RefPtgBase)token;
+                    ref.setRow(refs[r*2]);
+                    ref.setColumn(refs[r*2+1]);
+                    r++;
+                } else
+                if (token instanceof AreaPtgBase) {
+                    final AreaPtgBase area = (AreaPtgBase)token;
+                    area.setFirstRow(refs[r*2]);
+                    area.setFirstColumn(refs[r*2+1]);
+                    area.setLastRow(refs[r*2+2]);
+                    area.setLastColumn(refs[r*2+3]);
+                    r += 2;
+                }
+            }
+            return true;
+        }
+    }
+}
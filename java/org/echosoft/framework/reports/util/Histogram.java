@@ -0,0 +1,124 @@
+package org.echosoft.framework.reports.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Гистограмма распределения неотрицательных целочисленных величин (длительностей, количества записей и т.д.).</p>
+ * <p>Значения распределяются по интервалам, ширина которых растет экспоненциально: каждый интервал вида [2<sup>n</sup>, 2<sup>n+1</sup>)
+ * разбит на {@link #SUB_BUCKETS} равных частей. Благодаря этому гистограмма занимает фиксированный объем памяти при относительной
+ * погрешности вычисления перцентилей не более 1/{@link #SUB_BUCKETS}.</p>
+ * <p>Регистрация значений не требует создания объектов и блокировок, экземпляры данного класса могут одновременно использоваться
+ * из нескольких потоков.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class Histogram {
+
+    /**
+     * Количество интервалов, на которые разбивается каждый диапазон значений от 2<sup>n</sup> до 2<sup>n+1</sup>.
+     */
+    public static final int SUB_BUCKETS = 4;
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    public Histogram() {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong(0);
+        this.sum = new AtomicLong(0);
+        this.max = new AtomicLong(0);
+    }
+
+    /**
+     * Регистрирует очередное значение. Отрицательные значения игнорируются.
+     *
+     * @param value  регистрируемое значение.
+     */
+    public void record(final long value) {
+        if (value<0)
+            return;
+        buckets.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for (long m=max.get(); value>m && !max.compareAndSet(m, value); m=max.get());
+    }
+
+    /**
+     * @return  количество зарегистрированных значений.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return  сумма всех зарегистрированных значений.
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return  максимальное из зарегистрированных значений или 0 если ни одного значения зарегистрировано не было.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return  среднее арифметическое всех зарегистрированных значений или 0 если ни одного значения зарегистрировано не было.
+     */
+    public double getMean() {
+        final long cnt = count.get();
+        return cnt>0 ? (double)sum.get()/cnt : 0;
+    }
+
+    /**
+     * Вычисляет приблизительное значение указанного перцентиля.
+     *
+     * @param percentile  перцентиль (от 0 до 100).
+     * @return  верхняя граница интервала, в который попадает искомое значение (но не более максимального из зарегистрированных значений),
+     *          или 0 если ни одного значения зарегистрировано не было.
+     */
+    public long getPercentile(final double percentile) {
+        final long total = count.get();
+        if (total==0)
+            return 0;
+        final long threshold = Math.max(1, (long)Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100));
+        long accumulated = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            accumulated += buckets.get(i);
+            if (accumulated>=threshold)
+                return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[Histogram{count:"+getCount()+", mean:"+Math.round(getMean())+", p50:"+getPercentile(50)+", p99:"+getPercentile(99)+", max:"+getMax()+"}]";
+    }
+
+
+    private static int indexOf(final long value) {
+        if (value<SUB_BUCKETS)
+            return (int)value;
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int)(value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(final int index) {
+        if (index<SUB_BUCKETS)
+            return index;
+        final int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long sub = index % SUB_BUCKETS;
+        final long width = 1L << (exp - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
@@ -0,0 +1,361 @@
+package org.echosoft.framework.reports.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * <p>Пул стилей ячеек и шрифтов документа, позволяющий находить уже зарегистрированные в документе стили и шрифты с требуемыми
+ * характеристиками без последовательного перебора всех стилей (шрифтов) документа и регистрировать новые стили лишь в случае
+ * действительной необходимости.</p>
+ * <p>Для всех стилей и шрифтов документа строятся хэш-индексы по полному набору их характеристик. Индексы дополняются по мере
+ * появления в документе новых стилей и шрифтов (в том числе созданных в обход данного пула). Поскольку зарегистрированный в документе
+ * стиль может быть впоследствии изменен, каждый найденный в индексе стиль (шрифт) перед использованием повторно сверяется с
+ * требуемыми характеристиками.</p>
+ * <p>Количество стилей в документах Excel 97-2003 ограничено (см. {@link #DEFAULT_MAX_STYLES}). Пул всегда в первую очередь
+ * использует уже существующий стиль с требуемыми характеристиками, а при исчерпании допустимого количества стилей сообщает об этом
+ * исключением {@link IllegalStateException} вместо того чтобы сформировать документ, который не сможет быть открыт в Excel.</p>
+ * <p>Пул создается для каждого формируемого документа (см. {@link org.echosoft.framework.reports.processor.ExecutionContext#stylePool})
+ * и может использоваться обработчиками событий отрисовки ячеек. Экземпляры данного класса не являются потокобезопасными.</p>
+ *
+ * @author Anton Sharapov
+ */
+public final class StylePool {
+
+    /**
+     * Максимальное количество стилей ячеек в документе по умолчанию (ограничение формата Excel 97-2003).
+     */
+    public static final int DEFAULT_MAX_STYLES = 4000;
+
+    private final Workbook wb;
+    private final int maxStyles;
+    private final Map<StyleKey,CellStyle> styles;
+    private final Map<FontKey,Font> fonts;
+    private final Map<Long,CellStyle> altColorStyles;
+    private int indexedStyles;
+    private int indexedFonts;
+    private long hits;
+    private long misses;
+
+    public StylePool(final Workbook wb) {
+        this(wb, DEFAULT_MAX_STYLES);
+    }
+
+    /**
+     * @param wb  документ, для которого создается пул.
+     * @param maxStyles  максимальное количество стилей ячеек, которое может быть зарегистрировано в документе.
+     */
+    public StylePool(final Workbook wb, final int maxStyles) {
+        this.wb = wb;
+        this.maxStyles = maxStyles;
+        this.styles = new HashMap<StyleKey,CellStyle>();
+        this.fonts = new HashMap<FontKey,Font>();
+        this.altColorStyles = new HashMap<Long,CellStyle>();
+    }
+
+    /**
+     * Находит или регистрирует в документе шрифт с указанными характеристиками.
+     * Результат аналогичен совместному использованию методов {@link Workbook#findFont(short, short, short, String, boolean, boolean, short, byte)}
+     * и {@link Workbook#createFont()}.
+     *
+     * @return зарегистрированный в документе шрифт с требуемыми характеристиками.
+     */
+    public Font getFont(final short boldWeight, final short color, final short fontHeight, final String name, final boolean italic,
+                        final boolean strikeout, final short typeOffset, final byte underline) {
+        final FontKey key = new FontKey(boldWeight, color, fontHeight, name, italic, strikeout, typeOffset, underline);
+        Font font = findFont(key);
+        if (font==null) {
+            misses++;
+            font = wb.createFont();
+            font.setBoldweight(boldWeight);
+            font.setColor(color);
+            font.setFontHeight(fontHeight);
+            font.setFontName(name);
+            font.setItalic(italic);
+            font.setStrikeout(strikeout);
+            font.setTypeOffset(typeOffset);
+            font.setUnderline(underline);
+            indexFonts();
+        } else {
+            hits++;
+        }
+        return font;
+    }
+
+    /**
+     * Находит или регистрирует в документе шрифт, отличающийся от исходного только цветом.
+     *
+     * @param original  исходный шрифт.
+     * @param color  требуемый цвет шрифта.
+     * @return  зарегистрированный в документе шрифт с требуемыми характеристиками.
+     */
+    public Font getFont(final Font original, final short color) {
+        if (original.getColor()==color)
+            return original;
+        return getFont(original.getBoldweight(), color, original.getFontHeight(), original.getFontName(), original.getItalic(),
+                original.getStrikeout(), original.getTypeOffset(), original.getUnderline());
+    }
+
+    /**
+     * Находит или регистрирует в документе стиль, отличающийся от исходного только шрифтом и параметрами заливки фона.
+     *
+     * @param original  исходный стиль.
+     * @param fontIndex  индекс шрифта в документе.
+     * @param fillPattern  способ заливки фона ячейки.
+     * @param fillForegroundColor  основной цвет заливки фона ячейки.
+     * @return  зарегистрированный в документе стиль с требуемыми характеристиками.
+     * @throws IllegalStateException  если такой стиль отсутствует в документе, а допустимое количество стилей в документе уже исчерпано.
+     */
+    public CellStyle getStyle(final CellStyle original, final short fontIndex, final short fillPattern, final short fillForegroundColor) {
+        final StyleKey key = new StyleKey(original);
+        if (key.values[StyleKey.FONT]==fontIndex && key.values[StyleKey.FILL_PATTERN]==fillPattern && key.values[StyleKey.FILL_FG_COLOR]==fillForegroundColor)
+            return original;
+        key.values[StyleKey.FONT] = fontIndex;
+        key.values[StyleKey.FILL_PATTERN] = fillPattern;
+        key.values[StyleKey.FILL_FG_COLOR] = fillForegroundColor;
+        key.rehash();
+        CellStyle style = findStyle(key);
+        if (style==null) {
+            misses++;
+            if (wb.getNumCellStyles()>=maxStyles)
+                throw new IllegalStateException("Too many cell styles in the document (max: "+maxStyles+")");
+            style = wb.createCellStyle();
+            style.cloneStyleFrom(original);
+            style.setFont(wb.getFontAt(fontIndex));
+            style.setFillPattern(fillPattern);
+            style.setFillForegroundColor(fillForegroundColor);
+            indexStyles();
+        } else {
+            hits++;
+        }
+        return style;
+    }
+
+    /**
+     * Находит или регистрирует в документе стиль на основе исходного, в котором были изменены цвета шрифта и/или фона.
+     *
+     * @param original  исходный стиль.
+     * @param color  идентификатор цвета шрифта в документе или <code>-1</code> если цвет шрифта должен остаться без изменений.
+     * @param bgColor  идентификатор цвета фона в документе или <code>-1</code> если цвет фона должен остаться без изменений.
+     * @return  зарегистрированный в документе стиль с требуемыми характеристиками.
+     * @throws IllegalStateException  если такой стиль отсутствует в документе, а допустимое количество стилей в документе уже исчерпано.
+     */
+    public CellStyle getAltColorStyle(final CellStyle original, final int color, final int bgColor) {
+        final Long key = ((long)(original.getIndex() & 0xFFFF) << 34) | ((long)(color & 0x1FFFF) << 17) | (bgColor & 0x1FFFF);
+        CellStyle style = altColorStyles.get(key);
+        if (style!=null && isAltColorStyle(style, original, color, bgColor)) {
+            hits++;
+            return style;
+        }
+        short fontIndex = original.getFontIndex();
+        if (color>=0)
+            fontIndex = getFont(wb.getFontAt(fontIndex), (short)color).getIndex();
+        final short fillPattern = bgColor>=0 ? CellStyle.SOLID_FOREGROUND : original.getFillPattern();
+        final short fillColor = bgColor>=0 ? (short)bgColor : original.getFillForegroundColor();
+        style = getStyle(original, fontIndex, fillPattern, fillColor);
+        altColorStyles.put(key, style);
+        return style;
+    }
+
+    /**
+     * @return  количество запросов, для выполнения которых был использован уже существующий в документе стиль или шрифт.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return  количество запросов, для выполнения которых в документе был зарегистрирован новый стиль или шрифт.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    public String toString() {
+        return "[StylePool{styles:"+indexedStyles+", fonts:"+indexedFonts+", hits:"+hits+", misses:"+misses+"}]";
+    }
+
+
+    private CellStyle findStyle(final StyleKey key) {
+        indexStyles();
+        final CellStyle style = styles.get(key);
+        if (style==null)
+            return null;
+        if (key.equals(new StyleKey(style)))
+            return style;
+        // стиль был изменен после того как попал в индекс ...
+        styles.remove(key);
+        final StyleKey actual = new StyleKey(style);
+        if (!styles.containsKey(actual))
+            styles.put(actual, style);
+        return null;
+    }
+
+    private void indexStyles() {
+        final int count = wb.getNumCellStyles();
+        for (; indexedStyles<count; indexedStyles++) {
+            final CellStyle style = wb.getCellStyleAt((short)indexedStyles);
+            final StyleKey key = new StyleKey(style);
+            if (!styles.containsKey(key))
+                styles.put(key, style);
+        }
+    }
+
+    private Font findFont(final FontKey key) {
+        indexFonts();
+        final Font font = fonts.get(key);
+        if (font==null)
+            return null;
+        if (key.equals(new FontKey(font)))
+            return font;
+        fonts.remove(key);
+        final FontKey actual = new FontKey(font);
+        if (!fonts.containsKey(actual))
+            fonts.put(actual, font);
+        return null;
+    }
+
+    private void indexFonts() {
+        // в документах Excel отсутствует шрифт с индексом 4 ...
+        final int count = wb.getNumberOfFonts();
+        for (; indexedFonts<=count; indexedFonts++) {
+            if (indexedFonts==4)
+                continue;
+            final Font font = wb.getFontAt((short)indexedFonts);
+            final FontKey key = new FontKey(font);
+            if (!fonts.containsKey(key))
+                fonts.put(key, font);
+        }
+    }
+
+    private boolean isAltColorStyle(final CellStyle style, final CellStyle original, final int color, final int bgColor) {
+        final StyleKey expected = new StyleKey(original);
+        final StyleKey actual = new StyleKey(style);
+        if (color>=0) {
+            if (wb.getFontAt(style.getFontIndex()).getColor()!=color)
+                return false;
+            expected.values[StyleKey.FONT] = actual.values[StyleKey.FONT];
+        }
+        if (bgColor>=0) {
+            expected.values[StyleKey.FILL_PATTERN] = CellStyle.SOLID_FOREGROUND;
+            expected.values[StyleKey.FILL_FG_COLOR] = (short)bgColor;
+        }
+        expected.rehash();
+        return expected.equals(actual);
+    }
+
+
+    /**
+     * Полный набор характеристик стиля ячейки.
+     */
+    private static final class StyleKey {
+        private static final int FONT = 0;
+        private static final int FILL_PATTERN = 1;
+        private static final int FILL_FG_COLOR = 2;
+        private final short[] values;
+        private int hash;
+
+        private StyleKey(final CellStyle style) {
+            values = new short[] {
+                    style.getFontIndex(),
+                    style.getFillPattern(),
+                    style.getFillForegroundColor(),
+                    style.getFillBackgroundColor(),
+                    style.getAlignment(),
+                    style.getVerticalAlignment(),
+                    style.getBorderBottom(),
+                    style.getBorderLeft(),
+                    style.getBorderRight(),
+                    style.getBorderTop(),
+                    style.getBottomBorderColor(),
+                    style.getLeftBorderColor(),
+                    style.getRightBorderColor(),
+                    style.getTopBorderColor(),
+                    style.getDataFormat(),
+                    style.getIndention(),
+                    style.getRotation(),
+                    (short)((style.getHidden() ? 1 : 0) | (style.getLocked() ? 2 : 0) | (style.getWrapText() ? 4 : 0))
+            };
+            rehash();
+        }
+
+        private void rehash() {
+            int h = 1;
+            for (short value : values)
+                h = 31*h + value;
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj==this)
+                return true;
+            if (!(obj instanceof StyleKey))
+                return false;
+            final StyleKey other = (StyleKey)obj;
+            if (hash!=other.hash)
+                return false;
+            for (int i=0; i<values.length; i++) {
+                if (values[i]!=other.values[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Полный набор характеристик шрифта (аналогичный используемому методом {@link Workbook#findFont(short, short, short, String, boolean, boolean, short, byte)}).
+     */
+    private static final class FontKey {
+        private final short boldWeight;
+        private final short color;
+        private final short fontHeight;
+        private final String name;
+        private final int flags;
+        private final int hash;
+
+        private FontKey(final Font font) {
+            this(font.getBoldweight(), font.getColor(), font.getFontHeight(), font.getFontName(), font.getItalic(),
+                    font.getStrikeout(), font.getTypeOffset(), font.getUnderline());
+        }
+
+        private FontKey(final short boldWeight, final short color, final short fontHeight, final String name, final boolean italic,
+                        final boolean strikeout, final short typeOffset, final byte underline) {
+            this.boldWeight = boldWeight;
+            this.color = color;
+            this.fontHeight = fontHeight;
+            this.name = name;
+            this.flags = (italic ? 1 : 0) | (strikeout ? 2 : 0) | ((typeOffset & 0xFF) << 2) | ((underline & 0xFF) << 10);
+            int h = boldWeight;
+            h = 31*h + color;
+            h = 31*h + fontHeight;
+            h = 31*h + (name!=null ? name.hashCode() : 0);
+            h = 31*h + flags;
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj==this)
+                return true;
+            if (!(obj instanceof FontKey))
+                return false;
+            final FontKey other = (FontKey)obj;
+            return hash==other.hash && boldWeight==other.boldWeight && color==other.color && fontHeight==other.fontHeight
+                    && flags==other.flags && (name!=null ? name.equals(other.name) : other.name==null);
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package org.echosoft.framework.reports;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.Enumeration;
 
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.processor.ExcelReportProcessor;
+import org.echosoft.framework.reports.processor.ReportPlan;
+import org.echosoft.framework.reports.registry.ReportModelCache;
 import org.echosoft.framework.reports.registry.ReportsRegistry;
 import org.junit.Assert;
 import org.junit.Test;
@@ -29,4 +37,131 @@ public class RegistryTest {
             System.out.println(url);
         }
     }
+
+    @Test
+    public void refreshTest() throws Exception {
+        final File dir = File.createTempFile("reports", "");
+        Assert.assertTrue(dir.delete() && dir.mkdir());
+        try {
+            for (String name : new String[]{"report1.xls", "report1.xml", "report2.xls", "report2.xml"}) {
+                copy(name, new File(dir, name));
+            }
+            Assert.assertEquals(2, ReportsRegistry.registerReportsFromDirectory(dir, false, null));
+            Assert.assertNotNull(ReportsRegistry.getReport("report1"));
+            Assert.assertNotNull(ReportsRegistry.getReport("report2"));
+            Assert.assertEquals(0, ReportsRegistry.refresh());
+
+            final ReportPlan plan = ReportsRegistry.getPlan("report1");
+            Assert.assertNotNull(plan);
+            Assert.assertSame(plan, new ExcelReportProcessor().compile(ReportsRegistry.getReport("report1")));
+
+            final File structure = new File(dir, "report1.xml");
+            final Report prev = ReportsRegistry.getReport("report1");
+            Assert.assertTrue(structure.setLastModified(structure.lastModified() + 10000));
+            Assert.assertEquals(1, ReportsRegistry.refresh());
+            Assert.assertNotSame(prev, ReportsRegistry.getReport("report1"));
+            Assert.assertNotSame(plan, ReportsRegistry.getPlan("report1"));
+            Assert.assertNull(ReportsRegistry.getPlan(prev));
+            Assert.assertNotSame(plan, new ExcelReportProcessor().compile(prev));
+
+            Assert.assertTrue(new File(dir, "report2.xml").delete());
+            Assert.assertEquals(0, ReportsRegistry.refresh());
+            Assert.assertNull(ReportsRegistry.getReport("report2"));
+            Assert.assertNotNull(ReportsRegistry.getReport("report1"));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void renameTest() throws Exception {
+        final File dir = File.createTempFile("reports", "");
+        Assert.assertTrue(dir.delete() && dir.mkdir());
+        try {
+            // каталоги, удаленные предыдущими тестами, не должны повлиять на результат ...
+            ReportsRegistry.refresh();
+            copy("report1.xls", new File(dir, "report1.xls"));
+            copy("report1.xml", new File(dir, "report1.xml"));
+            Assert.assertEquals(1, ReportsRegistry.registerReportsFromDirectory(dir, false, null));
+            Assert.assertNotNull(ReportsRegistry.getReport("report1"));
+
+            final File structure = new File(dir, "report1.xml");
+            final long modified = structure.lastModified();
+            copy("report2.xml", structure);
+            Assert.assertTrue(structure.setLastModified(modified + 10000));
+            Assert.assertEquals(1, ReportsRegistry.refresh());
+            Assert.assertNull(ReportsRegistry.getReport("report1"));
+            Assert.assertNotNull(ReportsRegistry.getReport("report2"));
+
+            Assert.assertTrue(structure.delete());
+            Assert.assertEquals(0, ReportsRegistry.refresh());
+            Assert.assertNull(ReportsRegistry.getReport("report2"));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void modelCacheTest() throws Exception {
+        final File dir = File.createTempFile("reports", "");
+        Assert.assertTrue(dir.delete() && dir.mkdir());
+        try {
+            final File template = new File(dir, "report1.xls");
+            final File structure = new File(dir, "report1.xml");
+            copy("report1.xls", template);
+            copy("report1.xml", structure);
+            final Report parsed = ReportModelCache.load(template, structure);
+            final File cache = ReportModelCache.getCacheFile(template);
+            Assert.assertTrue(cache.isFile());
+            Assert.assertTrue(cache.setLastModified(1000000000L));
+
+            final Report cached = ReportModelCache.load(template, structure);
+            Assert.assertEquals(1000000000L, cache.lastModified());
+            Assert.assertNotSame(parsed, cached);
+            Assert.assertEquals(parsed.getId(), cached.getId());
+            Assert.assertEquals(parsed.getSheets().size(), cached.getSheets().size());
+
+            final ELContext ctx = TestUtils.makeContext();
+            final HSSFWorkbook wb = new ExcelReportProcessor().process(cached, ctx);
+            Assert.assertEquals(parsed.getSheets().size(), wb.getNumberOfSheets());
+
+            copy("report2.xml", structure);
+            Assert.assertEquals("report2", ReportModelCache.load(template, structure).getId());
+            Assert.assertTrue(cache.lastModified() != 1000000000L);
+
+            final File cacheDir = new File(dir, "cache");
+            final File shared = ReportModelCache.getCacheFile(template, cacheDir);
+            Assert.assertEquals(cacheDir, shared.getParentFile());
+            Assert.assertFalse(shared.equals(ReportModelCache.getCacheFile(new File(cacheDir, "report1.xls"), cacheDir)));
+            Assert.assertEquals("report2", ReportModelCache.load(template, structure, cacheDir).getId());
+            Assert.assertTrue(shared.isFile());
+            Assert.assertTrue(cache.delete());
+            Assert.assertTrue(shared.delete() && cacheDir.delete());
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static void copy(final String name, final File dst) throws Exception {
+        final InputStream in = TestUtils.openFileStream(name);
+        final FileOutputStream out = new FileOutputStream(dst);
+        try {
+            final byte[] buf = new byte[8192];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
 }
@@ -2,14 +2,31 @@ package org.echosoft.framework.reports;
 
 import javax.sql.DataSource;
 import java.io.FileOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFRichTextString;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.RichTextString;
 import org.echosoft.common.utils.StringUtil;
 import org.echosoft.framework.reports.model.ColumnGroup;
 import org.echosoft.framework.reports.model.Report;
 import org.echosoft.framework.reports.model.Sheet;
+import org.echosoft.framework.reports.model.el.BaseExpression;
 import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.model.events.ReportEventListener;
+import org.echosoft.framework.reports.model.events.ReportEventListenerHolder;
+import org.echosoft.framework.reports.model.events.SectionEventListener;
+import org.echosoft.framework.reports.model.events.SectionEventListenerHolder;
 import org.echosoft.framework.reports.processor.ExcelReportProcessor;
+import org.echosoft.framework.reports.processor.ExecutionContext;
+import org.echosoft.framework.reports.processor.ReportPlan;
+import org.echosoft.framework.reports.processor.ReportProcessingException;
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.postgresql.ds.PGPoolingDataSource;
@@ -39,13 +56,7 @@ public class SimpleReportTest {
         sheet1.addColumnGroup(new ColumnGroup(4, 7));
         sheet1.addColumnGroup(new ColumnGroup(5, 6));
 
-        final ELContext ctx = new ELContext();
-        ctx.getEnvironment().put("company", "Рога и Копыта");
-        ctx.getEnvironment().put("fromDate", StringUtil.parseDate("01.04.2008"));
-        ctx.getEnvironment().put("toDate", StringUtil.parseDate("25.08.2008"));
-        ctx.getEnvironment().put("author", "Anton Sharapov");
-        ctx.getEnvironment().put("invoices", TestUtils.loadInvoices("report1-ds1.xml"));
-        ctx.getEnvironment().put("payments", TestUtils.loadPayments("report1-ds2.xml"));
+        final ELContext ctx = TestUtils.makeContext();
 
         final long started = System.currentTimeMillis();
         final HSSFWorkbook result = new ExcelReportProcessor().process(report, ctx);
@@ -62,6 +73,186 @@ public class SimpleReportTest {
         out.close();
     }
 
+    @Test
+    public void testReportPlan() throws Exception {
+        final Report report = TestUtils.loadReport("report1");
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        final ReportPlan plan = processor.compile(report);
+        final HSSFWorkbook[] results = new HSSFWorkbook[4];
+        final Exception[] errors = new Exception[results.length];
+        final Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        final ELContext ctx = TestUtils.makeContext();
+                        results[index] = processor.process(plan, ctx);
+                    } catch (Exception e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (errors[i] != null)
+                throw errors[i];
+            Assert.assertEquals(results[0].getNumberOfSheets(), results[i].getNumberOfSheets());
+            for (int j = 0; j < results[i].getNumberOfSheets(); j++) {
+                Assert.assertEquals(results[0].getSheetAt(j).getLastRowNum(), results[i].getSheetAt(j).getLastRowNum());
+                Assert.assertEquals(results[0].getSheetAt(j).getNumMergedRegions(), results[i].getSheetAt(j).getNumMergedRegions());
+            }
+        }
+    }
+
+    @Test
+    public void testParallelSheets() throws Exception {
+        final Report report = TestUtils.loadReport("report1");
+        report.findSheetById("sheet4").setDependencies(new String[]{"sheet3"});
+        report.getListeners().add(new ReportEventListenerHolder(null, new BaseExpression("${env:settingsListener}")));
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        final ReportPlan plan = processor.compile(report);
+        final HSSFWorkbook[] results = new HSSFWorkbook[3];
+        // обработчик изменяет настройки листа и записывает на лист форматированный текст ...
+        final ReportEventListener listener = new ReportEventListener() {
+            public void beforeReport(ExecutionContext ectx) {}
+            public void beforeSheet(ExecutionContext ectx) {}
+            public void afterSheet(ExecutionContext ectx) {
+                if (ectx.wsheet == null)
+                    return;
+                ectx.wsheet.createFreezePane(1, 2);
+                ectx.wsheet.setColumnWidth(1, 5000);
+                ectx.wsheet.setDefaultColumnStyle(2, ectx.wb.getCellStyleAt((short)0));
+                ectx.wsheet.setRowBreak(3);
+                ectx.wsheet.getPrintSetup().setLandscape(true);
+                ectx.wsheet.getHeader().setCenter(ectx.sheet.getId());
+                final Font font = ectx.wb.createFont();
+                font.setBoldweight(Font.BOLDWEIGHT_BOLD);
+                final RichTextString text = ectx.wb.getCreationHelper().createRichTextString("bold text");
+                text.applyFont(0, 4, font);
+                ectx.wsheet.createRow(ectx.getNewRowNum()).createCell(0).setCellValue(text);
+            }
+            public void afterReport(ExecutionContext ectx) {}
+        };
+        // в последнем случае все листы формируются в пуле из единственного потока: зависимые листы не должны блокировать его ...
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < results.length; i++) {
+                final ELContext ctx = TestUtils.makeContext();
+                ctx.getEnvironment().put("settingsListener", listener);
+                processor.setParallelism(i == 0 ? 1 : 4);
+                if (i == 2)
+                    processor.setExecutor(executor);
+                results[i] = processor.process(plan, ctx);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (int k = 1; k < results.length; k++) {
+            Assert.assertEquals(results[0].getNumberOfSheets(), results[k].getNumberOfSheets());
+            for (int i = 0; i < results[0].getNumberOfSheets(); i++) {
+                final HSSFSheet expected = results[0].getSheetAt(i);
+                final HSSFSheet actual = results[k].getSheetAt(i);
+                Assert.assertEquals(expected.getSheetName(), actual.getSheetName());
+                Assert.assertEquals(results[0].isSheetHidden(i), results[k].isSheetHidden(i));
+                Assert.assertEquals(expected.getLastRowNum(), actual.getLastRowNum());
+                Assert.assertEquals(expected.getNumMergedRegions(), actual.getNumMergedRegions());
+                Assert.assertEquals(expected.getPaneInformation() != null, actual.getPaneInformation() != null);
+                Assert.assertEquals(expected.getColumnWidth(1), actual.getColumnWidth(1));
+                Assert.assertEquals(expected.getColumnStyle(2) != null, actual.getColumnStyle(2) != null);
+                Assert.assertArrayEquals(expected.getRowBreaks(), actual.getRowBreaks());
+                Assert.assertEquals(expected.getPrintSetup().getLandscape(), actual.getPrintSetup().getLandscape());
+                Assert.assertEquals(expected.getHeader().getCenter(), actual.getHeader().getCenter());
+                if (expected.getPhysicalNumberOfRows() > 0) {
+                    final HSSFRichTextString etext = expected.getRow(expected.getLastRowNum()).getCell(0).getRichStringCellValue();
+                    final HSSFRichTextString atext = actual.getRow(actual.getLastRowNum()).getCell(0).getRichStringCellValue();
+                    Assert.assertEquals(etext.numFormattingRuns(), atext.numFormattingRuns());
+                    Assert.assertTrue(atext.numFormattingRuns() > 0);
+                    Assert.assertEquals(results[0].getFontAt(etext.getFontAtIndex(0)).getBoldweight(), results[k].getFontAt(atext.getFontAtIndex(0)).getBoldweight());
+                }
+                for (int r = 0; r <= expected.getLastRowNum(); r++) {
+                    final HSSFRow erow = expected.getRow(r);
+                    final HSSFRow arow = actual.getRow(r);
+                    if (erow == null) {
+                        Assert.assertNull(arow);
+                        continue;
+                    }
+                    Assert.assertEquals(erow.getHeight(), arow.getHeight());
+                    Assert.assertEquals(erow.getZeroHeight(), arow.getZeroHeight());
+                    Assert.assertEquals(erow.getPhysicalNumberOfCells(), arow.getPhysicalNumberOfCells());
+                    for (int c = erow.getFirstCellNum(); c >= 0 && c < erow.getLastCellNum(); c++) {
+                        final HSSFCell ecell = erow.getCell(c);
+                        final HSSFCell acell = arow.getCell(c);
+                        if (ecell == null) {
+                            Assert.assertNull(acell);
+                            continue;
+                        }
+                        Assert.assertEquals(ecell.getCellType(), acell.getCellType());
+                        Assert.assertEquals(ecell.getCellStyle().getIndex(), acell.getCellStyle().getIndex());
+                        Assert.assertEquals(ecell.toString(), acell.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testModelChangingListeners() throws Exception {
+        final Report report = TestUtils.loadReport("report1");
+        report.getListeners().add(new ReportEventListenerHolder(null, new BaseExpression("${env:reportListener}")));
+        report.findSectionById("s3.header").getSectionListeners().add(new SectionEventListenerHolder(null, new BaseExpression("${env:sectionListener}")));
+        final ELContext ctx = TestUtils.makeContext();
+        final boolean[] legacy = new boolean[1];
+        ctx.getEnvironment().put("reportListener", new ReportEventListener() {
+            public void beforeReport(ExecutionContext ectx) {}
+            public void beforeSheet(ExecutionContext ectx) {
+                if ("sheet1".equals(ectx.sheet.getId()))
+                    ectx.sheetHidden = false;
+                if ("sheet2".equals(ectx.sheet.getId()))
+                    ectx.sheetRendered = false;
+            }
+            public void afterSheet(ExecutionContext ectx) {}
+            public void afterReport(ExecutionContext ectx) {}
+        });
+        ctx.getEnvironment().put("sectionListener", new SectionEventListener() {
+            public void beforeSection(ExecutionContext ectx) {
+                // обработчики, написанные для прежних версий, изменяют непосредственно модель секции ...
+                if (legacy[0])
+                    ectx.sectionContext.section.setHidden(true);
+                ectx.sectionContext.hidden = true;
+            }
+            public void afterRecord(ExecutionContext ectx) {}
+            public void afterSection(ExecutionContext ectx) {}
+        });
+        final int sheets = report.getSheets().size();
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        final ReportPlan plan = processor.compile(report);
+        final HSSFWorkbook result = processor.process(plan, ctx);
+        Assert.assertEquals(sheets-1, result.getNumberOfSheets());
+        Assert.assertEquals("Ведомость-1", result.getSheetName(0));
+        Assert.assertFalse(result.isSheetHidden(0));
+        Assert.assertEquals("Работа с группировками", result.getSheetName(1));
+        Assert.assertTrue(result.getSheetAt(1).getRow(0).getZeroHeight());
+        Assert.assertFalse(result.getSheetAt(2).getRow(0).getZeroHeight());
+        Assert.assertTrue(plan.getReport().findSheetById("sheet2").isRendered());
+        Assert.assertFalse(plan.getReport().findSectionById("s3.header").isHidden());
+
+        // модель отчета в подготовленном плане изменять нельзя ...
+        legacy[0] = true;
+        try {
+            processor.process(plan, ctx);
+            Assert.fail("Report model of a compiled plan must not be modifiable");
+        } catch (ReportProcessingException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertFalse(plan.getReport().findSectionById("s3.header").isHidden());
+        Assert.assertFalse(report.isFrozen());
+    }
+
     @Test
     public void testReport2() throws Exception {
         final Report report = TestUtils.loadReport("report2");
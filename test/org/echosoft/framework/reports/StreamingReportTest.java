@@ -0,0 +1,163 @@
+package org.echosoft.framework.reports;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.processor.ExcelReportProcessor;
+import org.echosoft.framework.reports.processor.xlsx.XLSXRow;
+import org.echosoft.framework.reports.processor.xlsx.XLSXSheet;
+import org.echosoft.framework.reports.processor.xlsx.XLSXWorkbook;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Проверяет что потоковое формирование отчета дает то же содержимое листов что и формирование отчета в памяти.
+ *
+ * @author Anton Sharapov
+ */
+public class StreamingReportTest {
+
+    @Test
+    public void testStreamingReport1() throws Exception {
+        final HSSFWorkbook expected = new ExcelReportProcessor().process(TestUtils.loadReport("report1"), TestUtils.makeContext());
+        for (int windowSize : new int[]{1, 3, 100}) {
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            new ExcelReportProcessor().process(TestUtils.loadReport("report1"), TestUtils.makeContext(), buf, windowSize);
+            final Map<String,Document> parts = unzip(buf.toByteArray());
+            Assert.assertNotNull(parts.get("[Content_Types].xml"));
+            Assert.assertNotNull(parts.get("xl/workbook.xml"));
+            Assert.assertNotNull(parts.get("xl/styles.xml"));
+            for (int i=0; i<expected.getNumberOfSheets(); i++) {
+                final Document doc = parts.get("xl/worksheets/sheet"+(i+1)+".xml");
+                Assert.assertNotNull(doc);
+                compare(expected.getSheetAt(i), doc);
+            }
+        }
+    }
+
+    @Test
+    public void testLargeSheet() throws Exception {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final XLSXWorkbook wb = new XLSXWorkbook(buf, new HSSFWorkbook());
+        final XLSXSheet sheet = wb.createSheet("data");
+        final int count = 70000;
+        for (int i=0; i<count; i++) {
+            final XLSXRow row = sheet.createRow(i);
+            row.createCell(0).setCellValue(i);
+            row.createCell(1).setCellValue("row "+i);
+            if (i%1000==999)
+                sheet.flushRows(i-10);
+        }
+        Assert.assertEquals(count-1, sheet.getLastRowNum());
+        Assert.assertNull(sheet.getRow(0));
+        Assert.assertNotNull(sheet.getRow(count-1));
+        wb.write(buf);
+        final Document doc = unzip(buf.toByteArray()).get("xl/worksheets/sheet1.xml");
+        final NodeList rows = doc.getElementsByTagName("row");
+        Assert.assertEquals(count, rows.getLength());
+        final Element last = (Element)rows.item(count-1);
+        Assert.assertEquals(Integer.toString(count), last.getAttribute("r"));
+        Assert.assertEquals("row "+(count-1), last.getElementsByTagName("t").item(0).getTextContent());
+    }
+
+    @Test
+    public void testSheetSettings() throws Exception {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final HSSFWorkbook template = new HSSFWorkbook();
+        final XLSXWorkbook wb = new XLSXWorkbook(buf, template);
+        final XLSXSheet sheet = wb.createSheet("data");
+        final CellStyle style = wb.createCellStyle();
+        sheet.createFreezePane(1, 2);
+        sheet.setDefaultColumnStyle(3, style);
+        sheet.setRowBreak(70000);
+        sheet.setColumnBreak(2);
+        for (int i=0; i<100; i++) {
+            sheet.createRow(i).createCell(0).setCellValue(i);
+            sheet.addMergedRegion(new CellRangeAddress(i, i, 1, 2));
+        }
+        sheet.removeMergedRegion(0);
+        Assert.assertEquals(99, sheet.getNumMergedRegions());
+        Assert.assertEquals(new CellRangeAddress(99, 99, 1, 2).formatAsString(), sheet.getMergedRegion(98).formatAsString());
+        Assert.assertTrue(sheet.isRowBroken(70000));
+        Assert.assertEquals(style.getIndex(), sheet.getColumnStyle(3).getIndex());
+        wb.write(buf);
+        final Document doc = unzip(buf.toByteArray()).get("xl/worksheets/sheet1.xml");
+        final Element pane = (Element)doc.getElementsByTagName("pane").item(0);
+        Assert.assertEquals("frozen", pane.getAttribute("state"));
+        Assert.assertEquals("B3", pane.getAttribute("topLeftCell"));
+        Assert.assertEquals("bottomRight", pane.getAttribute("activePane"));
+        final Element col = (Element)doc.getElementsByTagName("col").item(3);
+        Assert.assertEquals(Integer.toString(style.getIndex()), col.getAttribute("style"));
+        Assert.assertEquals(99, doc.getElementsByTagName("mergeCell").getLength());
+        Assert.assertEquals("B2:C2", ((Element)doc.getElementsByTagName("mergeCell").item(0)).getAttribute("ref"));
+        final Element rbrk = (Element)((Element)doc.getElementsByTagName("rowBreaks").item(0)).getElementsByTagName("brk").item(0);
+        Assert.assertEquals("70000", rbrk.getAttribute("id"));
+        final Element cbrk = (Element)((Element)doc.getElementsByTagName("colBreaks").item(0)).getElementsByTagName("brk").item(0);
+        Assert.assertEquals("2", cbrk.getAttribute("id"));
+    }
+
+    private static void compare(final HSSFSheet expected, final Document actual) {
+        final Map<String,Element> cells = new HashMap<String,Element>();
+        final NodeList nodes = actual.getElementsByTagName("c");
+        for (int i=0; i<nodes.getLength(); i++) {
+            final Element cell = (Element)nodes.item(i);
+            cells.put(cell.getAttribute("r"), cell);
+        }
+        int count = 0;
+        for (int r=expected.getFirstRowNum(); r<=expected.getLastRowNum(); r++) {
+            final HSSFRow row = expected.getRow(r);
+            if (row==null)
+                continue;
+            for (int c=row.getFirstCellNum(); c>=0 && c<row.getLastCellNum(); c++) {
+                final HSSFCell cell = row.getCell(c);
+                if (cell==null)
+                    continue;
+                final String ref = new org.apache.poi.ss.util.CellReference(r, c).formatAsString();
+                final Element element = cells.get(ref);
+                Assert.assertNotNull("cell "+ref+" not found", element);
+                if (cell.getCellType()==HSSFCell.CELL_TYPE_STRING) {
+                    Assert.assertEquals(ref, cell.getStringCellValue(), element.getElementsByTagName("t").item(0).getTextContent());
+                } else
+                if (cell.getCellType()==HSSFCell.CELL_TYPE_FORMULA) {
+                    Assert.assertEquals(ref, cell.getCellFormula(), element.getElementsByTagName("f").item(0).getTextContent());
+                } else
+                if (cell.getCellType()==HSSFCell.CELL_TYPE_NUMERIC) {
+                    Assert.assertEquals(ref, cell.getNumericCellValue(), Double.parseDouble(element.getElementsByTagName("v").item(0).getTextContent()), 0.000001);
+                }
+                count++;
+            }
+        }
+        Assert.assertEquals(count, cells.size());
+        Assert.assertEquals(expected.getNumMergedRegions(), actual.getElementsByTagName("mergeCell").getLength());
+    }
+
+    private static Map<String,Document> unzip(final byte[] data) throws Exception {
+        final Map<String,Document> result = new HashMap<String,Document>();
+        final ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(data));
+        for (ZipEntry entry = in.getNextEntry(); entry!=null; entry = in.getNextEntry()) {
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            final byte[] b = new byte[4096];
+            for (int n = in.read(b); n>0; n = in.read(b)) {
+                buf.write(b, 0, n);
+            }
+            result.put(entry.getName(), DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(buf.toByteArray())));
+        }
+        in.close();
+        return result;
+    }
+}
@@ -18,6 +18,7 @@ import org.echosoft.framework.reports.data.beans.Invoice;
 import org.echosoft.framework.reports.data.beans.Payment;
 import org.echosoft.framework.reports.data.beans.Project;
 import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.ELContext;
 import org.echosoft.framework.reports.parser.ReportModelParser;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -46,6 +47,23 @@ public class TestUtils {
         return ReportModelParser.parse(wb, cfg);
     }
 
+    /**
+     * Создает контекст выполнения для отчета <code>report1</code> с параметрами и наборами данных, используемыми в большинстве тестов.
+     *
+     * @return  новый экземпляр контекста, который может дополняться в каждом тесте.
+     * @throws Exception  в случае проблем с загрузкой тестовых данных.
+     */
+    public static ELContext makeContext() throws Exception {
+        final ELContext ctx = new ELContext();
+        ctx.getEnvironment().put("company", "Рога и Копыта");
+        ctx.getEnvironment().put("fromDate", StringUtil.parseDate("01.04.2008"));
+        ctx.getEnvironment().put("toDate", StringUtil.parseDate("25.08.2008"));
+        ctx.getEnvironment().put("author", "Anton Sharapov");
+        ctx.getEnvironment().put("invoices", loadInvoices("report1-ds1.xml"));
+        ctx.getEnvironment().put("payments", loadPayments("report1-ds2.xml"));
+        return ctx;
+    }
+
     public static List<Invoice> loadInvoices(String dsName) throws Exception {
         final List<Invoice> result = new ArrayList<Invoice>();
         final Document doc = XMLUtil.loadDocument( openFileStream(dsName) );
@@ -0,0 +1,81 @@
+package org.echosoft.framework.reports.model.el;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Anton Sharapov
+ */
+public class BaseExpressionTest {
+
+    @Test
+    public void testRowProperties() throws Exception {
+        final Company company = new Company("Рога и Копыта", "Москва", null);
+        company.addEmployee("Остап Бендер", "директор", null);
+        company.addEmployee("Шура Балаганов", "уполномоченный по копытам", null);
+        final ELContext ctx = new ELContext();
+        ctx.setRowModel(company);
+
+        Assert.assertEquals("Рога и Копыта", new BaseExpression("${row:name}").getValue(ctx));
+        Assert.assertEquals(2, new BaseExpression("${row:employeeCount}").getValue(ctx));
+        Assert.assertEquals("директор", new BaseExpression("${row:employee[0].title}").getValue(ctx));
+        Assert.assertEquals("Рога и Копыта, Москва", new BaseExpression("${row:name}, ${address}").getValue(ctx));
+        Assert.assertNull(new BaseExpression("${row:employee.size.unknown}").getValue(new ELContext()));
+    }
+
+    @Test
+    public void testBeanClassChange() throws Exception {
+        final Expression expr = new BaseExpression("${row:name|var:name}");
+        final ELContext ctx = new ELContext();
+        ctx.setRowModel(new Company("Рога и Копыта", null, null));
+        Assert.assertEquals("Рога и Копыта", expr.getValue(ctx));
+        ctx.setRowModel(new Employee("Остап Бендер", null, null));
+        Assert.assertEquals("Остап Бендер", expr.getValue(ctx));
+        final Map<String,Object> map = new HashMap<String,Object>();
+        map.put("name", "Паниковский");
+        ctx.setRowModel(map);
+        Assert.assertEquals("Паниковский", expr.getValue(ctx));
+        ctx.setRowModel(null);
+        ctx.getVariables().put("name", "Козлевич");
+        Assert.assertEquals("Козлевич", expr.getValue(ctx));
+    }
+
+    @Test
+    public void testNestedProperties() throws Exception {
+        final Company company = new Company("Рога и Копыта", "Москва", null);
+        company.addEmployee("Остап Бендер", "директор", null);
+        final ELContext ctx = new ELContext();
+        ctx.getEnvironment().put("company", company);
+        final Expression expr = new BaseExpression("${env:company.employee.size}");
+        Assert.assertEquals(1, expr.getValue(ctx));
+        company.addEmployee("Шура Балаганов", "уполномоченный по копытам", null);
+        Assert.assertEquals(2, expr.getValue(ctx));
+        try {
+            new BaseExpression("${env:company.unknown}").getValue(ctx);
+            Assert.fail("unknown property must be reported");
+        } catch (NoSuchMethodException e) {
+            // ожидаемое поведение ...
+        }
+    }
+
+    @Test
+    public void testUnscopedAttributes() throws Exception {
+        final Expression expr = new BaseExpression("${name} ${row}");
+        final ELContext ctx = new ELContext();
+        ctx.getVariables().put("row", 5);
+        for (int i = 0; i < 10; i++) {
+            ctx.setRowModel(new Company("Рога и Копыта " + i, null, null));
+            Assert.assertEquals("Рога и Копыта " + i + " 5", expr.getValue(ctx));
+        }
+        Assert.assertEquals(20, ctx.getRowLookups());
+        Assert.assertEquals(2, ctx.getRowLookupMisses());
+        Assert.assertEquals(10, ctx.getRowFallbacks());
+
+        ctx.setRowModel(new Employee("Остап Бендер", null, null));
+        Assert.assertEquals("Остап Бендер 5", expr.getValue(ctx));
+        Assert.assertEquals(4, ctx.getRowLookupMisses());
+    }
+}
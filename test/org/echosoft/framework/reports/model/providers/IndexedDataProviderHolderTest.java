@@ -0,0 +1,144 @@
+package org.echosoft.framework.reports.model.providers;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.Query;
+import org.echosoft.common.query.QueryResult;
+import org.echosoft.common.query.providers.DataProvider;
+import org.echosoft.common.query.providers.DataProviderException;
+import org.echosoft.common.query.providers.ListDataProvider;
+import org.echosoft.framework.reports.TestUtils;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.BaseExpression;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.processor.ExecutionContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет работу поставщика данных {@link IndexedDataProviderHolder}.
+ *
+ * @author Anton Sharapov
+ */
+public class IndexedDataProviderHolderTest {
+
+    @Test
+    public void testInMemory() throws Exception {
+        check(0);
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        check(3);
+    }
+
+    private static void check(final int spillThreshold) throws Exception {
+        final AtomicInteger executions = new AtomicInteger(0);
+        final Report report = TestUtils.loadReport("report1");
+        report.getProviders().put("details", new CountingDataProviderHolder("details", executions));
+        final IndexedDataProviderHolder holder = new IndexedDataProviderHolder("detailsByParent");
+        holder.setSource("details");
+        holder.setKey(new BaseExpression("${row:parent}"));
+        holder.setParentKey(new BaseExpression("${row:id}"));
+        holder.setSpillThreshold(spillThreshold);
+        holder.setPartitions(2);
+        report.getProviders().put(holder.getId(), holder);
+
+        final ELContext ctx = new ELContext();
+        // записи исходного поставщика данных не упорядочены по ключу, ключи имеют разные числовые типы ...
+        ctx.getEnvironment().put("details", makeDetails(new Object[][]{{1, "a"}, {2L, "b"}, {1L, "c"}, {3, "d"}, {2, "e"}, {null, "f"}, {1, "g"},
+                {new BigDecimal("5.0"), "h"}, {new BigDecimal("2.50"), "i"}}));
+        final ExecutionContext ectx = new ExecutionContext(report, ctx, new HSSFWorkbook(), new HashMap<Short,CellStyle>());
+        ctx.getVariables().put("context", ectx);
+
+        Assert.assertEquals("[a, c, g]", lookup(holder, ctx, 1L));
+        Assert.assertEquals("[b, e]", lookup(holder, ctx, 2));
+        Assert.assertEquals("[]", lookup(holder, ctx, 4));
+        Assert.assertEquals("[a, c, g]", lookup(holder, ctx, 1));
+        Assert.assertEquals("[d]", lookup(holder, ctx, 3));
+        Assert.assertEquals("[h]", lookup(holder, ctx, 5L));
+        Assert.assertEquals("[a, c, g]", lookup(holder, ctx, new BigDecimal("1.00")));
+        Assert.assertEquals("[i]", lookup(holder, ctx, new BigDecimal("2.5")));
+        Assert.assertEquals(1, executions.get());
+
+        final RowIndex index = ectx.indexes.get(holder.getId());
+        Assert.assertEquals(8, index.size());
+        Assert.assertEquals(spillThreshold>0, index.isSpilled());
+        index.close();
+    }
+
+    private static String lookup(final IndexedDataProviderHolder holder, final ELContext ctx, final Object parentId) throws Exception {
+        final Map<String,Object> parent = new HashMap<String,Object>();
+        parent.put("id", parentId);
+        ctx.setRowModel(parent);
+        final List<Object> result = new ArrayList<Object>();
+        final BeanIterator it = holder.getProvider(ctx).execute(holder.getQuery(ctx));
+        try {
+            while (it.hasNext()) {
+                result.add( ((Map)it.next()).get("name") );
+            }
+        } finally {
+            it.close();
+        }
+        return result.toString();
+    }
+
+    private static List<Map<String,Object>> makeDetails(final Object[][] data) {
+        final List<Map<String,Object>> result = new ArrayList<Map<String,Object>>();
+        for (Object[] row : data) {
+            final Map<String,Object> bean = new HashMap<String,Object>();
+            bean.put("parent", row[0]);
+            bean.put("name", row[1]);
+            result.add(bean);
+        }
+        return result;
+    }
+
+    /**
+     * Поставщик данных на основе списка из окружения отчета, подсчитывающий количество обращений к нему.
+     */
+    private static final class CountingDataProviderHolder implements DataProviderHolder {
+        private final String id;
+        private final AtomicInteger executions;
+
+        private CountingDataProviderHolder(final String id, final AtomicInteger executions) {
+            this.id = id;
+            this.executions = executions;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        @SuppressWarnings("unchecked")
+        public DataProvider getProvider(final ELContext ctx) {
+            final List<?> data = (List<?>)ctx.getEnvironment().get(id);
+            return new DataProvider() {
+                public BeanIterator execute(final Query query) throws DataProviderException {
+                    executions.incrementAndGet();
+                    return new ListDataProvider(data).execute(query);
+                }
+                public QueryResult executePaged(final Query query) throws DataProviderException {
+                    return new ListDataProvider(data).executePaged(query);
+                }
+            };
+        }
+
+        public Query getQuery(final ELContext ctx) {
+            return new Query();
+        }
+
+        @Override
+        public Object clone() throws CloneNotSupportedException {
+            return super.clone();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.echosoft.framework.reports.processor;
+
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFFormulaEvaluator;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.echosoft.framework.reports.TestUtils;
+import org.echosoft.framework.reports.model.AggregationMode;
+import org.echosoft.framework.reports.model.Cell;
+import org.echosoft.framework.reports.model.GroupModel;
+import org.echosoft.framework.reports.model.GroupStyle;
+import org.echosoft.framework.reports.model.GroupingSection;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.Row;
+import org.echosoft.framework.reports.model.el.BaseExpression;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет вычисление итоговых значений групповых макросов в процессе формирования отчета.
+ *
+ * @author Anton Sharapov
+ */
+public class AggregationTest {
+
+    @Test
+    public void testComputedValues() throws Exception {
+        final HSSFWorkbook expected = process(AggregationMode.FORMULA);
+        final HSSFWorkbook actual = process(AggregationMode.VALUE);
+        final HSSFFormulaEvaluator evaluator = new HSSFFormulaEvaluator(expected);
+        int computed = 0;
+        int formulas = 0;
+        for (int s=0; s<expected.getNumberOfSheets(); s++) {
+            final HSSFSheet esheet = expected.getSheetAt(s);
+            final HSSFSheet asheet = actual.getSheetAt(s);
+            for (int r=esheet.getFirstRowNum(); r<=esheet.getLastRowNum(); r++) {
+                final HSSFRow erow = esheet.getRow(r);
+                if (erow==null)
+                    continue;
+                for (int c=erow.getFirstCellNum(); c>=0 && c<erow.getLastCellNum(); c++) {
+                    final HSSFCell ecell = erow.getCell(c);
+                    if (ecell==null || ecell.getCellType()!=HSSFCell.CELL_TYPE_FORMULA)
+                        continue;
+                    final HSSFCell acell = asheet.getRow(r).getCell(c);
+                    if (acell.getCellType()==HSSFCell.CELL_TYPE_NUMERIC) {
+                        Assert.assertEquals(esheet.getSheetName()+"!"+r+":"+c, evaluator.evaluate(ecell).getNumberValue(), acell.getNumericCellValue(), 0.000001);
+                        computed++;
+                    } else {
+                        Assert.assertEquals(HSSFCell.CELL_TYPE_FORMULA, acell.getCellType());
+                        Assert.assertEquals(ecell.getCellFormula(), acell.getCellFormula());
+                        formulas++;
+                    }
+                }
+            }
+        }
+        Assert.assertTrue(computed>0);
+        Assert.assertTrue(formulas>0);  // суммы по колонкам, содержащим формулы, не могут быть вычислены заранее.
+    }
+
+    @Test
+    public void testCachedValues() throws Exception {
+        final HSSFWorkbook values = process(AggregationMode.VALUE);
+        final HSSFWorkbook actual = process(AggregationMode.CACHED);
+        int cached = 0;
+        for (int s=0; s<values.getNumberOfSheets(); s++) {
+            final HSSFSheet vsheet = values.getSheetAt(s);
+            final HSSFSheet asheet = actual.getSheetAt(s);
+            for (int r=vsheet.getFirstRowNum(); r<=vsheet.getLastRowNum(); r++) {
+                final HSSFRow vrow = vsheet.getRow(r);
+                if (vrow==null)
+                    continue;
+                for (int c=vrow.getFirstCellNum(); c>=0 && c<vrow.getLastCellNum(); c++) {
+                    final HSSFCell vcell = vrow.getCell(c);
+                    final HSSFCell acell = asheet.getRow(r).getCell(c);
+                    if (vcell==null || acell.getCellType()!=HSSFCell.CELL_TYPE_FORMULA || vcell.getCellType()!=HSSFCell.CELL_TYPE_NUMERIC)
+                        continue;
+                    Assert.assertEquals(vcell.getNumericCellValue(), acell.getNumericCellValue(), 0.000001);
+                    cached++;
+                }
+            }
+        }
+        Assert.assertTrue(cached>0);
+    }
+
+    @Test
+    public void testMacrosArgument() throws Exception {
+        final Report report = TestUtils.loadReport("report1");
+        Assert.assertFalse(new ReportPlan(report).isAggregatesRequired());
+        int replaced = 0;
+        for (String sectionId : new String[]{"s3.data.body", "s4.data.body"}) {
+            final GroupingSection section = (GroupingSection)report.findSectionById(sectionId);
+            for (GroupModel group : section.getGroups()) {
+                for (GroupStyle style : group.getStyles()) {
+                    for (Row row : style.getTemplate().getRows()) {
+                        for (Cell cell : row.getCells()) {
+                            if (cell!=null && cell.getExpression().isStatic() && "$M=gsum".equals(cell.getExpression().getValue(null))) {
+                                cell.setExpression(new BaseExpression("$M=gsum(value)"));
+                                replaced++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        Assert.assertTrue(replaced>0);
+        final ReportPlan plan = new ReportPlan(report);
+        Assert.assertTrue(plan.isAggregatesRequired());
+
+        final HSSFWorkbook wb = new ExcelReportProcessor().process(plan, TestUtils.makeContext());
+        int numeric = 0;
+        int formulas = 0;
+        for (int s=0; s<wb.getNumberOfSheets(); s++) {
+            final HSSFSheet sheet = wb.getSheetAt(s);
+            for (int r=sheet.getFirstRowNum(); r<=sheet.getLastRowNum(); r++) {
+                final HSSFRow row = sheet.getRow(r);
+                if (row==null)
+                    continue;
+                final HSSFCell sum = row.getCell(2);
+                final HSSFCell avg = row.getCell(3);
+                if (sum!=null && sum.getCellType()==HSSFCell.CELL_TYPE_NUMERIC && avg!=null && avg.getCellType()==HSSFCell.CELL_TYPE_FORMULA)
+                    numeric++;
+                if (avg!=null && avg.getCellType()==HSSFCell.CELL_TYPE_FORMULA)
+                    formulas++;
+            }
+        }
+        Assert.assertTrue(numeric>0);
+        Assert.assertEquals(numeric, formulas);  // режим указан только для макросов gsum, макросы gavg по прежнему формируют формулы.
+    }
+
+    @Test
+    public void testSubtotalFormulas() throws Exception {
+        final HSSFWorkbook expected = process(AggregationMode.FORMULA, false);
+        final HSSFWorkbook actual = process(AggregationMode.FORMULA, true);
+        final HSSFFormulaEvaluator eevaluator = new HSSFFormulaEvaluator(expected);
+        final HSSFFormulaEvaluator aevaluator = new HSSFFormulaEvaluator(actual);
+        int subtotals = 0;
+        int averages = 0;
+        for (int s=0; s<expected.getNumberOfSheets(); s++) {
+            final HSSFSheet esheet = expected.getSheetAt(s);
+            final HSSFSheet asheet = actual.getSheetAt(s);
+            for (int r=esheet.getFirstRowNum(); r<=esheet.getLastRowNum(); r++) {
+                final HSSFRow erow = esheet.getRow(r);
+                if (erow==null)
+                    continue;
+                final HSSFCell ecell = erow.getCell(2);   // колонка с макросами gsum
+                final HSSFCell acell = asheet.getRow(r).getCell(2);
+                if (ecell!=null && ecell.getCellType()==HSSFCell.CELL_TYPE_FORMULA) {
+                    Assert.assertTrue(acell.getCellFormula(), acell.getCellFormula().startsWith("SUBTOTAL(9,"));
+                    Assert.assertEquals(esheet.getSheetName()+"!"+r, eevaluator.evaluate(ecell).getNumberValue(), evaluateSubtotal(asheet, acell, aevaluator, false), 0.000001);
+                    subtotals++;
+                }
+                final HSSFCell eavg = erow.getCell(3);   // колонка с макросами gavg
+                final HSSFCell aavg = asheet.getRow(r).getCell(3);
+                if (eavg!=null && eavg.getCellType()==HSSFCell.CELL_TYPE_FORMULA) {
+                    // среднее по группе, имеющей дочерние группы, вычисляется по итогам дочерних групп а не по всем записям группы ...
+                    final double value = aavg.getCellFormula().startsWith("SUBTOTAL(1,")
+                            ? evaluateSubtotal(asheet, aavg, aevaluator, true)
+                            : aevaluator.evaluate(aavg).getNumberValue();
+                    Assert.assertEquals(esheet.getSheetName()+"!"+r, eevaluator.evaluate(eavg).getNumberValue(), value, 0.000001);
+                    averages++;
+                }
+            }
+        }
+        Assert.assertTrue(subtotals>0);
+        Assert.assertTrue(averages>0);
+    }
+
+    /**
+     * Вычисляет формулу вида <code>SUBTOTAL(9,C5:C100)</code> или <code>SUBTOTAL(1,C5:C100)</code>. В отличие от Excel, POI не исключает
+     * из диапазона ячейки с вложенными <code>SUBTOTAL</code>, поэтому формула вычисляется самостоятельно.
+     */
+    private static double evaluateSubtotal(final HSSFSheet sheet, final HSSFCell cell, final HSSFFormulaEvaluator evaluator, final boolean average) {
+        final String formula = cell.getCellFormula();
+        final CellRangeAddress range = CellRangeAddress.valueOf(formula.substring(formula.indexOf(',')+1, formula.length()-1));
+        double result = 0;
+        int count = 0;
+        for (int r=range.getFirstRow(); r<=range.getLastRow(); r++) {
+            final HSSFCell c = sheet.getRow(r).getCell(range.getFirstColumn());
+            if (c==null)
+                continue;
+            if (c.getCellType()==HSSFCell.CELL_TYPE_NUMERIC) {
+                result += c.getNumericCellValue();
+                count++;
+            } else
+            if (c.getCellType()==HSSFCell.CELL_TYPE_FORMULA && !c.getCellFormula().startsWith("SUBTOTAL(")) {
+                result += evaluator.evaluate(c).getNumberValue();
+                count++;
+            }
+        }
+        return average ? result/count : result;
+    }
+
+    private static HSSFWorkbook process(final AggregationMode mode) throws Exception {
+        return process(mode, false);
+    }
+
+    private static HSSFWorkbook process(final AggregationMode mode, final boolean subtotals) throws Exception {
+        final Report report = TestUtils.loadReport("report1");
+        report.setAggregationMode(mode);
+        report.setSubtotalFormulas(subtotals);
+        return new ExcelReportProcessor().process(report, TestUtils.makeContext());
+    }
+}
@@ -0,0 +1,241 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.Query;
+import org.echosoft.common.query.QueryResult;
+import org.echosoft.common.query.providers.DataProvider;
+import org.echosoft.common.query.providers.DataProviderException;
+import org.echosoft.common.query.providers.ListDataProvider;
+import org.echosoft.framework.reports.TestUtils;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.BaseExpression;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.model.events.SectionEventListener;
+import org.echosoft.framework.reports.model.events.SectionEventListenerHolder;
+import org.echosoft.framework.reports.model.providers.FetchMode;
+import org.echosoft.framework.reports.model.providers.SQLDataProviderHolder;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Anton Sharapov
+ */
+public class AsyncBeanIteratorTest {
+
+    private static final ExecutorService EXECUTOR = new ExcelReportProcessor().getExecutor();
+
+    @Test
+    public void testIteration() throws Exception {
+        final List<Integer> data = new ArrayList<Integer>();
+        for (int i = 0; i < AsyncBeanIterator.BATCH_SIZE * AsyncBeanIterator.CAPACITY * 3 + 7; i++) {
+            data.add(i);
+        }
+        final AsyncBeanIterator it = new AsyncBeanIterator(EXECUTOR, new ListDataProvider<Integer>(data), null);
+        try {
+            int count = 0;
+            while (it.hasNext()) {
+                Assert.assertEquals(count, it.readAhead());
+                Assert.assertEquals(count, it.next());
+                count++;
+            }
+            Assert.assertEquals(data.size(), count);
+            Assert.assertFalse(it.hasNext());
+        } finally {
+            it.close();
+        }
+
+        final AsyncBeanIterator empty = new AsyncBeanIterator(EXECUTOR, new ListDataProvider<Integer>(new ArrayList<Integer>()), null);
+        Assert.assertFalse(empty.hasNext());
+        empty.close();
+    }
+
+    @Test
+    public void testEarlyClose() throws Exception {
+        final List<Integer> data = new ArrayList<Integer>();
+        for (int i = 0; i < AsyncBeanIterator.BATCH_SIZE * AsyncBeanIterator.CAPACITY * 10; i++) {
+            data.add(i);
+        }
+        final AsyncBeanIterator it = new AsyncBeanIterator(EXECUTOR, new ListDataProvider<Integer>(data), null);
+        Assert.assertEquals(0, it.next());
+        it.close();
+        it.close();
+    }
+
+    @Test
+    public void testProviderFailure() throws Exception {
+        final DataProvider provider = new DataProvider() {
+            public BeanIterator execute(final Query query) throws DataProviderException {
+                throw new DataProviderException("connection refused");
+            }
+            public QueryResult executePaged(final Query query) throws DataProviderException {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final AsyncBeanIterator it = new AsyncBeanIterator(EXECUTOR, provider, null);
+        try {
+            it.hasNext();
+            Assert.fail("provider failure must be reported");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof DataProviderException);
+        } finally {
+            it.close();
+        }
+    }
+
+    @Test
+    public void testInlineFetch() throws Exception {
+        final List<Integer> data = new ArrayList<Integer>();
+        for (int i = 0; i < AsyncBeanIterator.BATCH_SIZE * AsyncBeanIterator.CAPACITY * 3; i++) {
+            data.add(i);
+        }
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final DataProvider provider = new DataProvider() {
+            public BeanIterator execute(final Query query) throws DataProviderException {
+                threads.add(Thread.currentThread());
+                return new ListDataProvider<Integer>(data).execute(query);
+            }
+            public QueryResult executePaged(final Query query) throws DataProviderException {
+                throw new UnsupportedOperationException();
+            }
+        };
+        // единственный поток пула занят, задачи чтения записей не могут начать выполняться в нем ...
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return latch.await(10, TimeUnit.SECONDS);
+                }
+            });
+            final AsyncBeanIterator first = new AsyncBeanIterator(executor, provider, null);
+            final AsyncBeanIterator second = new AsyncBeanIterator(executor, provider, null, false);
+            first.setSuccessor(second);
+            try {
+                for (AsyncBeanIterator it : new AsyncBeanIterator[]{first, second}) {
+                    int count = 0;
+                    while (it.hasNext()) {
+                        Assert.assertEquals(count++, it.next());
+                    }
+                    Assert.assertEquals(data.size(), count);
+                }
+                Assert.assertEquals(Collections.singleton(Thread.currentThread()), threads);
+            } finally {
+                first.close();
+                second.close();
+            }
+        } finally {
+            latch.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeferredStart() throws Exception {
+        final List<Integer> data = new ArrayList<Integer>();
+        for (int i = 0; i < AsyncBeanIterator.BATCH_SIZE + 1; i++) {
+            data.add(i);
+        }
+        final List<String> executions = Collections.synchronizedList(new ArrayList<String>());
+        final AsyncBeanIterator[] parts = new AsyncBeanIterator[3];
+        for (int i = 0; i < parts.length; i++) {
+            final String name = "p" + i;
+            parts[i] = new AsyncBeanIterator(EXECUTOR, new DataProvider() {
+                public BeanIterator execute(final Query query) throws DataProviderException {
+                    executions.add(name);
+                    return new ListDataProvider<Integer>(data).execute(query);
+                }
+                public QueryResult executePaged(final Query query) throws DataProviderException {
+                    throw new UnsupportedOperationException();
+                }
+            }, null, i==0);
+            if (i > 0)
+                parts[i-1].setSuccessor(parts[i]);
+        }
+        try {
+            // отложенные курсоры начинают чтение записей лишь после того как предшествующий им курсор прочитает все свои записи ...
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (executions.size()<parts.length && System.currentTimeMillis()<deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("[p0, p1, p2]", executions.toString());
+            for (AsyncBeanIterator it : parts) {
+                int count = 0;
+                while (it.hasNext()) {
+                    Assert.assertEquals(count++, it.next());
+                }
+                Assert.assertEquals(data.size(), count);
+            }
+        } finally {
+            for (AsyncBeanIterator it : parts) {
+                it.close();
+            }
+        }
+    }
+
+    @Test
+    public void testEagerFetch() throws Exception {
+        final List<Object> expected = Collections.synchronizedList(new ArrayList<Object>());
+        final int rows = process(expected, "new").getSheetAt(0).getLastRowNum();
+        Assert.assertEquals("[new]", expected.toString());
+
+        // обработчик предшествующей секции изменяет аргументы запроса уже после того как он был выполнен заблаговременно ...
+        final List<Object> actual = Collections.synchronizedList(new ArrayList<Object>());
+        final HSSFWorkbook wb = process(actual, "old");
+        Assert.assertEquals("[old, new]", actual.toString());
+        Assert.assertEquals(rows, wb.getSheetAt(0).getLastRowNum());
+    }
+
+    private static HSSFWorkbook process(final List<Object> executions, final String state) throws Exception {
+        final Report report = TestUtils.loadReport("report1");
+        final SQLDataProviderHolder holder = new SQLDataProviderHolder("eager") {
+            @Override
+            public DataProvider getProvider(final ELContext ctx) {
+                final List<?> payments = (List<?>)ctx.getEnvironment().get("payments");
+                return new DataProvider() {
+                    @SuppressWarnings("unchecked")
+                    public BeanIterator execute(final Query query) throws DataProviderException {
+                        final Object state = query.getNamedParams().get("state");
+                        executions.add(state);
+                        return new ListDataProvider("new".equals(state) ? payments : Collections.emptyList()).execute(null);
+                    }
+                    public QueryResult executePaged(final Query query) throws DataProviderException {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+        holder.setFetchMode(FetchMode.EAGER);
+        holder.addParam(new BaseExpression("state"), new BaseExpression("${env:state}"));
+        report.getProviders().put(holder.getId(), holder);
+        report.findSectionById("s1.footer").setDataProvider(holder);
+        report.findSectionById("s1.header").getSectionListeners().add(new SectionEventListenerHolder(null, new BaseExpression("${env:listener}")));
+
+        final ELContext ctx = TestUtils.makeContext();
+        ctx.getEnvironment().put("state", state);
+        ctx.getEnvironment().put("listener", new SectionEventListener() {
+            public void beforeSection(ExecutionContext ectx) throws Exception {
+                // дожидаемся выполнения заблаговременно запущенного запроса, чтобы изменить его аргументы уже после этого ...
+                final long deadline = System.currentTimeMillis() + 5000;
+                while (!executions.contains(state) && System.currentTimeMillis()<deadline) {
+                    Thread.sleep(10);
+                }
+                ectx.elctx.getEnvironment().put("state", "new");
+            }
+            public void afterRecord(ExecutionContext ectx) {}
+            public void afterSection(ExecutionContext ectx) {}
+        });
+        return new ExcelReportProcessor().process(report, ctx);
+    }
+}
@@ -0,0 +1,201 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.Query;
+import org.echosoft.common.query.QueryResult;
+import org.echosoft.common.query.providers.DataProvider;
+import org.echosoft.common.query.providers.DataProviderException;
+import org.echosoft.common.query.providers.ListDataProvider;
+import org.echosoft.framework.reports.TestUtils;
+import org.echosoft.framework.reports.data.beans.Company;
+import org.echosoft.framework.reports.data.beans.Payment;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.BaseExpression;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.model.providers.ListDataProviderHolder;
+import org.echosoft.framework.reports.model.providers.SQLDataProviderHolder;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет пакетное получение записей секциями, вложенными в составные секции со своим поставщиком данных.
+ *
+ * @author Anton Sharapov
+ */
+public class BatchedFetchTest {
+
+    @Test
+    public void testBatchSQL() throws Exception {
+        final SQLDataProviderHolder holder = new SQLDataProviderHolder("ds");
+        holder.setSQL(new BaseExpression("select * from payment where invoice_id in (:ids) and state=:idsState or parent_id in (:ids)"));
+        holder.setBatchParam("ids");
+        holder.setBatchSize(11);
+        Assert.assertEquals(
+                "select * from payment where invoice_id in (:ids_00, :ids_01, :ids_02, :ids_03, :ids_04, :ids_05, :ids_06, :ids_07, :ids_08, :ids_09, :ids_10) " +
+                "and state=:idsState or parent_id in (:ids_00, :ids_01, :ids_02, :ids_03, :ids_04, :ids_05, :ids_06, :ids_07, :ids_08, :ids_09, :ids_10)",
+                holder.getBatchSQL(new ELContext()));
+    }
+
+    @Test
+    public void testBatchedFetch() throws Exception {
+        final AtomicInteger executions = new AtomicInteger(0);
+        final ELContext ctx = makeContext();
+        final int companies = ((List)ctx.getEnvironment().get("companies")).size();
+        Assert.assertTrue(companies>2);
+
+        final AtomicInteger providers = new AtomicInteger(0);
+        final HSSFWorkbook expected = process(ctx, executions, providers, 0);
+        Assert.assertEquals(companies, executions.get());
+        Assert.assertEquals(companies, providers.get());
+
+        executions.set(0);
+        providers.set(0);
+        compare(expected, process(makeContext(), executions, providers, 2));
+        Assert.assertEquals((companies+1)/2, executions.get());
+        Assert.assertEquals(0, providers.get());
+
+        executions.set(0);
+        compare(expected, process(makeContext(), executions, providers, 100));
+        Assert.assertEquals(1, executions.get());
+        Assert.assertEquals(0, providers.get());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSingleKeyBatch() throws Exception {
+        final ELContext ctx = makeContext();
+        final String companyId = ((List<Company>)ctx.getEnvironment().get("companies")).get(1).id;
+        final AtomicInteger executions = new AtomicInteger(0);
+        final AtomicInteger providers = new AtomicInteger(0);
+
+        Report report = TestUtils.loadReport("report1");
+        CountingDataProviderHolder payments = new CountingDataProviderHolder("payments", executions, providers);
+        payments.addParam(new BaseExpression("company"), new BaseExpression(companyId));
+        report.getProviders().put(payments.getId(), payments);
+        report.findSectionById("s2.data.body").setDataProvider(payments);
+        final HSSFWorkbook expected = new ExcelReportProcessor().process(report, ctx);
+        Assert.assertEquals(1, executions.get());
+        Assert.assertEquals(1, providers.get());
+
+        // родительская секция не имеет своего поставщика данных, поэтому пакет состоит из единственного ключа ...
+        executions.set(0);
+        providers.set(0);
+        report = TestUtils.loadReport("report1");
+        payments = new CountingDataProviderHolder("payments", executions, providers);
+        payments.setKey(new BaseExpression("${row:company.id}"));
+        payments.setParentKey(new BaseExpression(companyId));
+        payments.setBatchParam("companies");
+        payments.setBatchSize(10);
+        report.getProviders().put(payments.getId(), payments);
+        report.findSectionById("s2.data.body").setDataProvider(payments);
+        compare(expected, new ExcelReportProcessor().process(report, makeContext()));
+        Assert.assertEquals(1, executions.get());
+        Assert.assertEquals(0, providers.get());
+    }
+
+    private static HSSFWorkbook process(final ELContext ctx, final AtomicInteger executions, final AtomicInteger providers, final int batchSize) throws Exception {
+        final Report report = TestUtils.loadReport("report1");
+        final ListDataProviderHolder companies = new ListDataProviderHolder("companies");
+        companies.setData(new BaseExpression("${env:companies}"));
+        report.getProviders().put(companies.getId(), companies);
+        final CountingDataProviderHolder payments = new CountingDataProviderHolder("payments", executions, providers);
+        payments.addParam(new BaseExpression("company"), new BaseExpression("${row:id}"));
+        payments.setKey(new BaseExpression("${row:company.id}"));
+        payments.setParentKey(new BaseExpression("${row:id}"));
+        payments.setBatchParam("companies");
+        payments.setBatchSize(batchSize);
+        report.getProviders().put(payments.getId(), payments);
+        report.findSectionById("s2.data").setDataProvider(companies);
+        report.findSectionById("s2.data.body").setDataProvider(payments);
+        return new ExcelReportProcessor().process(report, ctx);
+    }
+
+    private static void compare(final HSSFWorkbook expected, final HSSFWorkbook actual) {
+        Assert.assertEquals(expected.getNumberOfSheets(), actual.getNumberOfSheets());
+        for (int s=0; s<expected.getNumberOfSheets(); s++) {
+            final HSSFSheet esheet = expected.getSheetAt(s);
+            final HSSFSheet asheet = actual.getSheetAt(s);
+            Assert.assertEquals(esheet.getLastRowNum(), asheet.getLastRowNum());
+            for (int r=0; r<=esheet.getLastRowNum(); r++) {
+                final HSSFRow erow = esheet.getRow(r);
+                final HSSFRow arow = asheet.getRow(r);
+                if (erow==null) {
+                    Assert.assertNull(arow);
+                    continue;
+                }
+                Assert.assertEquals(erow.getLastCellNum(), arow.getLastCellNum());
+                for (int c=0; c<erow.getLastCellNum(); c++) {
+                    Assert.assertEquals(String.valueOf(erow.getCell(c)), String.valueOf(arow.getCell(c)));
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ELContext makeContext() throws Exception {
+        final ELContext ctx = TestUtils.makeContext();
+        final Map<String,Company> companies = new LinkedHashMap<String,Company>();
+        for (Payment payment : (List<Payment>)ctx.getEnvironment().get("payments")) {
+            companies.put(payment.company.id, payment.company);
+        }
+        ctx.getEnvironment().put("companies", new ArrayList<Company>(companies.values()));
+        return ctx;
+    }
+
+    /**
+     * Имитирует поставщика данных на основе SQL запроса, отбирая платежи по компаниям, указанным в параметрах запроса.
+     */
+    private static final class CountingDataProviderHolder extends SQLDataProviderHolder {
+        private final AtomicInteger executions;
+        private final AtomicInteger providers;
+
+        private CountingDataProviderHolder(final String id, final AtomicInteger executions, final AtomicInteger providers) {
+            super(id);
+            this.executions = executions;
+            this.providers = providers;
+        }
+
+        @Override
+        public DataProvider getProvider(final ELContext ctx) {
+            providers.incrementAndGet();
+            return makeProvider(ctx);
+        }
+
+        @Override
+        public DataProvider getBatchProvider(final ELContext ctx) {
+            return makeProvider(ctx);
+        }
+
+        private DataProvider makeProvider(final ELContext ctx) {
+            final List<?> payments = (List<?>)ctx.getEnvironment().get("payments");
+            return new DataProvider() {
+                @SuppressWarnings("unchecked")
+                public BeanIterator execute(final Query query) throws DataProviderException {
+                    executions.incrementAndGet();
+                    final Set<Object> companies = new HashSet<Object>(query.getNamedParams().values());
+                    final List<Object> result = new ArrayList<Object>();
+                    for (Object payment : payments) {
+                        if (companies.contains(((Payment)payment).company.id))
+                            result.add(payment);
+                    }
+                    return new ListDataProvider(result).execute(null);
+                }
+                public QueryResult executePaged(final Query query) throws DataProviderException {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
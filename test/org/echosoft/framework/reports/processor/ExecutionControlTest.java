@@ -0,0 +1,99 @@
+package org.echosoft.framework.reports.processor;
+
+import java.io.ByteArrayOutputStream;
+
+import org.echosoft.framework.reports.TestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет прерывание формирования отчета по требованию пользователя и при превышении ограничений.
+ *
+ * @author Anton Sharapov
+ */
+public class ExecutionControlTest {
+
+    @Test
+    public void testUnlimited() throws Exception {
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        final ExecutionControl control = new ExecutionControl();
+        processor.process(processor.compile(TestUtils.loadReport("report1")), TestUtils.makeContext(), control);
+        Assert.assertTrue(control.getRecords()>0);
+        Assert.assertTrue(control.getCells()>0);
+        Assert.assertEquals(control.getCells()*ExecutionControl.ESTIMATED_CELL_SIZE, control.getEstimatedMemory());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final ExecutionControl control = new ExecutionControl();
+        control.cancel();
+        final ReportInterruptedException e = process(control);
+        Assert.assertEquals(ReportInterruptedException.Reason.CANCELLED, e.getReason());
+        Assert.assertNotNull(e.getContext());
+        Assert.assertNotNull(e.getContext().sheet);
+    }
+
+    @Test
+    public void testRecordsLimit() throws Exception {
+        final ExecutionControl control = new ExecutionControl();
+        control.setMaxRecords(5);
+        final ReportInterruptedException e = process(control);
+        Assert.assertEquals(ReportInterruptedException.Reason.RECORDS_LIMIT, e.getReason());
+        Assert.assertEquals(6, control.getRecords());
+        final ExecutionContext ectx = e.getContext();
+        Assert.assertNotNull(ectx.sectionContext);
+        Assert.assertNull(ectx.sectionContext.beanIterator);    // курсор секции должен быть закрыт.
+    }
+
+    @Test
+    public void testCellsAndMemoryLimits() throws Exception {
+        ExecutionControl control = new ExecutionControl();
+        control.setMaxCells(50);
+        Assert.assertEquals(ReportInterruptedException.Reason.CELLS_LIMIT, process(control).getReason());
+        Assert.assertTrue(control.getCells()>50);
+
+        control = new ExecutionControl();
+        control.setMaxMemory(50 * ExecutionControl.ESTIMATED_CELL_SIZE);
+        Assert.assertEquals(ReportInterruptedException.Reason.MEMORY_LIMIT, process(control).getReason());
+
+        // в потоковом режиме ячейки не удерживаются в памяти до окончания формирования отчета ...
+        control = new ExecutionControl();
+        control.setMaxMemory(50 * ExecutionControl.ESTIMATED_CELL_SIZE);
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        processor.process(processor.compile(TestUtils.loadReport("report1")), TestUtils.makeContext(), new ByteArrayOutputStream(), RowWindow.DEFAULT_SIZE, control);
+        Assert.assertEquals(0, control.getEstimatedMemory());
+    }
+
+    @Test
+    public void testTimeLimit() throws Exception {
+        final ExecutionControl control = new ExecutionControl();
+        control.setMaxTime(1);
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        processor.setTracer(new ReportTracer() {
+            public void trace(TraceEvent event, ExecutionContext ectx, long startTime, long duration, int records, int firstRow, int lastRow, String name) {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        try {
+            processor.process(processor.compile(TestUtils.loadReport("report1")), TestUtils.makeContext(), control);
+            Assert.fail("Time limit was not applied");
+        } catch (ReportInterruptedException e) {
+            Assert.assertEquals(ReportInterruptedException.Reason.TIME_LIMIT, e.getReason());
+        }
+    }
+
+    private static ReportInterruptedException process(final ExecutionControl control) throws Exception {
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        try {
+            processor.process(processor.compile(TestUtils.loadReport("report1")), TestUtils.makeContext(), control);
+        } catch (ReportInterruptedException e) {
+            return e;
+        }
+        Assert.fail("Report processing was not interrupted");
+        return null;
+    }
+}
@@ -0,0 +1,156 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.Query;
+import org.echosoft.common.query.QueryResult;
+import org.echosoft.common.query.providers.DataProvider;
+import org.echosoft.common.query.providers.DataProviderException;
+import org.echosoft.common.query.providers.ListDataProvider;
+import org.echosoft.framework.reports.TestUtils;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.BaseExpression;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.model.providers.SQLDataProviderHolder;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет повторное использование записей, полученных от поставщика данных, несколькими секциями отчета.
+ *
+ * @author Anton Sharapov
+ */
+public class MaterializedRowsTest {
+
+    @Test
+    public void testMaterialization() throws Exception {
+        final AtomicInteger executions = new AtomicInteger(0);
+        final HSSFWorkbook expected = process(executions, false, ExcelReportProcessor.DEFAULT_MATERIALIZATION_LIMIT);
+        Assert.assertEquals(3, executions.get());   // поставщик данных ds2 используется тремя секциями отчета.
+
+        executions.set(0);
+        final HSSFWorkbook actual = process(executions, true, ExcelReportProcessor.DEFAULT_MATERIALIZATION_LIMIT);
+        Assert.assertEquals(1, executions.get());
+        compare(expected, actual);
+
+        // слишком большое количество записей не сохраняется ...
+        executions.set(0);
+        compare(expected, process(executions, true, 1));
+        Assert.assertEquals(3, executions.get());
+    }
+
+    @Test
+    public void testMaterializationKey() throws Exception {
+        final SQLDataProviderHolder holder = new SQLDataProviderHolder("ds");
+        holder.setDataSource(new BaseExpression("${env:ds}"));
+        holder.setSQL(new BaseExpression("${env:sql}"));
+        final ELContext ctx = new ELContext();
+        final Query query = new Query();
+        ctx.getEnvironment().put("ds", "db1");
+        ctx.getEnvironment().put("sql", "select 1");
+        final Object key = holder.getMaterializationKey(ctx, query);
+        Assert.assertEquals(key, holder.getMaterializationKey(ctx, new Query()));
+        ctx.getEnvironment().put("sql", "select 2");
+        Assert.assertFalse(key.equals(holder.getMaterializationKey(ctx, query)));
+        ctx.getEnvironment().put("sql", "select 1");
+        ctx.getEnvironment().put("ds", "db2");
+        Assert.assertFalse(key.equals(holder.getMaterializationKey(ctx, query)));
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        final ConcurrentMap<Object,MaterializedRows> registry = new ConcurrentHashMap<Object,MaterializedRows>();
+        final BeanIterator<Object> recorder = MaterializedRows.capture(new ListDataProvider<String>(Arrays.asList("a", "b")).execute(new Query()), registry, "key", 10);
+        while (recorder.hasNext()) {
+            recorder.next();
+        }
+        recorder.close();
+        final BeanIterator<Object> it = registry.get("key").iterator();
+        Assert.assertEquals("a", it.readAhead());
+        Assert.assertEquals("a", it.next());
+        Assert.assertEquals("b", it.next());
+        Assert.assertFalse(it.hasNext());
+        try {
+            it.readAhead();
+            Assert.fail();
+        } catch (NoSuchElementException e) {
+            // ожидаемое исключение ...
+        }
+    }
+
+    private static HSSFWorkbook process(final AtomicInteger executions, final boolean materialized, final int limit) throws Exception {
+        final Report report = TestUtils.loadReport("report1");
+        final CountingDataProviderHolder holder = new CountingDataProviderHolder("ds2", executions);
+        holder.setMaterialized(materialized);
+        report.getProviders().put(holder.getId(), holder);
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        processor.setMaterializationLimit(limit);
+        return processor.process(report, TestUtils.makeContext());
+    }
+
+    private static void compare(final HSSFWorkbook expected, final HSSFWorkbook actual) {
+        Assert.assertEquals(expected.getNumberOfSheets(), actual.getNumberOfSheets());
+        for (int s=0; s<expected.getNumberOfSheets(); s++) {
+            final HSSFSheet esheet = expected.getSheetAt(s);
+            final HSSFSheet asheet = actual.getSheetAt(s);
+            Assert.assertEquals(esheet.getLastRowNum(), asheet.getLastRowNum());
+            for (int r=0; r<=esheet.getLastRowNum(); r++) {
+                final HSSFRow erow = esheet.getRow(r);
+                final HSSFRow arow = asheet.getRow(r);
+                if (erow==null) {
+                    Assert.assertNull(arow);
+                    continue;
+                }
+                Assert.assertEquals(erow.getLastCellNum(), arow.getLastCellNum());
+                for (int c=0; c<erow.getLastCellNum(); c++) {
+                    final HSSFCell ecell = erow.getCell(c);
+                    final HSSFCell acell = arow.getCell(c);
+                    Assert.assertEquals(String.valueOf(ecell), String.valueOf(acell));
+                }
+            }
+        }
+    }
+
+    /**
+     * Имитирует поставщика данных на основе SQL запроса, подсчитывая количество обращений к нему.
+     */
+    private static final class CountingDataProviderHolder extends SQLDataProviderHolder {
+        private final AtomicInteger executions;
+
+        private CountingDataProviderHolder(final String id, final AtomicInteger executions) {
+            super(id);
+            this.executions = executions;
+        }
+
+        @Override
+        public DataProvider getProvider(final ELContext ctx) {
+            final List<?> payments = (List<?>)ctx.getEnvironment().get("payments");
+            return new DataProvider() {
+                @SuppressWarnings("unchecked")
+                public BeanIterator execute(final Query query) throws DataProviderException {
+                    executions.incrementAndGet();
+                    return new ListDataProvider(payments).execute(query);
+                }
+                @SuppressWarnings("unchecked")
+                public QueryResult executePaged(final Query query) throws DataProviderException {
+                    return new ListDataProvider(payments).executePaged(query);
+                }
+            };
+        }
+
+        @Override
+        public Query getQuery(final ELContext ctx) {
+            return new Query();
+        }
+    }
+}
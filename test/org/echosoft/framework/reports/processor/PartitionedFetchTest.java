@@ -0,0 +1,199 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.common.query.BeanIterator;
+import org.echosoft.common.query.Query;
+import org.echosoft.common.query.QueryResult;
+import org.echosoft.common.query.providers.DataProvider;
+import org.echosoft.common.query.providers.DataProviderException;
+import org.echosoft.common.query.providers.ListDataProvider;
+import org.echosoft.framework.reports.TestUtils;
+import org.echosoft.framework.reports.data.beans.Payment;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.BaseExpression;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.model.providers.SQLDataProviderHolder;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет параллельное получение записей поставщика данных по разделам и последующее слияние разделов.
+ *
+ * @author Anton Sharapov
+ */
+public class PartitionedFetchTest {
+
+    @Test
+    public void testPartitionSQL() throws Exception {
+        final SQLDataProviderHolder holder = new SQLDataProviderHolder("ds");
+        holder.setSQL(new BaseExpression("select * from payment where state=:partitionState and :partition order by company_id"));
+        holder.setPartitionColumn("company_id");
+        final ELContext ctx = new ELContext();
+        Assert.assertEquals("select * from payment where state=:partitionState and (1=1) order by company_id", holder.getPartitionSQL(ctx, 0, 1));
+        Assert.assertEquals("select * from payment where state=:partitionState and (company_id < :partition_hi) order by company_id", holder.getPartitionSQL(ctx, 0, 3));
+        Assert.assertEquals("select * from payment where state=:partitionState and (company_id >= :partition_lo AND company_id < :partition_hi) order by company_id", holder.getPartitionSQL(ctx, 1, 3));
+        Assert.assertEquals("select * from payment where state=:partitionState and (company_id >= :partition_lo OR company_id IS NULL) order by company_id", holder.getPartitionSQL(ctx, 2, 3));
+
+        holder.setPartitionBounds(new BaseExpression("100, 200,x"));
+        final Object[] bounds = holder.getPartitionBounds(ctx);
+        Assert.assertArrayEquals(new Object[]{100L, 200L, "x"}, bounds);
+        final Query query = holder.getPartitionQuery(new Query(), bounds, 1);
+        Assert.assertEquals(100L, query.getNamedParams().get(SQLDataProviderHolder.PARTITION_LO));
+        Assert.assertEquals(200L, query.getNamedParams().get(SQLDataProviderHolder.PARTITION_HI));
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        final ELContext ctx = new ELContext();
+        final MergedBeanIterator it = new MergedBeanIterator(new BeanIterator[]{
+                    iterator(0, 1, 4, 4, 9, null),
+                    iterator(1),
+                    iterator(2, 2, 4, 5, null),
+                    iterator(3, 0, 10)
+                }, new BaseExpression("${row:key}"), false, ctx);
+        final List<String> result = new ArrayList<String>();
+        while (it.hasNext()) {
+            final Map bean = (Map)it.next();
+            result.add(bean.get("key")+"/"+bean.get("part"));
+        }
+        it.close();
+        Assert.assertEquals("[0/3, 1/0, 2/2, 4/0, 4/0, 4/2, 5/2, 9/0, 10/3, null/0, null/2]", result.toString());
+
+        final MergedBeanIterator desc = new MergedBeanIterator(new BeanIterator[]{iterator(0, 9, 3), iterator(1, 8, 3, 1)}, new BaseExpression("${row:key}"), true, ctx);
+        result.clear();
+        while (desc.hasNext()) {
+            result.add(String.valueOf(((Map)desc.next()).get("key")));
+        }
+        Assert.assertEquals("[9, 8, 3, 3, 1]", result.toString());
+    }
+
+    @Test
+    public void testPartitionedFetch() throws Exception {
+        final HSSFWorkbook expected = new ExcelReportProcessor().process(TestUtils.loadReport("report1"), makeContext());
+
+        final AtomicInteger executions = new AtomicInteger(0);
+        final Report report = TestUtils.loadReport("report1");
+        final PartitionedDataProviderHolder holder = new PartitionedDataProviderHolder("ds2", executions);
+        holder.setPartitionColumn("company_id");
+        holder.setPartitionBounds(new BaseExpression("c2,c21"));
+        holder.setMergeKey(new BaseExpression("${row:company.id}"));
+        report.getProviders().put(holder.getId(), holder);
+        final HSSFWorkbook actual = new ExcelReportProcessor().process(report, makeContext());
+        Assert.assertEquals(3 * 3, executions.get());   // три секции отчета используют поставщик данных ds2
+        assertWorkbooks(expected, actual);
+
+        // разделы запрашиваются по одному, каждый следующий - после получения всех записей предыдущего ...
+        holder.setPartitionParallelism(1);
+        executions.set(0);
+        final HSSFWorkbook sequential = new ExcelReportProcessor().process(report, makeContext());
+        Assert.assertEquals(3 * 3, executions.get());
+        assertWorkbooks(expected, sequential);
+
+        try {
+            holder.setPartitionParallelism(0);
+            Assert.fail("partition parallelism must be positive");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(1, holder.getPartitionParallelism());
+        }
+    }
+
+
+    private static void assertWorkbooks(final HSSFWorkbook expected, final HSSFWorkbook actual) {
+        Assert.assertEquals(expected.getNumberOfSheets(), actual.getNumberOfSheets());
+        for (int s=0; s<expected.getNumberOfSheets(); s++) {
+            final HSSFSheet esheet = expected.getSheetAt(s);
+            final HSSFSheet asheet = actual.getSheetAt(s);
+            Assert.assertEquals(esheet.getLastRowNum(), asheet.getLastRowNum());
+            for (int r=0; r<=esheet.getLastRowNum(); r++) {
+                final HSSFRow erow = esheet.getRow(r);
+                final HSSFRow arow = asheet.getRow(r);
+                if (erow==null) {
+                    Assert.assertNull(arow);
+                    continue;
+                }
+                for (int c=0; c<erow.getLastCellNum(); c++) {
+                    Assert.assertEquals(String.valueOf(erow.getCell(c)), String.valueOf(arow.getCell(c)));
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BeanIterator iterator(final int part, final Object... keys) throws Exception {
+        final List<Map<String,Object>> beans = new ArrayList<Map<String,Object>>();
+        for (Object key : keys) {
+            final Map<String,Object> bean = new HashMap<String,Object>();
+            bean.put("key", key);
+            bean.put("part", part);
+            beans.add(bean);
+        }
+        return new ListDataProvider(beans).execute(null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ELContext makeContext() throws Exception {
+        final ELContext ctx = TestUtils.makeContext();
+        // записи должны быть упорядочены по ключу слияния разделов ...
+        Collections.sort((List<Payment>)ctx.getEnvironment().get("payments"), new Comparator<Payment>() {
+            public int compare(final Payment p1, final Payment p2) {
+                return p1.company.id.compareTo(p2.company.id);
+            }
+        });
+        return ctx;
+    }
+
+    /**
+     * Имитирует поставщика данных на основе SQL запроса, отбирая платежи компаний из указанного в параметрах запроса диапазона.
+     */
+    private static final class PartitionedDataProviderHolder extends SQLDataProviderHolder {
+        private final AtomicInteger executions;
+
+        private PartitionedDataProviderHolder(final String id, final AtomicInteger executions) {
+            super(id);
+            this.executions = executions;
+        }
+
+        @Override
+        public DataProvider getProvider(final ELContext ctx) {
+            return getPartitionProvider(ctx, 0, 1);
+        }
+
+        @Override
+        public DataProvider getPartitionProvider(final ELContext ctx, final int partition, final int count) {
+            final List<?> payments = (List<?>)ctx.getEnvironment().get("payments");
+            return new DataProvider() {
+                @SuppressWarnings("unchecked")
+                public BeanIterator execute(final Query query) throws DataProviderException {
+                    executions.incrementAndGet();
+                    final String lo = (String)query.getNamedParams().get(PARTITION_LO);
+                    final String hi = (String)query.getNamedParams().get(PARTITION_HI);
+                    final List<Object> result = new ArrayList<Object>();
+                    for (Object bean : payments) {
+                        final String id = ((Payment)bean).company.id;
+                        if ((lo==null || id.compareTo(lo)>=0) && (hi==null || id.compareTo(hi)<0))
+                            result.add(bean);
+                    }
+                    return new ListDataProvider(result).execute(null);
+                }
+                public QueryResult executePaged(final Query query) throws DataProviderException {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public Query getQuery(final ELContext ctx) {
+            return new Query();
+        }
+    }
+}
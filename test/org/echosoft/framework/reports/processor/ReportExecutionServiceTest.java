@@ -0,0 +1,146 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.framework.reports.TestUtils;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет формирование отчетов посредством {@link ReportExecutionService}.
+ *
+ * @author Anton Sharapov
+ */
+public class ReportExecutionServiceTest {
+
+    @Test
+    public void testCostEstimation() throws Exception {
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        final ReportPlan plan = processor.compile(TestUtils.loadReport("report1"));
+        final ReportExecutionService service = new ReportExecutionService(processor, 2, 1, 1024*1024);
+        try {
+            final ELContext ctx = TestUtils.makeContext();
+            Assert.assertEquals(service.getDefaultCost(), service.estimateCost(plan, ctx));
+            final ReportExecutionService.ReportFuture future = service.submit(plan, ctx);
+            Assert.assertFalse(future.isBatch());
+            final HSSFWorkbook wb = future.get();
+            Assert.assertNotNull(wb);
+            Assert.assertTrue(wb.getNumberOfSheets()>0);
+            Assert.assertEquals(future.getControl().getEstimatedMemory(), service.estimateCost(plan, TestUtils.makeContext()));
+
+            // история накапливается отдельно для каждого набора параметров отчета ...
+            final ELContext other = TestUtils.makeContext();
+            other.getEnvironment().put("filter", "none");
+            Assert.assertEquals(service.getDefaultCost(), service.estimateCost(plan, other));
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchAdmission() throws Exception {
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        final ReportPlan plan = processor.compile(TestUtils.loadReport("report1"));
+        // бюджет памяти меньше стоимости любого пакетного отчета: пакетные отчеты должны формироваться строго по одному ...
+        final ReportExecutionService service = new ReportExecutionService(processor, 1, 3, 1);
+        service.setBatchThreshold(0);
+        try {
+            final List<ReportExecutionService.ReportFuture> futures = new ArrayList<ReportExecutionService.ReportFuture>();
+            for (int i=0; i<4; i++) {
+                futures.add(service.submit(plan, TestUtils.makeContext()));
+            }
+            for (ReportExecutionService.ReportFuture future : futures) {
+                Assert.assertTrue(future.isBatch());
+                Assert.assertNotNull(future.get());
+            }
+            Assert.assertEquals(0, service.getInteractiveExecutor().getCompletedTaskCount());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueuedBatchTasks() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final ExcelReportProcessor processor = new ExcelReportProcessor() {
+            @Override
+            public HSSFWorkbook process(final ReportPlan plan, final ELContext ctx, final ExecutionControl control) throws ReportProcessingException {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new ReportProcessingException(e.getMessage(), e);
+                }
+                return super.process(plan, ctx, control);
+            }
+        };
+        final ReportPlan plan = processor.compile(TestUtils.loadReport("report1"));
+        final ReportExecutionService service = new ReportExecutionService(processor, 1, 3, 1);
+        service.setBatchThreshold(0);
+        try {
+            final List<ReportExecutionService.ReportFuture> futures = new ArrayList<ReportExecutionService.ReportFuture>();
+            for (int i=0; i<4; i++) {
+                futures.add(service.submit(plan, TestUtils.makeContext()));
+            }
+            // пока выполняется первая задача, остальные ожидают в очереди сервиса и не занимают потоков пула ...
+            Assert.assertEquals(1, service.getBatchExecutor().getActiveCount() + service.getBatchExecutor().getQueue().size());
+            Assert.assertTrue(futures.get(2).cancel(false));
+            Assert.assertTrue(futures.get(2).isCancelled());
+            gate.countDown();
+            for (int i=0; i<futures.size(); i++) {
+                try {
+                    Assert.assertNotNull(futures.get(i).get(30, TimeUnit.SECONDS));
+                    Assert.assertTrue(i!=2);
+                } catch (CancellationException e) {
+                    Assert.assertEquals(2, i);
+                }
+            }
+            service.shutdown();
+            Assert.assertTrue(service.getBatchExecutor().awaitTermination(30, TimeUnit.SECONDS));
+            Assert.assertEquals(3, service.getBatchExecutor().getCompletedTaskCount());
+        } finally {
+            gate.countDown();
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailureHistory() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(1);
+        final ExcelReportProcessor processor = new ExcelReportProcessor() {
+            @Override
+            public HSSFWorkbook process(final ReportPlan plan, final ELContext ctx, final ExecutionControl control) throws ReportProcessingException {
+                if (failures.getAndDecrement()>0)
+                    throw new OutOfMemoryError("Java heap space");
+                return super.process(plan, ctx, control);
+            }
+        };
+        final ReportPlan plan = processor.compile(TestUtils.loadReport("report1"));
+        final ReportExecutionService service = new ReportExecutionService(processor, 1, 1, 64*1024*1024);
+        try {
+            final ReportExecutionService.ReportFuture future = service.submit(plan, TestUtils.makeContext());
+            Assert.assertFalse(future.isBatch());
+            try {
+                future.get();
+                Assert.fail("processing failure must be reported");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof OutOfMemoryError);
+            }
+            // неудачное формирование отчета учитывается в истории как превысившее весь бюджет памяти пакетных задач ...
+            Assert.assertEquals(64*1024*1024, service.estimateCost(plan, TestUtils.makeContext()));
+            final ReportExecutionService.ReportFuture retry = service.submit(plan, TestUtils.makeContext());
+            Assert.assertTrue(retry.isBatch());
+            Assert.assertNotNull(retry.get());
+            Assert.assertTrue(service.estimateCost(plan, TestUtils.makeContext()) < 64*1024*1024);
+        } finally {
+            service.shutdown();
+        }
+    }
+}
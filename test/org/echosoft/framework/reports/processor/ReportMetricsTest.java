@@ -0,0 +1,65 @@
+package org.echosoft.framework.reports.processor;
+
+import org.echosoft.framework.reports.TestUtils;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.util.Histogram;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет сбор метрик в процессе формирования отчета.
+ *
+ * @author Anton Sharapov
+ */
+public class ReportMetricsTest {
+
+    @Test
+    public void testInMemoryMetrics() throws Exception {
+        final InMemoryReportMetrics metrics = new InMemoryReportMetrics();
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        processor.setMetrics(metrics);
+        final Report report = TestUtils.loadReport("report1");
+        processor.process(report, TestUtils.makeContext());
+        processor.process(report, TestUtils.makeContext());
+
+        final InMemoryReportMetrics.ReportStats stats = metrics.getReportStats(report.getId());
+        Assert.assertNotNull(stats);
+        Assert.assertEquals(2, stats.wallTime.getCount());
+        Assert.assertEquals(0, stats.failures.get());
+        Assert.assertEquals(report.getSheets().size(), stats.getSheets().size());
+        Assert.assertTrue(stats.formulasParsed.get() + stats.formulasReused.get() > 0);
+        long records = 0, cells = 0, fetches = 0;
+        for (InMemoryReportMetrics.Stats section : stats.getSections().values()) {
+            Assert.assertTrue(section.wallTime.getCount()>0);
+            records += section.records.getSum();
+            cells += section.cells.getSum();
+            fetches += section.fetchTime.getCount();
+        }
+        Assert.assertTrue(records>0);
+        Assert.assertTrue(cells>0);
+        Assert.assertTrue(fetches>0);
+        Assert.assertTrue(metrics.format().startsWith("report "+report.getId()));
+
+        metrics.clear();
+        Assert.assertTrue(metrics.getReports().isEmpty());
+    }
+
+    @Test
+    public void testHistogram() {
+        final Histogram h = new Histogram();
+        Assert.assertEquals(0, h.getPercentile(50));
+        for (int i=1; i<=1000; i++) {
+            h.record(i);
+        }
+        h.record(-1);
+        Assert.assertEquals(1000, h.getCount());
+        Assert.assertEquals(500500, h.getSum());
+        Assert.assertEquals(1000, h.getMax());
+        for (double p : new double[]{1, 25, 50, 90, 99}) {
+            final long expected = (long)(p*10);
+            final long actual = h.getPercentile(p);
+            Assert.assertTrue(p+": "+actual, actual>=expected && actual<=expected + expected/Histogram.SUB_BUCKETS + 1);
+        }
+        Assert.assertEquals(1000, h.getPercentile(100));
+    }
+}
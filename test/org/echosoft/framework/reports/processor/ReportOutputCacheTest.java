@@ -0,0 +1,236 @@
+package org.echosoft.framework.reports.processor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.echosoft.common.utils.StringUtil;
+import org.echosoft.framework.reports.TestUtils;
+import org.echosoft.framework.reports.model.Report;
+import org.echosoft.framework.reports.model.el.ELContext;
+import org.echosoft.framework.reports.registry.ReportsRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет работу кэша сформированных отчетов.
+ *
+ * @author Anton Sharapov
+ */
+public class ReportOutputCacheTest {
+
+    @Test
+    public void testKeys() throws Exception {
+        final CountingProcessor processor = new CountingProcessor(0);
+        final ReportPlan plan = processor.compile(TestUtils.loadReport("report1"));
+        final ReportOutputCache cache = new ReportOutputCache(processor, 64*1024*1024);
+
+        final byte[] first = cache.process(plan, makeContext("25.08.2008"));
+        final byte[] second = cache.process(plan, makeContext("25.08.2008"));
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, processor.renders.get());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(first.length, cache.getSize());
+
+        cache.process(plan, makeContext("26.08.2008"));
+        Assert.assertEquals(2, processor.renders.get());
+
+        // новый план той же модели отчета является новым поколением отчета ...
+        cache.process(processor.compile(TestUtils.loadReport("report1")), makeContext("25.08.2008"));
+        Assert.assertEquals(3, processor.renders.get());
+
+        // несериализуемые параметры исключают кэширование ...
+        final ELContext ctx = makeContext("25.08.2008");
+        ctx.getEnvironment().put("lock", new Object());
+        cache.process(plan, ctx);
+        cache.process(plan, ctx);
+        Assert.assertEquals(5, processor.renders.get());
+
+        cache.invalidate(plan.getReport().getId());
+        Assert.assertEquals(0, cache.getSize());
+        cache.process(plan, makeContext("25.08.2008"));
+        Assert.assertEquals(6, processor.renders.get());
+    }
+
+    @Test
+    public void testVersions() throws Exception {
+        final CountingProcessor processor = new CountingProcessor(0);
+        final Report report = new Report("cache-versions", TestUtils.loadReport("report1"));
+        final ReportOutputCache cache = new ReportOutputCache(processor, 64*1024*1024);
+        ReportsRegistry.registerReport(report);
+        try {
+            // для зарегистрированного отчета используется подготовленный реестром план ...
+            final ReportPlan plan = ReportsRegistry.getPlan(report.getId());
+            final byte[] first = cache.process(plan, makeContext("25.08.2008"));
+            Assert.assertSame(first, cache.process(processor.compile(report), makeContext("25.08.2008")));
+            cache.process(plan, makeContext("26.08.2008"));
+            Assert.assertEquals(2, processor.renders.get());
+
+            // повторная регистрация отчета удаляет из кэша экземпляры отчета прежней версии ...
+            ReportsRegistry.registerReport(new Report(null, report));
+            final byte[] second = cache.process(ReportsRegistry.getPlan(report.getId()), makeContext("25.08.2008"));
+            Assert.assertNotSame(first, second);
+            Assert.assertEquals(3, processor.renders.get());
+            Assert.assertEquals(second.length, cache.getSize());
+
+            // результаты формирования отчета по устаревшему плану не кэшируются ...
+            cache.process(plan, makeContext("25.08.2008"));
+            cache.process(plan, makeContext("25.08.2008"));
+            Assert.assertEquals(5, processor.renders.get());
+            Assert.assertEquals(second.length, cache.getSize());
+        } finally {
+            ReportsRegistry.unregisterReport(report.getId());
+        }
+    }
+
+    @Test
+    public void testTTL() throws Exception {
+        final CountingProcessor processor = new CountingProcessor(0);
+        final ReportPlan plan = processor.compile(TestUtils.loadReport("report1"));
+        final ReportOutputCache cache = new ReportOutputCache(processor, 64*1024*1024);
+        cache.setTTL(plan.getReport().getId(), 0);
+        cache.process(plan, makeContext("25.08.2008"));
+        cache.process(plan, makeContext("25.08.2008"));
+        Assert.assertEquals(2, processor.renders.get());
+
+        cache.setTTL(plan.getReport().getId(), 1000);
+        cache.process(plan, makeContext("25.08.2008"));
+        cache.process(plan, makeContext("25.08.2008"));
+        Assert.assertEquals(3, processor.renders.get());
+        Thread.sleep(1100);
+        cache.process(plan, makeContext("25.08.2008"));
+        Assert.assertEquals(4, processor.renders.get());
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "report-cache-"+System.nanoTime());
+        final CountingProcessor processor = new CountingProcessor(0);
+        final ReportPlan plan = processor.compile(TestUtils.loadReport("report1"));
+        final ReportOutputCache cache = new ReportOutputCache(processor, 1);
+        cache.setSpillDirectory(dir);
+        try {
+            final byte[] first = cache.process(plan, makeContext("25.08.2008"));
+            Assert.assertEquals(0, cache.getSize());
+            Assert.assertEquals(1, dir.listFiles().length);
+            final byte[] second = cache.process(plan, makeContext("25.08.2008"));
+            Assert.assertArrayEquals(first, second);
+            Assert.assertEquals(1, processor.renders.get());
+            cache.clear();
+            Assert.assertEquals(0, dir.listFiles().length);
+
+            // имя файла не зависит от идентификатора отчета ...
+            final ReportPlan evil = processor.compile(new Report("../../report:1", TestUtils.loadReport("report1")));
+            cache.process(evil, makeContext("25.08.2008"));
+            Assert.assertEquals(1, dir.listFiles().length);
+            Assert.assertTrue(dir.listFiles()[0].getName().matches("[0-9a-f]{64}\\.xls"));
+            cache.clear();
+            Assert.assertEquals(0, dir.listFiles().length);
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testSpillLimits() throws Exception {
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "report-cache-"+System.nanoTime());
+        final CountingProcessor processor = new CountingProcessor(0);
+        final ReportPlan plan = processor.compile(TestUtils.loadReport("report1"));
+        final ReportOutputCache cache = new ReportOutputCache(processor, 1);
+        cache.setSpillDirectory(dir);
+        try {
+            cache.process(plan, makeContext("25.08.2008"));
+            final long length = cache.getSpilledSize();
+            Assert.assertTrue(length>0);
+            cache.setMaxSpillSize(length * 2 + length / 2);
+            cache.process(plan, makeContext("26.08.2008"));
+            cache.process(plan, makeContext("27.08.2008"));
+            Assert.assertEquals(2, dir.listFiles().length);
+            Assert.assertTrue(cache.getSpilledSize() <= cache.getMaxSpillSize());
+            cache.process(plan, makeContext("25.08.2008"));        // наиболее давно сохраненный отчет был удален с диска ...
+            Assert.assertEquals(4, processor.renders.get());
+            Assert.assertEquals(2, dir.listFiles().length);
+
+            // отчеты с истекшим временем хранения удаляются с диска при помещении в кэш других отчетов ...
+            cache.clear();
+            cache.setTTL(plan.getReport().getId(), 200);
+            cache.process(plan, makeContext("28.08.2008"));
+            Thread.sleep(300);
+            cache.setTTL(plan.getReport().getId(), 60000);
+            cache.process(plan, makeContext("29.08.2008"));
+            Assert.assertEquals(1, dir.listFiles().length);
+            Assert.assertEquals(cache.getSpilledSize(), dir.listFiles()[0].length());
+
+            cache.setMaxSpillSize(length / 2);
+            cache.process(plan, makeContext("30.08.2008"));
+            Assert.assertEquals(1, dir.listFiles().length);
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final CountingProcessor processor = new CountingProcessor(100);
+        final ReportPlan plan = processor.compile(TestUtils.loadReport("report1"));
+        final ReportOutputCache cache = new ReportOutputCache(processor, 64*1024*1024);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for (int i=0; i<4; i++) {
+                results.add(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return cache.process(plan, makeContext("25.08.2008"));
+                    }
+                }));
+            }
+            final byte[] expected = results.get(0).get();
+            for (Future<byte[]> result : results) {
+                Assert.assertSame(expected, result.get());
+            }
+            Assert.assertEquals(1, processor.renders.get());
+            Assert.assertEquals(3, cache.getHits());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    private static ELContext makeContext(final String toDate) throws Exception {
+        final ELContext ctx = TestUtils.makeContext();
+        ctx.getEnvironment().put("toDate", StringUtil.parseDate(toDate));
+        return ctx;
+    }
+
+    private static final class CountingProcessor extends ExcelReportProcessor {
+        private final AtomicInteger renders = new AtomicInteger(0);
+        private final long delay;
+
+        private CountingProcessor(final long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public HSSFWorkbook process(final ReportPlan plan, final ELContext ctx) throws ReportProcessingException {
+            renders.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new ReportProcessingException(e.getMessage(), e);
+            }
+            return super.process(plan, ctx);
+        }
+    }
+}
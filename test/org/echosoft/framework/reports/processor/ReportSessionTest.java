@@ -0,0 +1,205 @@
+package org.echosoft.framework.reports.processor;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет закрепление соединений с источником данных за формируемым отчетом.
+ *
+ * @author Anton Sharapov
+ */
+public class ReportSessionTest {
+
+    @Test
+    public void testSingleConnection() throws Exception {
+        final List<String> log = new ArrayList<String>();
+        final ReportSession session = new ReportSession(1, Connection.TRANSACTION_REPEATABLE_READ);
+        final DataSource origin = makeDataSource(log, true);
+        final DataSource ds = session.bind(origin);
+        Assert.assertSame(ds, session.bind(origin));
+
+        final Connection c1 = ds.getConnection();
+        final PreparedStatement s1 = c1.prepareStatement("select 1");
+        s1.setObject(1, "a");
+        s1.close();
+        c1.close();
+        Assert.assertTrue(c1.isClosed());
+
+        final Connection c2 = ds.getConnection();
+        final PreparedStatement s2 = c2.prepareStatement("select 1");
+        final PreparedStatement s3 = c2.prepareStatement("select 2");
+        s2.close();
+        s3.close();
+        c2.close();
+        Assert.assertEquals(1, session.getOpenedConnections());
+        Assert.assertEquals("[open, autocommit:false, readonly:true, isolation:4, prepare:select 1, setObject, clearParameters, prepare:select 2, clearParameters, clearParameters]", log.toString());
+
+        log.clear();
+        session.close();
+        Assert.assertEquals(0, session.getOpenedConnections());
+        Assert.assertEquals(4, log.size());
+        Assert.assertTrue(log.containsAll(Arrays.asList("close:select 1", "close:select 2", "rollback", "close")));
+        Assert.assertEquals("close", log.get(3));
+        try {
+            session.bind(makeDataSource(log, true));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // ожидаемое исключение ...
+        }
+    }
+
+    @Test
+    public void testIsolationFallback() throws Exception {
+        final List<String> log = new ArrayList<String>();
+        final ReportSession session = new ReportSession(2, Connection.TRANSACTION_REPEATABLE_READ);
+        final DataSource ds = session.bind(makeDataSource(log, false));
+        ds.getConnection().close();
+        Assert.assertEquals("[open, autocommit:false, readonly:true, isolation:8]", log.toString());
+        session.close();
+    }
+
+    @Test
+    public void testExclusiveUse() throws Exception {
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        final ReportSession session = new ReportSession(1, Connection.TRANSACTION_REPEATABLE_READ);
+        final DataSource ds = session.bind(makeDataSource(log, true));
+        final Connection c1 = ds.getConnection();
+        final Connection c2 = ds.getConnection();       // вложенный запрос в том же потоке использует то же соединение ...
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread thread = new Thread() {
+            public void run() {
+                try {
+                    ds.getConnection().close();
+                    acquired.countDown();
+                } catch (Exception e) {
+                    log.add(e.getMessage());
+                }
+            }
+        };
+        thread.start();
+        Assert.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        c1.close();
+        Assert.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        c2.close();
+        Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        thread.join();
+        Assert.assertEquals(1, session.getOpenedConnections());
+
+        final ReportSession session2 = new ReportSession(2, Connection.TRANSACTION_REPEATABLE_READ);
+        final DataSource ds2 = session2.bind(makeDataSource(log, true));
+        final Connection c3 = ds2.getConnection();
+        final Thread thread2 = new Thread() {
+            public void run() {
+                try {
+                    ds2.getConnection().close();
+                } catch (Exception e) {
+                    log.add(e.getMessage());
+                }
+            }
+        };
+        thread2.start();
+        thread2.join(5000);
+        Assert.assertFalse(thread2.isAlive());
+        Assert.assertEquals(2, session2.getOpenedConnections());
+        c3.close();
+        session.close();
+        session2.close();
+    }
+
+    @Test
+    public void testResources() throws Exception {
+        final ReportSession session = new ReportSession(1, Connection.TRANSACTION_SERIALIZABLE);
+        Assert.assertNull(session.getResource("sql/test.sql"));
+        session.putResource("sql/test.sql", "select 1");
+        Assert.assertEquals("select 1", session.getResource("sql/test.sql"));
+        session.close();
+        Assert.assertNull(session.getResource("sql/test.sql"));
+    }
+
+
+    /**
+     * Имитирует источник данных, фиксируя в журнале обращения к соединениям и подготовленным запросам.
+     */
+    private static DataSource makeDataSource(final List<String> log, final boolean repeatableRead) {
+        return (DataSource)Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class[]{DataSource.class}, new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if (!"getConnection".equals(method.getName()))
+                    throw new UnsupportedOperationException(method.getName());
+                log.add("open");
+                return makeConnection(log, repeatableRead);
+            }
+        });
+    }
+
+    private static Connection makeConnection(final List<String> log, final boolean repeatableRead) {
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                final String name = method.getName();
+                if ("setAutoCommit".equals(name)) {
+                    log.add("autocommit:" + args[0]);
+                } else
+                if ("setReadOnly".equals(name)) {
+                    log.add("readonly:" + args[0]);
+                } else
+                if ("setTransactionIsolation".equals(name)) {
+                    log.add("isolation:" + args[0]);
+                } else
+                if ("getMetaData".equals(name)) {
+                    return makeMetaData(repeatableRead);
+                } else
+                if ("prepareStatement".equals(name)) {
+                    log.add("prepare:" + args[0]);
+                    return makeStatement(log, (String)args[0]);
+                } else
+                if ("rollback".equals(name) || "close".equals(name)) {
+                    log.add(name);
+                } else
+                if ("isClosed".equals(name)) {
+                    return false;
+                } else
+                    throw new UnsupportedOperationException(name);
+                return null;
+            }
+        });
+    }
+
+    private static DatabaseMetaData makeMetaData(final boolean repeatableRead) {
+        return (DatabaseMetaData)Proxy.newProxyInstance(DatabaseMetaData.class.getClassLoader(), new Class[]{DatabaseMetaData.class}, new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if (!"supportsTransactionIsolationLevel".equals(method.getName()))
+                    throw new UnsupportedOperationException(method.getName());
+                return repeatableRead || (Integer)args[0]!=Connection.TRANSACTION_REPEATABLE_READ;
+            }
+        });
+    }
+
+    private static PreparedStatement makeStatement(final List<String> log, final String sql) {
+        return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class[]{PreparedStatement.class}, new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                final String name = method.getName();
+                if ("close".equals(name)) {
+                    log.add("close:" + sql);
+                } else
+                if ("setObject".equals(name) || "clearParameters".equals(name)) {
+                    log.add(name);
+                } else
+                    throw new UnsupportedOperationException(name);
+                return null;
+            }
+        });
+    }
+}
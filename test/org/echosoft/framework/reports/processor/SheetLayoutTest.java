@@ -0,0 +1,121 @@
+package org.echosoft.framework.reports.processor;
+
+import java.lang.reflect.Method;
+
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.echosoft.framework.reports.processor.xlsx.XLSXRow;
+import org.echosoft.framework.reports.processor.xlsx.XLSXWorkbook;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Anton Sharapov
+ */
+public class SheetLayoutTest {
+
+    @Test
+    public void testHSSF() throws Exception {
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final Sheet expected = wb.createSheet("expected");
+        final Sheet actual = wb.createSheet("actual");
+        render(expected, new SheetLayout(expected, false));
+        final SheetLayout layout = new SheetLayout(actual, true);
+        render(actual, layout);
+        Assert.assertEquals(0, actual.getNumMergedRegions());
+        layout.apply();
+        compare(expected, actual);
+    }
+
+    @Test
+    public void testXLSX() throws Exception {
+        final Sheet expected = new XLSXWorkbook(new HSSFWorkbook()).createSheet("expected");
+        final Sheet actual = new XLSXWorkbook(new HSSFWorkbook()).createSheet("actual");
+        expected.setRowSumsBelow(false);
+        actual.setRowSumsBelow(false);
+        render(expected, new SheetLayout(expected, false));
+        final SheetLayout layout = new SheetLayout(actual, true);
+        render(actual, layout);
+        layout.apply();
+        compare(expected, actual);
+        for (int r=0; r<=expected.getLastRowNum(); r++) {
+            final XLSXRow erow = (XLSXRow)expected.getRow(r);
+            final XLSXRow arow = (XLSXRow)actual.getRow(r);
+            Assert.assertEquals("row "+r, erow!=null && erow.isCollapsed(), arow!=null && arow.isCollapsed());
+        }
+    }
+
+    /**
+     * Формирует на листе несколько уровней вложенных групп (аналогично группировочным секциям отчета):
+     * строка заголовка группы, затем ее содержимое, группировка содержимого выполняется по окончании группы.
+     */
+    private static void render(final Sheet sheet, final SheetLayout layout) {
+        final int[] next = new int[]{0};
+        createRow(sheet, next);
+        final int first = next[0];
+        for (int i=0; i<3; i++) {
+            renderGroup(layout, sheet, next, 0, i);
+        }
+        layout.groupRows(first, next[0]-1, false);
+        createRow(sheet, next);
+        final int hidden = next[0];
+        createRow(sheet, next);
+        createRow(sheet, next);
+        layout.hideRows(hidden, next[0]-1);
+    }
+
+    private static void renderGroup(final SheetLayout layout, final Sheet sheet, final int[] next, final int depth, final int index) {
+        final int header = next[0];
+        createRow(sheet, next);
+        layout.addMergedRegion(header, header, 0, 2);
+        if (depth<3) {
+            for (int i=0; i<=depth; i++)
+                renderGroup(layout, sheet, next, depth+1, i);
+        } else {
+            for (int i=0; i<3; i++)
+                createRow(sheet, next);
+        }
+        layout.groupRows(header+1, next[0]-1, (depth+index)%2==1);
+    }
+
+    private static void createRow(final Sheet sheet, final int[] next) {
+        if (sheet.getRow(next[0])==null)
+            sheet.createRow(next[0]);
+        next[0]++;
+    }
+
+    private static void compare(final Sheet expected, final Sheet actual) throws Exception {
+        Assert.assertTrue(expected.getLastRowNum()>50);
+        Assert.assertEquals(expected.getLastRowNum(), actual.getLastRowNum());
+        int hidden = 0;
+        for (int r=0; r<=expected.getLastRowNum(); r++) {
+            final Row erow = expected.getRow(r);
+            final Row arow = actual.getRow(r);
+            Assert.assertEquals("row "+r, erow==null, arow==null);
+            if (erow==null)
+                continue;
+            Assert.assertEquals("row "+r, getOutlineLevel(erow), getOutlineLevel(arow));
+            Assert.assertEquals("row "+r, erow.getZeroHeight(), arow.getZeroHeight());
+            if (erow.getZeroHeight())
+                hidden++;
+        }
+        Assert.assertTrue(hidden>0);
+        Assert.assertEquals(expected.getNumMergedRegions(), actual.getNumMergedRegions());
+        for (int i=0; i<expected.getNumMergedRegions(); i++) {
+            final CellRangeAddress e = expected.getMergedRegion(i);
+            final CellRangeAddress a = actual.getMergedRegion(i);
+            Assert.assertEquals(e.formatAsString(), a.formatAsString());
+        }
+    }
+
+    private static int getOutlineLevel(final Row row) throws Exception {
+        if (row instanceof XLSXRow)
+            return ((XLSXRow)row).getOutlineLevel();
+        final Method method = HSSFRow.class.getDeclaredMethod("getOutlineLevel");
+        method.setAccessible(true);
+        return ((Number)method.invoke(row)).intValue();
+    }
+}
@@ -0,0 +1,133 @@
+package org.echosoft.framework.reports.processor;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.echosoft.framework.reports.TestUtils;
+import org.echosoft.framework.reports.model.Report;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Проверяет трассировку этапов формирования отчета.
+ *
+ * @author Anton Sharapov
+ */
+public class TraceRecorderTest {
+
+    @Test
+    public void testTrace() throws Exception {
+        final TraceRecorder recorder = new TraceRecorder();
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        processor.setTracer(recorder);
+        final Report report = TestUtils.loadReport("report1");
+        processor.process(report, TestUtils.makeContext());
+
+        final List<TraceRecorder.Entry> entries = recorder.getEntries();
+        Assert.assertEquals(recorder.getRecorded(), entries.size());
+        final Map<TraceEvent,Integer> counts = new EnumMap<TraceEvent,Integer>(TraceEvent.class);
+        for (TraceRecorder.Entry entry : entries) {
+            final Integer count = counts.get(entry.event);
+            counts.put(entry.event, count!=null ? count+1 : 1);
+            Assert.assertEquals(report.getId(), entry.report);
+            Assert.assertTrue(entry.duration>=0);
+            Assert.assertTrue(entry.toString(), entry.firstRow<=entry.lastRow);
+            if (entry.event==TraceEvent.SECTION || entry.event==TraceEvent.PROVIDER || entry.event==TraceEvent.GROUP) {
+                Assert.assertNotNull(entry.section);
+            }
+            if (entry.event==TraceEvent.MACROS) {
+                Assert.assertNotNull(entry.name);
+            }
+        }
+        Assert.assertEquals(Integer.valueOf(1), counts.get(TraceEvent.REPORT));
+        Assert.assertEquals(TraceEvent.REPORT, entries.get(entries.size()-1).event);
+        Assert.assertEquals(Integer.valueOf(report.getSheets().size()), counts.get(TraceEvent.SHEET));
+        Assert.assertNotNull(counts.get(TraceEvent.SECTION));
+        Assert.assertNotNull(counts.get(TraceEvent.PROVIDER));
+        Assert.assertNotNull(counts.get(TraceEvent.GROUP));
+        Assert.assertNotNull(counts.get(TraceEvent.MACROS));
+    }
+
+    @Test
+    public void testRingBuffer() throws Exception {
+        final TraceRecorder recorder = new TraceRecorder(4);
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        processor.setTracer(recorder);
+        processor.process(TestUtils.loadReport("report1"), TestUtils.makeContext());
+        Assert.assertTrue(recorder.getRecorded()>4);
+        final List<TraceRecorder.Entry> entries = recorder.getEntries();
+        Assert.assertEquals(4, entries.size());
+        Assert.assertEquals(TraceEvent.REPORT, entries.get(3).event);
+
+        recorder.clear();
+        recorder.setThreshold(Long.MAX_VALUE);
+        processor.process(TestUtils.loadReport("report1"), TestUtils.makeContext());
+        Assert.assertEquals(0, recorder.getRecorded());
+        Assert.assertTrue(recorder.getEntries().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentReports() throws Exception {
+        final TraceRecorder recorder = new TraceRecorder();
+        final ExcelReportProcessor processor = new ExcelReportProcessor();
+        processor.setTracer(recorder);
+        final ReportPlan plan = processor.compile(TestUtils.loadReport("report1"));
+        processor.process(plan, TestUtils.makeContext());
+        final long single = recorder.getRecorded();
+        recorder.clear();
+
+        final Exception[] errors = new Exception[4];
+        final Thread[] threads = new Thread[errors.length];
+        for (int i=0; i<threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        processor.process(plan, TestUtils.makeContext());
+                    } catch (Exception e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Exception error : errors) {
+            Assert.assertNull(error);
+        }
+        Assert.assertEquals(single * threads.length, recorder.getRecorded());
+        final List<TraceRecorder.Entry> entries = recorder.getEntries();
+        Assert.assertEquals(recorder.getRecorded(), entries.size());
+        final Set<Long> reports = new HashSet<Long>();
+        for (TraceRecorder.Entry entry : entries) {
+            if (entry.event==TraceEvent.REPORT)
+                Assert.assertTrue(reports.add(entry.thread));
+        }
+        Assert.assertEquals(threads.length, reports.size());
+
+        // буфер каждого потока хранит не более capacity событий, а в результат попадают лишь последние из них ...
+        final TraceRecorder small = new TraceRecorder(8);
+        processor.setTracer(small);
+        processor.process(plan, TestUtils.makeContext());
+        final Thread thread = new Thread() {
+            public void run() {
+                try {
+                    processor.process(plan, TestUtils.makeContext());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        final List<TraceRecorder.Entry> last = small.getEntries();
+        Assert.assertEquals(8, last.size());
+        Assert.assertEquals(TraceEvent.REPORT, last.get(7).event);
+        Assert.assertEquals(thread.getId(), last.get(7).thread);
+    }
+}
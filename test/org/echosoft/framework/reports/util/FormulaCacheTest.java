@@ -0,0 +1,57 @@
+package org.echosoft.framework.reports.util;
+
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Anton Sharapov
+ */
+public class FormulaCacheTest {
+
+    private static final String[] FORMULAS = {
+            "B2*2", "B3*2", "B65536*2", "$B$1+C2", "$B$1+C3", "$B$1+$C3",
+            "SUM(B1:B10)", "SUM(B5:B50)", "SUM(C5:C50)", "SUM(C50:C5)", "SUM(B2,B4,B6)", "SUM(D3,D7,D11)",
+            "IF(A1>0,\"A1\",B2)", "IF(A2>0,\"A1\",B3)", "LOG10(A1)+A2", "LOG10(A7)+A8",
+            "SUMPRODUCT(ABS(MOD(ROW(2:10)-ROW(B2),3)=0),B2:B10)", "SUMPRODUCT(ABS(MOD(ROW(3:12)-ROW(B3),3)=0),B3:B12)",
+            "'Sheet 2'!A1+A2", "'Sheet 2'!A5+A6", "(B2+B4+B6+B8)/4", "(C12+C14+C16+C18)/4"
+    };
+
+    @Test
+    public void testFormulas() throws Exception {
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final HSSFSheet sheet = wb.createSheet("Sheet 1");
+        wb.createSheet("Sheet 2");
+        final FormulaCache cache = new FormulaCache();
+        for (int i=0; i<FORMULAS.length; i++) {
+            final HSSFRow row = sheet.createRow(i);
+            final Cell expected = row.createCell(0);
+            expected.setCellFormula(FORMULAS[i]);
+            final Cell actual = row.createCell(1);
+            cache.setCellFormula(actual, FORMULAS[i]);
+            Assert.assertEquals(Cell.CELL_TYPE_FORMULA, actual.getCellType());
+            Assert.assertEquals(expected.getCellFormula(), actual.getCellFormula());
+            Assert.assertEquals(expected.getCellStyle().getIndex(), actual.getCellStyle().getIndex());
+        }
+        Assert.assertTrue(cache.getHits() >= 9);
+        Assert.assertEquals(FORMULAS.length, cache.getHits() + cache.getMisses());
+    }
+
+    @Test
+    public void testReplaceFormula() throws Exception {
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final Cell cell = wb.createSheet("Sheet 1").createRow(0).createCell(0);
+        final FormulaCache cache = new FormulaCache();
+        cache.setCellFormula(cell, "SUM(B1:B10)");
+        cache.setCellFormula(cell, "SUM(B2:B20)");
+        Assert.assertEquals("SUM(B2:B20)", cell.getCellFormula());
+        Assert.assertEquals(1, cache.getHits());
+        final Cell other = wb.createSheet("Sheet 2").createRow(0).createCell(0);
+        cache.setCellFormula(other, "SUM(B3:B30)");
+        Assert.assertEquals("SUM(B3:B30)", other.getCellFormula());
+        Assert.assertEquals(1, cache.getHits());
+    }
+}
@@ -0,0 +1,83 @@
+package org.echosoft.framework.reports.util;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.hssf.util.HSSFColor;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Anton Sharapov
+ */
+public class StylePoolTest {
+
+    @Test
+    public void testAltColorStyles() throws Exception {
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final CellStyle original = wb.createCellStyle();
+        original.setBorderBottom(CellStyle.BORDER_THIN);
+        original.setDataFormat((short)4);
+        final StylePool pool = new StylePool(wb);
+
+        final CellStyle red = pool.getAltColorStyle(original, HSSFColor.RED.index, -1);
+        Assert.assertNotSame(original, red);
+        Assert.assertEquals(HSSFColor.RED.index, wb.getFontAt(red.getFontIndex()).getColor());
+        Assert.assertEquals(original.getBorderBottom(), red.getBorderBottom());
+        Assert.assertEquals(original.getDataFormat(), red.getDataFormat());
+        Assert.assertEquals(original.getFillPattern(), red.getFillPattern());
+
+        final CellStyle coral = pool.getAltColorStyle(original, -1, HSSFColor.CORAL.index);
+        Assert.assertEquals(CellStyle.SOLID_FOREGROUND, coral.getFillPattern());
+        Assert.assertEquals(HSSFColor.CORAL.index, coral.getFillForegroundColor());
+        Assert.assertEquals(original.getFontIndex(), coral.getFontIndex());
+
+        final int styles = wb.getNumCellStyles();
+        final int fonts = wb.getNumberOfFonts();
+        Assert.assertSame(red, pool.getAltColorStyle(original, HSSFColor.RED.index, -1));
+        Assert.assertSame(coral, pool.getAltColorStyle(original, -1, HSSFColor.CORAL.index));
+        Assert.assertSame(original, pool.getAltColorStyle(original, -1, -1));
+        Assert.assertEquals(styles, wb.getNumCellStyles());
+        Assert.assertEquals(fonts, wb.getNumberOfFonts());
+    }
+
+    @Test
+    public void testExistingStyles() throws Exception {
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final CellStyle original = wb.createCellStyle();
+        final CellStyle existing = wb.createCellStyle();
+        existing.cloneStyleFrom(original);
+        existing.setFillPattern(CellStyle.SOLID_FOREGROUND);
+        existing.setFillForegroundColor(HSSFColor.CORAL.index);
+        final Font font = wb.createFont();
+        font.setColor(HSSFColor.BLUE.index);
+
+        final StylePool pool = new StylePool(wb);
+        final int styles = wb.getNumCellStyles();
+        Assert.assertEquals(existing.getIndex(), pool.getAltColorStyle(original, -1, HSSFColor.CORAL.index).getIndex());
+        Assert.assertEquals(font.getIndex(), pool.getAltColorStyle(original, HSSFColor.BLUE.index, -1).getFontIndex());
+        Assert.assertEquals(styles+1, wb.getNumCellStyles());
+
+        // стиль, измененный после попадания в индекс, не должен использоваться повторно ...
+        existing.setFillForegroundColor(HSSFColor.RED.index);
+        final CellStyle coral = pool.getStyle(original, original.getFontIndex(), CellStyle.SOLID_FOREGROUND, HSSFColor.CORAL.index);
+        Assert.assertTrue(existing.getIndex()!=coral.getIndex());
+        Assert.assertEquals(HSSFColor.CORAL.index, coral.getFillForegroundColor());
+        Assert.assertEquals(existing.getIndex(), pool.getStyle(original, original.getFontIndex(), CellStyle.SOLID_FOREGROUND, HSSFColor.RED.index).getIndex());
+    }
+
+    @Test
+    public void testStylesLimit() throws Exception {
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final CellStyle original = wb.createCellStyle();
+        final StylePool pool = new StylePool(wb, wb.getNumCellStyles()+1);
+        final CellStyle coral = pool.getAltColorStyle(original, -1, HSSFColor.CORAL.index);
+        Assert.assertSame(coral, pool.getAltColorStyle(original, -1, HSSFColor.CORAL.index));
+        try {
+            pool.getAltColorStyle(original, -1, HSSFColor.RED.index);
+            Assert.fail("styles limit exceeded");
+        } catch (IllegalStateException e) {
+            // ожидаемый результат
+        }
+    }
+}